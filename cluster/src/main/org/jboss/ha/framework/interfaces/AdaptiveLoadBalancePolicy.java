@@ -0,0 +1,105 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ha.framework.interfaces;
+
+/**
+ * A load-balancing policy that is told of the invocations made on the targets
+ * it chose, so that it can take the response time and the load of the targets
+ * into account. The HA proxies call invocationStarted before sending an
+ * invocation to a target, and invocationCompleted once the target responded
+ * or invocationFailed if it did not, through {@link Invocations}.
+ *
+ * @see org.jboss.ha.framework.interfaces.LoadBalancePolicy
+ *
+ * @version $Revision$
+ */
+public interface AdaptiveLoadBalancePolicy extends LoadBalancePolicy
+{
+   /**
+    * Called before an invocation is sent to a target.
+    * @param clusterFamily The family of the target
+    * @param target The target the invocation is sent to
+    */
+   public void invocationStarted (FamilyClusterInfo clusterFamily, Object target);
+
+   /**
+    * Called once the target responded to an invocation.
+    * @param clusterFamily The family of the target
+    * @param target The target the invocation was sent to
+    * @param responseTime The time in ms the invocation took
+    */
+   public void invocationCompleted (FamilyClusterInfo clusterFamily, Object target, long responseTime);
+
+   /**
+    * Called once an invocation sent to the target failed, the time it took
+    * is no response time of the target.
+    * @param clusterFamily The family of the target
+    * @param target The target the invocation was sent to
+    */
+   public void invocationFailed (FamilyClusterInfo clusterFamily, Object target);
+
+   /**
+    * Reports the invocations of the HA proxies to their load balance policy
+    * if it is adaptive.
+    */
+   public static final class Invocations
+   {
+      private Invocations ()
+      {
+      }
+
+      /**
+       * Tells an adaptive load balance policy that an invocation is sent to the target.
+       * @param policy The load balance policy of the proxy
+       * @param clusterFamily The family of the target
+       * @param target The target the invocation is sent to
+       * @return the time the invocation is sent
+       */
+      public static long started (LoadBalancePolicy policy, FamilyClusterInfo clusterFamily, Object target)
+      {
+         if (policy instanceof AdaptiveLoadBalancePolicy)
+            ((AdaptiveLoadBalancePolicy) policy).invocationStarted (clusterFamily, target);
+         return System.currentTimeMillis ();
+      }
+
+      /**
+       * Tells an adaptive load balance policy that the target responded or failed.
+       * @param policy The load balance policy of the proxy
+       * @param clusterFamily The family of the target
+       * @param target The target the invocation was sent to
+       * @param start The time returned by started
+       * @param failed Whether the invocation failed
+       */
+      public static void completed (LoadBalancePolicy policy, FamilyClusterInfo clusterFamily, Object target,
+         long start, boolean failed)
+      {
+         if (policy instanceof AdaptiveLoadBalancePolicy)
+         {
+            AdaptiveLoadBalancePolicy adaptive = (AdaptiveLoadBalancePolicy) policy;
+            if (failed)
+               adaptive.invocationFailed (clusterFamily, target);
+            else
+               adaptive.invocationCompleted (clusterFamily, target, System.currentTimeMillis () - start);
+         }
+      }
+   }
+}
@@ -216,7 +216,18 @@ public class HARMIClient
             mi.setObjectName (""); //FIXME: Fake value! Bill's optimisations regarding MI make the hypothesis
                                    // that ObjectName is always here otherwise the writeExternal code of MI
                                    // "out.writeInt(payload.size() - 3);" is wrong
-            HARMIResponse rsp = target.invoke(this.familyClusterInfo.getCurrentViewId (), mi);
+            HARMIResponse rsp = null;
+            long start = AdaptiveLoadBalancePolicy.Invocations.started(loadBalancePolicy, familyClusterInfo, target);
+            boolean failed = true;
+            try
+            {
+               rsp = target.invoke(this.familyClusterInfo.getCurrentViewId (), mi);
+               failed = false;
+            }
+            finally
+            {
+               AdaptiveLoadBalancePolicy.Invocations.completed(loadBalancePolicy, familyClusterInfo, target, start, failed);
+            }
             if (rsp.newReplicants != null)
             {
                if( trace )
@@ -0,0 +1,217 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ha.framework.interfaces;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.jboss.invocation.Invocation;
+
+/**
+ * LoadBalancingPolicy implementation that favors the targets which respond
+ * the fastest and have the fewest invocations in progress, so that a node
+ * that is slow, for instance while it collects its garbage, gets less of
+ * the load.
+ * <p>
+ * Two targets are picked at random and the one with the lowest cost is
+ * chosen, the cost being the average response time of the target times the
+ * number of invocations in progress on it. The average is exponentially
+ * weighted so that it follows the changes of the response time. The
+ * statistics are kept by the client for each family of proxies, a target
+ * that has not been invoked for a while is considered as fast as an
+ * unknown one so that it gets probed again. The statistics of the targets
+ * that left the cluster are dropped when a target is chosen after the view
+ * or the number of targets changed.
+ *
+ * @see org.jboss.ha.framework.interfaces.LoadBalancePolicy
+ *
+ * @version $Revision$
+ */
+public class LeastResponseTime implements AdaptiveLoadBalancePolicy
+{
+   // Constants -----------------------------------------------------
+   private static final long serialVersionUID = -2377416329582547353L;
+
+   /** The weight of the last response time in the average response time */
+   public static final double WEIGHT = 0.25;
+
+   /** The time in ms after which the average response time of a target is forgotten */
+   public static final long EXPIRATION = 10000;
+
+   // Attributes ----------------------------------------------------
+
+   // Static --------------------------------------------------------
+
+   /** WeakHashMap<FamilyClusterInfo, FamilyStatistics> */
+   private static final Map families = new WeakHashMap ();
+
+   // Constructors --------------------------------------------------
+
+   // Public --------------------------------------------------------
+
+   public void init (HARMIClient father)
+   {
+      // do not use the HARMIClient in this policy
+   }
+
+   public Object chooseTarget (FamilyClusterInfo clusterFamily)
+   {
+      return chooseTarget(clusterFamily, null);
+   }
+
+   public Object chooseTarget (FamilyClusterInfo clusterFamily, Invocation routingDecision)
+   {
+      // Read the view first, a change in between is seen by the next call
+      long viewId = clusterFamily.getCurrentViewId ();
+      ArrayList targets = clusterFamily.getTargets ();
+      int max = targets.size ();
+      FamilyStatistics statistics = getStatistics (clusterFamily);
+      synchronized (statistics)
+      {
+         // Forget the targets that left the cluster
+         if (statistics.viewId != viewId || statistics.targetCount != max)
+         {
+            statistics.keySet ().retainAll (targets);
+            statistics.viewId = viewId;
+            statistics.targetCount = max;
+         }
+      }
+
+      if (max == 0)
+         return null;
+      if (max == 1)
+         return targets.get (0);
+
+      int first = RandomRobin.localRandomizer.nextInt (max);
+      int second = RandomRobin.localRandomizer.nextInt (max - 1);
+      if (second >= first)
+         second++;
+
+      Object target = targets.get (first);
+      Object other = targets.get (second);
+      long now = System.currentTimeMillis ();
+      synchronized (statistics)
+      {
+         return cost (statistics, other, now) < cost (statistics, target, now) ? other : target;
+      }
+   }
+
+   // AdaptiveLoadBalancePolicy implementation ----------------------------------------------
+
+   public void invocationStarted (FamilyClusterInfo clusterFamily, Object target)
+   {
+      Map statistics = getStatistics (clusterFamily);
+      synchronized (statistics)
+      {
+         TargetStatistics stats = (TargetStatistics) statistics.get (target);
+         if (stats == null)
+         {
+            stats = new TargetStatistics ();
+            statistics.put (target, stats);
+         }
+         stats.inProgress++;
+      }
+   }
+
+   public void invocationCompleted (FamilyClusterInfo clusterFamily, Object target, long responseTime)
+   {
+      Map statistics = getStatistics (clusterFamily);
+      long now = System.currentTimeMillis ();
+      synchronized (statistics)
+      {
+         TargetStatistics stats = (TargetStatistics) statistics.get (target);
+         if (stats == null)
+            return;
+         if (stats.inProgress > 0)
+            stats.inProgress--;
+         if (stats.lastUpdate + EXPIRATION < now)
+            stats.averageResponseTime = responseTime;
+         else
+            stats.averageResponseTime += WEIGHT * (responseTime - stats.averageResponseTime);
+         stats.lastUpdate = now;
+      }
+   }
+
+   public void invocationFailed (FamilyClusterInfo clusterFamily, Object target)
+   {
+      Map statistics = getStatistics (clusterFamily);
+      synchronized (statistics)
+      {
+         TargetStatistics stats = (TargetStatistics) statistics.get (target);
+         if (stats != null && stats.inProgress > 0)
+            stats.inProgress--;
+      }
+   }
+
+   // Private -------------------------------------------------------
+
+   private static FamilyStatistics getStatistics (FamilyClusterInfo clusterFamily)
+   {
+      synchronized (families)
+      {
+         FamilyStatistics statistics = (FamilyStatistics) families.get (clusterFamily);
+         if (statistics == null)
+         {
+            statistics = new FamilyStatistics ();
+            families.put (clusterFamily, statistics);
+         }
+         return statistics;
+      }
+   }
+
+   private static double cost (Map statistics, Object target, long now)
+   {
+      TargetStatistics stats = (TargetStatistics) statistics.get (target);
+      if (stats == null)
+         return 1;
+      double average = (stats.lastUpdate + EXPIRATION < now) ? 0 : stats.averageResponseTime;
+      return (average + 1) * (stats.inProgress + 1);
+   }
+
+   // Inner classes -------------------------------------------------
+
+   /** HashMap<Object, TargetStatistics> of the targets of a family */
+   private static class FamilyStatistics extends HashMap
+   {
+      private static final long serialVersionUID = 1L;
+
+      /** The view the statistics were last pruned for */
+      long viewId = -1;
+
+      /** The number of targets they were last pruned for */
+      int targetCount = -1;
+   }
+
+   private static class TargetStatistics
+   {
+      /** The invocations in progress */
+      int inProgress;
+
+      /** The exponentially weighted average response time in ms */
+      double averageResponseTime;
+
+      /** When the average response time was last updated */
+      long lastUpdate;
+   }
+}
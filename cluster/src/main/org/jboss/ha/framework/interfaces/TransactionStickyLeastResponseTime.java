@@ -0,0 +1,65 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ha.framework.interfaces;
+
+/**
+ * Least response time transaction sticky load balance policy
+ *
+ * @see org.jboss.ha.framework.interfaces.LeastResponseTime
+ */
+public class TransactionStickyLeastResponseTime extends TransactionSticky
+   implements AdaptiveLoadBalancePolicy
+{
+   /** The serialVersionUID */
+   private static final long serialVersionUID = 4812634087325431128L;
+
+   private final LeastResponseTime delegate;
+
+   /**
+    * Create a new TransactionStickyLeastResponseTime.
+    */
+   public TransactionStickyLeastResponseTime()
+   {
+      this(new LeastResponseTime());
+   }
+
+   private TransactionStickyLeastResponseTime(LeastResponseTime delegate)
+   {
+      super(delegate);
+      this.delegate = delegate;
+   }
+
+   public void invocationStarted(FamilyClusterInfo clusterFamily, Object target)
+   {
+      delegate.invocationStarted(clusterFamily, target);
+   }
+
+   public void invocationCompleted(FamilyClusterInfo clusterFamily, Object target, long responseTime)
+   {
+      delegate.invocationCompleted(clusterFamily, target, responseTime);
+   }
+
+   public void invocationFailed(FamilyClusterInfo clusterFamily, Object target)
+   {
+      delegate.invocationFailed(clusterFamily, target);
+   }
+}
@@ -110,6 +110,12 @@ public class ClusterPartition
 
 
    protected long method_call_timeout=60000;
+
+   /** The class of the marshaller of the RPCs and the state, null for Java serialization */
+   protected String marshallerClass;
+
+   /** The size in bytes from which the state is compressed, 0 for never */
+   protected int state_compression_threshold;
    
    protected boolean channelRegistered;   
    protected boolean protocolsRegistered;
@@ -248,6 +254,26 @@ public class ClusterPartition
       this.method_call_timeout=timeout;
    }
 
+   public String getMarshallerClass()
+   {
+      return marshallerClass;
+   }
+
+   public void setMarshallerClass(String marshallerClass)
+   {
+      this.marshallerClass = marshallerClass;
+   }
+
+   public int getStateCompressionThreshold()
+   {
+      return state_compression_threshold;
+   }
+
+   public void setStateCompressionThreshold(int threshold)
+   {
+      this.state_compression_threshold = threshold;
+   }
+
    public JChannelFactoryMBean getMultiplexer()
    {
       return multiplexer;
@@ -367,6 +393,13 @@ public class ClusterPartition
       HAPartitionImpl result = new HAPartitionImpl(partitionName, channel, deadlock_detection, getServer());
       result.setStateTransferTimeout(this.state_transfer_timeout);
       result.setMethodCallTimeout(this.method_call_timeout);
+      result.setStateCompressionThreshold(this.state_compression_threshold);
+      if (marshallerClass != null && marshallerClass.trim().length() > 0)
+      {
+         ClassLoader loader = Thread.currentThread().getContextClassLoader();
+         Class clazz = loader.loadClass(marshallerClass.trim());
+         result.setPartitionMarshaller((org.jgroups.blocks.RpcDispatcher.Marshaller) clazz.newInstance());
+      }
       return result;
    }
 
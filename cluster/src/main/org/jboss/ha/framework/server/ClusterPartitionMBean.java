@@ -109,6 +109,20 @@ public interface ClusterPartitionMBean
    long getMethodCallTimeout();
 
    void setMethodCallTimeout(long timeout);
+
+   /** The class of the marshaller of the group method calls and the state,
+    * an org.jgroups.blocks.RpcDispatcher.Marshaller such as
+    * org.jboss.ha.framework.server.CompactMarshaller. Unset for Java
+    * serialization. Every node reads both forms. */
+   String getMarshallerClass();
+
+   void setMarshallerClass(String marshallerClass);
+
+   /** The size in bytes from which the state sent to a joining node is
+    * compressed, 0 = never */
+   int getStateCompressionThreshold();
+
+   void setStateCompressionThreshold(int threshold);
    
    /**
     * Gets the multiplexer channel factory that should be used to
@@ -0,0 +1,586 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ha.framework.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.rmi.Remote;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Vector;
+import java.util.WeakHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.jboss.invocation.MarshalledValueInputStream;
+import org.jboss.invocation.MarshalledValueOutputStream;
+import org.jgroups.blocks.RpcDispatcher;
+
+/**
+ * A marshaller for the RPCs and the state of the HAPartition that writes
+ * the types the partition services exchange most in a compact binary form
+ * instead of Java serialization.
+ * <p/>
+ * Strings, boxed primitives, byte arrays, object arrays, the JDK
+ * collections and maps used by the DistributedReplicantManager and the
+ * DistributedState and Externalizable objects such as the JGroups
+ * MethodCall are written with a one byte tag. Class names are written once
+ * per message, by index afterwards, and the most common ones have a fixed
+ * index. Any other object is written with Java serialization.
+ * <p/>
+ * The identity of the objects written in the compact form is not
+ * preserved: an object referenced twice is read as two copies.
+ * <p/>
+ * Messages start with a byte Java serialization never starts with, so
+ * {@link HAPartitionImpl#objectFromByteBuffer(byte[])} reads both forms
+ * and nodes can switch to this marshaller one at a time.
+ *
+ * @version $Revision$
+ */
+public class CompactMarshaller implements RpcDispatcher.Marshaller
+{
+   // Constants -----------------------------------------------------
+
+   /** The first byte of a compact message */
+   static final byte MAGIC = 0x01;
+
+   /** The first byte of a compressed message */
+   static final byte COMPRESSED = 0x02;
+
+   /** The version of the format */
+   static final byte VERSION = 1;
+
+   static final byte NULL = 0;
+   static final byte STRING = 1;
+   static final byte TRUE = 2;
+   static final byte FALSE = 3;
+   static final byte INTEGER = 4;
+   static final byte LONG = 5;
+   static final byte SHORT = 6;
+   static final byte BYTE = 7;
+   static final byte CHARACTER = 8;
+   static final byte DOUBLE = 9;
+   static final byte FLOAT = 10;
+   static final byte BYTE_ARRAY = 11;
+   static final byte OBJECT_ARRAY = 12;
+   static final byte CLASS = 13;
+   static final byte ARRAY_LIST = 14;
+   static final byte VECTOR = 15;
+   static final byte HASH_MAP = 16;
+   static final byte HASH_SET = 17;
+   static final byte EXTERNALIZABLE = 18;
+   static final byte SERIALIZED = 19;
+
+   /** The class names with a fixed index, append only */
+   static final String[] KNOWN_CLASSES =
+   {
+      "java.lang.Object",
+      "java.lang.String",
+      "java.lang.Class",
+      "java.io.Serializable",
+      "java.util.List",
+      "java.util.Map",
+      "java.util.ArrayList",
+      "java.util.HashMap",
+      "org.jgroups.blocks.MethodCall",
+      "org.jboss.ha.framework.interfaces.ClusterNode",
+      "boolean",
+      "int",
+      "long",
+      "short",
+      "byte",
+      "char",
+      "double",
+      "float",
+   };
+
+   /** Whether Externalizable classes can be written without Java serialization */
+   private static final Map PLAIN_EXTERNALIZABLE = Collections.synchronizedMap(new WeakHashMap());
+
+   /** The primitive classes by name */
+   private static final Map PRIMITIVES = new HashMap();
+
+   static
+   {
+      PRIMITIVES.put("boolean", Boolean.TYPE);
+      PRIMITIVES.put("int", Integer.TYPE);
+      PRIMITIVES.put("long", Long.TYPE);
+      PRIMITIVES.put("short", Short.TYPE);
+      PRIMITIVES.put("byte", Byte.TYPE);
+      PRIMITIVES.put("char", Character.TYPE);
+      PRIMITIVES.put("double", Double.TYPE);
+      PRIMITIVES.put("float", Float.TYPE);
+      PRIMITIVES.put("void", Void.TYPE);
+   }
+
+   // Public --------------------------------------------------------
+
+   public byte[] objectToByteBuffer(Object obj) throws Exception
+   {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      CompactOutput out = new CompactOutput(baos);
+      out.writeByte(MAGIC);
+      out.writeByte(VERSION);
+      out.writeObject(obj);
+      out.flush();
+      return baos.toByteArray();
+   }
+
+   public Object objectFromByteBuffer(byte[] buffer) throws Exception
+   {
+      return HAPartitionImpl.objectFromByteBuffer(buffer);
+   }
+
+   /**
+    * Whether a buffer holds a compact message
+    */
+   public static boolean isCompact(byte[] buffer)
+   {
+      return buffer != null && buffer.length > 0 && buffer[0] == MAGIC;
+   }
+
+   /**
+    * Read a compact message
+    */
+   static Object readBuffer(byte[] buffer) throws Exception
+   {
+      CompactInput in = new CompactInput(new ByteArrayInputStream(buffer));
+      in.readByte();
+      byte version = in.readByte();
+      if (version != VERSION)
+         throw new StreamCorruptedException("Unsupported version " + version);
+      return in.readObject();
+   }
+
+   /**
+    * Compress a message
+    *
+    * @param buffer the message
+    * @return the compressed message
+    */
+   public static byte[] compress(byte[] buffer) throws IOException
+   {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(buffer.length / 4 + 16);
+      baos.write(COMPRESSED);
+      Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      try
+      {
+         DeflaterOutputStream out = new DeflaterOutputStream(baos, deflater);
+         out.write(buffer);
+         out.finish();
+      }
+      finally
+      {
+         deflater.end();
+      }
+      return baos.toByteArray();
+   }
+
+   /**
+    * Whether a message is compressed
+    */
+   public static boolean isCompressed(byte[] buffer)
+   {
+      return buffer != null && buffer.length > 0 && buffer[0] == COMPRESSED;
+   }
+
+   /**
+    * Decompress a compressed message
+    *
+    * @param buffer the compressed message
+    * @return the message
+    */
+   public static byte[] decompress(byte[] buffer) throws IOException
+   {
+      Inflater inflater = new Inflater();
+      try
+      {
+         InputStream in = new InflaterInputStream(new ByteArrayInputStream(buffer, 1, buffer.length - 1), inflater);
+         ByteArrayOutputStream baos = new ByteArrayOutputStream(buffer.length * 4);
+         byte[] chunk = new byte[4096];
+         int read;
+         while ((read = in.read(chunk)) != -1)
+            baos.write(chunk, 0, read);
+         return baos.toByteArray();
+      }
+      finally
+      {
+         inflater.end();
+      }
+   }
+
+   // Private -------------------------------------------------------
+
+   /**
+    * Whether Java serialization would write an Externalizable class as it
+    * writes itself, that is the class is not a Remote object replaced by
+    * its stub and does not replace itself or resolve to another object.
+    */
+   private static boolean isPlainExternalizable(Class type)
+   {
+      Boolean plain = (Boolean) PLAIN_EXTERNALIZABLE.get(type);
+      if (plain == null)
+      {
+         boolean result = Remote.class.isAssignableFrom(type) == false;
+         for (Class c = type; result && c != null; c = c.getSuperclass())
+         {
+            Method[] methods = c.getDeclaredMethods();
+            for (int i = 0; i < methods.length; ++i)
+            {
+               String name = methods[i].getName();
+               if ((name.equals("writeReplace") || name.equals("readResolve"))
+                  && methods[i].getParameterTypes().length == 0)
+                  result = false;
+            }
+         }
+         plain = Boolean.valueOf(result);
+         PLAIN_EXTERNALIZABLE.put(type, plain);
+      }
+      return plain.booleanValue();
+   }
+
+   // Inner classes -------------------------------------------------
+
+   /**
+    * Writes the compact form
+    */
+   static class CompactOutput extends DataOutputStream implements ObjectOutput
+   {
+      /** The indexes of the class names written */
+      private final HashMap classNames = new HashMap();
+
+      CompactOutput(OutputStream out)
+      {
+         super(out);
+         for (int i = 0; i < KNOWN_CLASSES.length; ++i)
+            classNames.put(KNOWN_CLASSES[i], new Integer(i));
+      }
+
+      public void writeObject(Object obj) throws IOException
+      {
+         if (obj == null)
+         {
+            writeByte(NULL);
+            return;
+         }
+
+         Class type = obj.getClass();
+         if (type == String.class)
+         {
+            writeByte(STRING);
+            writeString((String) obj);
+         }
+         else if (type == Boolean.class)
+            writeByte(((Boolean) obj).booleanValue() ? TRUE : FALSE);
+         else if (type == Integer.class)
+         {
+            writeByte(INTEGER);
+            writeInt(((Integer) obj).intValue());
+         }
+         else if (type == Long.class)
+         {
+            writeByte(LONG);
+            writeLong(((Long) obj).longValue());
+         }
+         else if (type == Short.class)
+         {
+            writeByte(SHORT);
+            writeShort(((Short) obj).shortValue());
+         }
+         else if (type == Byte.class)
+         {
+            writeByte(BYTE);
+            writeByte(((Byte) obj).byteValue());
+         }
+         else if (type == Character.class)
+         {
+            writeByte(CHARACTER);
+            writeChar(((Character) obj).charValue());
+         }
+         else if (type == Double.class)
+         {
+            writeByte(DOUBLE);
+            writeDouble(((Double) obj).doubleValue());
+         }
+         else if (type == Float.class)
+         {
+            writeByte(FLOAT);
+            writeFloat(((Float) obj).floatValue());
+         }
+         else if (type == byte[].class)
+         {
+            byte[] bytes = (byte[]) obj;
+            writeByte(BYTE_ARRAY);
+            writeInt(bytes.length);
+            write(bytes);
+         }
+         else if (type.isArray() && type.getComponentType().isPrimitive() == false)
+         {
+            Object[] array = (Object[]) obj;
+            writeByte(OBJECT_ARRAY);
+            writeClassName(type.getComponentType().getName());
+            writeInt(array.length);
+            for (int i = 0; i < array.length; ++i)
+               writeObject(array[i]);
+         }
+         else if (type == Class.class)
+         {
+            writeByte(CLASS);
+            writeClassName(((Class) obj).getName());
+         }
+         else if (type == ArrayList.class || type == Vector.class)
+         {
+            java.util.List list = (java.util.List) obj;
+            writeByte(type == ArrayList.class ? ARRAY_LIST : VECTOR);
+            writeInt(list.size());
+            for (int i = 0; i < list.size(); ++i)
+               writeObject(list.get(i));
+         }
+         else if (type == HashMap.class)
+         {
+            Map map = (Map) obj;
+            writeByte(HASH_MAP);
+            writeInt(map.size());
+            for (Iterator i = map.entrySet().iterator(); i.hasNext();)
+            {
+               Map.Entry entry = (Map.Entry) i.next();
+               writeObject(entry.getKey());
+               writeObject(entry.getValue());
+            }
+         }
+         else if (type == HashSet.class)
+         {
+            HashSet set = (HashSet) obj;
+            writeByte(HASH_SET);
+            writeInt(set.size());
+            for (Iterator i = set.iterator(); i.hasNext();)
+               writeObject(i.next());
+         }
+         else if (obj instanceof Externalizable && isPlainExternalizable(type))
+         {
+            writeByte(EXTERNALIZABLE);
+            writeClassName(type.getName());
+            ((Externalizable) obj).writeExternal(this);
+         }
+         else
+         {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            MarshalledValueOutputStream mvos = new MarshalledValueOutputStream(baos);
+            mvos.writeObject(obj);
+            mvos.close();
+            writeByte(SERIALIZED);
+            writeInt(baos.size());
+            baos.writeTo(this);
+         }
+      }
+
+      /**
+       * Strings longer than writeUTF allows are written as chars
+       */
+      private void writeString(String s) throws IOException
+      {
+         if (s.length() < 0x10000 / 3)
+         {
+            writeBoolean(true);
+            writeUTF(s);
+         }
+         else
+         {
+            writeBoolean(false);
+            writeInt(s.length());
+            writeChars(s);
+         }
+      }
+
+      private void writeClassName(String name) throws IOException
+      {
+         Integer index = (Integer) classNames.get(name);
+         if (index != null)
+         {
+            writeShort(index.intValue());
+         }
+         else
+         {
+            writeShort(-1);
+            writeUTF(name);
+            classNames.put(name, new Integer(classNames.size()));
+         }
+      }
+   }
+
+   /**
+    * Reads the compact form
+    */
+   static class CompactInput extends DataInputStream implements ObjectInput
+   {
+      /** The class names read, by index */
+      private final ArrayList classNames = new ArrayList();
+
+      CompactInput(InputStream in)
+      {
+         super(in);
+         for (int i = 0; i < KNOWN_CLASSES.length; ++i)
+            classNames.add(KNOWN_CLASSES[i]);
+      }
+
+      public Object readObject() throws ClassNotFoundException, IOException
+      {
+         byte tag = readByte();
+         switch (tag)
+         {
+            case NULL:
+               return null;
+            case STRING:
+               return readString();
+            case TRUE:
+               return Boolean.TRUE;
+            case FALSE:
+               return Boolean.FALSE;
+            case INTEGER:
+               return new Integer(readInt());
+            case LONG:
+               return new Long(readLong());
+            case SHORT:
+               return new Short(readShort());
+            case BYTE:
+               return new Byte(readByte());
+            case CHARACTER:
+               return new Character(readChar());
+            case DOUBLE:
+               return new Double(readDouble());
+            case FLOAT:
+               return new Float(readFloat());
+            case BYTE_ARRAY:
+            {
+               byte[] bytes = new byte[readInt()];
+               readFully(bytes);
+               return bytes;
+            }
+            case OBJECT_ARRAY:
+            {
+               Class componentType = loadClass(readClassName());
+               Object[] array = (Object[]) Array.newInstance(componentType, readInt());
+               for (int i = 0; i < array.length; ++i)
+                  array[i] = readObject();
+               return array;
+            }
+            case CLASS:
+               return loadClass(readClassName());
+            case ARRAY_LIST:
+            case VECTOR:
+            {
+               int size = readInt();
+               java.util.List list = tag == ARRAY_LIST ? (java.util.List) new ArrayList(size) : new Vector(size);
+               for (int i = 0; i < size; ++i)
+                  list.add(readObject());
+               return list;
+            }
+            case HASH_MAP:
+            {
+               int size = readInt();
+               HashMap map = new HashMap(size * 4 / 3 + 1);
+               for (int i = 0; i < size; ++i)
+                  map.put(readObject(), readObject());
+               return map;
+            }
+            case HASH_SET:
+            {
+               int size = readInt();
+               HashSet set = new HashSet(size * 4 / 3 + 1);
+               for (int i = 0; i < size; ++i)
+                  set.add(readObject());
+               return set;
+            }
+            case EXTERNALIZABLE:
+            {
+               Class type = loadClass(readClassName());
+               Externalizable obj;
+               try
+               {
+                  obj = (Externalizable) type.newInstance();
+               }
+               catch (Exception e)
+               {
+                  throw new StreamCorruptedException("Cannot instantiate " + type + ": " + e);
+               }
+               obj.readExternal(this);
+               return obj;
+            }
+            case SERIALIZED:
+            {
+               byte[] bytes = new byte[readInt()];
+               readFully(bytes);
+               MarshalledValueInputStream mvis = new MarshalledValueInputStream(new ByteArrayInputStream(bytes));
+               return mvis.readObject();
+            }
+            default:
+               throw new StreamCorruptedException("Unknown tag " + tag);
+         }
+      }
+
+      private String readString() throws IOException
+      {
+         if (readBoolean())
+            return readUTF();
+         char[] chars = new char[readInt()];
+         for (int i = 0; i < chars.length; ++i)
+            chars[i] = readChar();
+         return new String(chars);
+      }
+
+      private String readClassName() throws IOException
+      {
+         int index = readShort();
+         if (index >= 0)
+            return (String) classNames.get(index);
+         String name = readUTF();
+         classNames.add(name);
+         return name;
+      }
+
+      private static Class loadClass(String name) throws ClassNotFoundException
+      {
+         Class primitive = (Class) PRIMITIVES.get(name);
+         if (primitive != null)
+            return primitive;
+         ClassLoader loader = Thread.currentThread().getContextClassLoader();
+         return Class.forName(name, false, loader);
+      }
+   }
+}
@@ -27,11 +27,17 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 
+import EDU.oswego.cs.dl.util.concurrent.ConcurrentHashMap;
+
 import org.jboss.ha.framework.interfaces.HAPartition;
 import org.jboss.ha.framework.interfaces.HAPartition.HAPartitionStateTransfer;
 import org.jboss.logging.Logger;
@@ -40,6 +46,13 @@ import org.jboss.system.Registry;
 /**
  *   This class manages distributed state across the cluster.
  *
+ *   Reads do not lock, each category is a concurrent map. The state sent to
+ *   a joining node holds the small categories only, the joining node pulls
+ *   the entries of the large categories from the coordinator in segments
+ *   when it starts, so that the coordinator does not copy the whole state
+ *   at once. The modifications received while the entries are pulled win
+ *   over the pulled entries.
+ *
  * @author  <a href="mailto:sacha.labourey@cogito-info.ch">Sacha Labourey</a>.
  * @author  <a href="mailto:bill@burkecentral.com">Bill Burke</a>.
  * @author  Scott.Stark@jboss.org
@@ -54,13 +67,43 @@ public class DistributedStateImpl
 
    protected final static Class[] set_types=new Class[]{String.class, Serializable.class, Serializable.class};
    protected final static Class[] remove_types=new Class[]{String.class, Serializable.class};
+   protected final static Class[] get_entries_types=new Class[]{String.class, Integer.class, Integer.class};
+   protected final static Class[] declare_state_pull_types=new Class[]{String.class};
+
+   /** The default number of entries sent in the state or pulled at once */
+   public final static int DEFAULT_STATE_CHUNK_SIZE = 1000;
+
+   /** The times a segment is requested from the coordinator before the start fails */
+   public final static int PULL_ATTEMPTS = 3;
+
+   /** Stands for the null values, which the concurrent maps do not hold */
+   private final static Object NULL_VALUE = new Object();
 
    // Attributes ----------------------------------------------------
 
    /**
-    * HashMap<String, HashMap>. Keys= category, value = HashMap<Object, Object>
+    * ConcurrentHashMap<String, ConcurrentHashMap>. Keys= category, value = ConcurrentHashMap<Object, Object>
+    * The categories are created and removed while holding the lock of the map.
     */
-   protected HashMap categories = new HashMap ();
+   protected Map categories = new ConcurrentHashMap ();
+
+   /**
+    * The categories the entries of which are still to be pulled from the
+    * coordinator, null when there are none
+    */
+   protected volatile StateSync sync = null;
+
+   /**
+    * The largest category sent in the state, the entries of the larger
+    * categories are pulled in segments of about this size
+    */
+   protected int stateChunkSize = DEFAULT_STATE_CHUNK_SIZE;
+
+   /**
+    * HashSet<String> the names of the nodes that pull the large categories,
+    * the state holds all the entries unless every member is one of them
+    */
+   protected Set statePullNodes = new HashSet ();
 
 
    protected HashMap keyListeners = new HashMap ();
@@ -103,8 +146,54 @@ public class DistributedStateImpl
       Registry.bind (this.name, this);
    }
 
+   /**
+    * Tell the other nodes that this one pulls the large categories of the
+    * state, and learn which of them do. Called by the partition before it
+    * fetches the state.
+    */
+   public void declareStatePull ()
+   {
+      String me = partition.getNodeName ();
+      ArrayList rsp = null;
+      try
+      {
+         rsp = partition.callMethodOnCluster (SERVICE_NAME, "_declareStatePull",
+            new Object[] {me}, declare_state_pull_types, true);
+      }
+      catch (Exception e)
+      {
+         log.debug ("Could not declare the state pull, the state will hold all the entries", e);
+      }
+      synchronized (statePullNodes)
+      {
+         statePullNodes.add (me);
+         for (int i = 0; rsp != null && i < rsp.size (); i++)
+         {
+            // The older nodes answer with an exception
+            if (rsp.get (i) instanceof String)
+               statePullNodes.add (rsp.get (i));
+         }
+      }
+   }
+
    public void start () throws Exception
    {
+      StateSync pending = this.sync;
+      if (pending == null)
+         return;
+
+      try
+      {
+         pullEntries (pending);
+      }
+      finally
+      {
+         synchronized (pending)
+         {
+            pending.active = false;
+         }
+         this.sync = null;
+      }
    }
 
    public void stop () throws Exception
@@ -226,43 +315,44 @@ public class DistributedStateImpl
 
    public Serializable get (String category, Serializable key)
    {
-      synchronized(this.categories)
-      {
-         HashMap cat = (HashMap)categories.get (category);
-         if (cat == null) return null;
+      Map cat = (Map)categories.get (category);
+      if (cat == null) return null;
 
-         return (Serializable)cat.get (key);
-      }
+      return unwrap (cat.get (key));
    }
 
    public Collection getAllCategories ()
    {
-      synchronized(this.categories)
-      {
-         return Collections.unmodifiableCollection(categories.keySet ());
-      }
+      return Collections.unmodifiableCollection(categories.keySet ());
    }
 
    public Collection getAllKeys (String category)
    {
-      synchronized(this.categories)
-      {
-         HashMap cat = (HashMap)categories.get (category);
-         if (cat == null) return null;
+      Map cat = (Map)categories.get (category);
+      if (cat == null) return null;
 
-         return Collections.unmodifiableCollection(cat.keySet ());
-      }
+      return Collections.unmodifiableCollection(cat.keySet ());
    }
 
    public Collection getAllValues (String category)
    {
-      synchronized(this.categories)
-      {
-         HashMap cat = (HashMap)categories.get (category);
-         if (cat == null) return null;
+      Map cat = (Map)categories.get (category);
+      if (cat == null) return null;
 
-         return Collections.unmodifiableCollection(cat.values ());
-      }
+      ArrayList values = new ArrayList (cat.size ());
+      for (Iterator it = cat.values ().iterator (); it.hasNext ();)
+         values.add (unwrap (it.next ()));
+      return Collections.unmodifiableCollection(values);
+   }
+
+   public int getStateChunkSize ()
+   {
+      return stateChunkSize;
+   }
+
+   public void setStateChunkSize (int stateChunkSize)
+   {
+      this.stateChunkSize = stateChunkSize;
    }
 
 
@@ -301,16 +391,20 @@ public class DistributedStateImpl
    public void _setInternal (String category, Serializable key, Serializable value)
       throws Exception
    {
-      synchronized(this.categories)
+      StateSync pending = this.sync;
+      if (pending != null)
       {
-         HashMap cat = (HashMap)categories.get (category);
-         if (cat == null)
+         synchronized (pending)
          {
-            cat = new HashMap ();
-            categories.put (category, cat);
+            if (pending.active)
+            {
+               pending.modified (category, key);
+               putEntry (category, key, value);
+               return;
+            }
          }
-         cat.put (key, value);
       }
+      putEntry (category, key, value);
    }
 
    public void _remove (String category, String key) throws Exception
@@ -327,58 +421,142 @@ public class DistributedStateImpl
    public Serializable _removeInternal (String category, Serializable key)
       throws Exception
    {
-      synchronized(this.categories)
+      StateSync pending = this.sync;
+      if (pending != null)
       {
-         HashMap cat = (HashMap)categories.get (category);
-         if (cat == null) return null;
-         Object removed = cat.remove (key);
-         if (removed != null)
+         synchronized (pending)
          {
-            if (cat.size () == 0)
+            if (pending.active)
             {
-               categories.remove (category);
+               pending.modified (category, key);
+               return removeEntry (category, key);
             }
          }
-         return (Serializable)removed;
       }
+      return removeEntry (category, key);
+   }
+
+   /**
+    * Returns the entries of a segment of a category, called by the nodes
+    * pulling the large categories after they joined.
+    *
+    * @param category the category
+    * @param segment the segment, the entries the hash code of the key of
+    *    which modulo segments is segment
+    * @param segments the number of segments, a power of two
+    * @return HashMap<Object, Object> the entries, empty when there is no
+    *    such category anymore
+    */
+   public HashMap _getEntries (String category, Integer segment, Integer segments)
+   {
+      HashMap entries = new HashMap ();
+      Map cat = (Map)categories.get (category);
+      if (cat == null) return entries;
+
+      int mask = segments.intValue () - 1;
+      int selected = segment.intValue ();
+      for (Iterator it = cat.entrySet ().iterator (); it.hasNext ();)
+      {
+         Map.Entry entry = (Map.Entry)it.next ();
+         if ((entry.getKey ().hashCode () & mask) == selected)
+            entries.put (entry.getKey (), unwrap (entry.getValue ()));
+      }
+      return entries;
+   }
+
+   /**
+    * Called by a joining node that pulls the large categories of the state.
+    *
+    * @param node the name of the joining node
+    * @return the name of this node, which pulls them too
+    */
+   public String _declareStatePull (String node)
+   {
+      synchronized (statePullNodes)
+      {
+         statePullNodes.add (node);
+      }
+      return partition.getNodeName ();
    }
 
    // HAPartitionStateTransfer implementation ----------------------------------------------
 
+   /**
+    * HashMap<String, Object>. Keys= category, value = HashMap<Object, Object>
+    * of the entries of the small categories, Integer size of the large
+    * categories the entries of which are pulled by the joining node. The
+    * sizes are only sent when every member pulls the large categories, the
+    * older nodes expect the entries of all of them.
+    */
    public Serializable getCurrentState ()
    {
       HashMap retval=new HashMap();
       Map.Entry entry;
       String catName;
-      HashMap value, newVal;
+      Map value;
+      boolean pull;
 
-      synchronized(this.categories)
+      synchronized (statePullNodes)
       {
+         pull = statePullNodes.containsAll (partition.getCurrentView ());
+      }
 
-         for(Iterator it=this.categories.entrySet().iterator(); it.hasNext();)
+      for(Iterator it=this.categories.entrySet().iterator(); it.hasNext();)
+      {
+         entry=(Map.Entry)it.next(); // key: category name, value: ConcurrentHashMap
+         catName=(String)entry.getKey();
+         value=(Map)entry.getValue();
+         int size = value.size ();
+         if (pull && size > stateChunkSize)
+         {
+            retval.put(catName, new Integer(size));
+         }
+         else
          {
-            entry=(Map.Entry)it.next(); // key: category name, value: HashMap
-            catName=(String)entry.getKey();
-            value=(HashMap)entry.getValue();
-            newVal=value != null? (HashMap)value.clone() : null;
+            HashMap newVal = new HashMap(size);
+            for (Iterator entries = value.entrySet().iterator(); entries.hasNext();)
+            {
+               Map.Entry e = (Map.Entry)entries.next();
+               newVal.put(e.getKey(), unwrap(e.getValue()));
+            }
             retval.put(catName, newVal);
          }
-
-         return retval;
       }
+
+      return retval;
    }
 
    public void setCurrentState (Serializable newState)
    {
+      StateSync pending = new StateSync ();
       synchronized (this.categories)
       {
          categories.clear ();
-         categories.putAll ((HashMap)newState);
+         for (Iterator it = ((HashMap)newState).entrySet ().iterator (); it.hasNext ();)
+         {
+            Map.Entry entry = (Map.Entry)it.next ();
+            String category = (String)entry.getKey ();
+            if (entry.getValue () instanceof Integer)
+            {
+               pending.categories.put (category, entry.getValue ());
+            }
+            else
+            {
+               Map cat = new ConcurrentHashMap ();
+               putAll (cat, (Map)entry.getValue ());
+               categories.put (category, cat);
+            }
+         }
          if (keyListeners.size () > 0)
          {
             cleanupKeyListeners ();
          }
       }
+
+      // The entries are pulled by start(), the RPCs cannot be made from
+      // the thread setting the state
+      if (pending.categories.isEmpty () == false)
+         this.sync = pending;
    }
 
    // Package protected ---------------------------------------------
@@ -473,8 +651,161 @@ public class DistributedStateImpl
       // NOT IMPLEMENTED YET
    }
 
+   /**
+    * Pull the entries of the large categories of the state from the
+    * coordinator, a segment of about stateChunkSize entries at a time.
+    * A segment the coordinator does not answer is requested again from
+    * the coordinator of the next view, the start fails when none answers.
+    */
+   protected void pullEntries (StateSync pending) throws Exception
+   {
+      long start = System.currentTimeMillis ();
+      int pulled = 0;
+      for (Iterator it = pending.categories.entrySet ().iterator (); it.hasNext ();)
+      {
+         Map.Entry entry = (Map.Entry)it.next ();
+         String category = (String)entry.getKey ();
+         int size = ((Integer)entry.getValue ()).intValue ();
+         int segments = 1;
+         while (segments < size / stateChunkSize + 1)
+            segments <<= 1;
+
+         for (int segment = 0; segment < segments; segment++)
+         {
+            HashMap entries = pullSegment (category, segment, segments);
+            synchronized (pending)
+            {
+               for (Iterator i = entries.entrySet ().iterator (); i.hasNext ();)
+               {
+                  Map.Entry e = (Map.Entry)i.next ();
+                  if (pending.isModified (category, e.getKey ()) == false)
+                     putEntry (category, e.getKey (), e.getValue ());
+               }
+            }
+            pulled += entries.size ();
+         }
+      }
+      log.debug ("Pulled " + pulled + " entries of " + pending.categories.size () + " categories in "
+         + (System.currentTimeMillis () - start) + " ms");
+   }
+
    // Private -------------------------------------------------------
 
+   private HashMap pullSegment (String category, int segment, int segments) throws Exception
+   {
+      Object[] args = {category, new Integer(segment), new Integer(segments)};
+      for (int attempt = 1; ; attempt++)
+      {
+         ArrayList rsp = partition.callMethodOnCoordinatorNode (SERVICE_NAME, "_getEntries",
+            args, get_entries_types, true);
+         Object entries = (rsp == null || rsp.isEmpty ()) ? null : rsp.get (0);
+         if (entries instanceof HashMap)
+            return (HashMap)entries;
+
+         // Nobody else is left to pull the entries from once we are the coordinator
+         Vector view = partition.getCurrentView ();
+         boolean coordinator = view.isEmpty () == false && view.get (0).equals (partition.getNodeName ());
+         if (coordinator || attempt >= PULL_ATTEMPTS)
+            throw new IllegalStateException ("Could not pull the entries of category " + category
+               + " from the coordinator, the state is incomplete: " + entries);
+
+         // The coordinator left, wait for the next view
+         log.debug ("Could not pull the entries of category " + category + ", retrying: " + entries);
+         Thread.sleep (1000L * attempt);
+      }
+   }
+
+   private void putEntry (String category, Object key, Object value)
+   {
+      Object wrapped = (value == null) ? NULL_VALUE : value;
+      while (true)
+      {
+         Map cat = (Map)categories.get (category);
+         if (cat == null)
+         {
+            synchronized (this.categories)
+            {
+               cat = (Map)categories.get (category);
+               if (cat == null)
+               {
+                  cat = new ConcurrentHashMap ();
+                  categories.put (category, cat);
+               }
+            }
+         }
+         cat.put (key, wrapped);
+
+         // Retry if the category was removed as being empty meanwhile
+         if (categories.get (category) == cat)
+            return;
+      }
+   }
+
+   private Serializable removeEntry (String category, Object key)
+   {
+      Map cat = (Map)categories.get (category);
+      if (cat == null) return null;
+      Object removed = cat.remove (key);
+      if (removed != null && cat.isEmpty ())
+      {
+         synchronized (this.categories)
+         {
+            if (cat.isEmpty () && categories.get (category) == cat)
+               categories.remove (category);
+         }
+      }
+      return unwrap (removed);
+   }
+
+   private static void putAll (Map cat, Map entries)
+   {
+      for (Iterator it = entries.entrySet ().iterator (); it.hasNext ();)
+      {
+         Map.Entry entry = (Map.Entry)it.next ();
+         cat.put (entry.getKey (), entry.getValue () == null ? NULL_VALUE : entry.getValue ());
+      }
+   }
+
+   private static Serializable unwrap (Object value)
+   {
+      return (value == NULL_VALUE) ? null : (Serializable)value;
+   }
+
    // Inner classes -------------------------------------------------
 
+   /**
+    * The categories pulled after the state was set, and the keys
+    * modified meanwhile.
+    */
+   protected static class StateSync
+   {
+      /** LinkedHashMap<String, Integer> the categories and their size */
+      protected Map categories = new LinkedHashMap ();
+
+      /** HashMap<String, HashSet> the modified keys of the categories */
+      protected Map modified = new HashMap ();
+
+      /** Are the entries still being pulled? */
+      protected boolean active = true;
+
+      protected void modified (String category, Object key)
+      {
+         if (categories.containsKey (category) == false)
+            return;
+         Set keys = (Set)modified.get (category);
+         if (keys == null)
+         {
+            keys = new HashSet ();
+            modified.put (category, keys);
+         }
+         keys.add (key);
+      }
+
+      protected boolean isModified (String category, Object key)
+      {
+         Set keys = (Set)modified.get (category);
+         return keys != null && keys.contains (key);
+      }
+   }
+
 }
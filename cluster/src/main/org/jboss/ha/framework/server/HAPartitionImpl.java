@@ -142,17 +142,31 @@ public class HAPartitionImpl
     */
    protected Exception setStateException;
    private final Object stateLock = new Object();
+   /**
+    * The marshaller of the RPCs and the state, null for Java serialization
+    */
+   protected org.jgroups.blocks.RpcDispatcher.Marshaller partitionMarshaller;
+   /**
+    * The size in bytes from which the state is compressed, 0 for never
+    */
+   protected int stateCompressionThreshold;
 
    // Static --------------------------------------------------------
    
    /**
-    * Creates an object from a byte buffer
+    * Creates an object from a byte buffer written with Java serialization
+    * or the {@link CompactMarshaller}, compressed or not
     */
    public static Object objectFromByteBuffer (byte[] buffer) throws Exception
    {
       if(buffer == null) 
          return null;
 
+      if (CompactMarshaller.isCompressed(buffer))
+         buffer = CompactMarshaller.decompress(buffer);
+      if (CompactMarshaller.isCompact(buffer))
+         return CompactMarshaller.readBuffer(buffer);
+
       ByteArrayInputStream bais = new ByteArrayInputStream(buffer);
       MarshalledValueInputStream mvis = new MarshalledValueInputStream(bais);
       return mvis.readObject();
@@ -188,6 +202,33 @@ public class HAPartitionImpl
       this.timeout=timeout;
    }
 
+   public org.jgroups.blocks.RpcDispatcher.Marshaller getPartitionMarshaller()
+   {
+      return partitionMarshaller;
+   }
+
+   /**
+    * Sets the marshaller of the RPCs and the state. All the nodes must be
+    * able to read what it writes; the nodes read Java serialization and
+    * the {@link CompactMarshaller} whatever marshaller they use.
+    *
+    * @param marshaller the marshaller, null for Java serialization
+    */
+   public void setPartitionMarshaller(org.jgroups.blocks.RpcDispatcher.Marshaller marshaller)
+   {
+      this.partitionMarshaller = marshaller;
+   }
+
+   public int getStateCompressionThreshold()
+   {
+      return stateCompressionThreshold;
+   }
+
+   public void setStateCompressionThreshold(int threshold)
+   {
+      this.stateCompressionThreshold = threshold;
+   }
+
     // Constructors --------------------------------------------------
        
    public HAPartitionImpl(String partitionName, org.jgroups.JChannel channel, boolean deadlock_detection, MBeanServer server) throws Exception
@@ -277,6 +318,10 @@ public class HAPartitionImpl
       //
       this.currentViewId = view.getVid().getId();
 
+      // Tell the coordinator in which form we take the state of the DS
+      //
+      this.dsManager.declareStatePull();
+
       // We must now synchronize new state transfer subscriber
       //
       fetchState();
@@ -480,7 +525,15 @@ public class HAPartitionImpl
                log.debug("getState for " + key);
             state.put(key, subscriber.getCurrentState());
          }
-         return objectToByteBuffer(state);
+         byte[] buffer = marshal(state);
+         if (stateCompressionThreshold > 0 && buffer.length >= stateCompressionThreshold)
+         {
+            int size = buffer.length;
+            buffer = CompactMarshaller.compress(buffer);
+            if (debug)
+               log.debug("compressed the state from " + size + " to " + buffer.length + " bytes");
+         }
+         return buffer;
       }
       catch (Exception ex)
       {
@@ -506,7 +559,9 @@ public class HAPartitionImpl
          Runtime rt=Runtime.getRuntime();
          used_mem_before=rt.totalMemory() - rt.freeMemory();
 
-         HashMap state = (HashMap)objectFromByteBuffer(obj);
+         if (CompactMarshaller.isCompressed(obj))
+            obj = CompactMarshaller.decompress(obj);
+         HashMap state = (HashMap)unmarshal(obj);
          java.util.Iterator keys = state.keySet().iterator();
          while (keys.hasNext())
          {
@@ -1075,7 +1130,7 @@ public class HAPartitionImpl
       
       try
       {
-         body = objectFromByteBuffer(req.getBuffer());
+         body = unmarshal(req.getBuffer());
       }
       catch(Exception e)
       {
@@ -1345,17 +1400,31 @@ public class HAPartitionImpl
 
       public Object objectFromByteBuffer(byte[] buf) throws Exception
       {
-         return HAPartitionImpl.objectFromByteBuffer(buf);
+         return unmarshal(buf);
       }
 
       public byte[] objectToByteBuffer(Object obj) throws Exception
       {
-         return HAPartitionImpl.objectToByteBuffer(obj);
+         return marshal(obj);
       }
       
    }
 
    // Private -------------------------------------------------------
+
+   private byte[] marshal(Object obj) throws Exception
+   {
+      if (partitionMarshaller == null)
+         return objectToByteBuffer(obj);
+      return partitionMarshaller.objectToByteBuffer(obj);
+   }
+
+   private Object unmarshal(byte[] buffer) throws Exception
+   {
+      if (partitionMarshaller == null)
+         return objectFromByteBuffer(buffer);
+      return partitionMarshaller.objectFromByteBuffer(buffer);
+   }
    
    // Inner classes -------------------------------------------------
 
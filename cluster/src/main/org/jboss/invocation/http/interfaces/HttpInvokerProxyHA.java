@@ -30,6 +30,7 @@ import java.net.URL;
 import java.rmi.ServerException;
 import java.util.ArrayList;
 
+import org.jboss.ha.framework.interfaces.AdaptiveLoadBalancePolicy;
 import org.jboss.ha.framework.interfaces.ClusteringTargetsRepository;
 import org.jboss.ha.framework.interfaces.GenericClusteringException;
 import org.jboss.ha.framework.interfaces.HARMIResponse;
@@ -180,7 +181,18 @@ public class HttpInvokerProxyHA
          {
             if( trace )
                log.trace("Invoking on target="+externalURL);
-            Object rtn = Util.invoke(externalURL, mi);
+            Object rtn = null;
+            long start = AdaptiveLoadBalancePolicy.Invocations.started(loadBalancePolicy, familyClusterInfo, target);
+            boolean failed = true;
+            try
+            {
+               rtn = Util.invoke(externalURL, mi);
+               failed = false;
+            }
+            finally
+            {
+               AdaptiveLoadBalancePolicy.Invocations.completed(loadBalancePolicy, familyClusterInfo, target, start, failed);
+            }
             HARMIResponse rsp = (HARMIResponse) rtn;
 
             if (rsp.newReplicants != null)
@@ -34,6 +34,7 @@ import java.util.WeakHashMap;
 import javax.transaction.SystemException;
 import javax.transaction.TransactionRolledbackException;
 
+import org.jboss.ha.framework.interfaces.AdaptiveLoadBalancePolicy;
 import org.jboss.ha.framework.interfaces.ClusteringTargetsRepository;
 import org.jboss.ha.framework.interfaces.FamilyClusterInfo;
 import org.jboss.ha.framework.interfaces.GenericClusteringException;
@@ -208,7 +209,18 @@ public class JRMPInvokerProxyHA
          {
             if( trace )
                log.trace("Invoking on target="+target);
-            Object rtnObj = target.invoke(mi);
+            Object rtnObj = null;
+            long start = AdaptiveLoadBalancePolicy.Invocations.started(loadBalancePolicy, familyClusterInfo, target);
+            boolean failed = true;
+            try
+            {
+               rtnObj = target.invoke(mi);
+               failed = false;
+            }
+            finally
+            {
+               AdaptiveLoadBalancePolicy.Invocations.completed(loadBalancePolicy, familyClusterInfo, target, start, failed);
+            }
             HARMIResponse rsp = null;
             if (rtnObj instanceof MarshalledObject)
             {
@@ -32,6 +32,7 @@ import java.rmi.ServerException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.WeakHashMap;
+import org.jboss.ha.framework.interfaces.AdaptiveLoadBalancePolicy;
 import org.jboss.ha.framework.interfaces.ClusteringTargetsRepository;
 import org.jboss.ha.framework.interfaces.FamilyClusterInfo;
 import org.jboss.ha.framework.interfaces.GenericClusteringException;
@@ -224,7 +225,18 @@ public class UnifiedInvokerHAProxy
                log.trace("Making invocation on " + clientInstance.getInvoker().getLocator());
             }
 
-            response = clientInstance.invoke(invocation, null);
+            Object target = getLocator();
+            long start = AdaptiveLoadBalancePolicy.Invocations.started(loadBalancePolicy, familyClusterInfo, target);
+            boolean failed = true;
+            try
+            {
+               response = clientInstance.invoke(invocation, null);
+               failed = response instanceof Exception;
+            }
+            finally
+            {
+               AdaptiveLoadBalancePolicy.Invocations.completed(loadBalancePolicy, familyClusterInfo, target, start, failed);
+            }
 
             HARMIResponse haResponse = null;
 
@@ -621,7 +621,8 @@ public abstract class BaseConnectionManager2 extends ServiceMBeanSupport
 
       private final Object context;
 
-      private int state = NORMAL;
+      /** Volatile as the ConcurrentManagedConnectionPool reads it without a lock */
+      private volatile int state = NORMAL;
 
       private final List handles = new LinkedList();
 
@@ -636,6 +637,8 @@ public abstract class BaseConnectionManager2 extends ServiceMBeanSupport
       protected boolean trace;
       
       protected long lastValidated;
+
+      private long lastCheckedOut;
       
 
       protected BaseConnectionEventListener(ManagedConnection mc, ManagedConnectionPool mcp, Object context, Logger log)
@@ -790,6 +793,16 @@ public abstract class BaseConnectionManager2 extends ServiceMBeanSupport
          this.lastValidated = lastValidated;
       }
       
+      public long getLastCheckedOutTime()
+      {
+         return lastCheckedOut;
+      }
+      
+      public void setLastCheckedOutTime(long lastCheckedOut)
+      {
+         this.lastCheckedOut = lastCheckedOut;
+      }
+      
       // For debugging
       public String toString()
       {
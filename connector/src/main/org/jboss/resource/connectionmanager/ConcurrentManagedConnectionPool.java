@@ -0,0 +1,605 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.resource.connectionmanager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.resource.ResourceException;
+import javax.resource.spi.ConnectionRequestInfo;
+import javax.resource.spi.ManagedConnectionFactory;
+import javax.resource.spi.ValidatingManagedConnectionFactory;
+import javax.security.auth.Subject;
+
+import org.jboss.logging.Logger;
+import org.jboss.resource.JBossResourceException;
+import org.jboss.util.UnreachableStatementException;
+
+/**
+ * An internal pool that does not serialize the checkouts on a monitor.
+ *
+ * The number of checked out connections is bounded by a
+ * java.util.concurrent Semaphore. Every pooled connection has an atomic
+ * state, a thread takes a free connection by moving it from FREE to IN_USE.
+ * The connection a thread returned last is remembered in a thread local and
+ * tried first on the next checkout, which is the common case for request
+ * threads that get and close a connection several times per request.
+ * Otherwise the free connections are taken from a shared concurrent queue.
+ *
+ * Unlike the InternalManagedConnectionPool the shared queue hands out the
+ * connections in FIFO order, so under a steady load that is smaller than the
+ * pool the surplus connections are less likely to reach the idle timeout.
+ *
+ * Selected with the UseConcurrentPool attribute of the
+ * JBossManagedConnectionPool, use-concurrent-pool in a *-ds.xml.
+ *
+ * @version $Revision$
+ */
+public class ConcurrentManagedConnectionPool extends InternalManagedConnectionPool
+{
+   /** The connection is in the pool */
+   private static final int FREE = 0;
+
+   /** The connection is checked out */
+   private static final int IN_USE = 1;
+
+   /** The connection is held by the background validation */
+   private static final int VALIDATING = 2;
+
+   /** The connection is no longer part of the pool */
+   private static final int REMOVED = 3;
+
+   /** The permits used to control who can checkout a connection */
+   private final Semaphore permits;
+
+   /** The pooled connections, connection listener to entry */
+   private final ConcurrentHashMap entries = new ConcurrentHashMap();
+
+   /** The free entries, an entry is queued at most once */
+   private final ConcurrentLinkedQueue free = new ConcurrentLinkedQueue();
+
+   /** The entry last returned by the current thread */
+   private final ThreadLocal lastReturned = new ThreadLocal();
+
+   /** The number of entries */
+   private final AtomicInteger poolSize = new AtomicInteger();
+
+   /** The number of checked out entries */
+   private final AtomicInteger inUse = new AtomicInteger();
+
+   /**
+    * Create a new concurrent internal pool
+    *
+    * @param mcf the managed connection factory
+    * @param clf the connection listener factory
+    * @param subject the subject
+    * @param cri the connection request information
+    * @param poolParams the pooling parameters
+    * @param log the log
+    */
+   protected ConcurrentManagedConnectionPool(ManagedConnectionFactory mcf, ConnectionListenerFactory clf,
+         Subject subject, ConnectionRequestInfo cri, PoolParams poolParams, Logger log)
+   {
+      super(mcf, clf, subject, cri, poolParams, log);
+      permits = new Semaphore(maxSize, true);
+   }
+
+   public long getAvailableConnections()
+   {
+      return permits.availablePermits();
+   }
+
+   public int getConnectionInUseCount()
+   {
+      return inUse.get();
+   }
+
+   public ConnectionListener getConnection(Subject subject, ConnectionRequestInfo cri) throws ResourceException
+   {
+      subject = (subject == null) ? defaultSubject : subject;
+      cri = (cri == null) ? defaultCri : cri;
+      long startWait = System.currentTimeMillis();
+      long startNanos = System.nanoTime();
+      try
+      {
+         // The untimed attempt barges, it does not queue behind the waiters
+         boolean acquired = permits.tryAcquire()
+               || permits.tryAcquire(poolParams.blockingTimeout, TimeUnit.MILLISECONDS);
+         waitTime.record((System.nanoTime() - startNanos) / 1000);
+         if (acquired == false)
+         {
+            throw new ResourceException("No ManagedConnections available within configured blocking timeout ( "
+                  + poolParams.blockingTimeout + " [ms] )");
+         }
+      }
+      catch (InterruptedException ie)
+      {
+         long end = System.currentTimeMillis() - startWait;
+         connectionCounter.updateBlockTime(end);
+         throw new ResourceException("Interrupted while requesting permit! Waited " + end + " ms");
+      }
+      connectionCounter.updateBlockTime(System.currentTimeMillis() - startWait);
+
+      if (shutdown.get())
+      {
+         permits.release();
+         throw new ResourceException("The pool has been shutdown");
+      }
+
+      //We have a permit to get a connection. Is there one in the pool already?
+      Entry entry;
+      while ((entry = checkout()) != null)
+      {
+         ConnectionListener cl = entry.cl;
+         try
+         {
+            Object matchedMC = mcf.matchManagedConnections(Collections.singleton(cl.getManagedConnection()),
+                  subject, cri);
+            if (matchedMC != null)
+            {
+               if (trace)
+                  log.trace("supplying ManagedConnection from pool: " + cl);
+               cl.setLastCheckedOutTime(System.nanoTime());
+               cl.grantPermit(true);
+               return cl;
+            }
+            log.warn("Destroying connection that could not be successfully matched: " + cl);
+         }
+         catch (Throwable t)
+         {
+            log.warn("Throwable while trying to match ManagedConnection, destroying connection: " + cl, t);
+         }
+         remove(entry);
+         doDestroy(cl);
+
+         if (poolParams.useFastFail)
+         {
+            log.trace("Fast failing for connection attempt. No more attempts will be made to acquire connection from pool and a new connection will be created immeadiately");
+            break;
+         }
+      }
+
+      //OK, we couldnt find a working connection from the pool.  Make a new one.
+      ConnectionListener cl = null;
+      try
+      {
+         cl = createConnectionEventListener(subject, cri);
+         add(new Entry(cl, IN_USE));
+         checkedOut();
+
+         //lack of synch on "started" probably ok, if 2 reads occur we will just
+         //run fillPool twice, no harm done.
+         if (started == false)
+         {
+            started = true;
+            if (poolParams.minSize > 0)
+               PoolFiller.fillPool(this);
+         }
+         if (trace)
+            log.trace("supplying new ManagedConnection: " + cl);
+         cl.setLastCheckedOutTime(System.nanoTime());
+         cl.grantPermit(true);
+         return cl;
+      }
+      catch (Throwable t)
+      {
+         log.warn("Throwable while attempting to get a new connection: " + cl, t);
+         //return permit and rethrow
+         permits.release();
+         JBossResourceException.rethrowAsResourceException(
+               "Unexpected throwable while trying to create a connection: " + cl, t);
+         throw new UnreachableStatementException();
+      }
+   }
+
+   public void returnConnection(ConnectionListener cl, boolean kill)
+   {
+      Entry entry = (Entry) entries.get(cl);
+      if (cl.getState() == ConnectionListener.DESTROYED)
+      {
+         if (trace)
+            log.trace("ManagedConnection is being returned after it was destroyed" + cl);
+         if (entry != null)
+            remove(entry);
+         releasePermit(cl);
+         return;
+      }
+
+      if (trace)
+         log.trace("putting ManagedConnection back into pool kill=" + kill + " cl=" + cl);
+      try
+      {
+         cl.getManagedConnection().cleanup();
+      }
+      catch (ResourceException re)
+      {
+         log.warn("ResourceException cleaning up ManagedConnection: " + cl, re);
+         kill = true;
+      }
+
+      // We need to destroy this one
+      if (cl.getState() == ConnectionListener.DESTROY || entry == null)
+         kill = true;
+
+      // This is really an error
+      if (kill == false && poolSize.get() > poolParams.maxSize)
+      {
+         log.warn("Destroying returned connection, maximum pool size exceeded " + cl);
+         kill = true;
+      }
+
+      if (kill)
+      {
+         // A resource adapter can asynchronously notify us that
+         // a connection error occurred, the connection need not be checked out.
+         if (entry != null)
+            remove(entry);
+      }
+      else
+      {
+         cl.used();
+         if (entry.state.compareAndSet(IN_USE, FREE))
+         {
+            inUse.decrementAndGet();
+            lastReturned.set(entry);
+            offer(entry);
+
+            // A flush may have marked it while we were returning it
+            if (cl.getState() == ConnectionListener.DESTROY && removeFree(entry))
+               kill = true;
+         }
+         else
+         {
+            log.warn("Attempt to return connection twice (ignored): " + cl, new Throwable("STACKTRACE"));
+         }
+      }
+
+      releasePermit(cl);
+
+      if (kill)
+      {
+         if (trace)
+            log.trace("Destroying returned connection " + cl);
+         doDestroy(cl);
+      }
+   }
+
+   public void flush()
+   {
+      if (trace)
+         log.trace("Flushing pool entries=" + entries.keySet());
+
+      ArrayList destroy = null;
+      for (Iterator i = entries.values().iterator(); i.hasNext();)
+      {
+         Entry entry = (Entry) i.next();
+         // Mark checked out connections as requiring destruction
+         if (entry.state.get() != FREE)
+         {
+            if (trace)
+               log.trace("Flush marking checked out connection for destruction " + entry.cl);
+            entry.cl.setState(ConnectionListener.DESTROY);
+         }
+         // Destroy connections in the pool, including those returned since we looked
+         if (removeFree(entry))
+         {
+            if (destroy == null)
+               destroy = new ArrayList();
+            destroy.add(entry.cl);
+         }
+      }
+      destroy(destroy, "flushed");
+   }
+
+   public void removeTimedOut()
+   {
+      long timeout = System.currentTimeMillis() - poolParams.idleTimeout;
+      ArrayList destroy = null;
+      for (Iterator i = entries.values().iterator(); i.hasNext();)
+      {
+         Entry entry = (Entry) i.next();
+         if (entry.state.get() == FREE && entry.cl.isTimedOut(timeout) && removeFree(entry))
+         {
+            connectionCounter.incTimedOut();
+            if (destroy == null)
+               destroy = new ArrayList();
+            destroy.add(entry.cl);
+         }
+      }
+      destroy(destroy, "timedout");
+   }
+
+   public void fillToMin()
+   {
+      while (true)
+      {
+         // Get a permit - avoids a race when the pool is nearly full
+         // Also avoids unnessary fill checking when all connections are checked out
+         try
+         {
+            if (permits.tryAcquire(poolParams.blockingTimeout, TimeUnit.MILLISECONDS))
+            {
+               try
+               {
+                  if (shutdown.get())
+                     return;
+
+                  // We already have enough connections
+                  if (getMinSize() - connectionCounter.getGuaranteedCount() <= 0)
+                     return;
+
+                  // Create a connection to fill the pool
+                  try
+                  {
+                     ConnectionListener cl = createConnectionEventListener(defaultSubject, defaultCri);
+                     if (trace)
+                        log.trace("Filling pool cl=" + cl);
+                     Entry entry = new Entry(cl, FREE);
+                     add(entry);
+                     offer(entry);
+                  }
+                  catch (ResourceException re)
+                  {
+                     log.warn("Unable to fill pool ", re);
+                     return;
+                  }
+               }
+               finally
+               {
+                  permits.release();
+               }
+            }
+         }
+         catch (InterruptedException ignored)
+         {
+            log.trace("Interrupted while requesting permit in fillToMin");
+         }
+      }
+   }
+
+   public void validateConnections() throws Exception
+   {
+      if (trace)
+         log.trace("Attempting to  validate connections for pool " + this);
+
+      if (permits.tryAcquire(poolParams.blockingTimeout, TimeUnit.MILLISECONDS) == false)
+         return;
+
+      boolean destroyed = false;
+      try
+      {
+         for (Iterator i = entries.values().iterator(); i.hasNext();)
+         {
+            Entry entry = (Entry) i.next();
+            ConnectionListener cl = entry.cl;
+            if (System.currentTimeMillis() - cl.getLastValidatedTime() < poolParams.backgroundInterval
+                  || entry.state.compareAndSet(FREE, VALIDATING) == false)
+               continue;
+
+            boolean valid = true;
+            try
+            {
+               if (mcf instanceof ValidatingManagedConnectionFactory)
+               {
+                  ValidatingManagedConnectionFactory vcf = (ValidatingManagedConnectionFactory) mcf;
+                  Set candidateSet = vcf.getInvalidConnections(Collections.singleton(cl.getManagedConnection()));
+                  valid = candidateSet == null || candidateSet.size() == 0;
+               }
+               else
+               {
+                  log.warn("warning: background validation was specified with a non compliant ManagedConnectionFactory interface.");
+               }
+            }
+            finally
+            {
+               if (valid)
+               {
+                  cl.setLastValidatedTime(System.currentTimeMillis());
+                  entry.state.set(FREE);
+                  offer(entry);
+               }
+               else if (remove(entry))
+               {
+                  doDestroy(cl);
+                  destroyed = true;
+               }
+            }
+         }
+      }
+      finally
+      {
+         permits.release();
+
+         if (destroyed && shutdown.get() == false && poolParams.minSize > 0)
+            PoolFiller.fillPool(this);
+      }
+   }
+
+   Set getConnectionListeners()
+   {
+      return new HashSet(entries.keySet());
+   }
+
+   /**
+    * Take a free entry, trying the one last returned by this thread first
+    *
+    * @return the entry or null when there are no free entries
+    */
+   private Entry checkout()
+   {
+      Entry entry = (Entry) lastReturned.get();
+      if (entry != null && entry.state.compareAndSet(FREE, IN_USE))
+      {
+         checkedOut();
+         return entry;
+      }
+
+      // Stale entries, checked out through a thread local, are skipped
+      while ((entry = (Entry) free.poll()) != null)
+      {
+         entry.queued.set(false);
+         if (entry.state.compareAndSet(FREE, IN_USE))
+         {
+            checkedOut();
+            return entry;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Queue a free entry unless it is still queued
+    *
+    * @param entry the entry
+    */
+   private void offer(Entry entry)
+   {
+      // A poller clears the flag before it tries to take the entry,
+      // so a free entry that is not queued here is taken by that poller
+      if (entry.queued.compareAndSet(false, true))
+         free.offer(entry);
+   }
+
+   /**
+    * Account for a checked out entry
+    */
+   private void checkedOut()
+   {
+      int size = inUse.incrementAndGet();
+      //Update the maxUsedConnections, a lost race only loses a sample
+      if (size > maxUsedConnections)
+         maxUsedConnections = size;
+   }
+
+   /**
+    * Add an entry to the pool
+    *
+    * @param entry the entry
+    */
+   private void add(Entry entry)
+   {
+      entries.put(entry.cl, entry);
+      poolSize.incrementAndGet();
+   }
+
+   /**
+    * Remove an entry from the pool, a queued entry is skipped by the pollers
+    *
+    * @param entry the entry
+    * @return true when this call removed it
+    */
+   private boolean remove(Entry entry)
+   {
+      int previous = entry.state.getAndSet(REMOVED);
+      if (previous == REMOVED)
+         return false;
+      if (previous == IN_USE)
+         inUse.decrementAndGet();
+      entries.remove(entry.cl);
+      poolSize.decrementAndGet();
+      return true;
+   }
+
+   /**
+    * Remove an entry from the pool unless it is not free
+    *
+    * @param entry the entry
+    * @return true when this call removed it
+    */
+   private boolean removeFree(Entry entry)
+   {
+      if (entry.state.compareAndSet(FREE, REMOVED) == false)
+         return false;
+      entries.remove(entry.cl);
+      poolSize.decrementAndGet();
+      return true;
+   }
+
+   /**
+    * Release the permit held by a connection
+    *
+    * @param cl the connection listener
+    */
+   private void releasePermit(ConnectionListener cl)
+   {
+      if (cl.hasPermit())
+      {
+         recordHoldTime(cl);
+         cl.grantPermit(false);
+         permits.release();
+      }
+   }
+
+   /**
+    * Destroy removed connections and refill the pool
+    *
+    * @param destroy the connections or null
+    * @param reason the reason for the trace log
+    */
+   private void destroy(ArrayList destroy, String reason)
+   {
+      if (destroy == null)
+         return;
+
+      for (int i = 0; i < destroy.size(); ++i)
+      {
+         ConnectionListener cl = (ConnectionListener) destroy.get(i);
+         if (trace)
+            log.trace("Destroying " + reason + " connection " + cl);
+         doDestroy(cl);
+      }
+
+      // We destroyed something, check the minimum.
+      if (shutdown.get() == false && poolParams.minSize > 0)
+         PoolFiller.fillPool(this);
+   }
+
+   /**
+    * A pooled connection
+    */
+   private static class Entry
+   {
+      /** The connection listener */
+      final ConnectionListener cl;
+
+      /** FREE, IN_USE, VALIDATING or REMOVED */
+      final AtomicInteger state;
+
+      /** Whether the entry is in the free queue */
+      final AtomicBoolean queued = new AtomicBoolean(false);
+
+      Entry(ConnectionListener cl, int state)
+      {
+         this.cl = cl;
+         this.state = new AtomicInteger(state);
+      }
+   }
+}
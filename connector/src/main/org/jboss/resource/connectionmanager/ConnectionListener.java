@@ -176,4 +176,18 @@ public interface ConnectionListener extends ConnectionEventListener
     */
    void setLastValidatedTime(long interval);
    
+   /**
+    * Retrieve the time this connection was last checked out of the pool.
+    * 
+    * @return the System.nanoTime() of the last checkout
+    */
+   long getLastCheckedOutTime();
+   
+   /**
+    * Set the time this connection was checked out of the pool.
+    * 
+    * @param time the System.nanoTime() of the checkout
+    */
+   void setLastCheckedOutTime(long time);
+   
 }
@@ -26,6 +26,9 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.resource.ResourceException;
 import javax.resource.spi.ConnectionRequestInfo;
@@ -36,10 +39,10 @@ import javax.security.auth.Subject;
 
 import org.jboss.logging.Logger;
 import org.jboss.resource.JBossResourceException;
+import org.jboss.resource.statistic.pool.LatencyHistogram;
 import org.jboss.util.UnreachableStatementException;
 
 import EDU.oswego.cs.dl.util.concurrent.FIFOSemaphore;
-import EDU.oswego.cs.dl.util.concurrent.SynchronizedBoolean;
 
 /**
  * The internal pool implementation
@@ -53,25 +56,25 @@ import EDU.oswego.cs.dl.util.concurrent.SynchronizedBoolean;
 public class InternalManagedConnectionPool
 {
    /** The managed connection factory */
-   private final ManagedConnectionFactory mcf;
+   protected final ManagedConnectionFactory mcf;
 
    /** The connection listener factory */
    private final ConnectionListenerFactory clf;
 
    /** The default subject */
-   private final Subject defaultSubject;
+   protected final Subject defaultSubject;
 
    /** The default connection request information */
-   private final ConnectionRequestInfo defaultCri;
+   protected final ConnectionRequestInfo defaultCri;
 
    /** The pooling parameters */
-   private final PoolParams poolParams;
+   protected final PoolParams poolParams;
 
    /** Copy of the maximum size from the pooling parameters.
     * Dynamic changes to this value are not compatible with
     * the semaphore which cannot change be dynamically changed.
     */
-   private int maxSize;
+   protected int maxSize;
 
    /** The available connection event listeners */
    private ArrayList cls;     
@@ -80,25 +83,34 @@ public class InternalManagedConnectionPool
    private final FIFOSemaphore permits;
 
    /** The log */
-   private final Logger log;
+   protected final Logger log;
 
    /** Whether trace is enabled */
-   private final boolean trace;
+   protected final boolean trace;
 
    /** Stats */
-   private final Counter connectionCounter = new Counter();
+   protected final Counter connectionCounter = new Counter();
 
    /** The checked out connections */
    private final HashSet checkedOut = new HashSet();
 
    /** Whether the pool has been started */
-   private boolean started = false;
+   protected boolean started = false;
 
    /** Whether the pool has been shutdown */
-   private SynchronizedBoolean shutdown = new SynchronizedBoolean(false);
+   protected final AtomicBoolean shutdown = new AtomicBoolean(false);
 
    /** the max connections ever checked out **/
-   private volatile int maxUsedConnections = 0;
+   protected volatile int maxUsedConnections = 0;
+
+   /** The time spent waiting for a permit in microseconds */
+   protected final LatencyHistogram waitTime = new LatencyHistogram();
+
+   /** The time connections are checked out in microseconds */
+   protected final LatencyHistogram holdTime = new LatencyHistogram();
+
+   /** The time spent creating connections in microseconds */
+   protected final LatencyHistogram creationTime = new LatencyHistogram();
 
    /**
     * Create a new internal pool
@@ -123,13 +135,6 @@ public class InternalManagedConnectionPool
       this.trace = log.isTraceEnabled();
       cls = new ArrayList(this.maxSize);
       permits = new FIFOSemaphore(this.maxSize);
-
-      if(poolParams.prefill)
-      {
-         PoolFiller.fillPool(this);
-         
-      }
-      
    }
    
    /**
@@ -137,6 +142,11 @@ public class InternalManagedConnectionPool
     */
    protected void initialize()
    {
+      // Not done in the constructor, the filler thread
+      // must not see a partially constructed subclass
+      if (poolParams.prefill)
+         PoolFiller.fillPool(this);
+
       if (poolParams.idleTimeout != 0)
          IdleRemover.registerPool(this, poolParams.idleTimeout);
 
@@ -176,9 +186,12 @@ public class InternalManagedConnectionPool
       subject = (subject == null) ? defaultSubject : subject;
       cri = (cri == null) ? defaultCri : cri;
       long startWait = System.currentTimeMillis();
+      long startNanos = System.nanoTime();
       try
       {
-         if (permits.attempt(poolParams.blockingTimeout))
+         boolean acquired = permits.attempt(poolParams.blockingTimeout);
+         waitTime.record((System.nanoTime() - startNanos) / 1000);
+         if (acquired)
          {        	
             long poolBlockTime =  System.currentTimeMillis() - startWait ;
             connectionCounter.updateBlockTime(poolBlockTime);
@@ -216,6 +229,7 @@ public class InternalManagedConnectionPool
                      {
                         if (trace)
                            log.trace("supplying ManagedConnection from pool: " + cl);
+                        cl.setLastCheckedOutTime(System.nanoTime());
                         cl.grantPermit(true);
                         return cl;
                      }
@@ -280,6 +294,7 @@ public class InternalManagedConnectionPool
                }
                if (trace)
                   log.trace("supplying new ManagedConnection: " + cl);
+               cl.setLastCheckedOutTime(System.nanoTime());
                cl.grantPermit(true);
                return cl;
             }
@@ -324,6 +339,7 @@ public class InternalManagedConnectionPool
             if (cl.hasPermit())
             {
                // release semaphore
+               recordHoldTime(cl);
                cl.grantPermit(false);
                permits.release();
             }
@@ -382,6 +398,7 @@ public class InternalManagedConnectionPool
          if (cl.hasPermit())
          {
             // release semaphore
+            recordHoldTime(cl);
             cl.grantPermit(false);
             permits.release();
          }
@@ -593,6 +610,28 @@ public class InternalManagedConnectionPool
       return connectionCounter.getDestroyedCount();
    }
 
+   public LatencyHistogram getWaitTimeHistogram()
+   {
+      return waitTime;
+   }
+
+   public LatencyHistogram getHoldTimeHistogram()
+   {
+      return holdTime;
+   }
+
+   public LatencyHistogram getCreationTimeHistogram()
+   {
+      return creationTime;
+   }
+
+   public void resetHistograms()
+   {
+      waitTime.reset();
+      holdTime.reset();
+      creationTime.reset();
+   }
+
    
    Set getConnectionListeners()
    {
@@ -613,10 +652,12 @@ public class InternalManagedConnectionPool
     * @return the new listener
     * @throws ResourceException for any error
     */
-   private ConnectionListener createConnectionEventListener(Subject subject, ConnectionRequestInfo cri)
+   protected ConnectionListener createConnectionEventListener(Subject subject, ConnectionRequestInfo cri)
          throws ResourceException
    {
+      long start = System.nanoTime();
       ManagedConnection mc = mcf.createManagedConnection(subject, cri);
+      creationTime.record((System.nanoTime() - start) / 1000);
       connectionCounter.inc();
       try
       {
@@ -630,12 +671,22 @@ public class InternalManagedConnectionPool
       }
    }
 
+   /**
+    * Record how long a connection that is given back was checked out
+    *
+    * @param cl the connection holding a permit
+    */
+   protected void recordHoldTime(ConnectionListener cl)
+   {
+      holdTime.record((System.nanoTime() - cl.getLastCheckedOutTime()) / 1000);
+   }
+
    /**
     * Destroy a connection
     *
     * @param cl the connection to destroy
     */
-   private void doDestroy(ConnectionListener cl)
+   protected void doDestroy(ConnectionListener cl)
    {
       if (cl.getState() == ConnectionListener.DESTROYED)
       {
@@ -791,7 +842,7 @@ public class InternalManagedConnectionPool
     * dynamic changes that may increase the minimum
     * beyond the maximum
     */
-   private int getMinSize()
+   protected int getMinSize()
    {
       if (poolParams.minSize > maxSize)
          return maxSize;
@@ -816,81 +867,88 @@ public class InternalManagedConnectionPool
       
       //Do we want to immeadiately break when a connection cannot be matched and not evaluate the rest of the pool?
       public boolean useFastFail;
+
+      //Do we want the ConcurrentManagedConnectionPool instead of this implementation?
+      public boolean useConcurrentPool;
    }
 
    /**
-    * Stats
+    * Stats, kept in atomics so that recording them does not
+    * serialize the threads checking out connections
     */
-   private static class Counter
+   protected static class Counter
    {
-      private int created = 0;
+      private final AtomicInteger created = new AtomicInteger();
 
-      private int destroyed = 0;
+      private final AtomicInteger destroyed = new AtomicInteger();
       
       // Total wait time to get Connection from Pool.
-      private long totalBlockTime;
+      private final AtomicLong totalBlockTime = new AtomicLong();
       
       // Idle timed out Connection Count.
-      private int timedOut;
+      private final AtomicInteger timedOut = new AtomicInteger();
 
       // The maximum wait time */      
-      private long maxWaitTime;
+      private final AtomicLong maxWaitTime = new AtomicLong();
 
-      synchronized int getGuaranteedCount()
+      int getGuaranteedCount()
       {
-         return created - destroyed;
+         // Read destroyed first, so a concurrent destroy can only overestimate
+         int d = destroyed.get();
+         return created.get() - d;
       }
 
       int getCount()
       {
-         return created - destroyed;
+         return created.get() - destroyed.get();
       }
 
       int getCreatedCount()
       {
-         return created;
+         return created.get();
       }
 
       int getDestroyedCount()
       {
-         return destroyed;
+         return destroyed.get();
       }
 
-      synchronized void inc()
+      void inc()
       {
-         ++created;
+         created.incrementAndGet();
       }
 
-      synchronized void dec()
+      void dec()
       {
-         ++destroyed;
+         destroyed.incrementAndGet();
       }
       
-      synchronized void updateBlockTime(long latest)
+      void updateBlockTime(long latest)
       {    
-         totalBlockTime += latest;         
-         if (maxWaitTime < latest)
-            maxWaitTime = latest;
+         totalBlockTime.addAndGet(latest);
+         long max = maxWaitTime.get();
+         while (max < latest && maxWaitTime.compareAndSet(max, latest) == false)
+            max = maxWaitTime.get();
       }
 
       long getTotalBlockTime()
       {
-         return totalBlockTime;
+         return totalBlockTime.get();
       }
   
       int getTimedOut()
       {
-         return timedOut;
+         return timedOut.get();
       }
              
-      synchronized void incTimedOut()
+      void incTimedOut()
       {
-         ++timedOut;
+         timedOut.incrementAndGet();
       }
 
       long getMaxWaitTime()
       {
-          return maxWaitTime;
+          return maxWaitTime.get();
       }
    }
 }
@@ -50,6 +50,7 @@ import org.jboss.resource.statistic.formatter.StatisticsFormatter;
 import org.jboss.resource.statistic.pool.JBossDefaultSubPoolStatisticFormatter;
 import org.jboss.resource.statistic.pool.JBossManagedConnectionPoolStatistics;
 import org.jboss.resource.statistic.pool.JBossSubPoolStatistics;
+import org.jboss.resource.statistic.pool.LatencyHistogram;
 import org.jboss.resource.statistic.pool.ManagedConnectionPoolStatistics;
 
 import org.jboss.system.ServiceMBeanSupport;
@@ -311,6 +312,51 @@ public class JBossManagedConnectionPool extends ServiceMBeanSupport
       this.poolParams.useFastFail = useFastFail;
    }
 
+   public boolean getUseConcurrentPool()
+   {
+      return this.poolParams.useConcurrentPool;
+   }
+
+   public void setUseConcurrentPool(boolean useConcurrentPool)
+   {
+      this.poolParams.useConcurrentPool = useConcurrentPool;
+   }
+
+   public String getWaitTimePercentiles()
+   {
+      return (poolingStrategy instanceof BasePool) ? ((BasePool) poolingStrategy).getWaitTimeHistogram().toString() : null;
+   }
+
+   public String getHoldTimePercentiles()
+   {
+      return (poolingStrategy instanceof BasePool) ? ((BasePool) poolingStrategy).getHoldTimeHistogram().toString() : null;
+   }
+
+   public String getCreationTimePercentiles()
+   {
+      return (poolingStrategy instanceof BasePool) ? ((BasePool) poolingStrategy).getCreationTimeHistogram().toString() : null;
+   }
+
+   public long listPercentile(String histogram, double percentile)
+   {
+      if ((poolingStrategy instanceof BasePool) == false)
+         return 0;
+      BasePool pool = (BasePool) poolingStrategy;
+      if ("WaitTime".equals(histogram))
+         return pool.getWaitTimeHistogram().getValueAtPercentile(percentile);
+      if ("HoldTime".equals(histogram))
+         return pool.getHoldTimeHistogram().getValueAtPercentile(percentile);
+      if ("CreationTime".equals(histogram))
+         return pool.getCreationTimeHistogram().getValueAtPercentile(percentile);
+      throw new IllegalArgumentException("Unknown histogram " + histogram + ", expected WaitTime, HoldTime or CreationTime");
+   }
+
+   public void resetHistograms()
+   {
+      if (poolingStrategy instanceof BasePool)
+         ((BasePool) poolingStrategy).resetHistograms();
+   }
+
    public void flush()
    {
       if (poolingStrategy == null)
@@ -444,7 +490,10 @@ public class JBossManagedConnectionPool extends ServiceMBeanSupport
       public SubPoolContext(TransactionManager tm, ManagedConnectionFactory mcf, ConnectionListenerFactory clf,
             Subject subject, ConnectionRequestInfo cri, PoolParams poolParams, Logger log)
       {
-         subPool = new InternalManagedConnectionPool(mcf, clf, subject, cri, poolParams, log);
+         if (poolParams.useConcurrentPool)
+            subPool = new ConcurrentManagedConnectionPool(mcf, clf, subject, cri, poolParams, log);
+         else
+            subPool = new InternalManagedConnectionPool(mcf, clf, subject, cri, poolParams, log);
          if (tm != null)
             trackByTx = new TransactionLocal(tm);
       }
@@ -794,6 +843,48 @@ public class JBossManagedConnectionPool extends ServiceMBeanSupport
          return count;
       }
 
+      public LatencyHistogram getWaitTimeHistogram()
+      {
+         LatencyHistogram result = new LatencyHistogram();
+         for (Iterator i = subPools.values().iterator(); i.hasNext();)
+         {
+            SubPoolContext subPool = (SubPoolContext) i.next();
+            result.add(subPool.getSubPool().getWaitTimeHistogram());
+         }
+         return result;
+      }
+
+      public LatencyHistogram getHoldTimeHistogram()
+      {
+         LatencyHistogram result = new LatencyHistogram();
+         for (Iterator i = subPools.values().iterator(); i.hasNext();)
+         {
+            SubPoolContext subPool = (SubPoolContext) i.next();
+            result.add(subPool.getSubPool().getHoldTimeHistogram());
+         }
+         return result;
+      }
+
+      public LatencyHistogram getCreationTimeHistogram()
+      {
+         LatencyHistogram result = new LatencyHistogram();
+         for (Iterator i = subPools.values().iterator(); i.hasNext();)
+         {
+            SubPoolContext subPool = (SubPoolContext) i.next();
+            result.add(subPool.getSubPool().getCreationTimeHistogram());
+         }
+         return result;
+      }
+
+      public void resetHistograms()
+      {
+         for (Iterator i = subPools.values().iterator(); i.hasNext();)
+         {
+            SubPoolContext subPool = (SubPoolContext) i.next();
+            subPool.getSubPool().resetHistograms();
+         }
+      }
+
       public int getMaxConnectionsInUseCount()
       {
          int count = 0;
@@ -270,6 +270,60 @@ public interface JBossManagedConnectionPoolMBean extends org.jboss.system.Servic
     * @param useFastFail whether or not we want to use fast fail semantics in a connection attempt.
     */
    public void setUseFastFail(boolean useFastFail);
+
+   /**
+    * Whether the pool takes its connections without holding a lock,
+    * see ConcurrentManagedConnectionPool.
+    * 
+    * @return true when the concurrent pool is used
+    */
+   public boolean getUseConcurrentPool();
+
+   /**
+    * Indicate whether the pool should take its connections without holding a lock.
+    * Only subpools created after the change are affected, flush the pool to apply it.
+    * 
+    * @param useConcurrentPool whether to use the ConcurrentManagedConnectionPool
+    */
+   public void setUseConcurrentPool(boolean useConcurrentPool);
+
+   /**
+    * The time threads waited for a connection permit, in microseconds,
+    * summarized as count, mean, 50th, 90th, 99th and 99.9th percentile and max.
+    * 
+    * @return the wait time percentiles
+    */
+   public String getWaitTimePercentiles();
+
+   /**
+    * The time connections were checked out of the pool, in microseconds,
+    * summarized as count, mean, 50th, 90th, 99th and 99.9th percentile and max.
+    * 
+    * @return the hold time percentiles
+    */
+   public String getHoldTimePercentiles();
+
+   /**
+    * The time taken to create connections, in microseconds,
+    * summarized as count, mean, 50th, 90th, 99th and 99.9th percentile and max.
+    * 
+    * @return the creation time percentiles
+    */
+   public String getCreationTimePercentiles();
+
+   /**
+    * Get a percentile of one of the histograms.
+    * 
+    * @param histogram WaitTime, HoldTime or CreationTime
+    * @param percentile the percentile, e.g. 99.9
+    * @return the value in microseconds
+    */
+   public long listPercentile(String histogram, double percentile);
+
+   /**
+    * Forget the values recorded in the histograms.
+    */
+   public void resetHistograms();
    
    /**
     * This will list the statistics from the underlying native Connection of the ManagedConnection 
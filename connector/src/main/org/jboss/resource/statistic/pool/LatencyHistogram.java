@@ -0,0 +1,217 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.resource.statistic.pool;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size histogram of latencies that can be recorded from many
+ * threads without locking.
+ *
+ * Values below 64 have a bucket of their own. Above that every power of two
+ * is split into 32 linear buckets, so a percentile is reported with an error
+ * of at most 1/32 of the value. Values above 2^41 fall into the last bucket.
+ *
+ * @version $Revision$
+ */
+public class LatencyHistogram
+{
+   /** The number of buckets holding exactly one value */
+   private static final int SUB_BUCKETS = 64;
+
+   /** The number of buckets per power of two above SUB_BUCKETS */
+   private static final int HALF = SUB_BUCKETS / 2;
+
+   /** log2(SUB_BUCKETS) */
+   private static final int SUB_BUCKET_BITS = 6;
+
+   /** The largest power of two above SUB_BUCKETS that is tracked */
+   private static final int MAX_SHIFT = 35;
+
+   /** The percentiles in the summary */
+   private static final double[] SUMMARY = { 50, 90, 99, 99.9 };
+
+   /** The counts */
+   private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS + MAX_SHIFT * HALF);
+
+   /** The sum of the values */
+   private final AtomicLong total = new AtomicLong();
+
+   /** The largest value */
+   private final AtomicLong max = new AtomicLong();
+
+   /**
+    * Record a value
+    *
+    * @param value the value, negative values are recorded as 0
+    */
+   public void record(long value)
+   {
+      if (value < 0)
+         value = 0;
+      counts.incrementAndGet(indexOf(value));
+      total.addAndGet(value);
+      long current = max.get();
+      while (value > current && max.compareAndSet(current, value) == false)
+         current = max.get();
+   }
+
+   /**
+    * Add the values recorded by another histogram
+    *
+    * @param other the other histogram
+    */
+   public void add(LatencyHistogram other)
+   {
+      for (int i = 0; i < counts.length(); ++i)
+      {
+         long count = other.counts.get(i);
+         if (count != 0)
+            counts.addAndGet(i, count);
+      }
+      total.addAndGet(other.total.get());
+      long value = other.max.get();
+      long current = max.get();
+      while (value > current && max.compareAndSet(current, value) == false)
+         current = max.get();
+   }
+
+   /**
+    * Forget the recorded values
+    */
+   public void reset()
+   {
+      for (int i = 0; i < counts.length(); ++i)
+         counts.set(i, 0);
+      total.set(0);
+      max.set(0);
+   }
+
+   /**
+    * Get the number of recorded values
+    *
+    * @return the count
+    */
+   public long getCount()
+   {
+      long count = 0;
+      for (int i = 0; i < counts.length(); ++i)
+         count += counts.get(i);
+      return count;
+   }
+
+   /**
+    * Get the largest recorded value
+    *
+    * @return the max
+    */
+   public long getMax()
+   {
+      return max.get();
+   }
+
+   /**
+    * Get the mean of the recorded values
+    *
+    * @return the mean or 0 when nothing was recorded
+    */
+   public long getMean()
+   {
+      long count = getCount();
+      return count == 0 ? 0 : total.get() / count;
+   }
+
+   /**
+    * Get the value below which the given percentage of the values fall
+    *
+    * @param percentile the percentile, between 0 and 100
+    * @return the value or 0 when nothing was recorded
+    */
+   public long getValueAtPercentile(double percentile)
+   {
+      long count = getCount();
+      if (count == 0)
+         return 0;
+      long target = (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count);
+      if (target < 1)
+         target = 1;
+
+      long seen = 0;
+      for (int i = 0; i < counts.length(); ++i)
+      {
+         seen += counts.get(i);
+         // The last bucket has no upper bound
+         if (seen >= target)
+            return (i == counts.length() - 1) ? max.get() : Math.min(highestValueAt(i), max.get());
+      }
+      return max.get();
+   }
+
+   public String toString()
+   {
+      long count = getCount();
+      StringBuffer buffer = new StringBuffer();
+      buffer.append("count=").append(count);
+      buffer.append(" mean=").append(getMean());
+      for (int i = 0; i < SUMMARY.length; ++i)
+      {
+         String name = String.valueOf(SUMMARY[i]);
+         if (name.endsWith(".0"))
+            name = name.substring(0, name.length() - 2);
+         buffer.append(" p").append(name).append('=').append(getValueAtPercentile(SUMMARY[i]));
+      }
+      buffer.append(" max=").append(getMax());
+      return buffer.toString();
+   }
+
+   /**
+    * Get the bucket of a value
+    *
+    * @param value the value
+    * @return the index in counts
+    */
+   private static int indexOf(long value)
+   {
+      if (value < SUB_BUCKETS)
+         return (int) value;
+      int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+      if (shift > MAX_SHIFT)
+         return SUB_BUCKETS + MAX_SHIFT * HALF - 1;
+      return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+   }
+
+   /**
+    * Get the largest value that falls into a bucket
+    *
+    * @param index the index in counts
+    * @return the value
+    */
+   private static long highestValueAt(int index)
+   {
+      if (index < SUB_BUCKETS)
+         return index;
+      int shift = (index - SUB_BUCKETS) / HALF + 1;
+      long top = (index - SUB_BUCKETS) % HALF + HALF;
+      return ((top + 1) << shift) - 1;
+   }
+}
@@ -437,6 +437,14 @@
               <attribute name="UseFastFail">False</attribute>
             </xsl:otherwise>
           </xsl:choose>
+          <xsl:choose>
+            <xsl:when test="use-concurrent-pool">
+              <attribute name="UseConcurrentPool"><xsl:value-of select="use-concurrent-pool"/></attribute>
+            </xsl:when>
+            <xsl:otherwise>
+              <attribute name="UseConcurrentPool">False</attribute>
+            </xsl:otherwise>
+          </xsl:choose>
                     
           <!--
 		criteria indicates if Subject (from security domain) or app supplied
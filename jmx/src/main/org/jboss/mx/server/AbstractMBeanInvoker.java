@@ -82,6 +82,13 @@ public abstract class AbstractMBeanInvoker
     */
    static ThreadLocal preRegisterInfo = new ThreadLocal();
 
+   /**
+    * The number of operations remembered by the operation cache, a power of two
+    */
+   private static final int OPERATION_CACHE_SIZE = 16;
+
+   private static final String[] NO_SIGNATURE = new String[0];
+
    // Attributes ----------------------------------------------------
 
    /**
@@ -107,6 +114,13 @@ public abstract class AbstractMBeanInvoker
    protected Map operationContextMap = new HashMap();
    protected Map constructorContextMap = new HashMap();
 
+   /**
+    * The invocation contexts of the operations last invoked, indexed by
+    * the hash code of the operation name, so that invoke() finds them
+    * without creating an operation key.
+    */
+   private OperationHandle[] operationCache = new OperationHandle[OPERATION_CACHE_SIZE];
+
    protected InvocationContext getMBeanInfoCtx = null;
    protected InvocationContext preRegisterCtx = null;
    protected InvocationContext postRegisterCtx = null;
@@ -205,8 +219,7 @@ public abstract class AbstractMBeanInvoker
       }
       
       // get the server side invocation context
-      OperationKey key = new OperationKey(opName, signature);
-      InvocationContext ctx = (InvocationContext) operationContextMap.get(key);
+      InvocationContext ctx = getOperationContext(opName, signature);
 
       // if the server does not contain this context, we do not have the operation
       if (ctx == null)
@@ -1012,6 +1025,8 @@ public abstract class AbstractMBeanInvoker
 
    protected void initOperationContexts(MBeanOperationInfo[] operations)
    {
+      operationCache = new OperationHandle[OPERATION_CACHE_SIZE];
+
       // create invocation contexts for operations
       for (int i = 0; i < operations.length; ++i)
       {
@@ -1275,6 +1290,59 @@ public abstract class AbstractMBeanInvoker
       }
    }
 
+   /**
+    * An operation last invoked and its invocation context. The fields are
+    * final so that the handles are safely shared between the threads.
+    */
+   private static final class OperationHandle
+   {
+      final String name;
+      final String[] signature;
+      final InvocationContext context;
+
+      OperationHandle(String name, String[] signature, InvocationContext context)
+      {
+         this.name = name;
+         this.signature = (signature == null) ? NO_SIGNATURE : (String[]) signature.clone();
+         this.context = context;
+      }
+
+      boolean matches(String name, String[] signature)
+      {
+         if (this.name != name && this.name.equals(name) == false)
+            return false;
+
+         int length = (signature == null) ? 0 : signature.length;
+         if (this.signature.length != length)
+            return false;
+         for (int i = 0; i < length; ++i)
+         {
+            if (this.signature[i] != signature[i] && this.signature[i].equals(signature[i]) == false)
+               return false;
+         }
+         return true;
+      }
+   }
+
+   /**
+    * Looks the invocation context of an operation up in the cache of the
+    * operations last invoked before the operation context map
+    */
+   private InvocationContext getOperationContext(String opName, String[] signature)
+   {
+      OperationHandle[] cache = operationCache;
+      int index = opName.hashCode() & (OPERATION_CACHE_SIZE - 1);
+      OperationHandle handle = cache[index];
+      if (handle != null && handle.matches(opName, signature))
+         return handle.context;
+
+      OperationKey key = new OperationKey(opName, signature);
+      InvocationContext ctx = (InvocationContext) operationContextMap.get(key);
+      if (ctx != null)
+         cache[index] = new OperationHandle(opName, signature, ctx);
+      return ctx;
+   }
+
    private void rethrowAsMBeanException(Throwable t) throws MBeanException
    {
       if (t instanceof RuntimeException)
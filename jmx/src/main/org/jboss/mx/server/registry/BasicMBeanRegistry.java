@@ -98,6 +98,19 @@ public class BasicMBeanRegistry
     */
    private Map domainMap = new ConcurrentReaderHashMap();
 
+   /**
+    * The entries found by get() for the object names passed to it, so that
+    * the invocations of the same object name do not look the entry up again.
+    * object name -> MBeanEntry. Cleared whenever an entry is removed.
+    */
+   private Map entryCache = new ConcurrentReaderHashMap();
+
+   /**
+    * Incremented whenever an entry is removed, a lookup that overlapped a
+    * removal does not fill the entry cache.
+    */
+   private volatile int removals = 0;
+
    /**
     * The default domain for this registry
     */
@@ -508,6 +521,12 @@ public class BasicMBeanRegistry
       if (name == null)
          throw new RuntimeOperationsException(new IllegalArgumentException("null object name"));
 
+      MBeanEntry entry = (MBeanEntry) entryCache.get(name);
+      if (entry != null)
+         return entry;
+
+      int removalsBefore = removals;
+
       // Determine the domain and retrieve its entries
       String domain = name.getDomain();
 
@@ -522,6 +541,16 @@ public class BasicMBeanRegistry
       if (null == mbeanMap || null == (o = mbeanMap.get(props)))
          throw new InstanceNotFoundException(name + " is not registered.");
 
+      // Remember the entry unless it may have been removed meanwhile
+      if (name.isPattern() == false)
+      {
+         synchronized (this)
+         {
+            if (removals == removalsBefore)
+               entryCache.put(name, o);
+         }
+      }
+
       // We are done
       return (MBeanEntry) o;
    }
@@ -673,6 +702,7 @@ public class BasicMBeanRegistry
 
        domainMap.clear();
        domainMap = null;
+       entryCache.clear();
    }
 
 
@@ -784,6 +814,11 @@ public class BasicMBeanRegistry
       // Remove the entry, raise an exception when it didn't exist
       if (null == mbeanMap || null == mbeanMap.remove(props))
          throw new InstanceNotFoundException(name + " not registered.");
+
+      // Forget the cached entries, the entry may be cached with or
+      // without the default domain
+      removals++;
+      entryCache.clear();
    }
 
    /**
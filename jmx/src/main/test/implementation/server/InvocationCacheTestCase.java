@@ -0,0 +1,137 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package test.implementation.server;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import junit.framework.TestCase;
+
+import test.implementation.server.support.Trivial;
+
+/**
+ * Tests the MBean server finds the MBean and the operation invoked when
+ * the MBeans are registered again and the signatures differ, the registry
+ * and the invokers remember the last lookups.
+ *
+ * @version $Revision$
+ */
+public class InvocationCacheTestCase
+  extends TestCase
+{
+   // Attributes ----------------------------------------------------------------
+
+   private static final String[] SIGNATURE = new String[] { String.class.getName() };
+
+   // Constructor ---------------------------------------------------------------
+
+   /**
+    * Construct the test
+    */
+   public InvocationCacheTestCase(String s)
+   {
+      super(s);
+   }
+
+   // Tests ---------------------------------------------------------------------
+
+   /**
+    * Test an MBean registered again under the same name is invoked
+    */
+   public void testRegisteredAgain() throws Exception
+   {
+      MBeanServer server = MBeanServerFactory.newMBeanServer();
+      ObjectName name = new ObjectName("test:type=cache");
+      ObjectName unqualifiedName = new ObjectName(":type=cache");
+      ObjectName qualifiedName = new ObjectName(server.getDefaultDomain() + ":type=cache");
+
+      Trivial first = new Trivial();
+      first.setSomething("first");
+      server.registerMBean(first, name);
+      server.registerMBean(first, qualifiedName);
+      assertEquals("first", server.getAttribute(name, "Something"));
+      assertEquals("first", server.getAttribute(unqualifiedName, "Something"));
+
+      server.unregisterMBean(name);
+      server.unregisterMBean(unqualifiedName);
+      try
+      {
+         server.getAttribute(name, "Something");
+         fail("Expected InstanceNotFoundException");
+      }
+      catch (InstanceNotFoundException expected)
+      {
+      }
+      try
+      {
+         server.invoke(qualifiedName, "doOperation", new Object[] { "arg" }, SIGNATURE);
+         fail("Expected InstanceNotFoundException");
+      }
+      catch (InstanceNotFoundException expected)
+      {
+      }
+
+      Trivial second = new Trivial();
+      second.setSomething("second");
+      server.registerMBean(second, new ObjectName("test:type=cache"));
+      server.registerMBean(second, qualifiedName);
+      assertEquals("second", server.getAttribute(name, "Something"));
+      assertEquals("second", server.getAttribute(unqualifiedName, "Something"));
+      server.invoke(name, "doOperation", new Object[] { "arg" }, SIGNATURE);
+   }
+
+   /**
+    * Test the operations are told apart by their signature
+    */
+   public void testSignatures() throws Exception
+   {
+      MBeanServer server = MBeanServerFactory.newMBeanServer();
+      ObjectName name = new ObjectName("test:type=cache");
+      server.registerMBean(new Trivial(), name);
+
+      String[] signature = new String[] { String.class.getName() };
+      server.invoke(name, "doOperation", new Object[] { "arg" }, signature);
+
+      signature[0] = Integer.class.getName();
+      try
+      {
+         server.invoke(name, "doOperation", new Object[] { new Integer(0) }, signature);
+         fail("Expected ReflectionException");
+      }
+      catch (ReflectionException expected)
+      {
+      }
+      try
+      {
+         server.invoke(name, "doOperation", new Object[0], null);
+         fail("Expected ReflectionException");
+      }
+      catch (ReflectionException expected)
+      {
+      }
+
+      server.invoke(name, "doOperation", new Object[] { "arg" }, new String[] { "java.lang.String" });
+   }
+}
@@ -0,0 +1,158 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package test.performance.standard;
+
+import junit.framework.TestCase;
+import test.performance.PerformanceSUITE;
+import test.performance.standard.support.Standard;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+/**
+ * Throughput of invoke() and getAttribute() on a Standard MBean from as
+ * many threads as there are processors.
+ *
+ * @version $Revision$
+ */
+public class ConcurrentThroughputTEST extends TestCase
+{
+   private static final String[] EMPTY_SIGNATURE = new String[0];
+
+   public ConcurrentThroughputTEST(String s)
+   {
+      super(s);
+   }
+
+   public void testInvocation() throws Exception
+   {
+      final MBeanServer server = MBeanServerFactory.newMBeanServer();
+      final ObjectName name = new ObjectName("Domain:performanceTest=concurrent");
+      server.registerMBean(new Standard(), name);
+
+      long count = run(new Operation()
+      {
+         public void perform() throws Exception
+         {
+            server.invoke(name, "counter", null, EMPTY_SIGNATURE);
+         }
+      });
+
+      System.out.println("\nConcurrent Standard MBean Throughput: " +
+                         count / (PerformanceSUITE.THROUGHPUT_TIME / PerformanceSUITE.SECOND) +
+                         " invocations per second.");
+      System.out.println("(Total: " + count + ")\n");
+   }
+
+   public void testGetAttribute() throws Exception
+   {
+      final MBeanServer server = MBeanServerFactory.newMBeanServer();
+      final ObjectName name = new ObjectName("Domain:performanceTest=concurrent");
+      server.registerMBean(new Standard(), name);
+
+      long count = run(new Operation()
+      {
+         public void perform() throws Exception
+         {
+            server.getAttribute(name, "Count");
+         }
+      });
+
+      System.out.println("\nConcurrent Standard MBean Throughput: " +
+                         count / (PerformanceSUITE.THROUGHPUT_TIME / PerformanceSUITE.SECOND) +
+                         " getAttribute calls per second.");
+      System.out.println("(Total: " + count + ")\n");
+   }
+
+   public void testInvocationWithNewObjectNames() throws Exception
+   {
+      final MBeanServer server = MBeanServerFactory.newMBeanServer();
+      server.registerMBean(new Standard(), new ObjectName("Domain:performanceTest=concurrent"));
+
+      long count = run(new Operation()
+      {
+         public void perform() throws Exception
+         {
+            server.invoke(new ObjectName("Domain:performanceTest=concurrent"), "counter", null,
+                          new String[0]);
+         }
+      });
+
+      System.out.println("\nConcurrent Standard MBean Throughput (NEW OBJECTNAME): " +
+                         count / (PerformanceSUITE.THROUGHPUT_TIME / PerformanceSUITE.SECOND) +
+                         " invocations per second.");
+      System.out.println("(Total: " + count + ")\n");
+   }
+
+   private long run(final Operation operation) throws Exception
+   {
+      int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+      final long[] counts = new long[threads];
+      final Throwable[] failure = new Throwable[1];
+      final long end = System.currentTimeMillis() + PerformanceSUITE.THROUGHPUT_TIME;
+
+      Thread[] workers = new Thread[threads];
+      for (int i = 0; i < threads; ++i)
+      {
+         final int index = i;
+         workers[i] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  while (System.currentTimeMillis() < end)
+                  {
+                     for (int j = 0; j < 1000; ++j)
+                        operation.perform();
+                     counts[index] += 1000;
+                  }
+               }
+               catch (Throwable t)
+               {
+                  failure[0] = t;
+               }
+            }
+         };
+         workers[i].start();
+      }
+
+      long total = 0;
+      for (int i = 0; i < threads; ++i)
+      {
+         workers[i].join();
+         total += counts[i];
+      }
+      if (failure[0] != null)
+      {
+         failure[0].printStackTrace();
+         fail("Unexpected error: " + failure[0].toString());
+      }
+      return total;
+   }
+
+   interface Operation
+   {
+      void perform() throws Exception;
+   }
+}
@@ -65,6 +65,7 @@ public class StandardSUITE extends TestSuite
       //suite.addTest(new TestSuite(InvocationTEST.class));
       suite.addTest(new TestSuite(ThroughputTEST.class));
       suite.addTest(new TestSuite(StandardMBeanThroughputTEST.class));
+      suite.addTest(new TestSuite(ConcurrentThroughputTEST.class));
       
       return suite;
    }
@@ -39,6 +39,7 @@ public interface StandardMBean
    void methodInvocation();
    void counter();
    void mixedArguments(Integer int1, int int2, Object[][][] space, Attribute attr);
+   int getCount();
    
    void bogus6();
    void bogus7();
@@ -0,0 +1,92 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.mq.il.uil2;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/** A pool of direct buffers the NIOSocketManagers serialize their msgs to.
+ * A buffer is returned to the pool once written to the socket.
+ *
+ * @version $Revision$
+ */
+public class BufferPool
+{
+   /** The size of the buffers */
+   private int bufferSize;
+   /** The maximum number of buffers kept in the pool */
+   private int maxSize;
+   /** The free buffers */
+   private ArrayList buffers = new ArrayList();
+
+   /** Create a pool
+    *
+    * @param bufferSize the size of the buffers
+    * @param maxSize the maximum number of buffers kept in the pool
+    */
+   public BufferPool(int bufferSize, int maxSize)
+   {
+      this.bufferSize = bufferSize;
+      this.maxSize = maxSize;
+   }
+
+   /** Get a cleared buffer from the pool, a new buffer if the pool is empty
+    *
+    * @return the buffer
+    */
+   public ByteBuffer acquire()
+   {
+      synchronized (buffers)
+      {
+         int size = buffers.size();
+         if (size > 0)
+            return (ByteBuffer) buffers.remove(size - 1);
+      }
+      return ByteBuffer.allocateDirect(bufferSize);
+   }
+
+   /** Return a buffer to the pool, it is dropped if the pool is full
+    *
+    * @param buffer the buffer
+    */
+   public void release(ByteBuffer buffer)
+   {
+      buffer.clear();
+      synchronized (buffers)
+      {
+         if (buffers.size() < maxSize)
+            buffers.add(buffer);
+      }
+   }
+
+   /** Get the number of free buffers
+    *
+    * @return the number of buffers in the pool
+    */
+   public int getSize()
+   {
+      synchronized (buffers)
+      {
+         return buffers.size();
+      }
+   }
+}
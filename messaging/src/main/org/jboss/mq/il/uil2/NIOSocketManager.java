@@ -0,0 +1,800 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.mq.il.uil2;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.jboss.logging.Logger;
+import org.jboss.mq.il.uil2.msgs.BaseMsg;
+
+import EDU.oswego.cs.dl.util.concurrent.Executor;
+
+/** A SocketManager for the server side of the UIL2 transport that does not
+ * use a read and a write thread per socket. The socket is non-blocking and
+ * read by a SelectorTask shared with other sockets, the msgs are dispatched
+ * to an executor shared by all the sockets of the UIL2 service.
+ *
+ * The wire format is unchanged, it is the java serialization stream the
+ * ObjectOutputStream of the client SocketManager writes. As the client
+ * resets its stream after each msg, a msg can be read by a fresh
+ * ObjectInputStream from the bytes following the previous msg. The bytes
+ * read are accumulated until a msg can be completely read, so a msg is
+ * never read by a blocking stream. A large incomplete msg is only read
+ * again once its bytes have doubled or the client stopped sending for a
+ * moment, so that it is not deserialized again on every read.
+ *
+ * The socket is not read while the executor does not accept the msg read,
+ * the selector task retries the dispatch rather than wait for the executor.
+ *
+ * The msgs sent are serialized by the sending thread straight into direct
+ * buffers of the pool of the selector task, small msgs share a buffer. The
+ * sending thread writes the queued buffers with a gathering write unless
+ * another thread is writing, which then writes the msgs queued meanwhile
+ * along with its next write. The bytes the socket does not accept are
+ * written by the selector thread once the socket is writable.
+ *
+ * @version $Revision$
+ */
+public class NIOSocketManager extends SocketManager
+{
+   private static Logger log = Logger.getLogger(NIOSocketManager.class);
+
+   /** The java serialization stream header */
+   private static final byte[] STREAM_HEADER = { (byte) 0xac, (byte) 0xed, 0x00, 0x05 };
+   /** The incomplete msgs shorter than this are read again on every read */
+   private static final int MIN_DEFERRED_LENGTH = 0x10000;
+
+   /** The non-blocking socket channel */
+   private SocketChannel channel;
+   /** The selector task reading and writing the socket */
+   private SelectorTask selectorTask;
+   /** The key of the socket registration with the selector */
+   private SelectionKey selectionKey;
+   /** The executor the msgs are dispatched to */
+   private Executor executor;
+   /** The task the dispatched msgs are handled by */
+   private ReadTask dispatcher;
+   /** The read timeout, 0 for none */
+   private int readTimeout;
+   /** The time of the last read */
+   private volatile long lastRead;
+
+   /** The bytes read that do not make up a complete msg yet */
+   private byte[] input = new byte[1024];
+   /** The number of bytes in the input */
+   private int inputLength;
+   /** Whether the stream header has been read */
+   private boolean headerRead;
+   /** The input length from which an incomplete msg is read again, 0 for every read */
+   private int readAgainLength;
+   /** Whether bytes were read that the input was not read again for */
+   private boolean readPending;
+   /** The msg the executor did not accept, the socket is not read until it is dispatched */
+   private BaseMsg blockedMsg;
+
+   /** The lock of the output */
+   private Object writeLock = new Object();
+   /** The pool of the direct buffers the msgs are serialized to */
+   private BufferPool bufferPool;
+   /** The buffer the msgs are serialized to */
+   private OutputBuffer outputBuffer;
+   /** The stream the msgs are serialized with */
+   private ObjectOutputStream out;
+   /** The Segments of the serialized msgs waiting to be written */
+   private LinkedList writeQueue = new LinkedList();
+   /** Whether a thread is writing the write queue */
+   private boolean writing;
+   /** Whether the socket is closed once the write queue is empty */
+   private boolean closing;
+   /** Whether the socket is closed */
+   private boolean closed;
+
+   /** Create a socket manager for an accepted socket
+    *
+    * @param channel the socket channel
+    * @param selectorTask the selector task reading and writing the socket
+    * @param executor the executor the msgs are dispatched to
+    * @throws IOException for any error
+    */
+   public NIOSocketManager(SocketChannel channel, SelectorTask selectorTask, Executor executor)
+      throws IOException
+   {
+      super(channel.socket());
+      this.channel = channel;
+      this.selectorTask = selectorTask;
+      this.executor = executor;
+      channel.configureBlocking(false);
+      bufferPool = selectorTask.getWriteBufferPool();
+      outputBuffer = new OutputBuffer(bufferPool);
+      // The stream header goes out with the first msg
+      out = new ObjectOutputStream(outputBuffer);
+   }
+
+   /** Register the socket with the selector task, the thread group is not
+    * used as no thread is started for the socket.
+    * @param tg the thread group
+    */
+   public void start(ThreadGroup tg)
+   {
+      if (trace)
+         log.trace("start called", new Exception("Start stack trace"));
+
+      dispatcher = new ReadTask();
+      lastRead = System.currentTimeMillis();
+      running.set(true);
+      try
+      {
+         selectorTask.register(this);
+      }
+      catch (Throwable t)
+      {
+         handleStop("Error registering the socket", t);
+         log.warn("Error registering the socket with the selector", t);
+      }
+   }
+
+   /** Close the socket once the msgs queued are written
+    */
+   public void stop()
+   {
+      synchronized (writeLock)
+      {
+         running.set(false);
+         if (closed)
+            return;
+         if (writeQueue.isEmpty() == false)
+         {
+            if (trace)
+               log.trace("stop() closing after " + writeQueue.size() + " pending writes");
+            closing = true;
+            return;
+         }
+      }
+      handleStop("Exiting on stop", new IOException("Socket manager stopped"));
+   }
+
+   /** Set the read timeout, the socket is closed if nothing was read for
+    * that long.
+    * @param timeout the read timeout in milliseconds, 0 for none
+    */
+   public void setReadTimeout(int timeout)
+   {
+      this.readTimeout = timeout;
+   }
+
+   SocketChannel getChannel()
+   {
+      return channel;
+   }
+
+   SelectionKey getSelectionKey()
+   {
+      return selectionKey;
+   }
+
+   void setSelectionKey(SelectionKey selectionKey)
+   {
+      this.selectionKey = selectionKey;
+      synchronized (writeLock)
+      {
+         if (closed)
+            selectionKey.cancel();
+      }
+   }
+
+   /** Serialize the msg to the write queue and write the queue unless
+    * another thread is writing it.
+    *
+    * @param msg the msg to write
+    * @throws Exception for any error
+    */
+   protected void queueMessage(BaseMsg msg) throws Exception
+   {
+      synchronized (writeLock)
+      {
+         if (closed || closing)
+            throw new IOException("Client is not connected");
+         if (trace)
+            log.trace("Write msg: " + msg);
+
+         try
+         {
+            msg.write(out);
+            out.reset();
+            out.flush();
+         }
+         catch (IOException e)
+         {
+            handleStop("Failed to write msgType:" + msg, e);
+            throw e;
+         }
+         outputBuffer.drainTo(writeQueue);
+         // The writing thread writes the msg along with its next write
+         if (writing)
+            return;
+         writing = true;
+      }
+      writeQueued();
+   }
+
+   /** Read what the socket has and dispatch the complete msgs, called by the
+    * selector thread.
+    *
+    * @param buffer the direct buffer of the selector thread
+    */
+   void readable(ByteBuffer buffer)
+   {
+      boolean eof = false;
+      try
+      {
+         while (true)
+         {
+            buffer.clear();
+            int n = channel.read(buffer);
+            if (n < 0)
+               eof = true;
+            if (n <= 0)
+               break;
+            buffer.flip();
+            append(buffer);
+            if (n < buffer.capacity())
+               break;
+         }
+         lastRead = System.currentTimeMillis();
+         if (blockedMsg == null && (eof || inputLength >= readAgainLength))
+            readMsgs();
+         else
+         {
+            // Read the input again once the client stopped sending for a moment
+            readPending = true;
+            selectorTask.retryLater(this);
+         }
+         if (eof)
+            handleStop("Exiting on EOF", new EOFException("Client closed the socket"));
+      }
+      catch (Throwable e)
+      {
+         handleStop("Exiting on unexpected error in read", e);
+      }
+   }
+
+   /** Write the queued msgs the socket accepts, called by the selector
+    * thread that took over the writing when the socket was full.
+    */
+   void writable()
+   {
+      synchronized (writeLock)
+      {
+         if (selectionKey.isValid())
+            selectionKey.interestOps(blockedMsg == null ? SelectionKey.OP_READ : 0);
+      }
+      writeQueued();
+   }
+
+   /** Dispatch the msg the executor did not accept and resume reading the
+    * socket, or read the input again once nothing was read for the retry
+    * delay. Called by the selector thread.
+    *
+    * @param now the current time
+    * @return whether there is nothing left to retry
+    */
+   boolean retry(long now)
+   {
+      if (selectionKey.isValid() == false)
+         return true;
+      try
+      {
+         if (blockedMsg != null)
+         {
+            BaseMsg msg = blockedMsg;
+            blockedMsg = null;
+            if (dispatch(msg) == false)
+               return false;
+            // The client was not read meanwhile
+            lastRead = now;
+            selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_READ);
+            readMsgs();
+         }
+         else if (readPending)
+         {
+            if (now - lastRead < SelectorTask.RETRY_DELAY)
+               return false;
+            readMsgs();
+         }
+      }
+      catch (Throwable e)
+      {
+         handleStop("Exiting on unexpected error in read", e);
+         return true;
+      }
+      return blockedMsg == null && readPending == false;
+   }
+
+   /** Write the write queue with gathering writes until it is empty or the
+    * socket does not accept more, in which case the writing is left to the
+    * selector thread. Called by the thread that set the writing flag.
+    */
+   private void writeQueued()
+   {
+      boolean stop = false;
+      boolean full = false;
+      try
+      {
+         while (true)
+         {
+            ByteBuffer[] buffers;
+            synchronized (writeLock)
+            {
+               if (closed || writeQueue.isEmpty())
+               {
+                  writing = false;
+                  // Keep no buffer while idle
+                  outputBuffer.release();
+                  stop = closing;
+                  break;
+               }
+               buffers = new ByteBuffer[writeQueue.size()];
+               int i = 0;
+               for (Iterator iter = writeQueue.iterator(); iter.hasNext();)
+                  buffers[i++] = ((Segment) iter.next()).bytes;
+            }
+
+            channel.write(buffers);
+
+            synchronized (writeLock)
+            {
+               while (writeQueue.isEmpty() == false)
+               {
+                  Segment segment = (Segment) writeQueue.getFirst();
+                  if (segment.bytes.hasRemaining())
+                     break;
+                  writeQueue.removeFirst();
+                  if (segment.buffer != null)
+                     bufferPool.release(segment.buffer);
+               }
+               // The writing flag stays set until the socket is writable
+               if (buffers[buffers.length - 1].hasRemaining())
+               {
+                  full = true;
+                  break;
+               }
+            }
+         }
+         if (full)
+            selectorTask.interestWrite(this);
+      }
+      catch (Throwable e)
+      {
+         handleStop("Exiting on error in write", e);
+      }
+      if (stop)
+         handleStop("Exiting on stop", new IOException("Socket manager stopped"));
+   }
+
+   /** Close the socket if nothing was read for longer than the read timeout,
+    * the socket is not read while a msg waits for the executor.
+    *
+    * @param now the current time
+    */
+   void checkIdle(long now)
+   {
+      if (readTimeout > 0 && blockedMsg == null && now - lastRead > readTimeout)
+         handleStop("Exiting on read timeout", new SocketTimeoutException("Read timed out"));
+   }
+
+   /** Close the socket, notify the msgs awaiting a reply and the handler
+    *
+    * @param error the error text
+    * @param e the error
+    */
+   void handleStop(final String error, final Throwable e)
+   {
+      synchronized (writeLock)
+      {
+         if (closed)
+            return;
+         closed = true;
+         writeQueue.clear();
+      }
+      running.set(false);
+
+      if (e instanceof IOException || e instanceof InterruptedException)
+      {
+         if (trace)
+            log.trace(error, e);
+      }
+      else
+         log.debug(error, e);
+
+      if (selectionKey != null)
+         selectionKey.cancel();
+      try
+      {
+         channel.close();
+      }
+      catch (Exception ignored)
+      {
+         if (trace)
+            log.trace(ignored.getMessage(), ignored);
+      }
+
+      replyAll(e);
+      if (handler != null)
+      {
+         // The handler may call into the server, keep it off the selector thread
+         Runnable notification = new Runnable()
+         {
+            public void run()
+            {
+               handler.asynchFailure(error, e);
+               handler.close();
+            }
+         };
+         try
+         {
+            executor.execute(notification);
+         }
+         catch (Throwable t)
+         {
+            notification.run();
+         }
+      }
+   }
+
+   /** Append the bytes read to the input
+    */
+   private void append(ByteBuffer buffer)
+   {
+      int length = buffer.remaining();
+      if (inputLength + length > input.length)
+      {
+         byte[] tmp = new byte[Math.max(input.length * 2, inputLength + length)];
+         System.arraycopy(input, 0, tmp, 0, inputLength);
+         input = tmp;
+      }
+      buffer.get(input, inputLength, length);
+      inputLength += length;
+   }
+
+   /** Read the complete msgs in the input and dispatch them, the bytes of an
+    * incomplete msg are left in the input.
+    */
+   private void readMsgs() throws Throwable
+   {
+      readPending = false;
+      if (blockedMsg != null)
+         return;
+      int position = 0;
+      if (headerRead == false)
+      {
+         if (inputLength < STREAM_HEADER.length)
+            return;
+         for (int i = 0; i < STREAM_HEADER.length; ++i)
+         {
+            if (input[i] != STREAM_HEADER[i])
+               throw new StreamCorruptedException("Invalid stream header");
+         }
+         headerRead = true;
+         position = STREAM_HEADER.length;
+      }
+
+      InputBuffer in = new InputBuffer(input, position, inputLength);
+      ObjectInputStream ois = null;
+      while (position < inputLength)
+      {
+         if (ois == null)
+            ois = new ObjectInputStream(in);
+         BaseMsg msg = null;
+         try
+         {
+            msg = readMsg(ois, in);
+         }
+         catch (Throwable e)
+         {
+            if (in.underflow == false)
+               throw e;
+         }
+         // The msg is read again once the rest of it has arrived
+         if (in.underflow)
+            break;
+         position = in.position;
+         if (msg != null && dispatch(msg) == false)
+            break;
+      }
+
+      inputLength -= position;
+      System.arraycopy(input, position, input, 0, inputLength);
+      // Read a large incomplete msg again once it has doubled
+      if (in.underflow && inputLength >= MIN_DEFERRED_LENGTH)
+         readAgainLength = inputLength * 2;
+      else
+         readAgainLength = 0;
+   }
+
+   /** Read a msg as the ReadTask does, the reply to a msg is only removed
+    * from the replyMap once completely read.
+    *
+    * @return the new msg to dispatch, or null for a reply
+    */
+   private BaseMsg readMsg(ObjectInputStream ois, InputBuffer in) throws Throwable
+   {
+      int msgType = ois.readByte();
+      int msgID = ois.readInt();
+      if (trace)
+         log.trace("Read msgType: " + BaseMsg.toString(msgType) + ", msgID: " + msgID);
+      // See if there is a msg awaiting a reply
+      BaseMsg key = new BaseMsg(msgType, msgID);
+      BaseMsg msg = (BaseMsg) replyMap.get(key);
+      if (msg == null)
+      {
+         msg = BaseMsg.createMsg(msgType);
+         msg.setMsgID(msgID);
+         msg.read(ois);
+         if (trace)
+            log.trace("Read new msg: " + msg);
+         return msg;
+      }
+
+      if (trace)
+         log.trace("Found replyMap msg: " + msg);
+      msg.setMsgID(msgID);
+      try
+      {
+         msg.read(ois);
+         if (in.underflow)
+            return null;
+         if (trace)
+            log.trace("Read msg reply: " + msg);
+      }
+      catch (Throwable e)
+      {
+         if (in.underflow)
+            throw e;
+         // Forward the error to the waiting message
+         msg.setError(e);
+         replyMap.remove(key);
+         synchronized (msg)
+         {
+            msg.notify();
+         }
+         throw e;
+      }
+      replyMap.remove(key);
+      synchronized (msg)
+      {
+         msg.notify();
+      }
+      return null;
+   }
+
+   /** Dispatch a msg to the executor, the socket is not read while the
+    * executor does not accept it.
+    *
+    * @return whether the executor accepted the msg
+    */
+   private boolean dispatch(BaseMsg msg) throws InterruptedException
+   {
+      msg.setHandler(dispatcher);
+      try
+      {
+         executor.execute(msg);
+         return true;
+      }
+      catch (RuntimeException e)
+      {
+         // The executor is saturated, the selector task retries the msg
+         if (trace)
+            log.trace("Executor is blocked, not reading the socket", e);
+         blockedMsg = msg;
+         selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
+         selectorTask.retryLater(this);
+         return false;
+      }
+   }
+
+   /** The bytes of a msg in a buffer of the pool
+    */
+   static class Segment
+   {
+      /** The bytes to write */
+      ByteBuffer bytes;
+      /** The buffer to return to the pool once the bytes are written, null
+       * if a later segment uses the buffer too */
+      ByteBuffer buffer;
+
+      Segment(ByteBuffer bytes, ByteBuffer buffer)
+      {
+         this.bytes = bytes;
+         this.buffer = buffer;
+      }
+   }
+
+   /** The output the msgs are serialized to. The bytes of a msg are queued
+    * as Segments, views of the pooled buffer they were written to, so that
+    * the buffer is written to while its previous segments are written to
+    * the socket.
+    */
+   static class OutputBuffer extends OutputStream
+   {
+      private BufferPool pool;
+      /** The buffer written to */
+      private ByteBuffer current;
+      /** The position of the bytes of current not in a segment yet */
+      private int start;
+      /** The segments not queued yet */
+      private LinkedList segments = new LinkedList();
+
+      OutputBuffer(BufferPool pool)
+      {
+         this.pool = pool;
+      }
+
+      public void write(int b)
+      {
+         next();
+         current.put((byte) b);
+      }
+
+      public void write(byte[] b, int off, int len)
+      {
+         while (len > 0)
+         {
+            next();
+            int n = Math.min(len, current.remaining());
+            current.put(b, off, n);
+            off += n;
+            len -= n;
+         }
+      }
+
+      /** Move the segments written to the write queue
+       * @param queue the write queue
+       */
+      void drainTo(LinkedList queue)
+      {
+         if (current != null && current.position() > start)
+            addSegment();
+         queue.addAll(segments);
+         segments.clear();
+      }
+
+      /** Return the current buffer to the pool, its segments must have
+       * been written.
+       */
+      void release()
+      {
+         if (current != null)
+         {
+            pool.release(current);
+            current = null;
+         }
+      }
+
+      /** Make sure the current buffer has room
+       */
+      private void next()
+      {
+         if (current == null)
+         {
+            current = pool.acquire();
+            start = 0;
+         }
+         else if (current.hasRemaining() == false)
+         {
+            addSegment();
+            next();
+         }
+      }
+
+      /** Add a segment of the bytes of the current buffer, the last segment
+       * of a full buffer returns it to the pool.
+       */
+      private void addSegment()
+      {
+         ByteBuffer bytes = current.duplicate();
+         bytes.limit(current.position());
+         bytes.position(start);
+         start = current.position();
+         if (current.hasRemaining())
+            segments.add(new Segment(bytes, null));
+         else
+         {
+            segments.add(new Segment(bytes, current));
+            current = null;
+         }
+      }
+   }
+
+   /** The input the msgs are read from. It starts with the stream header
+    * the ObjectInputStream expects and records whether it was read beyond
+    * the input, in which case the msg being read is incomplete.
+    */
+   static class InputBuffer extends InputStream
+   {
+      private byte[] buffer;
+      private int end;
+      /** The position in the buffer */
+      int position;
+      /** The position in the stream header */
+      private int headerPosition;
+      /** Whether a read went beyond the input */
+      boolean underflow;
+
+      InputBuffer(byte[] buffer, int position, int end)
+      {
+         this.buffer = buffer;
+         this.position = position;
+         this.end = end;
+      }
+
+      public int read()
+      {
+         if (headerPosition < STREAM_HEADER.length)
+            return STREAM_HEADER[headerPosition++] & 0xff;
+         if (position >= end)
+         {
+            underflow = true;
+            return -1;
+         }
+         return buffer[position++] & 0xff;
+      }
+
+      public int read(byte[] b, int off, int len)
+      {
+         if (len == 0)
+            return 0;
+         if (headerPosition < STREAM_HEADER.length)
+         {
+            int n = Math.min(len, STREAM_HEADER.length - headerPosition);
+            System.arraycopy(STREAM_HEADER, headerPosition, b, off, n);
+            headerPosition += n;
+            return n;
+         }
+         if (position >= end)
+         {
+            underflow = true;
+            return -1;
+         }
+         int n = Math.min(len, end - position);
+         System.arraycopy(buffer, position, b, off, n);
+         position += n;
+         return n;
+      }
+
+      public int available()
+      {
+         return STREAM_HEADER.length - headerPosition + end - position;
+      }
+   }
+}
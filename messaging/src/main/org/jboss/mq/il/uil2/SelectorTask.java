@@ -0,0 +1,244 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.mq.il.uil2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.jboss.logging.Logger;
+
+import EDU.oswego.cs.dl.util.concurrent.LinkedQueue;
+import EDU.oswego.cs.dl.util.concurrent.SynchronizedBoolean;
+
+/** The task multiplexing the sockets of many NIOSocketManagers over one
+ * selector thread. The socket reads go through a direct buffer shared by
+ * all the sockets of the selector, the msgs read are dispatched by the
+ * NIOSocketManager to the executor of the UIL2 service. The msgs written
+ * are serialized to direct buffers of a pool shared by the sockets of the
+ * selector. The sockets waiting for the executor or with an incomplete msg
+ * to read again are retried after each select, which then waits no longer
+ * than the retry delay.
+ *
+ * @version $Revision$
+ */
+public class SelectorTask implements Runnable
+{
+   private static Logger log = Logger.getLogger(SelectorTask.class);
+
+   /** The size of the direct read buffer */
+   private static final int READ_BUFFER_SIZE = 0x10000;
+   /** The maximum wait in a select, the idle connections are checked after each */
+   private static final long SELECT_TIMEOUT = 1000;
+   /** The delay of the retries of the sockets waiting for the executor or more input */
+   static final long RETRY_DELAY = 10;
+   /** The size of the direct write buffers */
+   private static final int WRITE_BUFFER_SIZE = 0x2000;
+   /** The maximum number of free write buffers kept */
+   private static final int MAX_FREE_WRITE_BUFFERS = 256;
+
+   /** The selector */
+   private Selector selector;
+   /** The direct buffer the sockets are read into */
+   private ByteBuffer readBuffer;
+   /** The direct buffers the msgs are written to */
+   private BufferPool writeBufferPool = new BufferPool(WRITE_BUFFER_SIZE, MAX_FREE_WRITE_BUFFERS);
+   /** The registrations and interest changes to apply on the selector thread */
+   private LinkedQueue changes = new LinkedQueue();
+   /** The socket managers to retry, only used by the selector thread */
+   private Set retries = new LinkedHashSet();
+   /** The selector thread */
+   private Thread selectorThread;
+   /** Used for controlling the selector loop */
+   private SynchronizedBoolean running = new SynchronizedBoolean(false);
+
+   public SelectorTask() throws IOException
+   {
+      selector = Selector.open();
+      readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+   }
+
+   /** Start the selector thread
+    * @param tg the thread group to use for the selector thread
+    * @param name the name of the selector thread
+    */
+   public void start(ThreadGroup tg, String name)
+   {
+      selectorThread = new Thread(tg, this, name);
+      selectorThread.setDaemon(true);
+      running.set(true);
+      selectorThread.start();
+   }
+
+   /** Stop the selector thread, the sockets still registered are closed.
+    */
+   public void stop()
+   {
+      running.set(false);
+      selector.wakeup();
+   }
+
+   /** Get the pool of the direct buffers the msgs are written to
+    * @return the buffer pool
+    */
+   public BufferPool getWriteBufferPool()
+   {
+      return writeBufferPool;
+   }
+
+   /** Register the socket of a socket manager for reading.
+    * @param socketMgr the socket manager
+    * @throws InterruptedException if interrupted
+    */
+   void register(final NIOSocketManager socketMgr) throws InterruptedException
+   {
+      addChange(new Runnable()
+      {
+         public void run()
+         {
+            try
+            {
+               SocketChannel channel = socketMgr.getChannel();
+               socketMgr.setSelectionKey(channel.register(selector, SelectionKey.OP_READ, socketMgr));
+            }
+            catch (Exception e)
+            {
+               socketMgr.handleStop("Failed to register the socket", e);
+            }
+         }
+      });
+   }
+
+   /** Add the write interest to the socket of a socket manager
+    * @param socketMgr the socket manager with pending writes
+    * @throws InterruptedException if interrupted
+    */
+   void interestWrite(final NIOSocketManager socketMgr) throws InterruptedException
+   {
+      addChange(new Runnable()
+      {
+         public void run()
+         {
+            SelectionKey key = socketMgr.getSelectionKey();
+            if (key != null && key.isValid())
+               key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+         }
+      });
+   }
+
+   /** Retry a socket manager after the next select, called by the selector thread
+    * @param socketMgr the socket manager waiting for the executor or more input
+    */
+   void retryLater(NIOSocketManager socketMgr)
+   {
+      retries.add(socketMgr);
+   }
+
+   /** The selector loop
+    */
+   public void run()
+   {
+      log.debug("Begin SelectorTask.run " + Thread.currentThread());
+      long lastIdleCheck = System.currentTimeMillis();
+      while (running.get())
+      {
+         try
+         {
+            selector.select(retries.isEmpty() ? SELECT_TIMEOUT : RETRY_DELAY);
+            applyChanges();
+            for (Iterator i = selector.selectedKeys().iterator(); i.hasNext();)
+            {
+               SelectionKey key = (SelectionKey) i.next();
+               i.remove();
+               NIOSocketManager socketMgr = (NIOSocketManager) key.attachment();
+               if (key.isValid() && key.isReadable())
+                  socketMgr.readable(readBuffer);
+               if (key.isValid() && key.isWritable())
+                  socketMgr.writable();
+            }
+
+            long now = System.currentTimeMillis();
+            if (retries.isEmpty() == false)
+            {
+               Object[] socketMgrs = retries.toArray();
+               for (int i = 0; i < socketMgrs.length; ++i)
+               {
+                  if (((NIOSocketManager) socketMgrs[i]).retry(now))
+                     retries.remove(socketMgrs[i]);
+               }
+            }
+
+            if (now - lastIdleCheck >= SELECT_TIMEOUT)
+            {
+               lastIdleCheck = now;
+               for (Iterator i = selector.keys().iterator(); i.hasNext();)
+               {
+                  SelectionKey key = (SelectionKey) i.next();
+                  if (key.isValid())
+                     ((NIOSocketManager) key.attachment()).checkIdle(now);
+               }
+            }
+         }
+         catch (Throwable t)
+         {
+            if (running.get())
+               log.warn("Unexpected error in selector loop", t);
+         }
+      }
+
+      // Close the remaining sockets
+      try
+      {
+         applyChanges();
+         Object[] keys = selector.keys().toArray();
+         for (int i = 0; i < keys.length; ++i)
+         {
+            NIOSocketManager socketMgr = (NIOSocketManager) ((SelectionKey) keys[i]).attachment();
+            socketMgr.handleStop("Exiting on selector stop", new IOException("Selector stopped"));
+         }
+         selector.close();
+      }
+      catch (Throwable t)
+      {
+         log.debug("Error closing selector", t);
+      }
+      log.debug("End SelectorTask.run " + Thread.currentThread());
+   }
+
+   private void addChange(Runnable change) throws InterruptedException
+   {
+      changes.put(change);
+      selector.wakeup();
+   }
+
+   private void applyChanges() throws InterruptedException
+   {
+      Runnable change;
+      while ((change = (Runnable) changes.poll(0)) != null)
+         change.run();
+   }
+}
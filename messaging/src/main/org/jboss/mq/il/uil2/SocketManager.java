@@ -58,6 +58,8 @@ public class SocketManager
    private static final int STARTED = 1;
    private static final int STOPPING = 2;
    private static SynchronizedInt taskID = new SynchronizedInt(0);
+   /** The maximum number of queued msgs written before a flush */
+   private static final int MAX_WRITE_BATCH = 64;
 
    /** The socket created by the IL layer */
    private Socket socket;
@@ -80,19 +82,19 @@ public class SocketManager
    /** The flag used to control the write loop */
    private int writeState = STOPPED;
    /** Used for constrolling the state */
-   private SynchronizedBoolean running = new SynchronizedBoolean(false);
+   protected SynchronizedBoolean running = new SynchronizedBoolean(false);
    /** The queue of messages to be processed by the write task */
    private LinkedQueue sendQueue;
    /** A HashMap<Integer, BaseMsg> that are awaiting a reply */
-   private ConcurrentHashMap replyMap;
+   protected ConcurrentHashMap replyMap;
    /** The callback handler used for msgs that are not replys */
-   private SocketManagerHandler handler;
+   protected SocketManagerHandler handler;
    /** The buffer size */
    private int bufferSize = 1;
    /** The chunk size for notification of stream activity */
    private int chunkSize = 0x40000000;
    /** The logging trace level which is set in the ctor */
-   private boolean trace;
+   protected boolean trace;
 
    public SocketManager(Socket s) throws IOException
    {
@@ -297,7 +299,7 @@ public class SocketManager
                log.trace("Begin internalSendMessage, round-trip msg=" + msg);
             // Place the msg into the write queue and reply map
             replyMap.put(msg, msg);
-            sendQueue.put(msg);
+            queueMessage(msg);
             // Wait for the msg reply
             msg.wait();
          }
@@ -306,12 +308,40 @@ public class SocketManager
       { // Send an asynchronous msg, typically a reply
          if (trace)
             log.trace("Begin internalSendMessage, one-way msg=" + msg);
-         sendQueue.put(msg);
+         queueMessage(msg);
       }
       if (trace)
          log.trace("End internalSendMessage, msg=" + msg);
    }
 
+   /** Hand the msg over to the write task.
+    *
+    * @param msg the msg to write
+    * @throws Exception for any error
+    */
+   protected void queueMessage(BaseMsg msg) throws Exception
+   {
+      sendQueue.put(msg);
+   }
+
+   /** Notify all msgs awaiting a reply of the error
+    *
+    * @param e the error
+    */
+   protected void replyAll(Throwable e)
+   {
+      for (Iterator iterator = replyMap.keySet().iterator(); iterator.hasNext();)
+      {
+         BaseMsg msg = (BaseMsg) iterator.next();
+         msg.setError(e);
+         synchronized (msg)
+         {
+            msg.notify();
+         }
+         iterator.remove();
+      }
+   }
+
    /** The task managing the socket read thread
     *
     */
@@ -460,6 +490,8 @@ public class SocketManager
          else
             log.debug(error, e);
 
+         // Clear the interrupted state of the thread
+         Thread.interrupted();
          replyAll(e);
          if (handler != null)
          {
@@ -497,23 +529,6 @@ public class SocketManager
                log.trace(ignored.getMessage(), ignored);
          }
       }
-
-      private void replyAll(Throwable e)
-      {
-         // Clear the interrupted state of the thread
-         Thread.interrupted();
-
-         for (Iterator iterator = replyMap.keySet().iterator(); iterator.hasNext();)
-         {
-            BaseMsg msg = (BaseMsg) iterator.next();
-            msg.setError(e);
-            synchronized (msg)
-            {
-               msg.notify();
-            }
-            iterator.remove();
-         }
-      }
    }
 
    /** The task managing the socket write thread
@@ -551,10 +566,15 @@ public class SocketManager
                msg = (BaseMsg) sendQueue.poll(10000l);
                if (msg == null)
                   continue; // Check for stop if no message for 10 seconds
-               if (trace)
-                  log.trace("Write msg: " + msg);
-               msg.write(out);
-               out.reset();
+               // Write the msgs queued meanwhile before a single flush
+               for (int count = 1; msg != null; ++count)
+               {
+                  if (trace)
+                     log.trace("Write msg: " + msg);
+                  msg.write(out);
+                  out.reset();
+                  msg = count < MAX_WRITE_BATCH ? (BaseMsg) sendQueue.poll(0) : null;
+               }
                out.flush();
             }
             catch (InterruptedException e)
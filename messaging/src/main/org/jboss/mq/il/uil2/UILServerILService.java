@@ -24,9 +24,11 @@ package org.jboss.mq.il.uil2;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Iterator;
 import java.util.Properties;
 
@@ -41,7 +43,9 @@ import org.jboss.mq.il.uil2.msgs.MsgTypes;
 import org.jboss.security.SecurityDomain;
 import org.jboss.system.server.ServerConfigUtil;
 
+import EDU.oswego.cs.dl.util.concurrent.BoundedBuffer;
 import EDU.oswego.cs.dl.util.concurrent.CopyOnWriteArrayList;
+import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
 import EDU.oswego.cs.dl.util.concurrent.SynchronizedBoolean;
 
 /** This is the server side MBean for the UIL2 transport layer.
@@ -65,6 +69,8 @@ public class UILServerILService extends ServerILJMXService
    /** The socket factory used to obtain the server socket.
     */
    private ServerSocketFactory serverSocketFactory;
+   /** Whether the serverSocketFactory is the default set by startService */
+   private boolean defaultServerSocketFactory;
    /** The UIL2 server socket clients connect to
     */
    private ServerSocket serverSocket;
@@ -120,6 +126,27 @@ public class UILServerILService extends ServerILJMXService
 
    /** The server handlers */
    private CopyOnWriteArrayList handlers = new CopyOnWriteArrayList();
+
+   /**
+    * The number of selector threads multiplexing the client sockets,
+    * 0 for a read and a write thread per client socket.
+    */
+   private int selectorThreads = 0;
+
+   /**
+    * The maximum number of threads handling the msgs of the selector threads,
+    * and of the msgs queued for them.
+    */
+   private int dispatchPoolSize = 100;
+
+   /** The selector tasks, null if the client sockets have their own threads */
+   private SelectorTask[] selectorTasks;
+
+   /** The selector task the next client socket is registered with */
+   private int nextSelectorTask;
+
+   /** The thread pool shared by the client sockets of the selector tasks */
+   private PooledExecutor dispatchPool;
    
    /**
     * Used to construct the GenericConnectionFactory (bindJNDIReferences()
@@ -161,7 +188,15 @@ public class UILServerILService extends ServerILJMXService
                log.trace("Accepted connection: "+socket);
             socket.setSoTimeout(readTimeout);
             socket.setTcpNoDelay(enableTcpNoDelay);
-            socketMgr = new SocketManager(socket);
+            if (selectorTasks != null)
+            {
+               SelectorTask selectorTask = selectorTasks[nextSelectorTask++ % selectorTasks.length];
+               NIOSocketManager nioSocketMgr = new NIOSocketManager(socket.getChannel(), selectorTask, dispatchPool);
+               nioSocketMgr.setReadTimeout(readTimeout);
+               socketMgr = nioSocketMgr;
+            }
+            else
+               socketMgr = new SocketManager(socket);
             ServerSocketManagerHandler handler = new ServerSocketManagerHandler(getJMSServer(), socketMgr, this);
             handlers.add(handler);
             socketMgr.setHandler(handler);
@@ -192,9 +227,20 @@ public class UILServerILService extends ServerILJMXService
    {
       super.startService();
 
+      // The selector threads use plain socket channels
+      boolean useSelectors = selectorThreads > 0;
+      if (useSelectors && (serverSocketFactory != null || securityDomain != null))
+      {
+         log.warn("SelectorThreads is ignored with a ServerSocketFactory or SecurityDomain");
+         useSelectors = false;
+      }
+
       // Use the default javax.net.ServerSocketFactory if none was set
       if (serverSocketFactory == null)
+      {
          serverSocketFactory = ServerSocketFactory.getDefault();
+         defaultServerSocketFactory = true;
+      }
 
       /* See if the server socket supports setSecurityDomain(SecurityDomain)
       if an securityDomain was specified
@@ -221,8 +267,18 @@ public class UILServerILService extends ServerILJMXService
          }
       }
 
-      // Create the server socket using the socket factory
-      serverSocket = serverSocketFactory.createServerSocket(serverBindPort, 50, bindAddress);
+      if (useSelectors)
+      {
+         // Bind a server socket channel, the accepted sockets have a channel
+         serverSocket = ServerSocketChannel.open().socket();
+         serverSocket.bind(new InetSocketAddress(bindAddress, serverBindPort), 50);
+         startSelectorTasks();
+      }
+      else
+      {
+         // Create the server socket using the socket factory
+         serverSocket = serverSocketFactory.createServerSocket(serverBindPort, 50, bindAddress);
+      }
 
       InetAddress socketAddress = serverSocket.getInetAddress();
       log.info("JBossMQ UIL service available at : " + socketAddress + ":" + serverSocket.getLocalPort());
@@ -294,6 +350,59 @@ public class UILServerILService extends ServerILJMXService
             }
          }
       }
+
+      stopSelectorTasks();
+
+      // The next start uses the selectors again unless a factory was set
+      if (defaultServerSocketFactory)
+      {
+         serverSocketFactory = null;
+         defaultServerSocketFactory = false;
+      }
+   }
+
+   /**
+    * Start the selector threads and their thread pool
+    *
+    * @throws IOException for any error opening the selectors
+    */
+   private void startSelectorTasks() throws IOException
+   {
+      // All the threads are started before msgs are queued
+      dispatchPool = new PooledExecutor(new BoundedBuffer(dispatchPoolSize), dispatchPoolSize);
+      dispatchPool.setMinimumPoolSize(dispatchPoolSize);
+      dispatchPool.setKeepAliveTime(1000 * 60);
+      // Reject msgs when the queue is full, the socket is then not read until
+      // the selector thread could dispatch the msg
+      dispatchPool.abortWhenBlocked();
+      dispatchPool.setThreadFactory(new SocketManager.UILThreadFactory("UILServerILService.MsgPool"));
+
+      ThreadGroup tg = getJMSServer().getThreadGroup();
+      selectorTasks = new SelectorTask[selectorThreads];
+      for (int i = 0; i < selectorTasks.length; ++i)
+      {
+         selectorTasks[i] = new SelectorTask();
+         selectorTasks[i].start(tg, "UIL2.SelectorTask#" + i);
+      }
+      log.debug("Started " + selectorTasks.length + " selector threads");
+   }
+
+   /**
+    * Stop the selector threads, this closes their client sockets
+    */
+   private void stopSelectorTasks()
+   {
+      if (selectorTasks != null)
+      {
+         for (int i = 0; i < selectorTasks.length; ++i)
+            selectorTasks[i].stop();
+         selectorTasks = null;
+      }
+      if (dispatchPool != null)
+      {
+         dispatchPool.shutdownAfterProcessingCurrentlyQueuedTasks();
+         dispatchPool = null;
+      }
    }
 
    protected void removeHandler(ServerSocketManagerHandler handler)
@@ -449,6 +558,50 @@ public class UILServerILService extends ServerILJMXService
       this.chunkSize = size;
    }
 
+   /**
+    * Gets the number of selector threads.
+    * @return the number of selector threads, 0 for a read and a write thread per client
+    *
+    * @jmx:managed-attribute
+    */
+   public int getSelectorThreads()
+   {
+      return selectorThreads;
+   }
+
+   /**
+    * Sets the number of selector threads multiplexing the client sockets.
+    * @param count the number of selector threads, 0 for a read and a write thread per client
+    *
+    * @jmx:managed-attribute
+    */
+   public void setSelectorThreads(int count)
+   {
+      this.selectorThreads = count;
+   }
+
+   /**
+    * Gets the maximum number of threads handling the msgs of the selector threads.
+    * @return the maximum pool size
+    *
+    * @jmx:managed-attribute
+    */
+   public int getDispatchPoolSize()
+   {
+      return dispatchPoolSize;
+   }
+
+   /**
+    * Sets the maximum number of threads handling the msgs of the selector threads.
+    * @param size the maximum pool size
+    *
+    * @jmx:managed-attribute
+    */
+   public void setDispatchPoolSize(int size)
+   {
+      this.dispatchPoolSize = size;
+   }
+
    public int getReadTimeout()
    {
       return readTimeout;
@@ -496,6 +649,7 @@ public class UILServerILService extends ServerILJMXService
       ClassLoader loader = Thread.currentThread().getContextClassLoader();
       Class ssfClass = loader.loadClass(name);
       serverSocketFactory = (ServerSocketFactory) ssfClass.newInstance();
+      defaultServerSocketFactory = false;
    }
 
    /** Get the javax.net.ServerSocketFactory implementation class to use to
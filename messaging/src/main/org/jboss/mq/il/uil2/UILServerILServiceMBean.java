@@ -95,6 +95,30 @@ public interface UILServerILServiceMBean extends org.jboss.mq.il.ServerILJMXServ
     */
    void setChunkSize(int size);
 
+   /**
+    * Gets the number of selector threads.
+    * @return the number of selector threads, 0 for a read and a write thread per client
+    */
+   int getSelectorThreads();
+
+   /**
+    * Sets the number of selector threads multiplexing the client sockets.
+    * @param count the number of selector threads, 0 for a read and a write thread per client
+    */
+   void setSelectorThreads(int count);
+
+   /**
+    * Gets the maximum number of threads handling the msgs of the selector threads.
+    * @return the maximum pool size
+    */
+   int getDispatchPoolSize();
+
+   /**
+    * Sets the maximum number of threads handling the msgs of the selector threads.
+    * @param size the maximum pool size
+    */
+   void setDispatchPoolSize(int size);
+
    /**
     * Gets the socket read timeout.
     * @return Returns the read timeout in milli-seconds
@@ -0,0 +1,722 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.mq.pm.journal;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.zip.CRC32;
+
+import org.jboss.logging.Logger;
+
+/**
+ * An append only journal of records kept in memory mapped files.<p>
+ *
+ * The journal is a sequence of segment files of a fixed size. Records are
+ * appended to the last segment, a new segment is started when a record does
+ * not fit. Every record carries a CRC so a record that was only partly
+ * written when the machine crashed ends the journal on recovery.<p>
+ *
+ * Appending does not touch the disk. Callers that need a record to be
+ * durable call sync() with its location. One of the threads waiting in
+ * sync() forces the segment for all of them, so concurrent callers share
+ * the cost of the fsync (group commit).<p>
+ *
+ * Segments are only ever removed from the head of the journal. The owner
+ * copies the records it still needs out of the oldest segment before
+ * removing it, so a record that cancels an earlier record can never
+ * outlive the segment holding the earlier record.
+ *
+ * @version $Revision$
+ */
+public class Journal
+{
+   // Constants -----------------------------------------------------
+
+   private static final Logger log = Logger.getLogger(Journal.class);
+
+   /** The file prefix */
+   private static final String PREFIX = "journal-";
+
+   /** The file suffix */
+   private static final String SUFFIX = ".jmq";
+
+   /** The segment magic */
+   private static final int MAGIC = 0x4a4d514a;
+
+   /** The format version */
+   private static final int VERSION = 1;
+
+   /** The size of the segment header: magic, version and sequence */
+   static final int SEGMENT_HEADER = 16;
+
+   /** The size of a record header: length and crc */
+   static final int RECORD_HEADER = 8;
+
+   // Attributes ----------------------------------------------------
+
+   /** The directory */
+   private File directory;
+
+   /** The size of a segment */
+   private int fileSize;
+
+   /** The segments oldest first */
+   private LinkedList segments = new LinkedList();
+
+   /** The segment records are appended to */
+   private Segment current;
+
+   /** The lock file */
+   private RandomAccessFile lockFile;
+
+   /** The lock preventing two journals using the same directory */
+   private FileLock fileLock;
+
+   /** Whether the journal is open */
+   private boolean open = false;
+
+   /** The sync lock */
+   private Object syncLock = new Object();
+
+   /** The position up to which the journal is on disk, synchronized on syncLock */
+   private long forced = 0;
+
+   /** Whether a thread is forcing the journal, synchronized on syncLock */
+   private boolean forcing = false;
+
+   /** The number of forces */
+   private long forces = 0;
+
+   // Constructors --------------------------------------------------
+
+   /**
+    * Create a new journal
+    *
+    * @param directory the directory holding the segments
+    * @param fileSize the size of a segment in bytes
+    */
+   public Journal(File directory, int fileSize)
+   {
+      if (fileSize < SEGMENT_HEADER + RECORD_HEADER + 1)
+         throw new IllegalArgumentException("File size too small " + fileSize);
+      this.directory = directory;
+      this.fileSize = fileSize;
+   }
+
+   // Public --------------------------------------------------------
+
+   /**
+    * Open the journal passing every record to the handler in the order
+    * they were appended
+    *
+    * @param handler the handler, may be null
+    * @throws Exception for any error, including from the handler
+    */
+   public synchronized void open(RecordHandler handler) throws Exception
+   {
+      if (open)
+         throw new IllegalStateException("Journal is already open " + directory);
+
+      if (directory.exists() == false && directory.mkdirs() == false)
+         throw new IOException("Unable to create journal directory " + directory);
+      lockFile = new RandomAccessFile(new File(directory, "journal.lck"), "rw");
+      fileLock = lockFile.getChannel().tryLock();
+      if (fileLock == null)
+      {
+         lockFile.close();
+         throw new IOException("The journal is in use by another process " + directory);
+      }
+
+      try
+      {
+         File[] files = directory.listFiles(new FileFilter()
+         {
+            public boolean accept(File file)
+            {
+               return file.getName().startsWith(PREFIX) && file.getName().endsWith(SUFFIX);
+            }
+         });
+         Arrays.sort(files, new Comparator()
+         {
+            public int compare(Object o1, Object o2)
+            {
+               long s1 = sequenceOf((File) o1);
+               long s2 = sequenceOf((File) o2);
+               return s1 < s2 ? -1 : (s1 == s2 ? 0 : 1);
+            }
+         });
+
+         for (int i = 0; i < files.length; ++i)
+         {
+            Segment segment = Segment.open(files[i], sequenceOf(files[i]));
+            if (segment == null)
+            {
+               if (i == files.length - 1)
+               {
+                  log.warn("Removing journal segment without a valid header " + files[i]);
+                  files[i].delete();
+                  continue;
+               }
+               throw new IOException("Journal segment is corrupt " + files[i]);
+            }
+            segment.used = replay(segment, segment.capacity, handler);
+            segments.add(segment);
+         }
+
+         if (segments.isEmpty())
+            current = newSegment(1, fileSize);
+         else
+         {
+            current = (Segment) segments.getLast();
+            // Clear anything after the last good record so a later crash
+            // can not make a stale record look valid
+            ByteBuffer buffer = current.buffer.duplicate();
+            buffer.position(current.used);
+            while (buffer.hasRemaining())
+               buffer.put((byte) 0);
+            current.buffer.force();
+         }
+         synchronized (syncLock)
+         {
+            forced = current.positionOf(current.used);
+         }
+         open = true;
+         log.debug("Opened journal " + directory + " segments=" + segments.size());
+      }
+      finally
+      {
+         if (open == false)
+            release();
+      }
+   }
+
+   /**
+    * Append a record
+    *
+    * @param type the record type
+    * @param data the record data
+    * @return the location of the record
+    * @throws IOException for any error
+    */
+   public synchronized Location append(byte type, byte[] data) throws IOException
+   {
+      if (open == false)
+         throw new IOException("The journal is not open " + directory);
+
+      int length = data.length + 1;
+      int size = RECORD_HEADER + length;
+      if (current.used + size > current.capacity)
+         roll(size);
+
+      CRC32 crc = new CRC32();
+      crc.update(type);
+      crc.update(data);
+
+      ByteBuffer buffer = current.writer;
+      buffer.position(current.used);
+      buffer.putInt(length);
+      buffer.putInt((int) crc.getValue());
+      buffer.put(type);
+      buffer.put(data);
+
+      Location location = new Location(current, current.used, data.length);
+      current.used += size;
+      return location;
+   }
+
+   /**
+    * Wait until a record is on disk
+    *
+    * @param location the location of the record
+    * @throws IOException for any error
+    */
+   public void sync(Location location) throws IOException
+   {
+      long upTo = location.segment.positionOf(location.position + RECORD_HEADER + location.size + 1);
+      synchronized (syncLock)
+      {
+         while (forced < upTo && forcing)
+         {
+            try
+            {
+               syncLock.wait();
+            }
+            catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+               throw new InterruptedIOException("Interrupted waiting for the journal");
+            }
+         }
+         if (forced >= upTo)
+            return;
+         forcing = true;
+      }
+
+      // We force the journal for everybody waiting
+      long target = 0;
+      try
+      {
+         Segment segment;
+         synchronized (this)
+         {
+            segment = current;
+            target = current.positionOf(current.used);
+         }
+         segment.buffer.force();
+      }
+      finally
+      {
+         synchronized (syncLock)
+         {
+            forcing = false;
+            if (target > forced)
+            {
+               forced = target;
+               ++forces;
+            }
+            syncLock.notifyAll();
+         }
+      }
+   }
+
+   /**
+    * Read the data of a record
+    *
+    * @param location the location
+    * @return the data
+    */
+   public byte[] read(Location location)
+   {
+      byte[] data = new byte[location.size];
+      ByteBuffer buffer = location.segment.buffer.duplicate();
+      buffer.position(location.position + RECORD_HEADER + 1);
+      buffer.get(data);
+      return data;
+   }
+
+   /**
+    * Note a record is still needed
+    *
+    * @param location the location of the record
+    */
+   public synchronized void retain(Location location)
+   {
+      location.segment.live += RECORD_HEADER + location.size + 1;
+   }
+
+   /**
+    * Note a record is no longer needed
+    *
+    * @param location the location of the record
+    */
+   public synchronized void release(Location location)
+   {
+      location.segment.live -= RECORD_HEADER + location.size + 1;
+   }
+
+   /**
+    * Get the number of segments
+    *
+    * @return the number of segments
+    */
+   public synchronized int getSegmentCount()
+   {
+      return segments.size();
+   }
+
+   /**
+    * Get the number of bytes in records that are still needed
+    *
+    * @return the live bytes
+    */
+   public synchronized long getLiveBytes()
+   {
+      long result = 0;
+      for (Iterator i = segments.iterator(); i.hasNext();)
+         result += ((Segment) i.next()).live;
+      return result;
+   }
+
+   /**
+    * Get the number of bytes written to the segments
+    *
+    * @return the used bytes
+    */
+   public synchronized long getUsedBytes()
+   {
+      long result = 0;
+      for (Iterator i = segments.iterator(); i.hasNext();)
+         result += ((Segment) i.next()).used - SEGMENT_HEADER;
+      return result;
+   }
+
+   /**
+    * Get the number of times the journal was forced to disk
+    *
+    * @return the number of forces
+    */
+   public long getForceCount()
+   {
+      synchronized (syncLock)
+      {
+         return forces;
+      }
+   }
+
+   /**
+    * Close the journal
+    */
+   public synchronized void close()
+   {
+      if (open == false)
+         return;
+      open = false;
+      try
+      {
+         current.buffer.force();
+      }
+      catch (Throwable t)
+      {
+         log.warn("Error forcing journal on close " + directory, t);
+      }
+      segments.clear();
+      current = null;
+      release();
+   }
+
+   public String toString()
+   {
+      return "Journal@" + System.identityHashCode(this) + "{dir=" + directory + " segments=" + getSegmentCount() + '}';
+   }
+
+   // Package Private -----------------------------------------------
+
+   /**
+    * Get the oldest segment, it is never the segment being appended to
+    *
+    * @return the segment or null when there is only one segment
+    */
+   synchronized Segment getOldestSegment()
+   {
+      if (segments.size() < 2)
+         return null;
+      return (Segment) segments.getFirst();
+   }
+
+   /**
+    * Pass the records of a segment to a handler
+    *
+    * @param segment the segment
+    * @param handler the handler
+    * @throws Exception for any error
+    */
+   void replay(Segment segment, RecordHandler handler) throws Exception
+   {
+      int end;
+      synchronized (this)
+      {
+         end = segment.used;
+      }
+      replay(segment, end, handler);
+   }
+
+   /**
+    * Remove the oldest segment
+    *
+    * @param segment the oldest segment
+    */
+   synchronized void removeOldestSegment(Segment segment)
+   {
+      if (segments.size() < 2 || segments.getFirst() != segment)
+         throw new IllegalStateException("Not the oldest segment " + segment.file);
+      segments.removeFirst();
+      // The mapping is left for the garbage collector, a reader
+      // might still have the location of a record that was moved
+      if (segment.file.delete() == false)
+      {
+         log.warn("Unable to delete journal segment " + segment.file);
+         segment.file.deleteOnExit();
+      }
+      log.debug("Removed journal segment " + segment.file);
+   }
+
+   // Private -------------------------------------------------------
+
+   /**
+    * Pass the records of a segment to a handler
+    *
+    * @param segment the segment
+    * @param end the end of the records
+    * @param handler the handler, may be null
+    * @return the end of the last valid record
+    * @throws Exception for any error
+    */
+   private int replay(Segment segment, int end, RecordHandler handler) throws Exception
+   {
+      ByteBuffer buffer = segment.buffer.duplicate();
+      int position = SEGMENT_HEADER;
+      while (position + RECORD_HEADER + 1 <= end)
+      {
+         int length = buffer.getInt(position);
+         if (length <= 0 || position + RECORD_HEADER + length > end)
+            break;
+         int crc = buffer.getInt(position + 4);
+         byte type = buffer.get(position + RECORD_HEADER);
+         byte[] data = new byte[length - 1];
+         buffer.position(position + RECORD_HEADER + 1);
+         buffer.get(data);
+
+         CRC32 check = new CRC32();
+         check.update(type);
+         check.update(data);
+         if ((int) check.getValue() != crc)
+         {
+            log.warn("Journal ends with an incomplete record at " + position + " in " + segment.file);
+            break;
+         }
+
+         if (handler != null)
+            handler.handleRecord(type, data, new Location(segment, position, data.length));
+         position += RECORD_HEADER + length;
+      }
+      return position;
+   }
+
+   /**
+    * Start a new segment, the caller must hold the journal lock
+    *
+    * @param size the size of the record that did not fit
+    * @throws IOException for any error
+    */
+   private void roll(int size) throws IOException
+   {
+      Segment old = current;
+      old.buffer.force();
+      synchronized (syncLock)
+      {
+         long position = old.positionOf(old.used);
+         if (position > forced)
+            forced = position;
+      }
+      current = newSegment(old.sequence + 1, Math.max(fileSize, SEGMENT_HEADER + size));
+   }
+
+   private Segment newSegment(long sequence, int size) throws IOException
+   {
+      File file = new File(directory, PREFIX + sequence + SUFFIX);
+      Segment segment = Segment.create(file, sequence, size);
+      segments.add(segment);
+      log.debug("Started journal segment " + file);
+      return segment;
+   }
+
+   private void release()
+   {
+      try
+      {
+         if (fileLock != null)
+            fileLock.release();
+      }
+      catch (Throwable ignored)
+      {
+         log.trace("Ignored", ignored);
+      }
+      try
+      {
+         if (lockFile != null)
+            lockFile.close();
+      }
+      catch (Throwable ignored)
+      {
+         log.trace("Ignored", ignored);
+      }
+      fileLock = null;
+      lockFile = null;
+   }
+
+   private static long sequenceOf(File file)
+   {
+      String name = file.getName();
+      try
+      {
+         return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+      }
+      catch (NumberFormatException e)
+      {
+         return -1;
+      }
+   }
+
+   // Inner classes -------------------------------------------------
+
+   /**
+    * Receives the records of the journal
+    */
+   public interface RecordHandler
+   {
+      /**
+       * Handle a record
+       *
+       * @param type the record type
+       * @param data the record data
+       * @param location the location of the record
+       * @throws Exception for any error
+       */
+      void handleRecord(byte type, byte[] data, Location location) throws Exception;
+   }
+
+   /**
+    * The location of a record
+    */
+   public static class Location
+   {
+      /** The segment */
+      Segment segment;
+
+      /** The position of the record header in the segment */
+      int position;
+
+      /** The size of the data */
+      int size;
+
+      Location(Segment segment, int position, int size)
+      {
+         this.segment = segment;
+         this.position = position;
+         this.size = size;
+      }
+
+      public boolean equals(Object obj)
+      {
+         if (obj == this)
+            return true;
+         if (obj == null || obj instanceof Location == false)
+            return false;
+         Location other = (Location) obj;
+         return segment == other.segment && position == other.position;
+      }
+
+      public int hashCode()
+      {
+         return (int) segment.sequence * 31 + position;
+      }
+
+      public String toString()
+      {
+         return segment.sequence + ":" + position;
+      }
+   }
+
+   /**
+    * A segment file
+    */
+   static class Segment
+   {
+      /** The file */
+      File file;
+
+      /** The sequence number */
+      long sequence;
+
+      /** The capacity */
+      int capacity;
+
+      /** The mapped file */
+      MappedByteBuffer buffer;
+
+      /** The view of the buffer used for appending */
+      ByteBuffer writer;
+
+      /** The end of the records */
+      int used = SEGMENT_HEADER;
+
+      /** The bytes in records that are still needed */
+      long live = 0;
+
+      private Segment(File file, long sequence, MappedByteBuffer buffer)
+      {
+         this.file = file;
+         this.sequence = sequence;
+         this.buffer = buffer;
+         this.capacity = buffer.capacity();
+         this.writer = buffer.duplicate();
+      }
+
+      /**
+       * Get a position in the journal that orders across segments
+       *
+       * @param offset the offset in this segment
+       * @return the position
+       */
+      long positionOf(int offset)
+      {
+         return (sequence << 32) | offset;
+      }
+
+      static Segment create(File file, long sequence, int size) throws IOException
+      {
+         RandomAccessFile raf = new RandomAccessFile(file, "rw");
+         try
+         {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putLong(8, sequence);
+            buffer.force();
+            return new Segment(file, sequence, buffer);
+         }
+         finally
+         {
+            raf.close();
+         }
+      }
+
+      static Segment open(File file, long sequence) throws IOException
+      {
+         if (file.length() < SEGMENT_HEADER)
+            return null;
+         RandomAccessFile raf = new RandomAccessFile(file, "rw");
+         try
+         {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getLong(8) != sequence)
+               return null;
+            return new Segment(file, sequence, buffer);
+         }
+         finally
+         {
+            raf.close();
+         }
+      }
+   }
+}
@@ -0,0 +1,1064 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.mq.pm.journal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.jms.JMSException;
+import javax.management.ObjectName;
+import javax.transaction.xa.Xid;
+
+import org.jboss.mq.SpyDestination;
+import org.jboss.mq.SpyJMSException;
+import org.jboss.mq.SpyMessage;
+import org.jboss.mq.SpyTopic;
+import org.jboss.mq.pm.CacheStore;
+import org.jboss.mq.pm.PersistenceManagerExt;
+import org.jboss.mq.pm.Tx;
+import org.jboss.mq.pm.TxManager;
+import org.jboss.mq.server.JMSDestination;
+import org.jboss.mq.server.MessageCache;
+import org.jboss.mq.server.MessageReference;
+import org.jboss.system.ServiceMBeanSupport;
+import org.jboss.system.server.ServerConfigLocator;
+
+import EDU.oswego.cs.dl.util.concurrent.SynchronizedLong;
+
+/**
+ * A persistence manager that appends every change to a Journal of memory
+ * mapped files instead of updating a database.<p>
+ *
+ * Messages are located through an in memory index of destination and
+ * message id to the record holding the message. A message sent outside
+ * a transaction is on disk when add() returns, messages added or removed
+ * in a transaction are only forced to disk by the commit record.
+ * Concurrent commits share a single force of the journal.<p>
+ *
+ * A background thread removes the oldest journal file when most of the
+ * journal no longer holds live messages, after copying the messages
+ * still in it to the end of the journal.<p>
+ *
+ * The transaction semantics are the same as the jdbc2 persistence manager,
+ * including the recovery of prepared transactions when XARecovery is true.
+ *
+ * @version $Revision$
+ */
+public class PersistenceManager extends ServiceMBeanSupport
+   implements PersistenceManagerMBean, org.jboss.mq.pm.PersistenceManager, CacheStore, PersistenceManagerExt
+{
+   // Constants -----------------------------------------------------
+
+   /** A message added */
+   static final byte ADD_RECORD = 1;
+
+   /** A message removed */
+   static final byte REMOVE_RECORD = 2;
+
+   /** A message updated */
+   static final byte UPDATE_RECORD = 3;
+
+   /** A message saved by the message cache, not recovered */
+   static final byte TEMPORARY_RECORD = 4;
+
+   /** A transaction prepared */
+   static final byte PREPARE_RECORD = 5;
+
+   /** A transaction committed */
+   static final byte COMMIT_RECORD = 6;
+
+   /** A transaction rolled back */
+   static final byte ROLLBACK_RECORD = 7;
+
+   // Attributes ----------------------------------------------------
+
+   /** The next transaction id */
+   protected SynchronizedLong nextTransactionId = new SynchronizedLong(0l);
+
+   /** The jta transaction manager */
+   protected TxManager txManager;
+
+   /** The journal */
+   protected Journal journal;
+
+   /** The data directory */
+   private String dataDirectory = "jbossmq/journal";
+
+   /** The size of a journal file */
+   private int fileSize = 16 * 1024 * 1024;
+
+   /** The number of journal files kept without compaction */
+   private int minFiles = 4;
+
+   /** Compact when less than this fraction of the journal is live */
+   private float compactionRatio = 0.5f;
+
+   /** The compaction interval in milliseconds */
+   private long compactionInterval = 5000;
+
+   /** Whether to recover prepared transactions */
+   private boolean xaRecovery = false;
+
+   /** Destination to a map of message id to the Location of the message, synchronized on itself */
+   private HashMap messages = new HashMap();
+
+   /** Destination to a map of message id to the Location of a temporary message, synchronized on messages */
+   private HashMap temporary = new HashMap();
+
+   /** Transaction id to TxState, synchronized on messages */
+   private HashMap transactions = new HashMap();
+
+   /** MessageKey to Object[] { Tx, Integer } for prepared transactions found on recovery, synchronized on messages */
+   private HashMap inDoubt = new HashMap();
+
+   /** The compaction thread */
+   private Thread compactor;
+
+   /** The number of files removed */
+   private long compactions = 0;
+
+   // Constructors --------------------------------------------------
+
+   /**
+    * Create a new persistence manager
+    *
+    * @throws JMSException for any error
+    */
+   public PersistenceManager() throws JMSException
+   {
+      txManager = new TxManager(this);
+   }
+
+   // PersistenceManagerMBean implementation ------------------------
+
+   public Object getInstance()
+   {
+      return this;
+   }
+
+   public ObjectName getMessageCache()
+   {
+      throw new UnsupportedOperationException("This is now set on the destination manager");
+   }
+
+   public void setMessageCache(ObjectName messageCache)
+   {
+      throw new UnsupportedOperationException("This is now set on the destination manager");
+   }
+
+   public String getDataDirectory()
+   {
+      return dataDirectory;
+   }
+
+   public void setDataDirectory(String dataDirectory)
+   {
+      this.dataDirectory = dataDirectory;
+   }
+
+   public int getFileSize()
+   {
+      return fileSize;
+   }
+
+   public void setFileSize(int fileSize)
+   {
+      this.fileSize = fileSize;
+   }
+
+   public int getMinFiles()
+   {
+      return minFiles;
+   }
+
+   public void setMinFiles(int minFiles)
+   {
+      this.minFiles = minFiles;
+   }
+
+   public float getCompactionRatio()
+   {
+      return compactionRatio;
+   }
+
+   public void setCompactionRatio(float compactionRatio)
+   {
+      this.compactionRatio = compactionRatio;
+   }
+
+   public long getCompactionInterval()
+   {
+      return compactionInterval;
+   }
+
+   public void setCompactionInterval(long compactionInterval)
+   {
+      this.compactionInterval = compactionInterval;
+   }
+
+   public boolean isXARecovery()
+   {
+      return xaRecovery;
+   }
+
+   public void setXARecovery(boolean xaRecovery)
+   {
+      this.xaRecovery = xaRecovery;
+   }
+
+   public int getFileCount()
+   {
+      Journal current = journal;
+      return current == null ? 0 : current.getSegmentCount();
+   }
+
+   public long getLiveBytes()
+   {
+      Journal current = journal;
+      return current == null ? 0 : current.getLiveBytes();
+   }
+
+   public long getUsedBytes()
+   {
+      Journal current = journal;
+      return current == null ? 0 : current.getUsedBytes();
+   }
+
+   public long getForceCount()
+   {
+      Journal current = journal;
+      return current == null ? 0 : current.getForceCount();
+   }
+
+   public long getCompactionCount()
+   {
+      return compactions;
+   }
+
+   public synchronized int compact() throws Exception
+   {
+      int removed = 0;
+      while (compactOldest())
+         ++removed;
+      return removed;
+   }
+
+   // PersistenceManager implementation -----------------------------
+
+   public MessageCache getMessageCacheInstance()
+   {
+      throw new UnsupportedOperationException("This is now set on the destination manager");
+   }
+
+   public TxManager getTxManager()
+   {
+      return txManager;
+   }
+
+   public Tx createPersistentTx() throws JMSException
+   {
+      return new Tx(nextTransactionId.increment());
+   }
+
+   public void add(MessageReference messageRef, Tx txId) throws JMSException
+   {
+      boolean trace = log.isTraceEnabled();
+      if (trace)
+         log.trace("About to add message " + messageRef + " transaction=" + txId);
+
+      Journal.Location location;
+      try
+      {
+         // Synchronize on the message to avoid a race with the softener
+         synchronized (messageRef)
+         {
+            SpyMessage message = messageRef.getMessage();
+            String key = messageRef.getPersistentKey();
+            byte[] data = encodeMessage(txId, key, messageRef.messageId, message);
+            synchronized (messages)
+            {
+               location = journal.append(ADD_RECORD, data);
+               Journal.Location old = (Journal.Location) indexFor(temporary, key).remove(new Long(messageRef.messageId));
+               if (old != null)
+                  journal.release(old);
+               index(messages, key, messageRef.messageId, location);
+               if (txId != null)
+                  stateFor(txId, location).adds.add(new MessageKey(key, messageRef.messageId));
+            }
+            messageRef.setStored(MessageReference.STORED);
+         }
+         if (txId == null)
+            journal.sync(location);
+      }
+      catch (IOException e)
+      {
+         throw new SpyJMSException("Could not store message: " + messageRef, e);
+      }
+
+      if (trace)
+         log.trace("Added message " + messageRef + " transaction=" + txId);
+   }
+
+   public void update(MessageReference messageRef, Tx txId) throws JMSException
+   {
+      boolean trace = log.isTraceEnabled();
+      if (trace)
+         log.trace("Updating message " + messageRef + " transaction=" + txId);
+
+      if (txId != null)
+         throw new SpyJMSException("NYI: Updating messages in a transaction");
+
+      Journal.Location location;
+      try
+      {
+         synchronized (messageRef)
+         {
+            String key = messageRef.getPersistentKey();
+            byte[] data = encodeMessage(null, key, messageRef.messageId, messageRef.getMessage());
+            synchronized (messages)
+            {
+               Map index = indexFor(messages, key);
+               Long id = new Long(messageRef.messageId);
+               if (index.containsKey(id) == false)
+                  throw new SpyJMSException("Could not update message: " + messageRef + " it is not in the journal");
+               location = journal.append(UPDATE_RECORD, data);
+               index(messages, key, messageRef.messageId, location);
+            }
+         }
+         journal.sync(location);
+      }
+      catch (IOException e)
+      {
+         throw new SpyJMSException("Could not update message: " + messageRef, e);
+      }
+
+      if (trace)
+         log.trace("Updated message " + messageRef + " transaction=" + txId);
+   }
+
+   public void remove(MessageReference messageRef, Tx txId) throws JMSException
+   {
+      boolean trace = log.isTraceEnabled();
+      if (trace)
+         log.trace("Removing message " + messageRef + " transaction=" + txId);
+
+      Journal.Location location;
+      try
+      {
+         // Synchronize on the message to avoid a race with the softener
+         synchronized (messageRef)
+         {
+            String key = messageRef.getPersistentKey();
+            byte[] data = encodeReference(txId, key, messageRef.messageId);
+            synchronized (messages)
+            {
+               location = journal.append(REMOVE_RECORD, data);
+               if (txId == null)
+               {
+                  Journal.Location old = (Journal.Location) indexFor(messages, key).remove(new Long(messageRef.messageId));
+                  if (old != null)
+                     journal.release(old);
+               }
+               else
+                  stateFor(txId, location).removes.add(new MessageKey(key, messageRef.messageId));
+            }
+            if (txId == null)
+            {
+               messageRef.setStored(MessageReference.NOT_STORED);
+               messageRef.removeDelayed();
+            }
+         }
+         if (txId == null)
+            journal.sync(location);
+      }
+      catch (IOException e)
+      {
+         throw new SpyJMSException("Could not remove message: " + messageRef, e);
+      }
+
+      if (trace)
+         log.trace("Removed message " + messageRef + " transaction=" + txId);
+   }
+
+   public void commitPersistentTx(Tx txId) throws JMSException
+   {
+      if (txId.wasPersisted() == false)
+         return;
+
+      try
+      {
+         Journal.Location location;
+         synchronized (messages)
+         {
+            location = journal.append(COMMIT_RECORD, encodeTx(txId.longValue(), null));
+            TxState state = (TxState) transactions.remove(new Long(txId.longValue()));
+            if (state != null)
+            {
+               for (Iterator i = state.removes.iterator(); i.hasNext();)
+               {
+                  MessageKey key = (MessageKey) i.next();
+                  Journal.Location old = (Journal.Location) indexFor(messages, key.destination).remove(new Long(key.messageId));
+                  if (old != null)
+                     journal.release(old);
+                  inDoubt.remove(key);
+               }
+               for (Iterator i = state.adds.iterator(); i.hasNext();)
+                  inDoubt.remove(i.next());
+            }
+         }
+         journal.sync(location);
+      }
+      catch (IOException e)
+      {
+         throw new SpyJMSException("Could not commit transaction: " + txId, e);
+      }
+   }
+
+   public void rollbackPersistentTx(Tx txId) throws JMSException
+   {
+      if (txId.wasPersisted() == false)
+         return;
+
+      try
+      {
+         Journal.Location location;
+         boolean prepared = false;
+         synchronized (messages)
+         {
+            location = journal.append(ROLLBACK_RECORD, encodeTx(txId.longValue(), null));
+            TxState state = (TxState) transactions.remove(new Long(txId.longValue()));
+            if (state != null)
+            {
+               prepared = state.prepared;
+               for (Iterator i = state.adds.iterator(); i.hasNext();)
+               {
+                  MessageKey key = (MessageKey) i.next();
+                  Journal.Location old = (Journal.Location) indexFor(messages, key.destination).remove(new Long(key.messageId));
+                  if (old != null)
+                     journal.release(old);
+                  inDoubt.remove(key);
+               }
+               for (Iterator i = state.removes.iterator(); i.hasNext();)
+                  inDoubt.remove(i.next());
+            }
+         }
+         // An unprepared transaction is rolled back on recovery anyway
+         if (prepared)
+            journal.sync(location);
+      }
+      catch (IOException e)
+      {
+         throw new SpyJMSException("Could not rollback transaction: " + txId, e);
+      }
+   }
+
+   public void restoreQueue(JMSDestination jmsDest, SpyDestination dest) throws JMSException
+   {
+      if (jmsDest == null)
+         throw new IllegalArgumentException("Must supply non null JMSDestination to restoreQueue");
+      if (dest == null)
+         throw new IllegalArgumentException("Must supply non null SpyDestination to restoreQueue");
+
+      String key = dest.toString();
+      TreeMap restore;
+      HashMap recovering = new HashMap();
+      synchronized (messages)
+      {
+         restore = new TreeMap(indexFor(messages, key));
+         for (Iterator i = restore.keySet().iterator(); i.hasNext();)
+         {
+            MessageKey messageKey = new MessageKey(key, ((Long) i.next()).longValue());
+            Object[] recovery = (Object[]) inDoubt.get(messageKey);
+            if (recovery != null)
+               recovering.put(new Long(messageKey.messageId), recovery);
+         }
+      }
+
+      int counter = 0;
+      for (Iterator i = restore.entrySet().iterator(); i.hasNext();)
+      {
+         Map.Entry entry = (Map.Entry) i.next();
+         long messageId = ((Long) entry.getKey()).longValue();
+         SpyMessage message = readMessage((Journal.Location) entry.getValue(), messageId);
+
+         // The durable subscription is not serialized
+         if (dest instanceof SpyTopic)
+            message.header.durableSubscriberID = ((SpyTopic) dest).getDurableSubscriptionID();
+
+         Object[] recovery = (Object[]) recovering.get(entry.getKey());
+         if (recovery == null)
+            jmsDest.restoreMessage(message);
+         else
+            jmsDest.restoreMessage(message, (Tx) recovery[0], ((Integer) recovery[1]).intValue());
+         ++counter;
+      }
+
+      log.debug("Restored " + counter + " message(s) to: " + dest + " " + recovering.size() + " need recovery.");
+   }
+
+   public void closeQueue(JMSDestination jmsDest, SpyDestination dest) throws JMSException
+   {
+      // Nothing to clean up, the messages stay in the journal.
+   }
+
+   // PersistenceManagerExt implementation --------------------------
+
+   public void forcePersistentTx(Tx txId) throws JMSException
+   {
+      if (xaRecovery == false)
+         return;
+
+      try
+      {
+         Journal.Location location;
+         synchronized (messages)
+         {
+            location = journal.append(PREPARE_RECORD, encodeTx(txId.longValue(), txId.getXid()));
+            stateFor(txId, location).prepared = true;
+         }
+         journal.sync(location);
+      }
+      catch (IOException e)
+      {
+         throw new SpyJMSException("Could not prepare transaction: " + txId, e);
+      }
+   }
+
+   // CacheStore implementation -------------------------------------
+
+   public SpyMessage loadFromStorage(MessageReference messageRef) throws JMSException
+   {
+      if (log.isTraceEnabled())
+         log.trace("Loading message from storage " + messageRef);
+
+      String key = messageRef.getPersistentKey();
+      Long id = new Long(messageRef.messageId);
+      Journal.Location location;
+      synchronized (messages)
+      {
+         location = (Journal.Location) indexFor(temporary, key).get(id);
+         if (location == null)
+            location = (Journal.Location) indexFor(messages, key).get(id);
+      }
+      if (location == null)
+         throw new SpyJMSException("Could not load message: " + messageRef + " it is not in the journal");
+      return readMessage(location, messageRef.messageId);
+   }
+
+   public void saveToStorage(MessageReference messageRef, SpyMessage message) throws JMSException
+   {
+      // Ignore save operations for persistent messages sent to persistent queues
+      // The queues handle the persistence
+      if (messageRef.isPersistent())
+         return;
+
+      if (log.isTraceEnabled())
+         log.trace("Saving message to storage " + messageRef);
+
+      try
+      {
+         String key = messageRef.getPersistentKey();
+         byte[] data = encodeMessage(null, key, messageRef.messageId, message);
+         synchronized (messages)
+         {
+            index(temporary, key, messageRef.messageId, journal.append(TEMPORARY_RECORD, data));
+         }
+         messageRef.setStored(MessageReference.STORED);
+      }
+      catch (IOException e)
+      {
+         throw new SpyJMSException("Could not store message: " + messageRef, e);
+      }
+   }
+
+   public void removeFromStorage(MessageReference messageRef) throws JMSException
+   {
+      // We don't remove persistent messages sent to persistent queues
+      if (messageRef.isPersistent())
+         return;
+
+      if (log.isTraceEnabled())
+         log.trace("Removing message from storage " + messageRef);
+
+      synchronized (messages)
+      {
+         Journal.Location old = (Journal.Location) indexFor(temporary, messageRef.getPersistentKey()).remove(new Long(messageRef.messageId));
+         if (old != null)
+            journal.release(old);
+      }
+      messageRef.setStored(MessageReference.NOT_STORED);
+   }
+
+   // ServiceMBeanSupport overrides ---------------------------------
+
+   protected void startService() throws Exception
+   {
+      File directory = new File(dataDirectory);
+      if (directory.isAbsolute() == false)
+         directory = new File(ServerConfigLocator.locate().getServerDataDir(), dataDirectory);
+
+      journal = new Journal(directory, fileSize);
+      Recovery recovery = new Recovery();
+      journal.open(recovery);
+      recovery.complete();
+
+      compactor = new Thread(new Compactor(), "JBossMQ journal compactor " + serviceName);
+      compactor.setDaemon(true);
+      compactor.start();
+   }
+
+   protected void stopService() throws Exception
+   {
+      Thread thread = compactor;
+      compactor = null;
+      if (thread != null)
+      {
+         thread.interrupt();
+         thread.join(compactionInterval);
+      }
+      synchronized (messages)
+      {
+         if (journal != null)
+            journal.close();
+         journal = null;
+         messages.clear();
+         temporary.clear();
+         transactions.clear();
+         inDoubt.clear();
+      }
+   }
+
+   // Private -------------------------------------------------------
+
+   /**
+    * Remove the oldest journal file if the compaction policy allows it
+    *
+    * @return true when a file was removed
+    * @throws Exception for any error
+    */
+   private boolean compactOldest() throws Exception
+   {
+      final Journal current = journal;
+      if (current == null)
+         return false;
+
+      Journal.Segment oldest;
+      synchronized (messages)
+      {
+         if (current.getSegmentCount() <= minFiles)
+            return false;
+         oldest = current.getOldestSegment();
+         if (oldest == null)
+            return false;
+         if (oldest.live > 0 && current.getLiveBytes() >= current.getUsedBytes() * compactionRatio)
+            return false;
+         // Transactions with records in the oldest file keep it
+         for (Iterator i = transactions.values().iterator(); i.hasNext();)
+         {
+            if (((TxState) i.next()).firstSegment <= oldest.sequence)
+               return false;
+         }
+      }
+
+      final Journal.Location[] last = new Journal.Location[1];
+      current.replay(oldest, new Journal.RecordHandler()
+      {
+         public void handleRecord(byte type, byte[] data, Journal.Location location) throws Exception
+         {
+            if (type != ADD_RECORD && type != UPDATE_RECORD && type != TEMPORARY_RECORD)
+               return;
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            in.readLong();
+            String key = in.readUTF();
+            long messageId = in.readLong();
+            HashMap map = type == TEMPORARY_RECORD ? temporary : messages;
+            synchronized (messages)
+            {
+               Map index = indexFor(map, key);
+               if (location.equals(index.get(new Long(messageId))) == false)
+                  return;
+               // The message is committed, write it as a plain add
+               if (type != TEMPORARY_RECORD)
+               {
+                  type = ADD_RECORD;
+                  clearTxId(data);
+               }
+               last[0] = current.append(type, data);
+               index(map, key, messageId, last[0]);
+            }
+         }
+      });
+
+      if (last[0] != null)
+         current.sync(last[0]);
+      synchronized (messages)
+      {
+         current.removeOldestSegment(oldest);
+      }
+      ++compactions;
+      return true;
+   }
+
+   /**
+    * Replace the location of a message in an index, the caller must
+    * synchronize on messages
+    */
+   private void index(HashMap map, String destination, long messageId, Journal.Location location)
+   {
+      Journal.Location old = (Journal.Location) indexFor(map, destination).put(new Long(messageId), location);
+      if (old != null)
+         journal.release(old);
+      journal.retain(location);
+   }
+
+   /**
+    * Get the index of a destination, the caller must synchronize on messages
+    */
+   private static Map indexFor(HashMap map, String destination)
+   {
+      HashMap result = (HashMap) map.get(destination);
+      if (result == null)
+      {
+         result = new HashMap();
+         map.put(destination, result);
+      }
+      return result;
+   }
+
+   /**
+    * Get the state of a transaction, the caller must synchronize on messages
+    *
+    * @param txId the transaction
+    * @param location the location of the record being written for the transaction
+    * @return the state
+    */
+   private TxState stateFor(Tx txId, Journal.Location location)
+   {
+      Long key = new Long(txId.longValue());
+      TxState state = (TxState) transactions.get(key);
+      if (state == null)
+      {
+         state = new TxState(location.segment.sequence);
+         transactions.put(key, state);
+         txId.checkPersisted();
+      }
+      return state;
+   }
+
+   private SpyMessage readMessage(Journal.Location location, long messageId) throws JMSException
+   {
+      try
+      {
+         ByteArrayInputStream bytes = new ByteArrayInputStream(journal.read(location));
+         DataInputStream in = new DataInputStream(bytes);
+         in.readLong();
+         in.readUTF();
+         in.readLong();
+         ObjectInputStream ois = new ObjectInputStream(bytes);
+         SpyMessage message = SpyMessage.readMessage(ois);
+         message.header.messageId = messageId;
+         return message;
+      }
+      catch (IOException e)
+      {
+         throw new SpyJMSException("Could not read message " + messageId + " from the journal at " + location, e);
+      }
+   }
+
+   private static byte[] encodeMessage(Tx txId, String destination, long messageId, SpyMessage message) throws IOException
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeLong(txId == null ? 0 : txId.longValue());
+      out.writeUTF(destination);
+      out.writeLong(messageId);
+      out.flush();
+      ObjectOutputStream oos = new ObjectOutputStream(bytes);
+      SpyMessage.writeMessage(message, oos);
+      oos.flush();
+      return bytes.toByteArray();
+   }
+
+   private static byte[] encodeReference(Tx txId, String destination, long messageId) throws IOException
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeLong(txId == null ? 0 : txId.longValue());
+      out.writeUTF(destination);
+      out.writeLong(messageId);
+      out.flush();
+      return bytes.toByteArray();
+   }
+
+   private static byte[] encodeTx(long txId, Xid xid) throws IOException
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeLong(txId);
+      out.flush();
+      if (xid != null)
+      {
+         ObjectOutputStream oos = new ObjectOutputStream(bytes);
+         oos.writeObject(xid);
+         oos.flush();
+      }
+      return bytes.toByteArray();
+   }
+
+   /**
+    * Zero the transaction id at the start of a record
+    */
+   private static void clearTxId(byte[] data)
+   {
+      for (int i = 0; i < 8; ++i)
+         data[i] = 0;
+   }
+
+   // Inner classes -------------------------------------------------
+
+   /**
+    * A message in a destination
+    */
+   private static class MessageKey
+   {
+      String destination;
+      long messageId;
+
+      MessageKey(String destination, long messageId)
+      {
+         this.destination = destination;
+         this.messageId = messageId;
+      }
+
+      public boolean equals(Object obj)
+      {
+         if (obj == this)
+            return true;
+         if (obj == null || obj instanceof MessageKey == false)
+            return false;
+         MessageKey other = (MessageKey) obj;
+         return messageId == other.messageId && destination.equals(other.destination);
+      }
+
+      public int hashCode()
+      {
+         return destination.hashCode() ^ (int) (messageId ^ (messageId >>> 32));
+      }
+   }
+
+   /**
+    * The uncommitted work of a transaction
+    */
+   private static class TxState
+   {
+      /** The first journal file holding a record of the transaction */
+      long firstSegment;
+
+      /** The MessageKeys of the messages added */
+      ArrayList adds = new ArrayList();
+
+      /** The MessageKeys of the messages removed */
+      ArrayList removes = new ArrayList();
+
+      /** Whether the transaction is prepared */
+      boolean prepared = false;
+
+      /** The xid of a prepared transaction */
+      Xid xid;
+
+      TxState(long firstSegment)
+      {
+         this.firstSegment = firstSegment;
+      }
+   }
+
+   /**
+    * Rebuilds the index from the journal
+    */
+   private class Recovery implements Journal.RecordHandler
+   {
+      /** The highest transaction id in the journal */
+      long maxTxId = 0;
+
+      /** The number of records */
+      int records = 0;
+
+      public void handleRecord(byte type, byte[] data, Journal.Location location) throws Exception
+      {
+         ++records;
+         ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+         DataInputStream in = new DataInputStream(bytes);
+         long txId = in.readLong();
+         if (txId > maxTxId)
+            maxTxId = txId;
+
+         switch (type)
+         {
+            case ADD_RECORD:
+            case REMOVE_RECORD:
+            case UPDATE_RECORD:
+            {
+               MessageKey key = new MessageKey(in.readUTF(), in.readLong());
+               // The add of an updated message may be in a file removed by compaction
+               if (type == UPDATE_RECORD)
+                  index(messages, key.destination, key.messageId, location);
+               else if (type == ADD_RECORD)
+               {
+                  index(messages, key.destination, key.messageId, location);
+                  if (txId != 0)
+                     recoveredState(txId, location).adds.add(key);
+               }
+               else if (txId != 0)
+                  recoveredState(txId, location).removes.add(key);
+               else
+               {
+                  Journal.Location old = (Journal.Location) indexFor(messages, key.destination).remove(new Long(key.messageId));
+                  if (old != null)
+                     journal.release(old);
+               }
+               break;
+            }
+            case TEMPORARY_RECORD:
+               // Messages the cache moved out of memory are gone with the server
+               break;
+            case PREPARE_RECORD:
+            {
+               TxState state = recoveredState(txId, location);
+               state.prepared = true;
+               if (bytes.available() > 0)
+                  state.xid = (Xid) new ObjectInputStream(bytes).readObject();
+               break;
+            }
+            case COMMIT_RECORD:
+            case ROLLBACK_RECORD:
+            {
+               TxState state = (TxState) transactions.remove(new Long(txId));
+               if (state != null)
+               {
+                  ArrayList undo = type == COMMIT_RECORD ? state.removes : state.adds;
+                  for (Iterator i = undo.iterator(); i.hasNext();)
+                  {
+                     MessageKey key = (MessageKey) i.next();
+                     Journal.Location old = (Journal.Location) indexFor(messages, key.destination).remove(new Long(key.messageId));
+                     if (old != null)
+                        journal.release(old);
+                  }
+               }
+               break;
+            }
+            default:
+               throw new IOException("Unknown journal record type " + type + " at " + location);
+         }
+      }
+
+      /**
+       * Resolve the transactions without an outcome in the journal
+       *
+       * @throws Exception for any error
+       */
+      void complete() throws Exception
+      {
+         nextTransactionId.set(maxTxId + 1);
+
+         int rolledBack = 0;
+         int prepared = 0;
+         Journal.Location last = null;
+         ArrayList txIds = new ArrayList(transactions.keySet());
+         for (Iterator i = txIds.iterator(); i.hasNext();)
+         {
+            Long txId = (Long) i.next();
+            TxState state = (TxState) transactions.get(txId);
+            if (xaRecovery && state.prepared)
+            {
+               Tx tx = new Tx(txId.longValue());
+               tx.setXid(state.xid);
+               tx.checkPersisted();
+               txManager.restoreTx(tx);
+               for (Iterator j = state.adds.iterator(); j.hasNext();)
+                  inDoubt.put(j.next(), new Object[] { tx, new Integer(Tx.ADD) });
+               for (Iterator j = state.removes.iterator(); j.hasNext();)
+                  inDoubt.put(j.next(), new Object[] { tx, new Integer(Tx.REMOVE) });
+               ++prepared;
+            }
+            else
+            {
+               last = journal.append(ROLLBACK_RECORD, encodeTx(txId.longValue(), null));
+               handleRecord(ROLLBACK_RECORD, journal.read(last), last);
+               ++rolledBack;
+            }
+         }
+         if (last != null)
+            journal.sync(last);
+
+         log.info("Recovered journal records=" + records + " files=" + journal.getSegmentCount() + " rolledBack=" + rolledBack + " prepared=" + prepared);
+      }
+
+      private TxState recoveredState(long txId, Journal.Location location)
+      {
+         Long key = new Long(txId);
+         TxState state = (TxState) transactions.get(key);
+         if (state == null)
+         {
+            state = new TxState(location.segment.sequence);
+            transactions.put(key, state);
+         }
+         return state;
+      }
+   }
+
+   /**
+    * Removes journal files in the background
+    */
+   private class Compactor implements Runnable
+   {
+      public void run()
+      {
+         while (compactor == Thread.currentThread())
+         {
+            try
+            {
+               Thread.sleep(compactionInterval);
+               compact();
+            }
+            catch (InterruptedException e)
+            {
+               break;
+            }
+            catch (Throwable t)
+            {
+               log.warn("Error compacting the journal", t);
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,170 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.mq.pm.journal;
+
+import org.jboss.mq.pm.CacheStoreMBean;
+import org.jboss.system.ServiceMBean;
+
+/**
+ * MBean interface.
+ *
+ * @version $Revision$
+ */
+public interface PersistenceManagerMBean extends ServiceMBean, org.jboss.mq.pm.PersistenceManagerMBean, CacheStoreMBean
+{
+   /**
+    * Get the instance of the persistence manager
+    *
+    * @return the instance
+    */
+   Object getInstance();
+
+   /**
+    * Get the directory holding the journal files,
+    * relative paths are relative to the server data directory
+    *
+    * @return the directory
+    */
+   String getDataDirectory();
+
+   /**
+    * Set the directory holding the journal files
+    *
+    * @param dataDirectory the directory
+    */
+   void setDataDirectory(String dataDirectory);
+
+   /**
+    * Get the size of a journal file in bytes
+    *
+    * @return the file size
+    */
+   int getFileSize();
+
+   /**
+    * Set the size of a journal file in bytes, larger messages get a file of their own
+    *
+    * @param fileSize the file size
+    */
+   void setFileSize(int fileSize);
+
+   /**
+    * Get the number of journal files kept without compaction
+    *
+    * @return the minimum number of files
+    */
+   int getMinFiles();
+
+   /**
+    * Set the number of journal files kept without compaction
+    *
+    * @param minFiles the minimum number of files
+    */
+   void setMinFiles(int minFiles);
+
+   /**
+    * Get the fraction of the journal holding live messages below which
+    * the oldest file is compacted
+    *
+    * @return the ratio
+    */
+   float getCompactionRatio();
+
+   /**
+    * Set the fraction of the journal holding live messages below which
+    * the oldest file is compacted
+    *
+    * @param compactionRatio the ratio
+    */
+   void setCompactionRatio(float compactionRatio);
+
+   /**
+    * Get the interval between compaction runs in milliseconds
+    *
+    * @return the interval
+    */
+   long getCompactionInterval();
+
+   /**
+    * Set the interval between compaction runs in milliseconds
+    *
+    * @param compactionInterval the interval
+    */
+   void setCompactionInterval(long compactionInterval);
+
+   /**
+    * Get the xaRecovery.
+    *
+    * @return the xaRecovery.
+    */
+   boolean isXARecovery();
+
+   /**
+    * Set the xaRecovery.
+    *
+    * @param xaRecovery the xaRecovery.
+    */
+   void setXARecovery(boolean xaRecovery);
+
+   /**
+    * Get the number of journal files
+    *
+    * @return the number of files
+    */
+   int getFileCount();
+
+   /**
+    * Get the number of bytes in the journal holding live messages
+    *
+    * @return the live bytes
+    */
+   long getLiveBytes();
+
+   /**
+    * Get the number of bytes written to the journal files
+    *
+    * @return the used bytes
+    */
+   long getUsedBytes();
+
+   /**
+    * Get the number of times the journal was forced to disk
+    *
+    * @return the number of forces
+    */
+   long getForceCount();
+
+   /**
+    * Get the number of journal files removed by compaction
+    *
+    * @return the number of compactions
+    */
+   long getCompactionCount();
+
+   /**
+    * Remove the old journal files the compaction policy allows
+    *
+    * @return the number of files removed
+    * @throws Exception for any error
+    */
+   int compact() throws Exception;
+}
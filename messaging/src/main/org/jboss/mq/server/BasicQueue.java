@@ -30,8 +30,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
 
 import javax.jms.IllegalStateException;
 import javax.jms.JMSException;
@@ -57,13 +55,20 @@ import EDU.oswego.cs.dl.util.concurrent.CopyOnWriteArraySet;
  *  This class represents a queue which provides it's messages exclusively to one
  *  consumer at a time.<p>
  *
- * Notes about synchronization: Much of the work is synchronized on
- * the receivers or messages depending on the work performed.
- * However, anything to do with unacknowledged messages and removed
- * subscriptions must be done synchronized on both (receivers first).
+ * Notes about synchronization: The pending messages are kept in a
+ * PriorityMessageQueue that does its own locking, one lock per priority.
+ * Waiting receivers are synchronized on the receivers and unacknowledged
+ * messages on the unacknowledgedMessages map.
+ * However, anything to do with removed subscriptions must be done
+ * synchronized on both (receivers first).
  * This is because there are multiple entry points with the possibility
  * that a message acknowledgement (or NACK) is being processed at
- * the same time as a network failure removes the subscription.
+ * the same time as a network failure removes the subscription.<p>
+ *
+ * A producer only takes the receivers lock when there are waiting receivers.
+ * A receiver that finds no message registers itself and then looks at
+ * the messages again, so a message added while it was registering is
+ * never left behind.
  *
  *
  * @author     Hiram Chirino (Cojonudo14@hotmail.com)
@@ -77,9 +82,9 @@ public class BasicQueue
 {
    static final Logger log = Logger.getLogger(BasicQueue.class);
 
-   /** List of messages waiting to be dispatched<p>
-       synchronized access on itself */
-   SortedSet messages = new TreeSet();
+   /** The messages waiting to be dispatched<p>
+       does its own synchronization */
+   PriorityMessageQueue messages = new PriorityMessageQueue();
 
    /** Events by message id */
    ConcurrentHashMap events = new ConcurrentHashMap();
@@ -93,6 +98,9 @@ public class BasicQueue
    /** The subscribers waiting for messages - synchronized access on itself */
    Receivers receivers;
 
+   /** The number of receivers, updated with the receivers lock held */
+   volatile int receiverCount = 0;
+
    /** The description used to seperate persistence for multiple subscriptions to a topic */
    String description;
 
@@ -100,13 +108,13 @@ public class BasicQueue
    MessageCounter counter;
 
    /** Unacknowledged messages AcknowledgementRequest -> UnackedMessageInfo<p>
-       synchronized access on receivers and messages */
+       synchronized access on itself */
    HashMap unacknowledgedMessages = new HashMap();
    /** Unacknowledged messages MessageRef -> UnackedMessageInfo <p>
-       synchronized access on receivers and messages */
+       synchronized access on unacknowledgedMessages */
    HashMap unackedByMessageRef = new HashMap();
    /** Unacknowledged messages Subscription -> UnackedMessageInfo <p>
-       synchronized access on receivers and messages */
+       synchronized access on unacknowledgedMessages */
    HashMap unackedBySubscription = new HashMap();
 
    /** Subscribers <p>
@@ -114,14 +122,14 @@ public class BasicQueue
    HashSet subscribers = new HashSet();
    
    /** Removed subscribers <p>
-       synchronized access on receivers and messages */
+       synchronized access on receivers and unacknowledgedMessages */
    HashSet removedSubscribers = new HashSet();
    
    /** The basic queue parameters */
    BasicQueueParameters parameters;
 
    /** Have we been stopped */
-   boolean stopped = false;
+   volatile boolean stopped = false;
 
    /**
     * Construct a new basic queue
@@ -211,47 +219,27 @@ public class BasicQueue
       if (trace)
          log.trace("addReceiver " + sub + " " + this);
       
-      synchronized(receivers)
+      MessageReference found = null;
+      synchronized (receivers)
       {
-         MessageReference found = null;
-         synchronized (messages)
+         // Register first, a producer that saw no receivers has already
+         // added its message where the check below will find it
+         addToReceivers(sub);
+         try
          {
-            if (messages.size() != 0)
-            {
-               for (Iterator it = messages.iterator(); it.hasNext();)
-               {
-                  MessageReference message = (MessageReference) it.next();
-                  try
-                  {
-                     if (message.isExpired())
-                     {
-                        it.remove();
-                        expireMessageAsync(message);
-                     }
-                     else if (sub.accepts(message.getHeaders()))
-                     {
-                        //queue message for sending to this sub
-                        it.remove();
-                        found = message;
-                        break;
-                     }
-                  }
-                  catch (JMSException ignore)
-                  {
-                     log.info("Caught unusual exception in addToReceivers.", ignore);
-                  }
-               }
-            }
-            if (found != null)
-               setupMessageAcknowledgement(sub, found);
+            found = takeMessage(sub);
          }
-         if (found != null)
+         catch (JMSException ignore)
          {
-            updateRedeliveryFlags(found);
-            queueMessageForSending(sub, found);
+            log.info("Caught unusual exception in addToReceivers.", ignore);
          }
-         else
-            addToReceivers(sub);
+         if (found != null)
+            removeReceiver(sub);
+      }
+      if (found != null)
+      {
+         updateRedeliveryFlags(found);
+         queueMessageForSending(sub, found);
       }
    }
 
@@ -300,7 +288,7 @@ public class BasicQueue
       synchronized (receivers)
       {
          removeReceiver(sub);
-         synchronized (messages)
+         synchronized (unacknowledgedMessages)
          {
             if (hasUnackedMessages(sub))
             {
@@ -346,7 +334,7 @@ public class BasicQueue
     */
    public int getInProcessMessageCount()
    {
-      synchronized (messages)
+      synchronized (unacknowledgedMessages)
       {
          return unacknowledgedMessages.size();
       }
@@ -367,25 +355,16 @@ public class BasicQueue
 
       try
       {
-         synchronized (receivers)
-         {
-            if (stopped)
-               throw new IllegalStateException("The destination is stopped " + getDescription());
-         }
+         if (stopped)
+            throw new IllegalStateException("The destination is stopped " + getDescription());
          
-         if (parameters.maxDepth > 0)
+         if (parameters.maxDepth > 0 && messages.size() >= parameters.maxDepth)
          {
-            synchronized (messages)
-            {
-               if (messages.size() >= parameters.maxDepth)
-               {
-                  dropMessage(mes);
-                  String message = "Maximum size " + parameters.maxDepth +
-                     " exceeded for " + description;
-                  log.warn(message);
-                  throw new DestinationFullException(message);
-               }
-            }
+            dropMessage(mes);
+            String message = "Maximum size " + parameters.maxDepth +
+               " exceeded for " + description;
+            log.warn(message);
+            throw new DestinationFullException(message);
          }
 
          performOrPrepareAddMessage(mes, txId);
@@ -511,39 +490,16 @@ public class BasicQueue
     */
    public SpyMessage[] browse(String selector) throws JMSException
    {
-      if (selector == null)
-      {
-         SpyMessage list[];
-         synchronized (messages)
-         {
-            list = new SpyMessage[messages.size()];
-            Iterator iter = messages.iterator();
-            for (int i = 0; iter.hasNext(); i++)
-               list[i] = ((MessageReference) iter.next()).getMessageForDelivery();
-         }
-         return list;
-      }
-      else
-      {
-         Selector s = new Selector(selector);
-         LinkedList selection = new LinkedList();
-
-         synchronized (messages)
-         {
-            Iterator i = messages.iterator();
-            while (i.hasNext())
-            {
-               MessageReference m = (MessageReference) i.next();
-               if (s.test(m.getHeaders()))
-                  selection.add(m.getMessageForDelivery());
-            }
-         }
-
-         SpyMessage list[];
-         list = new SpyMessage[selection.size()];
-         list = (SpyMessage[]) selection.toArray(list);
-         return list;
-      }
+      Selector s = null;
+      if (selector != null)
+         s = new Selector(selector);
+      ArrayList selection = new ArrayList(messages.size());
+      messages.browse(s, selection);
+
+      SpyMessage list[];
+      list = new SpyMessage[selection.size()];
+      list = (SpyMessage[]) selection.toArray(list);
+      return list;
    }
 
    /**
@@ -558,16 +514,12 @@ public class BasicQueue
    {
       if (selector == null)
       {
-         ArrayList list;
-         synchronized (messages)
+         ArrayList list = new ArrayList(scheduledMessages.size());
+         Iterator iter = scheduledMessages.iterator();
+         while (iter.hasNext())
          {
-            list = new ArrayList(scheduledMessages.size());
-            Iterator iter = scheduledMessages.iterator();
-            while (iter.hasNext())
-            {
-               MessageReference ref = (MessageReference) iter.next();
-               list.add(ref.getMessageForDelivery());
-            }
+            MessageReference ref = (MessageReference) iter.next();
+            list.add(ref.getMessageForDelivery());
          }
          return list;
       }
@@ -576,15 +528,12 @@ public class BasicQueue
          Selector s = new Selector(selector);
          LinkedList selection = new LinkedList();
 
-         synchronized (messages)
+         Iterator iter = scheduledMessages.iterator();
+         while (iter.hasNext())
          {
-            Iterator iter = scheduledMessages.iterator();
-            while (iter.hasNext())
-            {
-               MessageReference ref = (MessageReference) iter.next();
-               if (s.test(ref.getHeaders()))
-                  selection.add(ref.getMessageForDelivery());
-            }
+            MessageReference ref = (MessageReference) iter.next();
+            if (s.test(ref.getHeaders()))
+               selection.add(ref.getMessageForDelivery());
          }
          
          return selection;
@@ -604,7 +553,7 @@ public class BasicQueue
       if (selector == null)
       {
          ArrayList list;
-         synchronized (messages)
+         synchronized (unacknowledgedMessages)
          {
             list = new ArrayList(unacknowledgedMessages.size());
             Iterator iter = unacknowledgedMessages.values().iterator();
@@ -622,7 +571,7 @@ public class BasicQueue
          Selector s = new Selector(selector);
          LinkedList selection = new LinkedList();
 
-         synchronized (messages)
+         synchronized (unacknowledgedMessages)
          {
             Iterator iter = unacknowledgedMessages.values().iterator();
             while (iter.hasNext())
@@ -652,66 +601,20 @@ public class BasicQueue
       if (trace)
          log.trace("receive " + sub + " wait=" + wait + " " + this);
 
-      MessageReference messageRef = null;
-      synchronized (receivers)
-      {
-         if (stopped)
-            throw new IllegalStateException("The destination is stopped " + getDescription());
-         // If the subscription is not picky, the first message will be it
-         if (sub.getSelector() == null && sub.noLocal == false)
-         {
-            synchronized (messages)
-            {
-               // find a non-expired message
-               while (messages.size() != 0)
-               {
-                  messageRef = (MessageReference) messages.first();
-                  messages.remove(messageRef);
-
-                  if (messageRef.isExpired())
-                  {
-                     expireMessageAsync(messageRef);
-                     messageRef = null;
-                  }
-                  else
-                     break;
-               }
-               
-               if (messageRef != null)
-                  setupMessageAcknowledgement(sub, messageRef);
-            }
-         }
-         else
-         {
-            // The subscription is picky, so we have to iterate.
-            synchronized (messages)
-            {
-               Iterator i = messages.iterator();
-               while (i.hasNext())
-               {
-                  MessageReference mr = (MessageReference) i.next();
-                  if (mr.isExpired())
-                  {
-                     i.remove();
-                     expireMessageAsync(mr);
-                  }
-                  else if (sub.accepts(mr.getHeaders()))
-                  {
-                     messageRef = mr;
-                     i.remove();
-                     break;
-                  }
-               }
-               
-               if (messageRef != null)
-                  setupMessageAcknowledgement(sub, messageRef);
-            }
-         }
+      if (stopped)
+         throw new IllegalStateException("The destination is stopped " + getDescription());
 
-         if (messageRef == null)
+      MessageReference messageRef = takeMessage(sub);
+      if (messageRef == null && wait)
+      {
+         synchronized (receivers)
          {
-            if (wait)
-               addToReceivers(sub);
+            // Register first, a producer that saw no receivers has already
+            // added its message where the second look will find it
+            addToReceivers(sub);
+            messageRef = takeMessage(sub);
+            if (messageRef != null)
+               removeReceiver(sub);
          }
       }
 
@@ -735,7 +638,7 @@ public class BasicQueue
          log.trace("acknowledge " + item + " " + txId + " " + this);
 
       UnackedMessageInfo unacked = null;
-      synchronized (messages)
+      synchronized (unacknowledgedMessages)
       {
          unacked = (UnackedMessageInfo) unacknowledgedMessages.remove(item);
          if (unacked == null)
@@ -779,7 +682,7 @@ public class BasicQueue
 
       synchronized (receivers)
       {
-         synchronized (messages)
+         synchronized (unacknowledgedMessages)
          {
             checkRemovedSubscribers(unacked.sub);
          }
@@ -820,7 +723,7 @@ public class BasicQueue
       // Send nacks for unacknowledged messages
       synchronized (receivers)
       {
-         synchronized (messages)
+         synchronized (unacknowledgedMessages)
          {
             int count = 0;
             HashMap map = (HashMap) unackedBySubscription.get(sub);
@@ -870,7 +773,7 @@ public class BasicQueue
 
       synchronized (receivers)
       {
-         synchronized (messages)
+         synchronized (unacknowledgedMessages)
          {
             Iterator i = ((HashMap) unacknowledgedMessages.clone()).keySet().iterator();
             while (i.hasNext())
@@ -886,11 +789,10 @@ public class BasicQueue
             }
 
             // Remove all remaining messages
-            i = messages.iterator();
+            i = messages.clear().iterator();
             while (i.hasNext())
             {
                MessageReference message = (MessageReference) i.next();
-               i.remove();
                dropMessage(message);
             }
          }
@@ -925,27 +827,26 @@ public class BasicQueue
       }
       
       MessageCache cache = server.getMessageCache();
-      synchronized (messages)
+      for (Iterator i = messages.clear().iterator(); i.hasNext();)
       {
-         for (Iterator i = messages.iterator(); i.hasNext();)
+         MessageReference message = (MessageReference) i.next();
+         try
          {
-            MessageReference message = (MessageReference) i.next();
-            try
-            {
-               cache.remove(message);
-            }
-            catch (JMSException ignored)
-            {
-               log.trace("Ignored error removing message from cache", ignored);
-            }
+            cache.remove(message);
+         }
+         catch (JMSException ignored)
+         {
+            log.trace("Ignored error removing message from cache", ignored);
          }
       }
       
       // Help the garbage collector
-      messages.clear();
-      unacknowledgedMessages.clear();
-      unackedByMessageRef.clear();
-      unackedBySubscription.clear();
+      synchronized (unacknowledgedMessages)
+      {
+         unacknowledgedMessages.clear();
+         unackedByMessageRef.clear();
+         unackedBySubscription.clear();
+      }
       subscribers.clear();
       removedSubscribers.clear();
    }
@@ -1030,6 +931,7 @@ public class BasicQueue
          if (stopped)
             throw new IllegalStateException("The destination is stopped " + getDescription());
          receivers.add(sub);
+         receiverCount = receivers.size();
       }
    }
 
@@ -1047,6 +949,7 @@ public class BasicQueue
       synchronized (receivers)
       {
          receivers.remove(sub);
+         receiverCount = receivers.size();
       }
    }
 
@@ -1089,48 +992,53 @@ public class BasicQueue
       try
       {
          Subscription found = null;
-         synchronized (receivers)
+         if (receiverCount == 0)
          {
-            if (receivers.size() != 0)
+            // Nobody is waiting, store the message without the receivers lock
+            storeMessage(message);
+            if (receiverCount == 0)
+               return;
+
+            // A receiver registered meanwhile, it may have missed the message
+            synchronized (receivers)
             {
-               for (Iterator it = receivers.iterator(); it.hasNext();)
+               if (messages.remove(message) == false)
+                  return;
+               found = findReceiver(message);
+               if (found == null)
                {
-                  Subscription sub = (Subscription) it.next();
-                  if (sub.accepts(message.getHeaders()))
-                  {
-                     it.remove();
-                     found = sub;
-                     break;
-                  }
+                  messages.add(message);
+                  return;
                }
-            }
 
-            synchronized (messages)
+               // The message is delivered, its reaper is no longer needed
+               clearEvent(message);
+               synchronized (unacknowledgedMessages)
+               {
+                  setupMessageAcknowledgement(found, message);
+               }
+            }
+         }
+         else
+         {
+            synchronized (receivers)
             {
+               found = findReceiver(message);
                if (found == null)
                {
-                  messages.add(message);
-
-                  // If a message is set to expire, and nobody wants it, put its reaper in
-                  // the timer queue 
-                  if (message.messageExpiration > 0)
-                  {
-                     addTimeout(message, new ExpireMessageTask(message), message.messageExpiration);
-                  }
+                  storeMessage(message);
+                  return;
                }
-               else
+               synchronized (unacknowledgedMessages)
                {
                   setupMessageAcknowledgement(found, message);
                }
             }
          }
-         
+
          // Queue to the receiver
-         if (found != null)
-         {
-            updateRedeliveryFlags(message);
-            queueMessageForSending(found, message);
-         }
+         updateRedeliveryFlags(message);
+         queueMessageForSending(found, message);
       }
       catch (JMSException e)
       {
@@ -1141,6 +1049,98 @@ public class BasicQueue
       }
    }
 
+   /**
+    * Find and remove a waiting receiver that accepts a message.
+    * The caller must hold the receivers lock
+    *
+    * @param message the message
+    * @return the receiver or null when nobody wants the message
+    * @throws JMSException for any error
+    */
+   private Subscription findReceiver(MessageReference message) throws JMSException
+   {
+      if (receivers.size() == 0)
+         return null;
+      for (Iterator it = receivers.iterator(); it.hasNext();)
+      {
+         Subscription sub = (Subscription) it.next();
+         if (sub.accepts(message.getHeaders()))
+         {
+            it.remove();
+            receiverCount = receivers.size();
+            return sub;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Add a message to the messages waiting to be dispatched
+    *
+    * @param message the message
+    */
+   private void storeMessage(MessageReference message)
+   {
+      messages.add(message);
+
+      // If a message is set to expire, and nobody wants it, put its reaper in
+      // the timer queue 
+      if (message.messageExpiration > 0)
+         addTimeout(message, new ExpireMessageTask(message), message.messageExpiration);
+   }
+
+   /**
+    * Take the first waiting message a subscription accepts
+    * and setup its acknowledgement
+    *
+    * @param sub the subscription
+    * @return the message or null when there is no message for the subscription
+    * @throws JMSException for any error
+    */
+   private MessageReference takeMessage(Subscription sub) throws JMSException
+   {
+      MessageReference messageRef = null;
+      ArrayList expired = null;
+
+      // The acknowledgement is set up under the receivers lock so
+      // removeSubscriber() sees it before it drops the subscription
+      synchronized (receivers)
+      {
+         // If the subscription is not picky, the first message will be it
+         if (sub.getSelector() == null && sub.noLocal == false)
+         {
+            // find a non-expired message
+            while ((messageRef = messages.poll()) != null && messageRef.isExpired())
+            {
+               if (expired == null)
+                  expired = new ArrayList();
+               expired.add(messageRef);
+            }
+         }
+         else
+         {
+            // The subscription is picky, so we have to iterate.
+            expired = new ArrayList();
+            messageRef = messages.removeFirstAccepted(sub, expired);
+         }
+
+         if (messageRef != null)
+         {
+            synchronized (unacknowledgedMessages)
+            {
+               setupMessageAcknowledgement(sub, messageRef);
+            }
+         }
+      }
+
+      if (expired != null)
+      {
+         for (int i = 0; i < expired.size(); ++i)
+            expireMessageAsync((MessageReference) expired.get(i));
+      }
+      return messageRef;
+   }
+
    /**
     * Queue a message for sending through the client consumer
     *
@@ -1488,13 +1488,10 @@ public class BasicQueue
       {
          events.remove(messageRef);
          scheduledMessages.remove(messageRef);
-         synchronized (messages)
-         {
-            // If the message was already sent, then do nothing
-            // (This probably happens more than not)
-            if (messages.remove(messageRef) == false)
-               return;
-         }
+         // If the message was already sent, then do nothing
+         // (This probably happens more than not)
+         if (messages.remove(messageRef) == false)
+            return;
          expireMessage(messageRef);
       }
 
@@ -21,6 +21,7 @@
  */
 package org.jboss.mq.server;
 
+import java.io.IOException;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.util.HashMap;
@@ -28,6 +29,7 @@ import javax.jms.JMSException;
 import javax.management.MBeanRegistration;
 import javax.management.ObjectName;
 import org.jboss.mq.DurableSubscriptionID;
+import org.jboss.mq.SpyJMSException;
 import org.jboss.mq.SpyMessage;
 import org.jboss.mq.pm.CacheStore;
 import org.jboss.system.ServiceMBeanSupport;
@@ -39,6 +41,10 @@ import EDU.oswego.cs.dl.util.concurrent.SynchronizedLong;
  * it starts moving messages out of memory and into a file so that they can be recovered
  * later.
  *
+ * When OffHeapSize is set, messages are first moved into direct memory
+ * outside the java heap, so a large backlog does not fill the old generation.
+ * The CacheStore is only used once that memory is full.
+ *
  * The locks should be obtained in the following order:<br>
  * mr, the relevent message we are working with<br>
  * lruCache, when maintaining the usage order
@@ -107,6 +113,18 @@ public class MessageCache extends ServiceMBeanSupport implements MessageCacheMBe
    // Check the soft reference depth
    boolean checkSoftReferenceDepth = false;
 
+   /** The maximum size of the off heap store, zero to disable it */
+   private long offHeapSize = 0;
+
+   /** The size of an off heap block */
+   private int offHeapBlockSize = 512;
+
+   /** The size of an off heap slab */
+   private int offHeapSlabSize = 1024 * 1024;
+
+   /** The off heap store */
+   private OffHeapMessageStore offHeapStore;
+
    /**
     * The <code>getInstance</code> method
     *
@@ -192,6 +210,14 @@ public class MessageCache extends ServiceMBeanSupport implements MessageCacheMBe
          softRefCacheSize++;
    }
 
+   /**
+    * removes a message from the cache after it was moved off heap
+    */
+   void softenOffHeap(MessageReference mr) throws JMSException
+   {
+      removeInternal(mr, false, false);
+   }
+
    /**
     * removes a message from the cache
     */
@@ -365,7 +391,7 @@ public class MessageCache extends ServiceMBeanSupport implements MessageCacheMBe
             if (messageToSoften.messageCache != null && messageToSoften.stored != MessageReference.REMOVED)
             {
                messageToSoften.makeSoft();
-               if (messageToSoften.stored == MessageReference.STORED)
+               if (messageToSoften.stored == MessageReference.STORED || messageToSoften.offHeapHandle != null)
                {
                   softenedSize++;
                   return true;
@@ -425,6 +451,46 @@ public class MessageCache extends ServiceMBeanSupport implements MessageCacheMBe
       cacheStore.removeFromStorage(mh);
    }
 
+   /**
+    * Move a message off heap
+    *
+    * @param mh the message reference
+    * @param message the message
+    * @return true when the message was stored, false when off heap storage is disabled or full
+    */
+   boolean saveOffHeap(MessageReference mh, SpyMessage message)
+   {
+      OffHeapMessageStore store = offHeapStore;
+      if (store == null || mh.offHeapHandle != null)
+         return false;
+      try
+      {
+         mh.offHeapHandle = store.store(message);
+      }
+      catch (IOException e)
+      {
+         log.warn("Unable to store message off heap " + mh, e);
+      }
+      return mh.offHeapHandle != null;
+   }
+
+   SpyMessage loadOffHeap(MessageReference mh) throws JMSException
+   {
+      try
+      {
+         return offHeapStore.load(mh.offHeapHandle);
+      }
+      catch (IOException e)
+      {
+         throw new SpyJMSException("Unable to load message from off heap storage " + mh, e);
+      }
+   }
+
+   void freeOffHeap(OffHeapMessageStore.Handle handle)
+   {
+      offHeapStore.free(handle);
+   }
+
    //////////////////////////////////////////////////////////////////////////////////
    //
    // The following section deals the the JMX interface to manage the Cache
@@ -438,6 +504,10 @@ public class MessageCache extends ServiceMBeanSupport implements MessageCacheMBe
    {
       setupCacheStore();
 
+      // Off heap messages survive a restart of the cache
+      if (offHeapStore == null && offHeapSize > 0)
+         offHeapStore = new OffHeapMessageStore(offHeapSize, offHeapSlabSize, offHeapBlockSize);
+
       referenceSoftner = new Thread(this, "JBossMQ Cache Reference Softner");
       referenceSoftner.setDaemon(true);
       referenceSoftner.start();
@@ -738,6 +808,83 @@ public class MessageCache extends ServiceMBeanSupport implements MessageCacheMBe
       return (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / ONE_MEGABYTE;
    }
 
+   /**
+    * Gets the maximum size of the off heap store
+    * @return the size in megabytes, zero when disabled
+    *
+    * @jmx.managed-attribute
+    */
+   public long getOffHeapSize()
+   {
+      return offHeapSize / ONE_MEGABYTE;
+   }
+
+   /**
+    * Sets the maximum size of the off heap store,
+    * it takes effect when the cache is next started
+    * @param offHeapSize the size in megabytes, zero to disable
+    *
+    * @jmx.managed-attribute
+    */
+   public void setOffHeapSize(long offHeapSize)
+   {
+      if (offHeapSize > 0)
+         this.offHeapSize = offHeapSize * ONE_MEGABYTE;
+      else
+         this.offHeapSize = 0;
+   }
+
+   /**
+    * Gets the size of an off heap block
+    * @return the size in bytes
+    *
+    * @jmx.managed-attribute
+    */
+   public int getOffHeapBlockSize()
+   {
+      return offHeapBlockSize;
+   }
+
+   /**
+    * Sets the size of an off heap block, a message uses at least one block
+    * @param offHeapBlockSize the size in bytes
+    *
+    * @jmx.managed-attribute
+    */
+   public void setOffHeapBlockSize(int offHeapBlockSize)
+   {
+      if (offHeapBlockSize < 64)
+         this.offHeapBlockSize = 64;
+      else if (offHeapBlockSize > offHeapSlabSize)
+         this.offHeapBlockSize = offHeapSlabSize;
+      else
+         this.offHeapBlockSize = offHeapBlockSize;
+   }
+
+   /**
+    * Gets the off heap memory in use
+    * @return the usage in megabytes
+    *
+    * @jmx.managed-attribute
+    */
+   public long getOffHeapUsage()
+   {
+      OffHeapMessageStore store = offHeapStore;
+      return store == null ? 0 : store.getUsedBytes() / ONE_MEGABYTE;
+   }
+
+   /**
+    * Gets the number of messages stored off heap
+    * @return the number of messages
+    *
+    * @jmx.managed-attribute
+    */
+   public int getOffHeapCacheSize()
+   {
+      OffHeapMessageStore store = offHeapStore;
+      return store == null ? 0 : store.getMessageCount();
+   }
+
    /**
     * @see ServiceMBeanSupport#getName()
     */
@@ -163,6 +163,42 @@ public interface MessageCacheMBean extends org.jboss.system.ServiceMBean
     */
    long getCurrentMemoryUsage();
 
+   /**
+    * Gets the maximum size of the off heap store
+    * @return the size in megabytes, zero when disabled
+    */
+   long getOffHeapSize();
+
+   /**
+    * Sets the maximum size of the off heap store
+    * @param offHeapSize the size in megabytes, zero to disable
+    */
+   void setOffHeapSize(long offHeapSize);
+
+   /**
+    * Gets the size of an off heap block
+    * @return the size in bytes
+    */
+   int getOffHeapBlockSize();
+
+   /**
+    * Sets the size of an off heap block
+    * @param offHeapBlockSize the size in bytes
+    */
+   void setOffHeapBlockSize(int offHeapBlockSize);
+
+   /**
+    * Gets the off heap memory in use
+    * @return the usage in megabytes
+    */
+   long getOffHeapUsage();
+
+   /**
+    * Gets the number of messages stored off heap
+    * @return the number of messages
+    */
+   int getOffHeapCacheSize();
+
    void setCacheStore(javax.management.ObjectName cacheStoreName);
 
    /**
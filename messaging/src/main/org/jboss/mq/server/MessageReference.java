@@ -36,6 +36,7 @@ import org.jboss.mq.SpyMessage;
  * <ul>
  * <li>Hard Reference - The message is consider recently used and should not be paged out
  * <li>Soft Reference - The message is consider old and CAN be removed from memory by the GC
+ * <li>Off Heap - The message is consider old and was serialized outside the java heap
  * <li>No Reference - The message was removed from memory by the GC, but we can load it from a file.
  * </ul>
  *
@@ -90,6 +91,9 @@ public class MessageReference implements Comparable
    public int stored;
    transient public Object persistData;
 
+   /** Where the message is kept outside the heap, null when it is not */
+   OffHeapMessageStore.Handle offHeapHandle;
+
    MessageReference()
    {
    }
@@ -136,6 +140,7 @@ public class MessageReference implements Comparable
       //clear refs so gc can collect unused objects
       if (softReference != null && softReference.get() != null)
          messageCache.softRefCacheSize--;
+      freeOffHeap();
       this.messageCache = null;
       this.hardReference = null;
       this.softReference = null;
@@ -288,6 +293,7 @@ public class MessageReference implements Comparable
          if (stored == STORED)
             messageCache.removeFromStorage(this);
          stored = MessageReference.REMOVED;
+         freeOffHeap();
       }
    }
 
@@ -330,6 +336,14 @@ public class MessageReference implements Comparable
             return;
          }
 
+         // Move the message out of the heap when there is room
+         if (messageCache.saveOffHeap(this, hardReference))
+         {
+            messageCache.softenOffHeap(this);
+            hardReference = null;
+            return;
+         }
+
          if (stored == NOT_STORED)
             messageCache.saveToStorage(this, hardReference);
 
@@ -376,8 +390,16 @@ public class MessageReference implements Comparable
          if (softReference != null)
             hardReference = (SpyMessage) softReference.get();
 
+         // Bring it back into the heap
+         if (hardReference == null && offHeapHandle != null)
+         {
+            hardReference = messageCache.loadOffHeap(this);
+            freeOffHeap();
+            messageCache.cacheHits++;
+         }
+
          // It might have been removed from the cache due to memory constraints
-         if (hardReference == null)
+         else if (hardReference == null)
          {
             // load it from disk.
             hardReference = messageCache.loadFromStorage(this);
@@ -395,6 +417,18 @@ public class MessageReference implements Comparable
       }
    }
 
+   /**
+    * Release the off heap copy of the message
+    */
+   void freeOffHeap()
+   {
+      if (offHeapHandle != null)
+      {
+         messageCache.freeOffHeap(offHeapHandle);
+         offHeapHandle = null;
+      }
+   }
+
    public boolean equals(Object o)
    {
       try
@@ -444,6 +478,8 @@ public class MessageReference implements Comparable
             buffer.append(" hard");
          if (softReference != null)
             buffer.append(" soft");
+         if (offHeapHandle != null)
+            buffer.append(" offheap");
          switch (stored)
          {
             case NOT_STORED :
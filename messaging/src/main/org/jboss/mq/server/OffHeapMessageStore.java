@@ -0,0 +1,258 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.mq.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+import org.jboss.mq.DurableSubscriptionID;
+import org.jboss.mq.SpyMessage;
+
+/**
+ * Keeps serialized messages outside the java heap for the MessageCache.<p>
+ *
+ * The memory is allocated as direct buffers of a fixed slab size when
+ * first needed, up to a maximum. Slabs are cut into blocks of the same
+ * size and a message takes as many blocks as it needs, wherever they are,
+ * so freeing a message can never fragment the store. Only the free list
+ * and the block numbers of each message are on the heap.
+ *
+ * @version $Revision$
+ */
+public class OffHeapMessageStore
+{
+   // Attributes ----------------------------------------------------
+
+   /** The block size */
+   private int blockSize;
+
+   /** The number of blocks in a slab */
+   private int blocksPerSlab;
+
+   /** The slabs, allocated on demand */
+   private ByteBuffer[] slabs;
+
+   /** The number of allocated slabs */
+   private int slabCount = 0;
+
+   /** The free blocks, grown with the slabs */
+   private int[] free = new int[0];
+
+   /** The number of free blocks */
+   private int freeCount = 0;
+
+   /** The number of messages */
+   private int messageCount = 0;
+
+   // Constructors --------------------------------------------------
+
+   /**
+    * Create a new store
+    *
+    * @param maxBytes the maximum size of the store
+    * @param slabSize the size of a slab
+    * @param blockSize the size of a block
+    */
+   public OffHeapMessageStore(long maxBytes, int slabSize, int blockSize)
+   {
+      if (blockSize <= 0 || slabSize < blockSize)
+         throw new IllegalArgumentException("Invalid block size " + blockSize + " for slab size " + slabSize);
+      this.blockSize = blockSize;
+      this.blocksPerSlab = slabSize / blockSize;
+      int maxSlabs = (int) Math.max(1, maxBytes / ((long) blocksPerSlab * blockSize));
+      slabs = new ByteBuffer[maxSlabs];
+   }
+
+   // Public --------------------------------------------------------
+
+   /**
+    * Store a message
+    *
+    * @param message the message
+    * @return the handle or null when the store is full
+    * @throws IOException for any error serializing the message
+    */
+   public Handle store(SpyMessage message) throws IOException
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      SpyMessage.writeMessage(message, out);
+      out.flush();
+      byte[] data = bytes.toByteArray();
+
+      int needed = (data.length + blockSize - 1) / blockSize;
+      int[] blocks = allocate(needed);
+      if (blocks == null)
+         return null;
+
+      // The blocks are ours, we can copy without the lock
+      for (int i = 0, offset = 0; i < blocks.length; ++i, offset += blockSize)
+      {
+         ByteBuffer slab = slabFor(blocks[i]);
+         slab.position(positionOf(blocks[i]));
+         slab.put(data, offset, Math.min(blockSize, data.length - offset));
+      }
+
+      Handle handle = new Handle();
+      handle.blocks = blocks;
+      handle.length = data.length;
+      handle.messageId = message.header.messageId;
+      handle.durableSubscriberID = message.header.durableSubscriberID;
+      return handle;
+   }
+
+   /**
+    * Load a message
+    *
+    * @param handle the handle
+    * @return the message
+    * @throws IOException for any error deserializing the message
+    */
+   public SpyMessage load(Handle handle) throws IOException
+   {
+      byte[] data = new byte[handle.length];
+      for (int i = 0, offset = 0; i < handle.blocks.length; ++i, offset += blockSize)
+      {
+         ByteBuffer slab = slabFor(handle.blocks[i]);
+         slab.position(positionOf(handle.blocks[i]));
+         slab.get(data, offset, Math.min(blockSize, data.length - offset));
+      }
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+      SpyMessage message = SpyMessage.readMessage(in);
+      message.header.messageId = handle.messageId;
+      message.header.durableSubscriberID = handle.durableSubscriberID;
+      return message;
+   }
+
+   /**
+    * Free the blocks of a message
+    *
+    * @param handle the handle
+    */
+   public synchronized void free(Handle handle)
+   {
+      for (int i = 0; i < handle.blocks.length; ++i)
+         free[freeCount++] = handle.blocks[i];
+      --messageCount;
+   }
+
+   /**
+    * Get the number of bytes in use
+    *
+    * @return the used bytes
+    */
+   public synchronized long getUsedBytes()
+   {
+      return ((long) slabCount * blocksPerSlab - freeCount) * blockSize;
+   }
+
+   /**
+    * Get the number of bytes allocated
+    *
+    * @return the allocated bytes
+    */
+   public synchronized long getAllocatedBytes()
+   {
+      return (long) slabCount * blocksPerSlab * blockSize;
+   }
+
+   /**
+    * Get the number of messages in the store
+    *
+    * @return the number of messages
+    */
+   public synchronized int getMessageCount()
+   {
+      return messageCount;
+   }
+
+   // Private -------------------------------------------------------
+
+   private synchronized int[] allocate(int needed)
+   {
+      while (freeCount < needed && slabCount < slabs.length)
+      {
+         slabs[slabCount] = ByteBuffer.allocateDirect(blocksPerSlab * blockSize);
+         if (free.length < (slabCount + 1) * blocksPerSlab)
+         {
+            int[] grown = new int[(slabCount + 1) * blocksPerSlab];
+            System.arraycopy(free, 0, grown, 0, freeCount);
+            free = grown;
+         }
+         int first = slabCount * blocksPerSlab;
+         // Push in reverse so the lowest blocks are used first
+         for (int i = blocksPerSlab - 1; i >= 0; --i)
+            free[freeCount++] = first + i;
+         ++slabCount;
+      }
+      if (freeCount < needed)
+         return null;
+
+      int[] result = new int[needed];
+      for (int i = 0; i < needed; ++i)
+         result[i] = free[--freeCount];
+      ++messageCount;
+      return result;
+   }
+
+   /**
+    * Get a private view of the slab holding a block
+    */
+   private ByteBuffer slabFor(int block)
+   {
+      ByteBuffer slab;
+      synchronized (this)
+      {
+         slab = slabs[block / blocksPerSlab];
+      }
+      return slab.duplicate();
+   }
+
+   private int positionOf(int block)
+   {
+      return (block % blocksPerSlab) * blockSize;
+   }
+
+   // Inner classes -------------------------------------------------
+
+   /**
+    * The location of a message in the store
+    */
+   public static class Handle
+   {
+      /** The blocks */
+      int[] blocks;
+
+      /** The length of the serialized message */
+      int length;
+
+      /** The message id, it is not serialized */
+      long messageId;
+
+      /** The durable subscription, it is not serialized */
+      DurableSubscriptionID durableSubscriberID;
+   }
+}
@@ -0,0 +1,361 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.mq.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+
+import javax.jms.JMSException;
+
+import org.jboss.mq.Subscription;
+import org.jboss.mq.selectors.Selector;
+
+/**
+ * The messages waiting to be dispatched by a BasicQueue.<p>
+ *
+ * Messages are kept in one bucket per JMS priority and handed out
+ * in the same order as the MessageReference natural ordering,
+ * highest priority first and then by message id.<p>
+ *
+ * Each bucket is synchronized on itself and at most one bucket lock is
+ * held at a time, so producers and consumers working on different
+ * priorities do not contend. Within a bucket messages normally arrive in
+ * message id order and are appended to a linked set, making add, poll and
+ * remove constant time whatever the depth of the queue. Messages that
+ * arrive out of order (redeliveries and restored messages) go to a sorted
+ * set and are merged with the linked set when messages are taken.
+ *
+ * @version $Revision$
+ */
+class PriorityMessageQueue
+{
+   // Constants -----------------------------------------------------
+
+   /** The number of JMS priorities */
+   private static final int PRIORITIES = 10;
+
+   // Attributes ----------------------------------------------------
+
+   /** The buckets indexed by priority */
+   private final Bucket[] buckets = new Bucket[PRIORITIES];
+
+   // Constructors --------------------------------------------------
+
+   PriorityMessageQueue()
+   {
+      for (int i = 0; i < PRIORITIES; ++i)
+         buckets[i] = new Bucket();
+   }
+
+   // Package Private -----------------------------------------------
+
+   /**
+    * Add a message
+    *
+    * @param message the message reference
+    */
+   void add(MessageReference message)
+   {
+      Bucket bucket = bucketFor(message);
+      synchronized (bucket)
+      {
+         bucket.add(message);
+      }
+   }
+
+   /**
+    * Take the first message
+    *
+    * @return the message or null when the queue is empty
+    */
+   MessageReference poll()
+   {
+      for (int i = PRIORITIES - 1; i >= 0; --i)
+      {
+         Bucket bucket = buckets[i];
+         if (bucket.size == 0)
+            continue;
+         synchronized (bucket)
+         {
+            MessageReference message = bucket.first();
+            if (message != null)
+            {
+               bucket.remove(message);
+               return message;
+            }
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Take the first message accepted by a subscription.
+    * Expired messages found on the way are removed and added to the
+    * expired list, the caller is responsible for expiring them.
+    *
+    * @param sub the subscription
+    * @param expired the list to add expired messages to
+    * @return the message or null when no message is accepted
+    * @throws JMSException for any error testing the message
+    */
+   MessageReference removeFirstAccepted(Subscription sub, List expired) throws JMSException
+   {
+      for (int i = PRIORITIES - 1; i >= 0; --i)
+      {
+         Bucket bucket = buckets[i];
+         if (bucket.size == 0)
+            continue;
+         synchronized (bucket)
+         {
+            MessageReference found = null;
+            int before = expired.size();
+            for (Iterator it = bucket.iterator(); it.hasNext();)
+            {
+               MessageReference message = (MessageReference) it.next();
+               if (message.isExpired())
+                  expired.add(message);
+               else if (sub.accepts(message.getHeaders()))
+               {
+                  found = message;
+                  break;
+               }
+            }
+            for (int j = before; j < expired.size(); ++j)
+               bucket.remove((MessageReference) expired.get(j));
+            if (found != null)
+            {
+               bucket.remove(found);
+               return found;
+            }
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Remove a message
+    *
+    * @param message the message reference
+    * @return true when the message was in the queue
+    */
+   boolean remove(MessageReference message)
+   {
+      Bucket bucket = bucketFor(message);
+      synchronized (bucket)
+      {
+         return bucket.remove(message);
+      }
+   }
+
+   /**
+    * Get the number of messages
+    *
+    * @return the size
+    */
+   int size()
+   {
+      int result = 0;
+      for (int i = 0; i < PRIORITIES; ++i)
+         result += buckets[i].size;
+      return result;
+   }
+
+   /**
+    * Add the messages for delivery to a list in dispatch order
+    *
+    * @param selector the selector to apply, null for all messages
+    * @param result the list to add the messages to
+    * @throws JMSException for any error
+    */
+   void browse(Selector selector, List result) throws JMSException
+   {
+      for (int i = PRIORITIES - 1; i >= 0; --i)
+      {
+         Bucket bucket = buckets[i];
+         synchronized (bucket)
+         {
+            for (Iterator it = bucket.iterator(); it.hasNext();)
+            {
+               MessageReference message = (MessageReference) it.next();
+               if (selector == null || selector.test(message.getHeaders()))
+                  result.add(message.getMessageForDelivery());
+            }
+         }
+      }
+   }
+
+   /**
+    * Remove all the messages
+    *
+    * @return the removed messages in dispatch order
+    */
+   List clear()
+   {
+      ArrayList result = new ArrayList();
+      for (int i = PRIORITIES - 1; i >= 0; --i)
+      {
+         Bucket bucket = buckets[i];
+         synchronized (bucket)
+         {
+            for (Iterator it = bucket.iterator(); it.hasNext();)
+               result.add(it.next());
+            bucket.clear();
+         }
+      }
+      return result;
+   }
+
+   // Private -------------------------------------------------------
+
+   private Bucket bucketFor(MessageReference message)
+   {
+      int priority = message.jmsPriority;
+      if (priority < 0)
+         priority = 0;
+      else if (priority >= PRIORITIES)
+         priority = PRIORITIES - 1;
+      return buckets[priority];
+   }
+
+   // Inner classes -------------------------------------------------
+
+   /**
+    * The messages of one priority, synchronized access on itself
+    * except for the size
+    */
+   private static class Bucket
+   {
+      /** Messages appended in message id order */
+      LinkedHashSet fifo = new LinkedHashSet();
+
+      /** Messages that arrived after a message with a higher id */
+      TreeSet late = new TreeSet();
+
+      /** The highest message id appended to the fifo */
+      long tailId;
+
+      /** The number of messages, readable without the lock */
+      volatile int size;
+
+      void add(MessageReference message)
+      {
+         boolean added;
+         if (fifo.isEmpty() || message.messageId > tailId)
+         {
+            added = fifo.add(message);
+            tailId = message.messageId;
+         }
+         else
+            added = late.add(message);
+         if (added)
+            ++size;
+      }
+
+      MessageReference first()
+      {
+         MessageReference head = fifo.isEmpty() ? null : (MessageReference) fifo.iterator().next();
+         if (late.isEmpty())
+            return head;
+         MessageReference redelivered = (MessageReference) late.first();
+         if (head == null || redelivered.messageId < head.messageId)
+            return redelivered;
+         return head;
+      }
+
+      boolean remove(MessageReference message)
+      {
+         boolean removed = fifo.remove(message) || (late.isEmpty() == false && late.remove(message));
+         if (removed)
+            --size;
+         return removed;
+      }
+
+      void clear()
+      {
+         fifo.clear();
+         late.clear();
+         size = 0;
+      }
+
+      /**
+       * @return an iterator over both sets in message id order,
+       *         it does not support remove
+       */
+      Iterator iterator()
+      {
+         if (late.isEmpty())
+            return fifo.iterator();
+         return new MergingIterator(fifo.iterator(), late.iterator());
+      }
+   }
+
+   /**
+    * Merges two iterators over messages sorted by message id
+    */
+   private static class MergingIterator implements Iterator
+   {
+      Iterator left;
+      Iterator right;
+      MessageReference nextLeft;
+      MessageReference nextRight;
+
+      MergingIterator(Iterator left, Iterator right)
+      {
+         this.left = left;
+         this.right = right;
+         nextLeft = left.hasNext() ? (MessageReference) left.next() : null;
+         nextRight = right.hasNext() ? (MessageReference) right.next() : null;
+      }
+
+      public boolean hasNext()
+      {
+         return nextLeft != null || nextRight != null;
+      }
+
+      public Object next()
+      {
+         MessageReference result;
+         if (nextRight == null || (nextLeft != null && nextLeft.messageId < nextRight.messageId))
+         {
+            result = nextLeft;
+            nextLeft = left.hasNext() ? (MessageReference) left.next() : null;
+         }
+         else
+         {
+            result = nextRight;
+            nextRight = right.hasNext() ? (MessageReference) right.next() : null;
+         }
+         if (result == null)
+            throw new NoSuchElementException();
+         return result;
+      }
+
+      public void remove()
+      {
+         throw new UnsupportedOperationException();
+      }
+   }
+}
@@ -0,0 +1,263 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.interfaces;
+
+import java.rmi.MarshalledObject;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.naming.Reference;
+
+import org.jboss.logging.Logger;
+
+/**
+ * An opt-in cache of the raw lookup results of a remote naming server,
+ * enabled with the jnp.lookupCache environment property. The objects are
+ * cached in the form the server returned them, so every lookup still runs
+ * the object factories and unmarshalls a fresh copy of the bound value, only
+ * the round trip to the server is saved.
+ *
+ * The cache registers itself with the server as an {@link InvalidationListener}
+ * and drops the names the server reports as changed. Entries also expire
+ * after jnp.lookupCacheTTL milliseconds, which bounds the staleness should a
+ * notification be lost, and the least recently used entries are evicted once
+ * jnp.lookupCacheMaxSize names are cached. There is one cache per server, its
+ * limits are taken from the environment of the first context using it.
+ *
+ * @version $Revision$
+ */
+public class LookupCache
+   implements InvalidationListener
+{
+   private static Logger log = Logger.getLogger(LookupCache.class);
+
+   /** The default time to live of a cache entry in milliseconds */
+   public static final long DEFAULT_TTL = 60000;
+   /** The default maximum number of cached names */
+   public static final int DEFAULT_MAX_SIZE = 1000;
+
+   /** Map<Naming, LookupCache>, a null value marks servers without
+    * invalidation support
+    */
+   private static final Map caches = new WeakHashMap();
+
+   private final long ttl;
+   private final int maxSize;
+   /** LinkedHashMap<String, Entry> in access order */
+   private final LinkedHashMap entries;
+   /** Incremented by every invalidation */
+   private long version = 0;
+
+   /**
+    * Get the cache of a server, registering a new one with the server if
+    * needed.
+    *
+    * @param server the naming server stub
+    * @param env the environment of the context
+    * @return the cache or null if the server does not support invalidation
+    */
+   static LookupCache getCache(Naming server, Hashtable env)
+   {
+      synchronized (caches)
+      {
+         if (caches.containsKey(server))
+            return (LookupCache) caches.get(server);
+
+         LookupCache cache = null;
+         if (server instanceof InvalidationSource)
+         {
+            cache = new LookupCache(getLong(env, NamingContext.JNP_LOOKUP_CACHE_TTL, DEFAULT_TTL),
+               (int) getLong(env, NamingContext.JNP_LOOKUP_CACHE_MAX_SIZE, DEFAULT_MAX_SIZE));
+            try
+            {
+               UnicastRemoteObject.exportObject(cache, 0);
+               ((InvalidationSource) server).addInvalidationListener(cache);
+            }
+            catch (Exception e)
+            {
+               log.debug("Failed to register lookup cache with " + server + ", lookups are not cached", e);
+               cache = null;
+            }
+         }
+         else if (log.isTraceEnabled())
+         {
+            log.trace(server + " does not support invalidation, lookups are not cached");
+         }
+         caches.put(server, cache);
+         return cache;
+      }
+   }
+
+   /**
+    * Forget the cache of a server that is no longer used.
+    *
+    * @param server the naming server stub
+    */
+   static void removeCache(Naming server)
+   {
+      LookupCache cache;
+      synchronized (caches)
+      {
+         cache = (LookupCache) caches.remove(server);
+      }
+      if (cache != null)
+      {
+         try
+         {
+            UnicastRemoteObject.unexportObject(cache, true);
+         }
+         catch (Exception ignored)
+         {
+         }
+      }
+   }
+
+   private static long getLong(Hashtable env, String key, long defaultValue)
+   {
+      Object value = env.get(key);
+      if (value == null)
+         return defaultValue;
+      try
+      {
+         return Long.parseLong(value.toString().trim());
+      }
+      catch (NumberFormatException e)
+      {
+         log.debug("Invalid " + key + "=" + value + ", using " + defaultValue);
+         return defaultValue;
+      }
+   }
+
+   LookupCache(long ttl, int maxSize)
+   {
+      this.ttl = ttl;
+      this.maxSize = maxSize;
+      this.entries = new LinkedHashMap(16, 0.75f, true)
+      {
+         private static final long serialVersionUID = 1L;
+
+         protected boolean removeEldestEntry(Map.Entry eldest)
+         {
+            return size() > LookupCache.this.maxSize;
+         }
+      };
+   }
+
+   /**
+    * Get a cached lookup result.
+    *
+    * @param name the absolute name
+    * @return the raw result or null if not cached
+    */
+   synchronized Object get(String name)
+   {
+      Entry entry = (Entry) entries.get(name);
+      if (entry == null)
+         return null;
+      if (entry.expires < System.currentTimeMillis())
+      {
+         entries.remove(name);
+         return null;
+      }
+      return entry.value;
+   }
+
+   /**
+    * @return the version to pass to {@link #put(String, Object, long)} for a
+    *    lookup that is about to go to the server
+    */
+   synchronized long getVersion()
+   {
+      return version;
+   }
+
+   /**
+    * Cache a lookup result unless an invalidation arrived while the lookup
+    * was in progress, as the result could already be stale.
+    *
+    * @param name the absolute name
+    * @param value the raw result of the server
+    * @param lookupVersion the version obtained before the lookup
+    */
+   synchronized void put(String name, Object value, long lookupVersion)
+   {
+      if (lookupVersion != version || isCacheable(value) == false)
+         return;
+      entries.put(name, new Entry(value, System.currentTimeMillis() + ttl));
+   }
+
+   /**
+    * Drop a name and all the names below it.
+    *
+    * @param name the absolute name
+    */
+   synchronized void invalidate(String name)
+   {
+      ++version;
+      entries.remove(name);
+      String prefix = name.length() == 0 ? "" : name + "/";
+      for (Iterator i = entries.keySet().iterator(); i.hasNext();)
+      {
+         String key = (String) i.next();
+         if (key.startsWith(prefix))
+            i.remove();
+      }
+   }
+
+   synchronized int size()
+   {
+      return entries.size();
+   }
+
+   public void invalidate(String[] names)
+   {
+      for (int i = 0; i < names.length; ++i)
+         invalidate(names[i]);
+   }
+
+   /**
+    * Contexts are not cached as their environment is changed by the lookup,
+    * partial results are resolved by another context.
+    */
+   private boolean isCacheable(Object value)
+   {
+      return value instanceof MarshalledValuePair
+         || value instanceof MarshalledObject
+         || value instanceof Reference;
+   }
+
+   private static class Entry
+   {
+      final Object value;
+      final long expires;
+
+      Entry(Object value, long expires)
+      {
+         this.value = value;
+         this.expires = expires;
+      }
+   }
+}
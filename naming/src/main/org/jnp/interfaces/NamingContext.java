@@ -142,6 +142,19 @@ public class NamingContext
     * will be made.
     */ 
    public static final String JNP_MAX_RETRIES = "jnp.maxRetries";
+   /**
+    * A flag enabling the client side cache of the lookups of a remote
+    * naming server, see {@link LookupCache}
+    */
+   public static final String JNP_LOOKUP_CACHE = "jnp.lookupCache";
+   /**
+    * The time to live of lookup cache entries in milliseconds
+    */
+   public static final String JNP_LOOKUP_CACHE_TTL = "jnp.lookupCacheTTL";
+   /**
+    * The maximum number of names held by the lookup cache
+    */
+   public static final String JNP_LOOKUP_CACHE_MAX_SIZE = "jnp.lookupCacheMaxSize";
 
    /**
     * The default discovery multicast information
@@ -529,6 +542,7 @@ public class NamingContext
                throw re;
             }            
          }
+         invalidateLookupCache(getAbsoluteName(name), refEnv);
       }
       catch (CannotProceedException cpe)
       {
@@ -604,6 +618,7 @@ public class NamingContext
                throw re;
             }            
          }
+         invalidateLookupCache(name, refEnv);
       }
       catch (CannotProceedException cpe)
       {
@@ -658,7 +673,18 @@ public class NamingContext
          Name n = getAbsoluteName(name);
          Object res = null;
          boolean trace = log.isTraceEnabled();
-         for (int i = 0; i < maxTries; i++)
+         LookupCache cache = getLookupCache(refEnv);
+         long cacheVersion = 0;
+         boolean cached = false;
+         if (cache != null)
+         {
+            cacheVersion = cache.getVersion();
+            res = cache.get(n.toString());
+            cached = res != null;
+            if (trace && cached)
+               log.trace("Found " + n + " in the lookup cache");
+         }
+         for (int i = 0; res == null && i < maxTries; i++)
          {
             try
             {
@@ -704,6 +730,9 @@ public class NamingContext
                throw ce;
             }
          }
+         // Only a result fetched from the server renews the entry
+         if (cache != null && cached == false)
+            cache.put(n.toString(), res, cacheVersion);
          if (res instanceof MarshalledValuePair)
          {
             MarshalledValuePair mvp = (MarshalledValuePair) res;
@@ -775,6 +804,8 @@ public class NamingContext
       }
       catch (IOException e)
       {
+         if (naming != null)
+            LookupCache.removeCache(naming);
          naming = null;
          removeServer(refEnv);
          NamingException ex = new CommunicationException();
@@ -825,6 +856,7 @@ public class NamingContext
                throw re;
             }             
          }
+         invalidateLookupCache(getAbsoluteName(name), refEnv);
       }
       catch (CannotProceedException cpe)
       {
@@ -1612,6 +1644,32 @@ public class NamingContext
          return composeName(n, prefix);
    }
 
+   /**
+    * Get the lookup cache of the naming server if the jnp.lookupCache
+    * property enables it. The in VM server is never cached as there is no
+    * round trip to save.
+    */
+   private LookupCache getLookupCache(Hashtable refEnv)
+   {
+      Object flag = refEnv.get(JNP_LOOKUP_CACHE);
+      if (flag == null || Boolean.valueOf(flag.toString()).booleanValue() == false)
+         return null;
+      if (naming == null || naming == localServer)
+         return null;
+      return LookupCache.getCache(naming, refEnv);
+   }
+
+   /**
+    * Drop a name changed through this context from the lookup cache without
+    * waiting for the server to report it.
+    */
+   private void invalidateLookupCache(Name absoluteName, Hashtable refEnv)
+   {
+      LookupCache cache = getLookupCache(refEnv);
+      if (cache != null)
+         cache.invalidate(absoluteName.toString());
+   }
+
    private Hashtable getEnv(Name n)
       throws InvalidNameException
    {
@@ -0,0 +1,134 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.server;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.jboss.logging.Logger;
+import org.jnp.interfaces.InvalidationListener;
+
+/**
+ * Pushes the names changed in a NamingServer to the registered client side
+ * lookup caches. The notifications are sent from a daemon thread so that
+ * binds do not wait for remote clients, names changed while a notification
+ * is in progress are sent together with the next one. A listener whose
+ * notification fails is dropped, the entries of its cache then expire
+ * through their time to live.
+ *
+ * @version $Revision$
+ */
+class InvalidationNotifier
+   implements Runnable
+{
+   private static Logger log = Logger.getLogger(InvalidationNotifier.class);
+
+   /** List<InvalidationListener> */
+   private final List listeners = new CopyOnWriteArrayList();
+   /** The changed names not yet sent */
+   private final LinkedHashSet pending = new LinkedHashSet();
+   private Thread thread;
+
+   void addListener(InvalidationListener listener)
+   {
+      listeners.add(listener);
+      synchronized (pending)
+      {
+         if (thread == null)
+         {
+            thread = new Thread(this, "JNDI-CacheInvalidation");
+            thread.setDaemon(true);
+            thread.start();
+         }
+      }
+   }
+
+   void removeListener(InvalidationListener listener)
+   {
+      listeners.remove(listener);
+   }
+
+   /**
+    * Queue a changed name.
+    *
+    * @param name the name relative to the root of the server
+    */
+   void invalidated(String name)
+   {
+      if (listeners.isEmpty())
+         return;
+      synchronized (pending)
+      {
+         pending.add(name);
+         pending.notify();
+      }
+   }
+
+   public void run()
+   {
+      while (true)
+      {
+         String[] names;
+         try
+         {
+            synchronized (pending)
+            {
+               while (pending.isEmpty())
+                  pending.wait();
+               names = (String[]) pending.toArray(new String[pending.size()]);
+               pending.clear();
+            }
+         }
+         catch (InterruptedException e)
+         {
+            return;
+         }
+
+         ArrayList failed = null;
+         for (Iterator i = listeners.iterator(); i.hasNext();)
+         {
+            InvalidationListener listener = (InvalidationListener) i.next();
+            try
+            {
+               listener.invalidate(names);
+            }
+            catch (RemoteException e)
+            {
+               log.debug("Dropping unreachable lookup cache " + listener, e);
+               if (failed == null)
+                  failed = new ArrayList();
+               failed.add(listener);
+            }
+            catch (Throwable t)
+            {
+               log.warn("Failed to notify lookup cache " + listener, t);
+            }
+         }
+         if (failed != null)
+            listeners.removeAll(failed);
+      }
+   }
+}
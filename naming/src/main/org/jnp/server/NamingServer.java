@@ -21,11 +21,15 @@
  */
 package org.jnp.server;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.rmi.RemoteException;
 import java.util.Collection;
-import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.naming.Binding;
 import javax.naming.CannotProceedException;
 import javax.naming.Context;
@@ -39,6 +43,8 @@ import javax.naming.NotContextException;
 import javax.naming.Reference;
 import javax.naming.spi.ResolveResult;
 
+import org.jnp.interfaces.InvalidationListener;
+import org.jnp.interfaces.InvalidationSource;
 import org.jnp.interfaces.Naming;
 import org.jnp.interfaces.NamingContext;
 import org.jnp.interfaces.NamingParser;
@@ -46,6 +52,14 @@ import org.jboss.logging.Logger;
 
 /**
  * The JNDI naming server implementation class.
+ *
+ * Each context keeps its bindings in a ConcurrentHashMap, so lookups never
+ * take a lock and bind/rebind/unbind only contend with updates of the same
+ * context. A bind of an existing name and the creation of an existing
+ * subcontext are detected atomically with putIfAbsent.
+ *
+ * Every change is reported to the client side lookup caches registered
+ * through the {@link InvalidationSource} interface of the root context.
  * 
  * @author Rickard Oberg
  * @author patriot1burke
@@ -53,7 +67,7 @@ import org.jboss.logging.Logger;
  * @version $Revision: 57199 $
  */
 public class NamingServer
-   implements Naming, java.io.Serializable
+   implements Naming, InvalidationSource, java.io.Serializable
 {
    private static Logger log = Logger.getLogger(NamingServer.class);
 
@@ -63,10 +77,18 @@ public class NamingServer
 
    // Attributes ----------------------------------------------------
 
+   /**
+    * The bindings in the serialized form, the live bindings are in entries.
+    * It is only filled in while the context is serialized or deserialized.
+    */
    protected Hashtable table = new Hashtable();
+   /** The bindings */
+   private transient ConcurrentHashMap entries = new ConcurrentHashMap();
    protected Name prefix;
    protected NamingParser parser = new NamingParser();
    protected NamingServer parent;
+   /** The lookup cache notifications, only used by the root context */
+   private transient volatile InvalidationNotifier notifier;
 
    // Static --------------------------------------------------------
 
@@ -89,7 +111,7 @@ public class NamingServer
    // Public --------------------------------------------------------
 
    // Naming implementation -----------------------------------------
-   public synchronized void bind(Name name, Object obj, String className)
+   public void bind(Name name, Object obj, String className)
       throws NamingException
    {
       if (name.isEmpty())
@@ -137,20 +159,17 @@ public class NamingServer
          } else
          {
 //            System.out.println("bind "+name+"="+obj);
-            try
+            if (addBinding(name, obj, className) == false)
             {
-               getBinding(name);
                // Already bound
                throw new NameAlreadyBoundException();
-            } catch (NameNotFoundException e)
-            {
-               setBinding(name,obj,className);
             }
+            invalidated(name);
          }
       }
    }
 
-   public synchronized void rebind(Name name, Object obj, String className)
+   public void rebind(Name name, Object obj, String className)
       throws NamingException
    {
       if (name.isEmpty())
@@ -193,11 +212,12 @@ public class NamingServer
          {
 //            System.out.println("rebind "+name+"="+obj+"("+this+")");
             setBinding(name,obj,className);
+            invalidated(name);
          }
       }
    }
 
-   public synchronized void unbind(Name name)
+   public void unbind(Name name)
       throws NamingException
    {
       if (name.isEmpty())
@@ -239,13 +259,11 @@ public class NamingServer
          } else
          {
 //            System.out.println("unbind "+name+"="+getBinding(name));
-            if (getBinding(name) != null)
+            if (removeBinding(name) == false)
             {
-               removeBinding(name);
-            } else
-            {
-               throw new NameNotFoundException();
+               throw new NameNotFoundException(name.get(0) + " not bound");
             }
+            invalidated(name);
          }
       }
    }
@@ -318,11 +336,10 @@ public class NamingServer
 //         System.out.println("list "+name);
 
          Vector list = new Vector();
-         Enumeration keys = table.keys();
-         while (keys.hasMoreElements())
+         Iterator bindings = entries.values().iterator();
+         while (bindings.hasNext())
          {
-            String key = (String)keys.nextElement();
-            Binding b = getBinding(key);
+            Binding b = (Binding)bindings.next();
 
             list.addElement(new NameClassPair(b.getName(),b.getClassName(),true));
          }
@@ -360,7 +377,7 @@ public class NamingServer
    {
       if (name.isEmpty())
       {
-         Collection bindings = table.values();
+         Collection bindings = entries.values();
          Collection newBindings = new Vector(bindings.size());
          Iterator iter = bindings.iterator();
          while (iter.hasNext())
@@ -459,22 +476,18 @@ public class NamingServer
       }
       else
       {
-         Object binding = table.get(name.get(0));
-         if( binding != null )
+         Name fullName = (Name) prefix.clone();
+         fullName.addAll(name);
+         NamingServer subContext = new NamingServer(fullName, this);
+         if (addBinding(name, subContext, NamingContext.class.getName()) == false)
          {
             ex = new NameAlreadyBoundException();
             ex.setResolvedName(prefix);
             ex.setRemainingName(name);
             throw ex;
          }
-         else
-         {
-            Name fullName = (Name) prefix.clone();
-            fullName.addAll(name);
-            NamingServer subContext = new NamingServer(fullName, this);
-            setBinding(name, subContext, NamingContext.class.getName());
-            subCtx = new NamingContext(null, fullName, getRoot());
-         }
+         invalidated(name);
+         subCtx = new NamingContext(null, fullName, getRoot());
       }
       return subCtx;
    }
@@ -487,6 +500,21 @@ public class NamingServer
          return parent.getRoot();
    }
 
+   // InvalidationSource implementation -----------------------------
+   public void addInvalidationListener(InvalidationListener listener)
+      throws RemoteException
+   {
+      getNotifier(true).addListener(listener);
+   }
+
+   public void removeInvalidationListener(InvalidationListener listener)
+      throws RemoteException
+   {
+      InvalidationNotifier n = getNotifier(false);
+      if (n != null)
+         n.removeListener(listener);
+   }
+
    // Y overrides ---------------------------------------------------
 
    // Package protected ---------------------------------------------
@@ -494,16 +522,93 @@ public class NamingServer
    // Protected -----------------------------------------------------
 
    // Private -------------------------------------------------------
+
+   /**
+    * Write the bindings in the Hashtable of the serialized form
+    */
+   private void writeObject(ObjectOutputStream out)
+      throws IOException
+   {
+      synchronized (table)
+      {
+         table.putAll(entries);
+         try
+         {
+            out.defaultWriteObject();
+         }
+         finally
+         {
+            table.clear();
+         }
+      }
+   }
+
+   private void readObject(ObjectInputStream in)
+      throws IOException, ClassNotFoundException
+   {
+      in.defaultReadObject();
+      entries = new ConcurrentHashMap(table);
+      table.clear();
+   }
+   private InvalidationNotifier getNotifier(boolean create)
+   {
+      if (parent != null)
+         return parent.getNotifier(create);
+      InvalidationNotifier n = notifier;
+      if (n == null && create)
+      {
+         synchronized (this)
+         {
+            if (notifier == null)
+               notifier = new InvalidationNotifier();
+            n = notifier;
+         }
+      }
+      return n;
+   }
+
+   /**
+    * Report a changed binding of this context to the lookup caches.
+    */
+   private void invalidated(Name name)
+   {
+      InvalidationNotifier n = getNotifier(false);
+      if (n != null)
+      {
+         Name fullName = (Name) prefix.clone();
+         try
+         {
+            fullName.addAll(name);
+         }
+         catch (InvalidNameException e)
+         {
+            log.debug("Cannot report change of " + name, e);
+            return;
+         }
+         n.invalidated(fullName.toString());
+      }
+   }
    private void setBinding(Name name, Object obj, String className)
    {
       String n = name.toString();
-      table.put(n, new Binding(n, className, obj, true));
+      entries.put(n, new Binding(n, className, obj, true));
+   }
+
+   /**
+    * Add a binding unless the name is already bound.
+    *
+    * @return false if the name was already bound
+    */
+   private boolean addBinding(Name name, Object obj, String className)
+   {
+      String n = name.toString();
+      return entries.putIfAbsent(n, new Binding(n, className, obj, true)) == null;
    }
 
    private Binding getBinding(String key)
       throws NameNotFoundException
    {
-      Binding b = (Binding) table.get(key);
+      Binding b = (Binding) entries.get(key);
       if (b == null)
       {
          if( log.isTraceEnabled() )
@@ -512,7 +617,7 @@ public class NamingServer
             tmp.append(" in context ");
             tmp.append(this.prefix);
             tmp.append(", bindings:\n");
-            Iterator bindings = table.values().iterator();
+            Iterator bindings = entries.values().iterator();
             while( bindings.hasNext() )
             {
                Binding value = (Binding) bindings.next();
@@ -543,9 +648,14 @@ public class NamingServer
       return getBinding(key).getObject();
    }
 
-   private void removeBinding(Name name)
+   /**
+    * Remove a binding.
+    *
+    * @return false if the name was not bound
+    */
+   private boolean removeBinding(Name name)
    {
-      table.remove(name.get(0));
+      return entries.remove(name.get(0)) != null;
    }
 
 }
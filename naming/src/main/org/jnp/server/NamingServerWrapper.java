@@ -28,6 +28,8 @@ import javax.naming.Context;
 import javax.naming.Name;
 import javax.naming.NamingException;
 
+import org.jnp.interfaces.InvalidationListener;
+import org.jnp.interfaces.InvalidationSource;
 import org.jnp.interfaces.Naming;
 
 /**
@@ -38,7 +40,7 @@ import org.jnp.interfaces.Naming;
  * @version $Revision:$
  */
 public class NamingServerWrapper
-   implements Naming
+   implements Naming, InvalidationSource
 {
    Naming delegate;
    NamingServerWrapper(Naming delegate)
@@ -81,4 +83,18 @@ public class NamingServerWrapper
    {
       delegate.unbind(name);
    }
+   public void addInvalidationListener(InvalidationListener listener)
+      throws RemoteException
+   {
+      if (delegate instanceof InvalidationSource)
+         ((InvalidationSource) delegate).addInvalidationListener(listener);
+      else
+         throw new RemoteException(delegate + " does not support invalidation");
+   }
+   public void removeInvalidationListener(InvalidationListener listener)
+      throws RemoteException
+   {
+      if (delegate instanceof InvalidationSource)
+         ((InvalidationSource) delegate).removeInvalidationListener(listener);
+   }
 }
@@ -0,0 +1,395 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security.plugins;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.jboss.logging.Logger;
+import org.jboss.util.CachePolicy;
+import org.jboss.util.TimedCachePolicy;
+
+import EDU.oswego.cs.dl.util.concurrent.ConcurrentReaderHashMap;
+
+/** A timed cache for the authentication cache of the security domains.
+ Entries are read without locking, so that the threads of one caller do not
+ serialize on the cache, while insertions and removals are serialized on
+ the cache instance. The entries are TimedCachePolicy.TimedEntry instances,
+ other values are wrapped in an entry expiring after getDefaultLifetime()
+ seconds.
+
+ Expired entries are removed when accessed and every resolution period.
+ When the cache holds more than getMaxSize() entries the oldest inserted
+ entries are evicted.
+
+ @see TimedCachePolicy
+ @version $Revision$
+ */
+public class ConcurrentTimedCachePolicy implements CachePolicy
+{
+   private static Logger log = Logger.getLogger(ConcurrentTimedCachePolicy.class);
+
+   /** The timer updating the cache time of all caches */
+   private static Timer resolutionTimer = new Timer(true);
+
+   /** The key of a null principal, the map does not allow null keys */
+   private static final Object NULL_KEY = new Object();
+
+   /** The cached TimedEntry objects, read without locking */
+   private ConcurrentReaderHashMap entryMap = new ConcurrentReaderHashMap();
+   /** The cached keys in insertion order, guarded by this */
+   private LinkedHashMap insertionOrder = new LinkedHashMap();
+   /** The lifetime in seconds of the values not implementing TimedEntry */
+   private int defaultLifetime;
+   /** The resolution in seconds of the cache time */
+   private int resolution;
+   /** The maximum number of entries, 0 for no maximum */
+   private int maxSize;
+   /** The cache time */
+   private volatile long now;
+   /** The task updating the cache time */
+   private TimerTask resolutionTask;
+
+   /** Creates a cache
+    @param defaultLifetime the lifetime in seconds of the values that do not
+      implement TimedEntry.
+    @param resolution the resolution in seconds of the cache time. The cache
+      does not query the system time on every get() but every resolution seconds.
+    @param maxSize the maximum number of entries, 0 for no maximum.
+    */
+   public ConcurrentTimedCachePolicy(int defaultLifetime, int resolution, int maxSize)
+   {
+      this.defaultLifetime = defaultLifetime;
+      if( resolution <= 0 )
+         resolution = 60;
+      this.resolution = resolution;
+      this.maxSize = maxSize;
+   }
+
+   // Service implementation ----------------------------------------------
+   public void create()
+   {
+      now = System.currentTimeMillis();
+   }
+
+   /** Schedules the update of the cache time every resolution seconds
+    */
+   public synchronized void start()
+   {
+      resolutionTask = new ResolutionTask();
+      resolutionTimer.scheduleAtFixedRate(resolutionTask, 0, 1000L * resolution);
+   }
+
+   public synchronized void stop()
+   {
+      if( resolutionTask != null )
+         resolutionTask.cancel();
+      resolutionTask = null;
+   }
+
+   public void destroy()
+   {
+      flush();
+   }
+
+   // --- Begin CachePolicy interface methods
+   /** Get the cache value for key if it has not expired. If the TimedEntry
+    is expired its destroy method is called and it is removed from the cache.
+    */
+   public Object get(Object key)
+   {
+      Object mapKey = maskNull(key);
+      TimedCachePolicy.TimedEntry entry = (TimedCachePolicy.TimedEntry) entryMap.get(mapKey);
+      if( entry == null )
+         return null;
+
+      if( entry.isCurrent(now) == false && entry.refresh() == false )
+      {
+         removeEntry(mapKey, entry);
+         return null;
+      }
+      return entry.getValue();
+   }
+
+   /** Get the cache value for key without checking if it has expired.
+    */
+   public Object peek(Object key)
+   {
+      TimedCachePolicy.TimedEntry entry = (TimedCachePolicy.TimedEntry) entryMap.get(maskNull(key));
+      return entry == null ? null : entry.getValue();
+   }
+
+   /** Insert a value into the cache, evicting the oldest entries if the cache
+    is full.
+    @exception IllegalStateException if key is already in the cache
+    */
+   public void insert(Object key, Object value)
+   {
+      Object mapKey = maskNull(key);
+      TimedCachePolicy.TimedEntry entry;
+      if( value instanceof TimedCachePolicy.TimedEntry )
+         entry = (TimedCachePolicy.TimedEntry) value;
+      else
+         entry = new DefaultTimedEntry(defaultLifetime, value);
+      entry.init(now);
+
+      ArrayList evicted = null;
+      synchronized( this )
+      {
+         if( entryMap.get(mapKey) != null )
+            throw new IllegalStateException("Attempt to insert duplicate entry");
+         entryMap.put(mapKey, entry);
+         insertionOrder.put(mapKey, entry);
+
+         if( maxSize > 0 && insertionOrder.size() > maxSize )
+         {
+            evicted = new ArrayList();
+            Iterator iter = insertionOrder.entrySet().iterator();
+            while( insertionOrder.size() > maxSize )
+            {
+               Map.Entry eldest = (Map.Entry) iter.next();
+               iter.remove();
+               entryMap.remove(eldest.getKey());
+               evicted.add(eldest.getValue());
+            }
+         }
+      }
+
+      if( evicted != null )
+      {
+         if( log.isTraceEnabled() )
+            log.trace("Evicted " + evicted.size() + " entries, maxSize=" + maxSize);
+         for(int i = 0; i < evicted.size(); i ++)
+            ((TimedCachePolicy.TimedEntry) evicted.get(i)).destroy();
+      }
+   }
+
+   /** Remove the entry associated with key and call destroy on the entry
+    if found.
+    */
+   public void remove(Object key)
+   {
+      Object mapKey = maskNull(key);
+      TimedCachePolicy.TimedEntry entry;
+      synchronized( this )
+      {
+         entry = (TimedCachePolicy.TimedEntry) entryMap.remove(mapKey);
+         insertionOrder.remove(mapKey);
+      }
+      if( entry != null )
+         entry.destroy();
+   }
+
+   /** Remove all entries from the cache.
+    */
+   public void flush()
+   {
+      ArrayList entries;
+      synchronized( this )
+      {
+         entries = new ArrayList(insertionOrder.values());
+         entryMap.clear();
+         insertionOrder.clear();
+      }
+      for(int i = 0; i < entries.size(); i ++)
+         ((TimedCachePolicy.TimedEntry) entries.get(i)).destroy();
+   }
+
+   public int size()
+   {
+      return entryMap.size();
+   }
+   // --- End CachePolicy interface methods
+
+   /** Get the list of keys of the entries that have not expired.
+    @return List of the keys, a null principal key is returned as null.
+    */
+   public List getValidKeys()
+   {
+      ArrayList validKeys = new ArrayList();
+      long time = now;
+      Iterator iter = entryMap.entrySet().iterator();
+      while( iter.hasNext() )
+      {
+         Map.Entry mapEntry = (Map.Entry) iter.next();
+         TimedCachePolicy.TimedEntry entry = (TimedCachePolicy.TimedEntry) mapEntry.getValue();
+         if( entry.isCurrent(time) )
+            validKeys.add(unmaskNull(mapEntry.getKey()));
+      }
+      return validKeys;
+   }
+
+   /** Get the default lifetime of cache entries.
+    @return default lifetime in seconds of cache entries.
+    */
+   public int getDefaultLifetime()
+   {
+      return defaultLifetime;
+   }
+   /** Set the default lifetime of cache entries for new values added to the cache.
+    @param defaultLifetime lifetime in seconds of cache values that do
+    not implement TimedEntry.
+    */
+   public void setDefaultLifetime(int defaultLifetime)
+   {
+      this.defaultLifetime = defaultLifetime;
+   }
+
+   /** Get the resolution of the cache time.
+    @return resolution of the cache time in seconds.
+    */
+   public int getResolution()
+   {
+      return resolution;
+   }
+   /** Set the resolution of the cache time, a running cache is rescheduled.
+    @param resolution resolution of the cache time in seconds.
+    */
+   public synchronized void setResolution(int resolution)
+   {
+      if( resolution <= 0 )
+         resolution = 60;
+      this.resolution = resolution;
+      if( resolutionTask != null )
+      {
+         stop();
+         start();
+      }
+   }
+
+   /** Get the maximum number of entries.
+    @return the maximum number of entries, 0 for no maximum.
+    */
+   public int getMaxSize()
+   {
+      return maxSize;
+   }
+   /** Set the maximum number of entries, applied by the next insertion.
+    @param maxSize the maximum number of entries, 0 for no maximum.
+    */
+   public synchronized void setMaxSize(int maxSize)
+   {
+      this.maxSize = maxSize;
+   }
+
+   /** Get the cache time.
+    @return the cache time last obtained from System.currentTimeMillis()
+    */
+   public long currentTimeMillis()
+   {
+      return now;
+   }
+
+   /** Update the cache time and remove the expired entries
+    */
+   void updateTime()
+   {
+      now = System.currentTimeMillis();
+      Iterator iter = entryMap.entrySet().iterator();
+      while( iter.hasNext() )
+      {
+         Map.Entry mapEntry = (Map.Entry) iter.next();
+         TimedCachePolicy.TimedEntry entry = (TimedCachePolicy.TimedEntry) mapEntry.getValue();
+         if( entry.isCurrent(now) == false && entry.refresh() == false )
+            removeEntry(mapEntry.getKey(), entry);
+      }
+   }
+
+   /** Remove an expired entry unless it was replaced meanwhile
+    */
+   private void removeEntry(Object mapKey, TimedCachePolicy.TimedEntry entry)
+   {
+      synchronized( this )
+      {
+         if( entryMap.get(mapKey) != entry )
+            return;
+         entryMap.remove(mapKey);
+         insertionOrder.remove(mapKey);
+      }
+      entry.destroy();
+   }
+
+   private static Object maskNull(Object key)
+   {
+      return key == null ? NULL_KEY : key;
+   }
+
+   private static Object unmaskNull(Object key)
+   {
+      return key == NULL_KEY ? null : key;
+   }
+
+   /** Updates the cache time every resolution seconds
+    */
+   private class ResolutionTask extends TimerTask
+   {
+      public void run()
+      {
+         try
+         {
+            updateTime();
+         }
+         catch(Throwable t)
+         {
+            log.debug("Failed to remove expired entries", t);
+         }
+      }
+   }
+
+   /** The entry wrapping the values that do not implement TimedEntry
+    */
+   static class DefaultTimedEntry implements TimedCachePolicy.TimedEntry
+   {
+      long expirationTime;
+      Object value;
+
+      DefaultTimedEntry(long lifetime, Object value)
+      {
+         this.expirationTime = 1000 * lifetime;
+         this.value = value;
+      }
+      public void init(long now)
+      {
+         expirationTime += now;
+      }
+      public boolean isCurrent(long now)
+      {
+         return expirationTime > now;
+      }
+      public boolean refresh()
+      {
+         return false;
+      }
+      public void destroy()
+      {
+      }
+      public Object getValue()
+      {
+         return value;
+      }
+   }
+}
@@ -27,6 +27,7 @@ import java.security.Principal;
 import java.security.acl.Group;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
@@ -201,6 +202,11 @@ public class JaasSecurityManager extends ServiceMBeanSupport
     always set externally by our security manager service.
     */
    private CachePolicy domainCache;
+   /** Whether the domainCache can be read without synchronizing on it */
+   private boolean concurrentCache;
+   /** The ActiveLogin objects of the logins in progress keyed by Principal,
+    guarded by itself */
+   private HashMap activeLogins = new HashMap();
    /** The JAAS callback handler to use in defaultLogin */
    private CallbackHandler handler;
    /** The setSecurityInfo(Principal, Object) method of the handler obj */
@@ -256,6 +262,7 @@ public class JaasSecurityManager extends ServiceMBeanSupport
    public void setCachePolicy(CachePolicy domainCache)
    {
       this.domainCache = domainCache;
+      this.concurrentCache = domainCache instanceof ConcurrentTimedCachePolicy;
       log.debug("CachePolicy set to: "+domainCache);
    }
    
@@ -318,7 +325,8 @@ public class JaasSecurityManager extends ServiceMBeanSupport
     user's cached credentials match the given credential. If there is no
     credential cache or the cache information is invalid or does not match,
     the user is authenticated against the JAAS login modules configured for
-    the security domain.
+    the security domain. Only one login of a principal is done at a time,
+    the concurrent callers with the same credential use its outcome.
     @param principal - the security domain principal attempting access
     @param credential  the proof of identity offered by the principal
     @param activeSubject - if not null, a Subject that will be populated with
@@ -341,7 +349,7 @@ public class JaasSecurityManager extends ServiceMBeanSupport
             cacheInfo.release();
       }
       if( isValid == false )
-         isValid = authenticate(principal, credential, activeSubject);
+         isValid = authenticateOnce(principal, credential, activeSubject);
       if( trace )
          log.trace("End isValid, "+isValid);
       return isValid;
@@ -359,23 +367,29 @@ public class JaasSecurityManager extends ServiceMBeanSupport
    {
       if(domainCache == null)
          return principal;
-      Principal result = principal;
       // Get the CallerPrincipal group member
+      if( concurrentCache )
+         return getCallerPrincipal(principal);
       synchronized( domainCache )
       {
-         DomainInfo info = getCacheInfo(principal, false);
-         if( trace )
-            log.trace("getPrincipal, cache info: "+info);
-         if( info != null )
-         {
-            result = info.callerPrincipal;
-            // If the mapping did not have a callerPrincipal just use principal
-            if( result == null )
-               result = principal;
-            info.release();
-         }
+         return getCallerPrincipal(principal);
       }
+   }
 
+   private Principal getCallerPrincipal(Principal principal)
+   {
+      Principal result = principal;
+      DomainInfo info = getCacheInfo(principal, false);
+      if( trace )
+         log.trace("getPrincipal, cache info: "+info);
+      if( info != null )
+      {
+         result = info.callerPrincipal;
+         // If the mapping did not have a callerPrincipal just use principal
+         if( result == null )
+            result = principal;
+         info.release();
+      }
       return result;
    }
 
@@ -517,15 +531,83 @@ public class JaasSecurityManager extends ServiceMBeanSupport
       return isMember;
    }
 
+   /** Authenticate the principal unless a login of the principal is already
+    in progress. In that case wait for its outcome, and use it if the
+    credentials match, so that a burst of requests of one caller does a
+    single login instead of one per thread. A login module of the login in
+    progress that validates the principal again does so by a login of its
+    own rather than wait for itself.
+
+    * @param principal - the user id to authenticate
+    * @param credential - an opaque credential.
+    * @return false on failure, true on success.
+    */
+   private boolean authenticateOnce(Principal principal, Object credential,
+      Subject theSubject)
+   {
+      ActiveLogin login;
+      boolean owner = false;
+      synchronized( activeLogins )
+      {
+         login = (ActiveLogin) activeLogins.get(principal);
+         if( login == null )
+         {
+            login = new ActiveLogin(credential);
+            activeLogins.put(principal, login);
+            owner = true;
+         }
+      }
+
+      if( owner == false && login.thread == Thread.currentThread() )
+      {
+         if( trace )
+            log.trace("Reentrant login of principal: "+principal);
+         return authenticate(principal, credential, theSubject, null);
+      }
+
+      if( owner )
+      {
+         try
+         {
+            return authenticate(principal, credential, theSubject, login);
+         }
+         finally
+         {
+            synchronized( activeLogins )
+            {
+               activeLogins.remove(principal);
+            }
+            login.done();
+         }
+      }
+
+      if( trace )
+         log.trace("Waiting for the active login of principal: "+principal);
+      if( login.await() && login.hasOutcome && credentialsMatch(login.credential, credential) )
+      {
+         if( login.subject != null )
+         {
+            if( theSubject != null )
+               SubjectActions.copySubject(login.subject, theSubject, false, this.deepCopySubjectOption);
+            return true;
+         }
+         SubjectActions.setContextInfo("org.jboss.security.exception", login.exception);
+         return false;
+      }
+      // Another credential, the login threw or the wait was interrupted
+      return authenticate(principal, credential, theSubject, null);
+   }
+
    /** Currently this simply calls defaultLogin() to do a JAAS login using the
     security domain name as the login module configuration name.
     
     * @param principal - the user id to authenticate
     * @param credential - an opaque credential.
+    * @param login - the login to record the outcome in, may be null.
     * @return false on failure, true on success.
     */
    private boolean authenticate(Principal principal, Object credential,
-      Subject theSubject)
+      Subject theSubject, ActiveLogin login)
    {
       Subject subject = null;
       boolean authenticated = false;
@@ -553,6 +635,8 @@ public class JaasSecurityManager extends ServiceMBeanSupport
             authenticated = true;
             // Build the Subject based DomainInfo cache value
             updateCache(lc, subject, principal, credential);
+            if( login != null )
+               login.subject = subject;
          }
       }
       catch(LoginException e)
@@ -561,9 +645,13 @@ public class JaasSecurityManager extends ServiceMBeanSupport
          if( principal != null && principal.getName() != null || trace )
             log.trace("Login failure", e);
          authException = e;
+         if( login != null )
+            login.exception = e;
       }
       // Set the security association thread context info exception
       SubjectActions.setContextInfo("org.jboss.security.exception", authException);
+      if( login != null )
+         login.hasOutcome = true;
 
       return authenticated;
    }
@@ -630,7 +718,27 @@ public class JaasSecurityManager extends ServiceMBeanSupport
          log.trace(tmp.toString());
       }
 
-      Object subjectCredential = info.credential;
+      boolean isValid = credentialsMatch(info.credential, credential);
+
+      // If the credentials match, set the thread's active Subject
+      if( isValid )
+      {
+         // Copy the current subject into theSubject
+         if( theSubject != null )
+         {
+            SubjectActions.copySubject(info.subject, theSubject, false,this.deepCopySubjectOption);
+         }
+      }
+      if( trace )
+         log.trace("End validateCache, isValid="+isValid);
+
+      return isValid;
+   }
+ 
+   /** Compare a cached credential with the provided credential
+    */
+   private static boolean credentialsMatch(Object subjectCredential, Object credential)
+   {
       boolean isValid = false;
       // Check for a null credential as can be the case for an anonymous user
       if( credential == null || subjectCredential == null )
@@ -684,22 +792,9 @@ public class JaasSecurityManager extends ServiceMBeanSupport
          char[] a2 = (char[]) credential;
          isValid = Arrays.equals(a1, a2);         
       }
-
-      // If the credentials match, set the thread's active Subject
-      if( isValid )
-      {
-         // Copy the current subject into theSubject
-         if( theSubject != null )
-         {
-            SubjectActions.copySubject(info.subject, theSubject, false,this.deepCopySubjectOption);
-         }
-      }
-      if( trace )
-         log.trace("End validateCache, isValid="+isValid);
-
       return isValid;
    }
- 
+
    /** An accessor method that synchronizes access on the domainCache
     to avoid a race condition that can occur when the cache entry expires
     in the presence of multi-threaded access. The allowRefresh flag should
@@ -718,6 +813,19 @@ public class JaasSecurityManager extends ServiceMBeanSupport
          return null;
 
       DomainInfo cacheInfo = null;
+      if( concurrentCache )
+      {
+         /* The cache is read without locking. An entry removed meanwhile
+            has been logged out but its copy of the subject is still valid.
+         */
+         if( allowRefresh == true )
+            cacheInfo = (DomainInfo) domainCache.get(principal);
+         else
+            cacheInfo = (DomainInfo) domainCache.peek(principal);
+         if( cacheInfo != null )
+            cacheInfo.acquire();
+         return cacheInfo;
+      }
       synchronized( domainCache )
       {
           if( allowRefresh == true )
@@ -743,6 +851,11 @@ public class JaasSecurityManager extends ServiceMBeanSupport
          TimedCachePolicy cache = (TimedCachePolicy) domainCache;
          lifetime = cache.getDefaultLifetime();
       }
+      else if( domainCache instanceof ConcurrentTimedCachePolicy )
+      {
+         ConcurrentTimedCachePolicy cache = (ConcurrentTimedCachePolicy) domainCache;
+         lifetime = cache.getDefaultLifetime();
+      }
       DomainInfo info = new DomainInfo(lifetime);
       info.loginCtx = lc;
       info.subject = new Subject();
@@ -824,4 +937,54 @@ public class JaasSecurityManager extends ServiceMBeanSupport
        }
       return roles;
    }
+
+   /** A login in progress, the threads authenticating the same principal
+    meanwhile wait for its outcome.
+    */
+   private static class ActiveLogin
+   {
+      /** The thread doing the login */
+      private Thread thread = Thread.currentThread();
+      /** The credential of the login */
+      private Object credential;
+      /** The authenticated Subject, null if the login failed */
+      private Subject subject;
+      /** The login failure */
+      private LoginException exception;
+      /** Whether the login succeeded or failed rather than threw */
+      private boolean hasOutcome;
+      /** Whether the login completed, guarded by this */
+      private boolean done;
+
+      ActiveLogin(Object credential)
+      {
+         this.credential = credential;
+      }
+
+      synchronized void done()
+      {
+         done = true;
+         notifyAll();
+      }
+
+      /** Wait for the login to complete
+       @return false if the wait was interrupted
+       */
+      synchronized boolean await()
+      {
+         while( done == false )
+         {
+            try
+            {
+               wait();
+            }
+            catch(InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+               return false;
+            }
+         }
+         return true;
+      }
+   }
 }
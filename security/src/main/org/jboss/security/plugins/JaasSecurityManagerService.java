@@ -105,6 +105,7 @@ public class JaasSecurityManagerService
    private static String cacheJndiName = DEFAULT_CACHE_POLICY_PATH;
    private static int defaultCacheTimeout = 30*60;
    private static int defaultCacheResolution = 60;
+   private static int defaultCacheMaxSize = 10000;
    /** The class that provides the SecurityProxyFactory implementation */
    private static String securityProxyFactoryClassName = "org.jboss.security.SubjectSecurityProxyFactory";
    private static Class securityProxyFactoryClass = org.jboss.security.SubjectSecurityProxyFactory.class;
@@ -229,6 +230,21 @@ public class JaasSecurityManagerService
    {
       defaultCacheResolution = resInSecs;
    }
+   /** Get the default maximum number of entries of the authentication caches.
+    */
+   public int getDefaultCacheMaxSize()
+   {
+      return defaultCacheMaxSize;
+   }
+   /** Set the default maximum number of entries of the authentication caches,
+    0 for no maximum. This has no affect if the AuthenticationCacheJndiName
+    has been changed from the default value.
+    @param maxSize - the maximum number of cached principals per security domain.
+    */
+   public void setDefaultCacheMaxSize(int maxSize)
+   {
+      defaultCacheMaxSize = maxSize;
+   }
    
    /**
     * @see JaasSecurityManagerServiceMBean#getDeepCopySubjectMode()
@@ -259,8 +275,8 @@ public class JaasSecurityManagerService
    }
 
    /** Set the indicated security domain cache timeout. This only has an
-    effect if the security domain is using the default jboss TimedCachePolicy
-    implementation.
+    effect if the security domain is using the default ConcurrentTimedCachePolicy
+    or a jboss TimedCachePolicy implementation.
      
     @param securityDomain the name of the security domain cache
     @param timeoutInSecs - the cache timeout in seconds.
@@ -278,6 +294,12 @@ public class JaasSecurityManagerService
             tcp.setResolution(resInSecs);
          }
       }
+      else if( cache instanceof ConcurrentTimedCachePolicy )
+      {
+         ConcurrentTimedCachePolicy ctcp = (ConcurrentTimedCachePolicy) cache;
+         ctcp.setDefaultLifetime(timeoutInSecs);
+         ctcp.setResolution(resInSecs);
+      }
       else
       {
          log.warn("Failed to find cache policy for securityDomain='"
@@ -336,6 +358,10 @@ public class JaasSecurityManagerService
          TimedCachePolicy tcache = (TimedCachePolicy) cache;
          validPrincipals = tcache.getValidKeys();
       }
+      else if( cache instanceof ConcurrentTimedCachePolicy )
+      {
+         validPrincipals = ((ConcurrentTimedCachePolicy) cache).getValidKeys();
+      }
       return validPrincipals;
    }
 
@@ -802,12 +828,12 @@ public class JaasSecurityManagerService
       }
       /** This is the InvocationHandler callback for the Context interface that
        was created by out getObjectInstance() method. All this does is create
-       a new TimedCache instance.
+       a new ConcurrentTimedCachePolicy instance.
        */
       public Object invoke(Object obj, Method method, Object[] args) throws Throwable
       {
-         TimedCachePolicy cachePolicy = new TimedCachePolicy(defaultCacheTimeout,
-            true, defaultCacheResolution);
+         ConcurrentTimedCachePolicy cachePolicy = new ConcurrentTimedCachePolicy(defaultCacheTimeout,
+            defaultCacheResolution, defaultCacheMaxSize);
          cachePolicy.create();
          cachePolicy.start();
          return cachePolicy;
@@ -146,9 +146,23 @@ public interface JaasSecurityManagerServiceMBean
     */
    void setDefaultCacheResolution(int resInSecs);
 
+   /**
+    * Get the default maximum number of entries of the authentication caches.
+    */
+   int getDefaultCacheMaxSize();
+
+   /**
+    * Set the default maximum number of entries of the authentication caches,
+    * the oldest entries are evicted beyond it. This has no affect if the
+    * AuthenticationCacheJndiName has been changed from the default value.
+    * 
+    * @param maxSize the maximum number of cached principals, 0 for no maximum.
+    */
+   void setDefaultCacheMaxSize(int maxSize);
+
    /** Set the indicated security domain cache timeout. This only has an
-    * effect if the security domain is using the default jboss TimedCachePolicy
-    * implementation.
+    * effect if the security domain is using the default ConcurrentTimedCachePolicy
+    * or a jboss TimedCachePolicy implementation.
      
     @param securityDomain the name of the security domain cache
     @param timeoutInSecs - the cache timeout in seconds.
@@ -31,7 +31,10 @@ import javax.transaction.Synchronization;
 import javax.transaction.SystemException;
 import javax.transaction.Transaction;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This class provides a way to find out what entities are contained in
@@ -215,6 +218,54 @@ public class GlobalTxEntityMap
       }
    };
 
+   /**
+    * Work a persistence store defers while the instances of a transaction
+    * are synchronized, e.g. batched update statements. The batches are
+    * executed, in the order they were added, once all the instances are
+    * stored and before the synchronization returns.
+    */
+   public static interface StoreBatch
+   {
+      /**
+       * Executes the deferred work
+       * @throws Exception  thrown if the work failed, the transaction is marked for rollback
+       */
+      void execute() throws Exception;
+
+      /**
+       * Discards the deferred work, the synchronization did not complete
+       */
+      void discard();
+   }
+
+   /**
+    * Get a store batch of the transaction
+    *
+    * @param tx  the transaction
+    * @param key  the key the batch was added with
+    * @return the batch or null if there is none
+    */
+   public StoreBatch getStoreBatch(Transaction tx, Object key)
+   {
+      GlobalTxSynchronization globalSync = (GlobalTxSynchronization) txSynch.get(tx);
+      return globalSync == null ? null : globalSync.getStoreBatch(key);
+   }
+
+   /**
+    * Add a store batch to the transaction. This is only possible
+    * while the transaction is synchronizing its instances.
+    *
+    * @param tx  the transaction
+    * @param key  the key of the batch
+    * @param batch  the batch
+    * @return false if the transaction is not synchronizing and the work should not be deferred
+    */
+   public boolean addStoreBatch(Transaction tx, Object key, StoreBatch batch)
+   {
+      GlobalTxSynchronization globalSync = (GlobalTxSynchronization) txSynch.get(tx);
+      return globalSync != null && globalSync.addStoreBatch(key, batch);
+   }
+
    /**
     * sync all EntityEnterpriseContext that are involved (and changed)
     * within a transaction.
@@ -259,6 +310,7 @@ public class GlobalTxEntityMap
       private Transaction tx;
       private List instances = new ArrayList();
       private boolean synchronizing;
+      private Map storeBatches;
 
       public GlobalTxSynchronization(Transaction tx)
       {
@@ -270,6 +322,26 @@ public class GlobalTxEntityMap
          instances.add(ctx);
       }
 
+      public StoreBatch getStoreBatch(Object key)
+      {
+         return storeBatches == null ? null : (StoreBatch) storeBatches.get(key);
+      }
+
+      public boolean addStoreBatch(Object key, StoreBatch batch)
+      {
+         if(!synchronizing)
+         {
+            return false;
+         }
+
+         if(storeBatches == null)
+         {
+            storeBatches = new LinkedHashMap();
+         }
+         storeBatches.put(key, batch);
+         return true;
+      }
+
       public void synchronize()
       {
          if(synchronizing || instances.isEmpty())
@@ -313,6 +385,8 @@ public class GlobalTxEntityMap
                instance = (EntityEnterpriseContext) instances.get(i);
                instance.getTxAssociation().synchronize(currentThread, tx, instance);
             }
+
+            executeStoreBatches();
          }
          catch(Exception causeByException)
          {
@@ -345,11 +419,35 @@ public class GlobalTxEntityMap
          }
          finally
          {
+            discardStoreBatches();
             SecurityActions.setContextClassLoader(oldCl);
             synchronizing = false;
          }
       }
 
+      private void executeStoreBatches() throws Exception
+      {
+         while(storeBatches != null && !storeBatches.isEmpty())
+         {
+            Iterator i = storeBatches.values().iterator();
+            StoreBatch batch = (StoreBatch) i.next();
+            i.remove();
+            batch.execute();
+         }
+      }
+
+      private void discardStoreBatches()
+      {
+         if(storeBatches != null)
+         {
+            for(Iterator i = storeBatches.values().iterator(); i.hasNext();)
+            {
+               ((StoreBatch) i.next()).discard();
+            }
+            storeBatches = null;
+         }
+      }
+
       // Synchronization implementation -----------------------------
 
       public void beforeCompletion()
@@ -0,0 +1,43 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb;
+
+import org.jboss.invocation.Invocation;
+
+/** An extension of the BeanLock interface for locks that can let some
+ * invocations through without taking the sync lock.
+ *
+ * @version $Revision$
+ */
+public interface ReadMostlyBeanLock extends BeanLock
+{
+   /**
+    * Try to schedule an invocation without the sync lock. This never blocks.
+    *
+    * @param mi the method invocation
+    * @return true when the invocation may proceed, in which case neither
+    * schedule nor endInvocation must be called for it, false when the
+    * invocation has to go through schedule as usual
+    * @throws Exception when the invocation's transaction is marked for rollback
+    */
+   public boolean scheduleUnsynchronized(Invocation mi) throws Exception;
+}
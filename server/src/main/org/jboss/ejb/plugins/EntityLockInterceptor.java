@@ -22,6 +22,7 @@
 package org.jboss.ejb.plugins;
 
 import org.jboss.ejb.BeanLock;
+import org.jboss.ejb.ReadMostlyBeanLock;
 import org.jboss.invocation.Invocation;
 
 /**
@@ -97,6 +98,14 @@ public class EntityLockInterceptor
       try 
       {
    
+         // Readers of a read-mostly lock don't need the sync lock at all
+         if (lock instanceof ReadMostlyBeanLock
+            && ((ReadMostlyBeanLock) lock).scheduleUnsynchronized(mi))
+         {
+            if( trace ) log.trace("Unsynchronized invoke, key="+key);
+            return getNext().invoke(mi);
+         }
+
          lock.schedule(mi);
    
          try {
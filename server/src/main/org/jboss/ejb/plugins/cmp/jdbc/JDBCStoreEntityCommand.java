@@ -23,9 +23,19 @@ package org.jboss.ejb.plugins.cmp.jdbc;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import javax.ejb.EJBException;
+import javax.transaction.Transaction;
 
+import org.jboss.ejb.EntityContainer;
 import org.jboss.ejb.EntityEnterpriseContext;
+import org.jboss.ejb.GlobalTxEntityMap;
 import org.jboss.ejb.plugins.cmp.jdbc.bridge.JDBCEntityBridge;
 import org.jboss.ejb.plugins.cmp.jdbc.bridge.JDBCCMPFieldBridge;
 import org.jboss.ejb.plugins.cmp.jdbc.bridge.JDBCFieldBridge;
@@ -35,6 +45,9 @@ import org.jboss.logging.Logger;
  * JDBCStoreEntityCommand updates the row with the new state.
  * In the event that no field is dirty the command just returns.
  * Note: read-only fields are never considered dirty.
+ * When the entity has a batch-size and the transaction is synchronizing
+ * its instances the update is added to a batch of the same statement,
+ * which is executed once all the instances are stored.
  *
  * @author <a href="mailto:dain@daingroup.com">Dain Sundstrom</a>
  * @author <a href="mailto:rickard.oberg@telkel.com">Rickard berg</a>
@@ -49,12 +62,14 @@ public final class JDBCStoreEntityCommand
 {
    private final JDBCEntityBridge entity;
    private final JDBCFieldBridge[] primaryKeyFields;
+   private final int batchSize;
    private final Logger log;
 
    public JDBCStoreEntityCommand(JDBCStoreManager manager)
    {
       entity = (JDBCEntityBridge) manager.getEntityBridge();
       primaryKeyFields = entity.getPrimaryKeyFields();
+      batchSize = manager.getMetaData().getBatchSize();
 
       // Create the Log
       log = Logger.getLogger(
@@ -108,6 +123,11 @@ public final class JDBCStoreEntityCommand
          }
       }
 
+      if(batchSize > 1 && addToBatch(ctx, sql.toString(), dirtyIterator, hasLockedFields, lockedIterator))
+      {
+         return;
+      }
+
       Connection con = null;
       PreparedStatement ps = null;
       int rowsAffected = 0;
@@ -123,28 +143,7 @@ public final class JDBCStoreEntityCommand
          con = entity.getDataSource().getConnection();
          ps = con.prepareStatement(sql.toString());
 
-         // SET: set the dirty fields parameters
-         int index = 1;
-         dirtyIterator.reset();
-         while(dirtyIterator.hasNext())
-         {
-            index = dirtyIterator.next().setInstanceParameters(ps, index, ctx);
-         }
-
-         // WHERE: set primary key fields
-         index = entity.setPrimaryKeyParameters(ps, index, ctx.getId());
-
-         // WHERE: set optimistically locked field values
-         if(hasLockedFields)
-         {
-            lockedIterator.reset();
-            while(lockedIterator.hasNext())
-            {
-               JDBCCMPFieldBridge field = lockedIterator.next();
-               Object value = field.getLockedValue(ctx);
-               index = field.setArgumentParameters(ps, index, value);
-            }
-         }
+         setParameters(ps, ctx, dirtyIterator, hasLockedFields, lockedIterator);
 
          // execute statement
          rowsAffected = ps.executeUpdate();
@@ -170,6 +169,42 @@ public final class JDBCStoreEntityCommand
             rowsAffected + ", id=" + ctx.getId());
       }
 
+      setClean(ctx, dirtyIterator);
+   }
+
+   private void setParameters(PreparedStatement ps,
+                              EntityEnterpriseContext ctx,
+                              JDBCEntityBridge.FieldIterator dirtyIterator,
+                              boolean hasLockedFields,
+                              JDBCEntityBridge.FieldIterator lockedIterator)
+      throws Exception
+   {
+      // SET: set the dirty fields parameters
+      int index = 1;
+      dirtyIterator.reset();
+      while(dirtyIterator.hasNext())
+      {
+         index = dirtyIterator.next().setInstanceParameters(ps, index, ctx);
+      }
+
+      // WHERE: set primary key fields
+      index = entity.setPrimaryKeyParameters(ps, index, ctx.getId());
+
+      // WHERE: set optimistically locked field values
+      if(hasLockedFields)
+      {
+         lockedIterator.reset();
+         while(lockedIterator.hasNext())
+         {
+            JDBCCMPFieldBridge field = lockedIterator.next();
+            Object value = field.getLockedValue(ctx);
+            index = field.setArgumentParameters(ps, index, value);
+         }
+      }
+   }
+
+   private void setClean(EntityEnterpriseContext ctx, JDBCEntityBridge.FieldIterator dirtyIterator)
+   {
       // Mark the updated fields as clean.
       dirtyIterator.reset();
       while(dirtyIterator.hasNext())
@@ -177,4 +212,220 @@ public final class JDBCStoreEntityCommand
          dirtyIterator.next().setClean(ctx);
       }
    }
+
+   /**
+    * Adds the update to the batch of the transaction
+    *
+    * @return false if the transaction is not synchronizing and the update must be executed now
+    */
+   private boolean addToBatch(EntityEnterpriseContext ctx,
+                              String sql,
+                              JDBCEntityBridge.FieldIterator dirtyIterator,
+                              boolean hasLockedFields,
+                              JDBCEntityBridge.FieldIterator lockedIterator)
+   {
+      Transaction tx = ctx.getTransaction();
+      if(tx == null)
+      {
+         return false;
+      }
+
+      GlobalTxEntityMap txEntityMap = EntityContainer.getGlobalTxEntityMap();
+      UpdateBatch batch = (UpdateBatch) txEntityMap.getStoreBatch(tx, this);
+      if(batch == null)
+      {
+         batch = new UpdateBatch();
+         if(!txEntityMap.addStoreBatch(tx, this, batch))
+         {
+            return false;
+         }
+      }
+
+      try
+      {
+         batch.add(ctx, sql, dirtyIterator, hasLockedFields, lockedIterator);
+      }
+      catch(EJBException e)
+      {
+         throw e;
+      }
+      catch(Exception e)
+      {
+         throw new EJBException("Store failed", e);
+      }
+      return true;
+   }
+
+   /**
+    * Checks the update counts of a batch, every statement must update one row.
+    * A statement with optimistically locked fields must report it updated the
+    * row or the lock can not be verified, otherwise SUCCESS_NO_INFO is accepted.
+    *
+    * @param entityName the name of the entity
+    * @param rowsAffected the update counts returned by the driver
+    * @param locked whether each statement has optimistically locked fields
+    * @param ids the ids of the updated instances
+    * @throws EJBException when an update failed or could not be verified
+    */
+   public static void checkBatchUpdateCounts(String entityName, int[] rowsAffected, boolean[] locked, Object[] ids)
+   {
+      for(int i = 0; i < ids.length; ++i)
+      {
+         int rows = i < rowsAffected.length ? rowsAffected[i] : Statement.EXECUTE_FAILED;
+         if(rows == Statement.SUCCESS_NO_INFO)
+         {
+            if(locked[i])
+            {
+               throw new EJBException("Update failed. The driver did not return the update count of a " +
+                  "batched update with optimistic locking, set the batch-size of " +
+                  entityName + " to 0: id=" + ids[i]);
+            }
+         }
+         else if(rows != 1)
+         {
+            throw new EJBException("Update failed. Expected one affected row: rowsAffected=" +
+               rows + ", id=" + ids[i]);
+         }
+      }
+   }
+
+   // Inner
+
+   /**
+    * The updates of a transaction, with a statement for each distinct sql.
+    */
+   private final class UpdateBatch implements GlobalTxEntityMap.StoreBatch
+   {
+      private Connection con;
+      private final Map statements = new LinkedHashMap();
+
+      public void add(EntityEnterpriseContext ctx,
+                      String sql,
+                      JDBCEntityBridge.FieldIterator dirtyIterator,
+                      boolean hasLockedFields,
+                      JDBCEntityBridge.FieldIterator lockedIterator)
+         throws Exception
+      {
+         BatchedStatement statement = (BatchedStatement) statements.get(sql);
+         if(statement == null)
+         {
+            if(con == null)
+            {
+               con = entity.getDataSource().getConnection();
+            }
+            statement = new BatchedStatement(sql, con.prepareStatement(sql));
+            statements.put(sql, statement);
+         }
+
+         statement.add(ctx, dirtyIterator, hasLockedFields, lockedIterator);
+         if(statement.size() >= batchSize)
+         {
+            statement.execute();
+         }
+      }
+
+      public void execute() throws Exception
+      {
+         try
+         {
+            for(Iterator i = statements.values().iterator(); i.hasNext();)
+            {
+               ((BatchedStatement) i.next()).execute();
+            }
+         }
+         catch(EJBException e)
+         {
+            throw e;
+         }
+         catch(Exception e)
+         {
+            throw new EJBException("Store failed", e);
+         }
+         finally
+         {
+            discard();
+         }
+      }
+
+      public void discard()
+      {
+         for(Iterator i = statements.values().iterator(); i.hasNext();)
+         {
+            JDBCUtil.safeClose(((BatchedStatement) i.next()).ps);
+         }
+         statements.clear();
+         JDBCUtil.safeClose(con);
+         con = null;
+      }
+   }
+
+   /**
+    * A statement and the instances whose updates were added to it.
+    */
+   private final class BatchedStatement
+   {
+      private final String sql;
+      private final PreparedStatement ps;
+      private final List contexts = new ArrayList();
+      private final List dirtyIterators = new ArrayList();
+      private final List locked = new ArrayList();
+
+      public BatchedStatement(String sql, PreparedStatement ps)
+      {
+         this.sql = sql;
+         this.ps = ps;
+      }
+
+      public int size()
+      {
+         return contexts.size();
+      }
+
+      public void add(EntityEnterpriseContext ctx,
+                      JDBCEntityBridge.FieldIterator dirtyIterator,
+                      boolean hasLockedFields,
+                      JDBCEntityBridge.FieldIterator lockedIterator)
+         throws Exception
+      {
+         setParameters(ps, ctx, dirtyIterator, hasLockedFields, lockedIterator);
+         ps.addBatch();
+         contexts.add(ctx);
+         dirtyIterators.add(dirtyIterator);
+         locked.add(Boolean.valueOf(hasLockedFields));
+      }
+
+      public void execute() throws SQLException
+      {
+         if(contexts.isEmpty())
+         {
+            return;
+         }
+
+         if(log.isDebugEnabled())
+         {
+            log.debug("Executing batch of " + contexts.size() + " SQL: " + sql);
+         }
+
+         int[] rowsAffected = ps.executeBatch();
+
+         boolean[] lockedFlags = new boolean[contexts.size()];
+         Object[] ids = new Object[contexts.size()];
+         for(int i = 0; i < contexts.size(); ++i)
+         {
+            lockedFlags[i] = ((Boolean) locked.get(i)).booleanValue();
+            ids[i] = ((EntityEnterpriseContext) contexts.get(i)).getId();
+         }
+         checkBatchUpdateCounts(entity.getEntityName(), rowsAffected, lockedFlags, ids);
+
+         for(int i = 0; i < contexts.size(); ++i)
+         {
+            setClean((EntityEnterpriseContext) contexts.get(i),
+               (JDBCEntityBridge.FieldIterator) dirtyIterators.get(i));
+         }
+
+         contexts.clear();
+         dirtyIterators.clear();
+         locked.clear();
+      }
+   }
 }
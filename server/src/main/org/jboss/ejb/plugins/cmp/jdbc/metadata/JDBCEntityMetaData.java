@@ -228,6 +228,12 @@ public final class JDBCEntityMetaData
     */
    private final int fetchSize;
 
+   /**
+    * The maximum number of updates of this entity sent to the
+    * underlying data store in one batch when a transaction is synchronized.
+    */
+   private final int batchSize;
+
    /**
     * entity command meta data
     */
@@ -274,6 +280,7 @@ public final class JDBCEntityMetaData
       entityName = entity.getEjbName();
       listCacheMax = 1000;
       fetchSize = 0;
+      batchSize = 0;
 
       try
       {
@@ -704,6 +711,34 @@ public final class JDBCEntityMetaData
          fetchSize = defaultValues.getFetchSize();
       }
 
+      // batch-size
+      String batchSizeStr = MetaData.getOptionalChildContent(element, "batch-size");
+      if(batchSizeStr != null)
+      {
+         try
+         {
+            batchSize = Integer.parseInt(batchSizeStr);
+         }
+         catch(NumberFormatException e)
+         {
+            throw new DeploymentException(
+               "Invalid number format in " +
+               "batch-size '" + batchSizeStr + "': " + e
+            );
+         }
+         if(batchSize < 0)
+         {
+            throw new DeploymentException(
+               "Negative value for batch size " +
+               "batch-size '" + batchSizeStr + "'."
+            );
+         }
+      }
+      else
+      {
+         batchSize = defaultValues.getBatchSize();
+      }
+
       String compiler = MetaData.getOptionalChildContent(element, "ql-compiler");
       if(compiler == null)
       {
@@ -1377,6 +1412,16 @@ public final class JDBCEntityMetaData
       return fetchSize;
    }
 
+   /**
+    * The maximum number of updates of this entity that are sent to the
+    * database in a single batch when the transaction is synchronized.
+    * Zero or one means the updates are not batched.
+    */
+   public int getBatchSize()
+   {
+      return batchSize;
+   }
+
 
    /**
     * Gets the queries defined on this entity
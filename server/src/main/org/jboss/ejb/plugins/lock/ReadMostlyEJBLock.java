@@ -0,0 +1,64 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb.plugins.lock;
+
+import javax.transaction.Transaction;
+
+import org.jboss.ejb.ReadMostlyBeanLock;
+import org.jboss.invocation.Invocation;
+
+/**
+ * A QueuedPessimisticEJBLock for read-mostly entity beans.<p>
+ *
+ * Non-transactional invocations do not take the sync lock while no
+ * transaction owns the bean. They only read the owner, which is kept in a
+ * volatile, so any number of them run through the lock without contending
+ * on its monitor. This is what the queued lock already allows them, a
+ * non-transactional call waits for the owner to finish but never holds the
+ * transactional lock past schedule, but without each of them serializing
+ * on sync() twice.<p>
+ *
+ * Transactional invocations, read-only or not, go through the FIFO
+ * transactional queue of QueuedPessimisticEJBLock. A transactional reader
+ * that skipped it would not own the bean, and a writer transaction could
+ * run on the same context while the reader's synchronization interceptor
+ * is using it.
+ *
+ * @version $Revision$
+ */
+public class ReadMostlyEJBLock extends QueuedPessimisticEJBLock
+   implements ReadMostlyBeanLock
+{
+   /** The transaction owning the lock, readable without the sync lock */
+   private volatile Transaction owner = null;
+
+   public void setTransaction(Transaction tx)
+   {
+      super.setTransaction(tx);
+      owner = tx;
+   }
+
+   public boolean scheduleUnsynchronized(Invocation mi) throws Exception
+   {
+      return mi.getTransaction() == null && owner == null;
+   }
+}
@@ -27,20 +27,32 @@ import java.io.Serializable;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 import javax.ejb.TimerService;
 import javax.management.ObjectName;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
 
 import org.jboss.ejb.ContainerMBean;
 import org.jboss.logging.Logger;
 import org.jboss.mx.util.MBeanProxyExt;
 import org.jboss.system.ServiceMBeanSupport;
+import org.jboss.tm.TransactionLocal;
+import org.jboss.tm.TransactionManagerLocator;
 
 /**
  * This service implements a PersistencePolicy that persistes the timer to a
  * database.
  *
+ * When the plugin supports batches, the timers inserted and deleted by a
+ * transaction are written with a single batch before the transaction
+ * completes, a timer inserted and deleted by the same transaction is not
+ * written at all.
+ *
  * @author Thomas.Diesler@jboss.org
  * @author Scott.Stark@jboss.org
  * @author Dimitris.Andreadis@jboss.org
@@ -62,6 +74,11 @@ public class DatabasePersistencePolicy extends ServiceMBeanSupport
    private String dbpPluginClassName;
    /** The timers table */
    private String timersTable = "TIMERS";
+   /** Whether to batch the timers inserted and deleted by a transaction */
+   private boolean batchPerTransaction = true;
+
+   /** The batches of the transactions, null when not batching */
+   private TransactionLocal batches;
 
    /** The persisted timers seen on startup */
    private List timersToRestore;
@@ -102,6 +119,11 @@ public class DatabasePersistencePolicy extends ServiceMBeanSupport
       
       // create the table if needed
       dbpPlugin.createTableIfNotExists();
+
+      if (batchPerTransaction && dbpPlugin instanceof BatchDatabasePersistencePlugin)
+         batches = new TransactionLocal(TransactionManagerLocator.getInstance().locate());
+      else
+         batches = null;
    }
 
    /**
@@ -115,6 +137,13 @@ public class DatabasePersistencePolicy extends ServiceMBeanSupport
     */
    public void insertTimer(String timerId, TimedObjectId timedObjectId, Date firstEvent, long intervalDuration, Serializable info)
    {
+      TimerBatch batch = getBatch();
+      if (batch != null)
+      {
+         batch.insert(new TimerHandleImpl(timerId, timedObjectId, firstEvent, intervalDuration, info));
+         return;
+      }
+
       try
       {
          dbpPlugin.insertTimer(timerId, timedObjectId, firstEvent, intervalDuration, info);
@@ -134,6 +163,13 @@ public class DatabasePersistencePolicy extends ServiceMBeanSupport
     */
    public void deleteTimer(String timerId, TimedObjectId timedObjectId)
    {
+      TimerBatch batch = getBatch();
+      if (batch != null)
+      {
+         batch.delete(new TimerHandleImpl(timerId, timedObjectId, null, 0, null));
+         return;
+      }
+
       try
       {
          dbpPlugin.deleteTimer(timerId, timedObjectId);
@@ -256,6 +292,50 @@ public class DatabasePersistencePolicy extends ServiceMBeanSupport
       restoreTimers();
    }
 
+   /**
+    * Get the batch of the current transaction, a new batch is registered
+    * once the former one was written
+    *
+    * @return The batch or null when there is no transaction or no batching
+    */
+   private TimerBatch getBatch()
+   {
+      TransactionLocal batches = this.batches;
+      if (batches == null)
+         return null;
+
+      Transaction tx = batches.getTransaction();
+      if (tx == null)
+         return null;
+
+      try
+      {
+         // timers deleted in afterCompletion are deleted directly
+         int status = tx.getStatus();
+         if (status != Status.STATUS_ACTIVE && status != Status.STATUS_PREPARING)
+            return null;
+
+         TimerBatch batch = (TimerBatch)batches.get(tx);
+         if (batch == null || batch.isWritten())
+         {
+            batch = new TimerBatch();
+            tx.registerSynchronization(batch);
+            batches.set(tx, batch);
+         }
+         return batch;
+      }
+      catch (SystemException e)
+      {
+         log.debug("Cannot get the status of " + tx, e);
+         return null;
+      }
+      catch (Exception e)
+      {
+         log.debug("Cannot register the timer batch with " + tx, e);
+         return null;
+      }
+   }
+
    // MBean attributes *************************************************************************************************\
 
    /**
@@ -305,4 +385,93 @@ public class DatabasePersistencePolicy extends ServiceMBeanSupport
    {
       this.timersTable = timersTable;
    }   
+
+   /**
+    * @jmx.managed-attribute
+    */
+   public boolean getBatchPerTransaction()
+   {
+      return batchPerTransaction;
+   }
+
+   /**
+    * @jmx.managed-attribute
+    */
+   public void setBatchPerTransaction(boolean batchPerTransaction)
+   {
+      this.batchPerTransaction = batchPerTransaction;
+   }
+
+   /**
+    * The timers inserted and deleted by a transaction, written before
+    * the transaction completes
+    */
+   private class TimerBatch implements Synchronization
+   {
+      /** The timers to insert, timer key -> TimerHandleImpl */
+      private LinkedHashMap inserts = new LinkedHashMap();
+      /** The timers to delete, List<TimerHandleImpl> */
+      private List deletes = new ArrayList();
+      /** Whether the batch was written */
+      private boolean written;
+
+      synchronized boolean isWritten()
+      {
+         return written;
+      }
+
+      synchronized void insert(TimerHandleImpl handle)
+      {
+         inserts.put(getKey(handle), handle);
+      }
+
+      synchronized void delete(TimerHandleImpl handle)
+      {
+         // a timer inserted by the transaction is not written at all
+         if (inserts.remove(getKey(handle)) == null)
+            deletes.add(handle);
+      }
+
+      private String getKey(TimerHandleImpl handle)
+      {
+         return handle.getTimerId() + handle.getTimedObjectId();
+      }
+
+      public void beforeCompletion()
+      {
+         List insertList;
+         List deleteList;
+         synchronized (this)
+         {
+            written = true;
+            insertList = new ArrayList(inserts.values());
+            deleteList = deletes;
+         }
+
+         BatchDatabasePersistencePlugin plugin = (BatchDatabasePersistencePlugin)dbpPlugin;
+         try
+         {
+            plugin.deleteTimers(deleteList);
+         }
+         catch (SQLException e)
+         {
+            log.warn("Unable to delete timers", e);
+         }
+         try
+         {
+            plugin.insertTimers(insertList);
+         }
+         catch (SQLException e)
+         {
+            // rolls the transaction back
+            RuntimeException ex = new IllegalStateException("Unable to persist timers");
+            ex.initCause(e);
+            throw ex;
+         }
+      }
+
+      public void afterCompletion(int status)
+      {
+      }
+   }
 }
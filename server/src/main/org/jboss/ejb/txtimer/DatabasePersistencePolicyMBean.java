@@ -54,6 +54,10 @@ public interface DatabasePersistencePolicyMBean extends ServiceMBean, Persistenc
    /** The timers table name */
    void setTimersTable(String tableName);
    String getTimersTable();
+
+   /** Whether to batch the timers inserted and deleted by a transaction */
+   void setBatchPerTransaction(boolean batchPerTransaction);
+   boolean getBatchPerTransaction();
    
    // Operations ----------------------------------------------------
    
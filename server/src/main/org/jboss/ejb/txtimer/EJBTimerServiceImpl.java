@@ -33,6 +33,8 @@ import java.util.Map;
 
 import javax.ejb.TimerService;
 import javax.management.ObjectName;
+import javax.transaction.Status;
+import javax.transaction.Transaction;
 import javax.transaction.TransactionManager;
 
 import org.jboss.ejb.Container;
@@ -69,6 +71,14 @@ public class EJBTimerServiceImpl extends ServiceMBeanSupport
    private String timedObjectInvokerClassName;
    // The TransactionManagerFactory
    private TransactionManagerFactory transactionManagerFactory;
+   // The duration of a tick of the timer wheel in ms
+   private long tickDuration = 10;
+   // The number of buckets of the timer wheel
+   private int wheelSize = 1024;
+   // The maximum number of threads dispatching the timeouts
+   private int maxDispatchPoolSize = 20;
+   // The maximum number of timeouts waiting for a dispatch thread
+   private int maxDispatchQueueSize = 1000;
    
    // Plug-ins
 
@@ -80,6 +90,8 @@ public class EJBTimerServiceImpl extends ServiceMBeanSupport
    private PersistencePolicy persistencePolicy;
    // The timerId generator plug-in
    private TimerIdGenerator timerIdGenerator;   
+   // The scheduler of the timeouts of all the timers
+   private TimerScheduler timerScheduler;
    
    // Maps the timedObjectId to TimerServiceImpl objects
    private Map timerServiceMap = Collections.synchronizedMap(new HashMap());
@@ -166,6 +178,109 @@ public class EJBTimerServiceImpl extends ServiceMBeanSupport
       this.timedObjectInvokerClassName = timedObjectInvokerClassName;
    }
 
+   /**
+    * Get the duration of a tick of the timer wheel in ms,
+    * the timeouts are late by at most a tick.
+    *
+    * @jmx.managed-attribute
+    */
+   public long getTickDuration()
+   {
+      return tickDuration;
+   }
+
+   /**
+    * Set the duration of a tick of the timer wheel in ms
+    *
+    * @jmx.managed-attribute
+    */
+   public void setTickDuration(long tickDuration)
+   {
+      this.tickDuration = tickDuration;
+   }
+
+   /**
+    * Get the number of buckets of the timer wheel
+    *
+    * @jmx.managed-attribute
+    */
+   public int getWheelSize()
+   {
+      return wheelSize;
+   }
+
+   /**
+    * Set the number of buckets of the timer wheel
+    *
+    * @jmx.managed-attribute
+    */
+   public void setWheelSize(int wheelSize)
+   {
+      this.wheelSize = wheelSize;
+   }
+
+   /**
+    * Get the maximum number of threads dispatching the timeouts
+    *
+    * @jmx.managed-attribute
+    */
+   public int getMaxDispatchPoolSize()
+   {
+      return maxDispatchPoolSize;
+   }
+
+   /**
+    * Set the maximum number of threads dispatching the timeouts
+    *
+    * @jmx.managed-attribute
+    */
+   public void setMaxDispatchPoolSize(int maxDispatchPoolSize)
+   {
+      this.maxDispatchPoolSize = maxDispatchPoolSize;
+   }
+
+   /**
+    * Get the maximum number of timeouts waiting for a dispatch thread
+    *
+    * @jmx.managed-attribute
+    */
+   public int getMaxDispatchQueueSize()
+   {
+      return maxDispatchQueueSize;
+   }
+
+   /**
+    * Set the maximum number of timeouts waiting for a dispatch thread
+    *
+    * @jmx.managed-attribute
+    */
+   public void setMaxDispatchQueueSize(int maxDispatchQueueSize)
+   {
+      this.maxDispatchQueueSize = maxDispatchQueueSize;
+   }
+
+   /**
+    * Get the number of scheduled timeouts
+    *
+    * @jmx.managed-attribute
+    */
+   public int getScheduledTimeouts()
+   {
+      TimerScheduler scheduler = timerScheduler;
+      return (scheduler == null) ? 0 : scheduler.getSize();
+   }
+
+   /**
+    * Get the number of threads dispatching the timeouts
+    *
+    * @jmx.managed-attribute
+    */
+   public int getDispatchPoolSize()
+   {
+      TimerScheduler scheduler = timerScheduler;
+      return (scheduler == null) ? 0 : scheduler.getPoolSize();
+   }
+
    /**
     * Set the TransactionManagerFactory
     */
@@ -218,10 +333,18 @@ public class EJBTimerServiceImpl extends ServiceMBeanSupport
          log.warn("Cannot obtain the implementation of a TimerIdGenerator, using BigIntegerTimerIdGenerator: " + e.toString());
          timerIdGenerator = new BigIntegerTimerIdGenerator();
       }
+
+      // Start the scheduler shared by all the timers
+      timerScheduler = new TimerScheduler("EJB-Timer", tickDuration, wheelSize,
+            maxDispatchPoolSize, maxDispatchQueueSize);
+      timerScheduler.start();
    }
    
    protected void stopService()
    {
+      timerScheduler.stop();
+      timerScheduler = null;
+
       // Cleanup plugins
       transactionManager = null;
       retryPolicy = null;
@@ -274,7 +397,7 @@ public class EJBTimerServiceImpl extends ServiceMBeanSupport
       if (timerService == null)
       {
          timerService = new TimerServiceImpl(timedObjectId, invoker,
-               transactionManager, persistencePolicy, retryPolicy, timerIdGenerator);
+               transactionManager, persistencePolicy, retryPolicy, timerIdGenerator, timerScheduler);
          log.debug("createTimerService: " + timerService);
          timerServiceMap.put(timedObjectId, timerService);
       }
@@ -409,33 +532,87 @@ public class EJBTimerServiceImpl extends ServiceMBeanSupport
       
       if (handles.isEmpty() == false)
       {
-         // first remove the persisted handles from the db
-         for (Iterator i = handles.iterator(); i.hasNext(); )
+         // delete and re-create the timers in a transaction, so that the
+         // persistence policy writes the rows with a single batch
+         Transaction tx = null;
+         try
          {
-            TimerHandleImpl handle = (TimerHandleImpl)i.next();
-            persistencePolicy.deleteTimer(handle.getTimerId(), handle.getTimedObjectId());
+            if (transactionManager.getTransaction() == null)
+            {
+               transactionManager.begin();
+               tx = transactionManager.getTransaction();
+            }
+         }
+         catch (Exception e)
+         {
+            log.debug("Restoring timers without a transaction", e);
          }
 
-         // make a second pass to re-create the timers; use the container
-         // itself to retrieve the correct TimerService/ for each handle,
-         // then use the standard ejb timer API to recreate the timer
-         for (Iterator i = handles.iterator(); i.hasNext(); )
+         try
          {
-            TimerHandleImpl handle = (TimerHandleImpl)i.next();
-            try
+            // first remove the persisted handles from the db
+            for (Iterator i = handles.iterator(); i.hasNext(); )
             {
-               TimedObjectId targetId = handle.getTimedObjectId();
-               ContainerMBean container = (ContainerMBean)MBeanProxyExt.create(ContainerMBean.class, containerId, server);               
-               TimerService timerService = container.getTimerService(targetId.getInstancePk());
-               timerService.createTimer(handle.getFirstTime(), handle.getPeriode(), handle.getInfo());
+               TimerHandleImpl handle = (TimerHandleImpl)i.next();
+               persistencePolicy.deleteTimer(handle.getTimerId(), handle.getTimedObjectId());
             }
-            catch (Exception e)
+
+            // make a second pass to re-create the timers; use the container
+            // itself to retrieve the correct TimerService/ for each handle,
+            // then use the standard ejb timer API to recreate the timer
+            for (Iterator i = handles.iterator(); i.hasNext(); )
             {
-               log.warn("Unable to restore timer record: " + handle);
+               TimerHandleImpl handle = (TimerHandleImpl)i.next();
+               try
+               {
+                  TimedObjectId targetId = handle.getTimedObjectId();
+                  ContainerMBean container = (ContainerMBean)MBeanProxyExt.create(ContainerMBean.class, containerId, server);               
+                  TimerService timerService = container.getTimerService(targetId.getInstancePk());
+                  timerService.createTimer(handle.getFirstTime(), handle.getPeriode(), handle.getInfo());
+               }
+               catch (Exception e)
+               {
+                  log.warn("Unable to restore timer record: " + handle);
+               }
             }
          }
+         finally
+         {
+            if (tx != null)
+               endRestoreTransaction(tx, containerId);
+         }
       }      
    }
+
+   /**
+    * Commit the transaction the timers of a container were restored in,
+    * the timers stay persisted when it rolls back
+    */
+   private void endRestoreTransaction(Transaction tx, ObjectName containerId)
+   {
+      try
+      {
+         if (tx.getStatus() == Status.STATUS_ACTIVE)
+            transactionManager.commit();
+         else
+            transactionManager.rollback();
+      }
+      catch (Exception e)
+      {
+         log.warn("Unable to restore the timers of: " + containerId, e);
+      }
+      finally
+      {
+         try
+         {
+            if (transactionManager.getTransaction() != null)
+               transactionManager.suspend();
+         }
+         catch (Exception ignore)
+         {
+         }
+      }
+   }
    
    // EJBTimerServiceImplMbean operations ---------------------------
    
@@ -58,6 +58,28 @@ public interface EJBTimerServiceImplMBean extends ServiceMBean, EJBTimerService
    void setTimedObjectInvokerClassName(String timedObjectInvokerClassName);   
    String getTimedObjectInvokerClassName();
 
+   /** The duration of a tick of the timer wheel in ms */
+   void setTickDuration(long tickDuration);
+   long getTickDuration();
+
+   /** The number of buckets of the timer wheel */
+   void setWheelSize(int wheelSize);
+   int getWheelSize();
+
+   /** The maximum number of threads dispatching the timeouts */
+   void setMaxDispatchPoolSize(int maxDispatchPoolSize);
+   int getMaxDispatchPoolSize();
+
+   /** The maximum number of timeouts waiting for a dispatch thread */
+   void setMaxDispatchQueueSize(int maxDispatchQueueSize);
+   int getMaxDispatchQueueSize();
+
+   /** The number of scheduled timeouts */
+   int getScheduledTimeouts();
+
+   /** The number of threads dispatching the timeouts */
+   int getDispatchPoolSize();
+
    /** The TransactionManagerFactory */
    void setTransactionManagerFactory(TransactionManagerFactory factory);
 
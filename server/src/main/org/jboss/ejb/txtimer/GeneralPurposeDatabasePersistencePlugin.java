@@ -58,12 +58,15 @@ import org.jboss.mx.util.ObjectNameFactory;
  * This DatabasePersistencePlugin uses getBytes/setBytes to persist the
  * serializable objects associated with the timer.
  *
+ * The timers of a container are selected by their target ID, which is
+ * indexed. Several timers are inserted and deleted with JDBC batches.
+ *
  * @author Thomas.Diesler@jboss.org
  * @author Dimitris.Andreadis@jboss.org
  * @version $Revision: 62317 $
  * @since 23-Sep-2004
  */
-public class GeneralPurposeDatabasePersistencePlugin implements DatabasePersistencePluginExt
+public class GeneralPurposeDatabasePersistencePlugin implements DatabasePersistencePluginExt, BatchDatabasePersistencePlugin
 {
    /** logging support */
    private static Logger log = Logger.getLogger(GeneralPurposeDatabasePersistencePlugin.class);
@@ -86,6 +89,12 @@ public class GeneralPurposeDatabasePersistencePlugin implements DatabasePersiste
    // default JDBC type code for binary data
    private int binarySqlType;
 
+   /** The escape character of the target ID patterns */
+   protected static final char LIKE_ESCAPE = '!';
+
+   /** The maximum number of statements of a JDBC batch */
+   protected int maxBatchSize = 100;
+
    /**
     * Initialize the plugin and set also the timers tablename
     */
@@ -186,6 +195,53 @@ public class GeneralPurposeDatabasePersistencePlugin implements DatabasePersiste
          JDBCUtil.safeClose(st);
          JDBCUtil.safeClose(con);
       }
+
+      createIndexIfNotExists();
+   }
+
+   /**
+    * Create the index on the target ID column if it does not exist already,
+    * the timers of a container are selected by their target ID.
+    * Tables created by earlier versions get the index too.
+    */
+   protected void createIndexIfNotExists()
+   {
+      // The index lives in the schema of the table
+      String indexName = getTableName();
+      int dotIndex = indexName.lastIndexOf('.');
+      if (dotIndex != -1)
+         indexName = indexName.substring(dotIndex + 1);
+      indexName = indexName + "_TARGET_IDX";
+
+      Connection con = null;
+      Statement st = null;
+      try
+      {
+         List indexNames = SQLUtil.getOldIndexes(getTableName(), ds).getIndexNames();
+         for (int i = 0; i < indexNames.size(); ++i)
+         {
+            if (indexName.equalsIgnoreCase((String)indexNames.get(i)))
+               return;
+         }
+
+         String createIndexDDL = SQLUtil.CREATE_INDEX + indexName + " on " + getTableName() +
+                 " (" + getColumnTargetID() + ")";
+         log.debug("Executing DDL: " + createIndexDDL);
+
+         con = ds.getConnection();
+         st = con.createStatement();
+         st.executeUpdate(createIndexDDL);
+      }
+      catch (Exception e)
+      {
+         // The timers are still found without the index, only slower
+         log.warn("Cannot create index " + indexName + " on timer table: " + e);
+      }
+      finally
+      {
+         JDBCUtil.safeClose(st);
+         JDBCUtil.safeClose(con);
+      }
    }
 
    /** Insert a timer object */
@@ -198,39 +254,61 @@ public class GeneralPurposeDatabasePersistencePlugin implements DatabasePersiste
       {
          con = ds.getConnection();
 
-         String sql = "insert into " + getTableName() + " " +
-                 "(" + getColumnTimerID() + "," + getColumnTargetID() + "," + getColumnInitialDate() + "," + getColumnTimerInterval() + "," + getColumnInstancePK() + "," + getColumnInfo() + ") " +
-                 "values (?,?,?,?,?,?)";
-         st = con.prepareStatement(sql);
+         st = con.prepareStatement(getInsertTimerSql());
+         setInsertTimerParameters(st, timerId, timedObjectId, initialExpiration, intervalDuration, info);
 
-         st.setString(1, timerId);
-         st.setString(2, timedObjectId.toString());
-         st.setTimestamp(3, new Timestamp(initialExpiration.getTime()));
-         st.setLong(4, intervalDuration);
+         int rows = st.executeUpdate();
+         if (rows != 1)
+            log.error("Unable to insert timer for: " + timedObjectId);
+      }
+      finally
+      {
+         JDBCUtil.safeClose(st);
+         JDBCUtil.safeClose(con);
+      }
+   }
 
-         byte[] bytes = serialize(timedObjectId.getInstancePk());
-         if(bytes == null)
-         {
-            st.setNull(5, binarySqlType);
-         }
-         else
-         {
-            st.setBytes(5, bytes);
-         }
+   /**
+    * Insert the timers of a list of handles with a single connection,
+    * in JDBC batches when the driver supports them
+    *
+    * @param handles List<TimerHandleImpl>
+    */
+   public void insertTimers(List handles) throws SQLException
+   {
+      if (handles.isEmpty())
+         return;
 
-         bytes = serialize(info);
-         if(bytes == null)
-         {
-            st.setNull(6, binarySqlType);
-         }
-         else
+      Connection con = null;
+      PreparedStatement st = null;
+      try
+      {
+         con = ds.getConnection();
+
+         st = con.prepareStatement(getInsertTimerSql());
+         boolean batch = con.getMetaData().supportsBatchUpdates();
+         for (int i = 0; i < handles.size(); ++i)
          {
-            st.setBytes(6, bytes);
+            TimerHandleImpl handle = (TimerHandleImpl)handles.get(i);
+            setInsertTimerParameters(st, handle.getTimerId(), handle.getTimedObjectId(),
+                    handle.getFirstTime(), handle.getPeriode(), handle.getInfo());
+            if (batch == false)
+            {
+               if (st.executeUpdate() != 1)
+                  log.error("Unable to insert timer for: " + handle.getTimedObjectId());
+               continue;
+            }
+            st.addBatch();
+            if ((i + 1) % maxBatchSize == 0 || i + 1 == handles.size())
+            {
+               int[] rows = st.executeBatch();
+               for (int j = 0; j < rows.length; ++j)
+               {
+                  if (rows[j] == Statement.EXECUTE_FAILED)
+                     log.error("Unable to insert timer for: " + ((TimerHandleImpl)handles.get(i + 1 - rows.length + j)).getTimedObjectId());
+               }
+            }
          }
-
-         int rows = st.executeUpdate();
-         if (rows != 1)
-            log.error("Unable to insert timer for: " + timedObjectId);
       }
       finally
       {
@@ -245,7 +323,7 @@ public class GeneralPurposeDatabasePersistencePlugin implements DatabasePersiste
    public List selectTimers(ObjectName containerId) throws SQLException
    {
       Connection con = null;
-      Statement st = null;
+      PreparedStatement st = null;
       ResultSet rs = null;
       try
       {
@@ -253,8 +331,20 @@ public class GeneralPurposeDatabasePersistencePlugin implements DatabasePersiste
 
          List list = new ArrayList();
 
-         st = con.createStatement();
-         rs = st.executeQuery("select * from " + getTableName());
+         if (containerId == null)
+         {
+            st = con.prepareStatement("select * from " + getTableName());
+         }
+         else
+         {
+            // only read the rows of the container, the target ID starts with
+            // the container name. The rows of containers whose name starts
+            // with the same prefix are filtered out below.
+            st = con.prepareStatement("select * from " + getTableName() +
+                    " where " + getColumnTargetID() + " like ? escape '" + LIKE_ESCAPE + "'");
+            st.setString(1, getTargetIDPattern(con, containerId));
+         }
+         rs = st.executeQuery();
          while (rs.next())
          {
             String timerId = rs.getString(getColumnTimerID());
@@ -266,11 +356,11 @@ public class GeneralPurposeDatabasePersistencePlugin implements DatabasePersiste
             {
                Date initialDate = rs.getTimestamp(getColumnInitialDate());
                long interval = rs.getLong(getColumnTimerInterval());
-               Serializable pKey = (Serializable)deserialize(rs.getBytes(getColumnInstancePK()));
+               Serializable pKey = (Serializable)getBinaryObject(rs, getColumnInstancePK());
                Serializable info = null;
                try
                {
-                  info = (Serializable)deserialize(rs.getBytes(getColumnInfo()));
+                  info = (Serializable)getBinaryObject(rs, getColumnInfo());
                }
                catch (Exception e)
                {
@@ -308,8 +398,7 @@ public class GeneralPurposeDatabasePersistencePlugin implements DatabasePersiste
       {
          con = ds.getConnection();
 
-         String sql = "delete from " + getTableName() + " where " + getColumnTimerID() + "=? and " + getColumnTargetID() + "=?";
-         st = con.prepareStatement(sql);
+         st = con.prepareStatement(getDeleteTimerSql());
 
          st.setString(1, timerId);
          st.setString(2, timedObjectId.toString());
@@ -333,6 +422,48 @@ public class GeneralPurposeDatabasePersistencePlugin implements DatabasePersiste
       }
    }
 
+   /**
+    * Delete the timers of a list of handles with a single connection,
+    * in JDBC batches when the driver supports them
+    *
+    * @param handles List<TimerHandleImpl>
+    */
+   public void deleteTimers(List handles) throws SQLException
+   {
+      if (handles.isEmpty())
+         return;
+
+      Connection con = null;
+      PreparedStatement st = null;
+      try
+      {
+         con = ds.getConnection();
+
+         st = con.prepareStatement(getDeleteTimerSql());
+         boolean batch = con.getMetaData().supportsBatchUpdates();
+         for (int i = 0; i < handles.size(); ++i)
+         {
+            TimerHandleImpl handle = (TimerHandleImpl)handles.get(i);
+            st.setString(1, handle.getTimerId());
+            st.setString(2, handle.getTimedObjectId().toString());
+            if (batch == false)
+            {
+               if (st.executeUpdate() != 1)
+                  log.debug("Unable to remove timer for: " + handle.getTimerId());
+               continue;
+            }
+            st.addBatch();
+            if ((i + 1) % maxBatchSize == 0 || i + 1 == handles.size())
+               st.executeBatch();
+         }
+      }
+      finally
+      {
+         JDBCUtil.safeClose(st);
+         JDBCUtil.safeClose(con);
+      }
+   }
+
    /** Clear all persisted timers */
    public void clearTimers()
            throws SQLException
@@ -397,6 +528,75 @@ public class GeneralPurposeDatabasePersistencePlugin implements DatabasePersiste
       return "INFO";
    }
 
+   /** Get the insert statement of a timer */
+   protected String getInsertTimerSql()
+   {
+      return "insert into " + getTableName() + " " +
+              "(" + getColumnTimerID() + "," + getColumnTargetID() + "," + getColumnInitialDate() + "," + getColumnTimerInterval() + "," + getColumnInstancePK() + "," + getColumnInfo() + ") " +
+              "values (?,?,?,?,?,?)";
+   }
+
+   /** Get the delete statement of a timer */
+   protected String getDeleteTimerSql()
+   {
+      return "delete from " + getTableName() + " where " + getColumnTimerID() + "=? and " + getColumnTargetID() + "=?";
+   }
+
+   /** Set the parameters of the insert statement of a timer */
+   protected void setInsertTimerParameters(PreparedStatement st, String timerId, TimedObjectId timedObjectId,
+           Date initialExpiration, long intervalDuration, Serializable info) throws SQLException
+   {
+      st.setString(1, timerId);
+      st.setString(2, timedObjectId.toString());
+      st.setTimestamp(3, new Timestamp(initialExpiration.getTime()));
+      st.setLong(4, intervalDuration);
+      setBinaryParameter(st, 5, serialize(timedObjectId.getInstancePk()));
+      setBinaryParameter(st, 6, serialize(info));
+   }
+
+   /** Set a binary parameter, the bytes may be null */
+   protected void setBinaryParameter(PreparedStatement st, int index, byte[] bytes) throws SQLException
+   {
+      if (bytes == null)
+         st.setNull(index, binarySqlType);
+      else
+         st.setBytes(index, bytes);
+   }
+
+   /** Get the object deserialized from a binary column */
+   protected Object getBinaryObject(ResultSet rs, String column) throws SQLException
+   {
+      return deserialize(rs.getBytes(column));
+   }
+
+   /**
+    * Get the pattern the target IDs of the timers of a container match,
+    * the LIKE wildcards in the container name are escaped
+    */
+   protected String getTargetIDPattern(Connection con, ObjectName containerId) throws SQLException
+   {
+      // '[' starts a character range in SQL Server and Sybase patterns,
+      // the other databases reject it escaped
+      String product = con.getMetaData().getDatabaseProductName();
+      product = (product == null) ? "" : product.toLowerCase();
+      boolean escapeBracket = product.indexOf("sql server") != -1 || product.indexOf("sybase") != -1
+              || product.indexOf("adaptive server") != -1;
+
+      String prefix = new TimedObjectId(containerId).toString();
+      // take the closing bracket off
+      prefix = prefix.substring(0, prefix.length() - 1);
+
+      StringBuffer pattern = new StringBuffer(prefix.length() + 8);
+      for (int i = 0; i < prefix.length(); ++i)
+      {
+         char c = prefix.charAt(i);
+         if (c == '%' || c == '_' || c == LIKE_ESCAPE || (c == '[' && escapeBracket))
+            pattern.append(LIKE_ESCAPE);
+         pattern.append(c);
+      }
+      return pattern.append('%').toString();
+   }
+
    /** Serialize an object */
    protected byte[] serialize(Object obj)
    {
@@ -24,22 +24,9 @@ package org.jboss.ejb.txtimer;
 // $Id: OracleDatabasePersistencePlugin.java 62306 2007-04-12 18:20:11Z dimitris@jboss.org $
 
 import java.io.ByteArrayInputStream;
-import java.io.InputStream;
-import java.io.Serializable;
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
-import java.sql.Timestamp;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
-
-import javax.management.ObjectName;
-
-import org.jboss.ejb.plugins.cmp.jdbc.JDBCUtil;
-import org.jboss.logging.Logger;
 
 /**
  * This DatabasePersistencePlugin uses getBinaryStream/setBinaryStream to persist the
@@ -52,131 +39,18 @@ import org.jboss.logging.Logger;
  */
 public class OracleDatabasePersistencePlugin extends GeneralPurposeDatabasePersistencePlugin
 {
-   // logging support
-   private static Logger log = Logger.getLogger(OracleDatabasePersistencePlugin.class);
-
-   /**
-    * Insert a timer object
-    */
-   public void insertTimer(
-         String timerId,
-         TimedObjectId timedObjectId,
-         Date initialExpiration,
-         long intervalDuration,
-         Serializable info)
-      throws SQLException
+   /** Set a binary parameter with setBinaryStream, the bytes may be null */
+   protected void setBinaryParameter(PreparedStatement st, int index, byte[] bytes) throws SQLException
    {
-      Connection con = null;
-      PreparedStatement st = null;
-      try
-      {
-         con = ds.getConnection();
-
-         String sql = "insert into " + getTableName() + " " +
-                 "(" + getColumnTimerID() + "," + getColumnTargetID() +
-                 "," + getColumnInitialDate() + "," + getColumnTimerInterval() +
-                 "," + getColumnInstancePK() + "," + getColumnInfo() + ") " +
-                 "values (?,?,?,?,?,?)";
-         st = con.prepareStatement(sql);
-
-         st.setString(1, timerId);
-         st.setString(2, timedObjectId.toString());
-         st.setTimestamp(3, new Timestamp(initialExpiration.getTime()));
-         st.setLong(4, intervalDuration);
-
-         byte[] pkArr = serialize(timedObjectId.getInstancePk());
-         if (pkArr != null)
-         {
-            InputStream is = new ByteArrayInputStream(pkArr);
-            st.setBinaryStream(5, is, pkArr.length);
-         }
-         else
-         {
-            st.setBytes(5, null);
-         }
-
-         byte[] infoArr = serialize(info);
-         if (infoArr != null)
-         {
-            InputStream is = new ByteArrayInputStream(infoArr);
-            st.setBinaryStream(6, is, infoArr.length);
-         }
-         else
-         {
-            st.setBytes(6, null);
-         }
-
-         int rows = st.executeUpdate();
-         if (rows != 1)
-            log.error("Unable to insert timer for: " + timedObjectId);
-      }
-      finally
-      {
-         JDBCUtil.safeClose(st);
-         JDBCUtil.safeClose(con);
-      }
+      if (bytes != null)
+         st.setBinaryStream(index, new ByteArrayInputStream(bytes), bytes.length);
+      else
+         st.setBytes(index, null);
    }
 
-   /**
-    * Select a list of currently persisted timer handles
-    * 
-    * @return List<TimerHandleImpl>
-    */
-   public List selectTimers(ObjectName containerId) throws SQLException
+   /** Get the object deserialized from a binary column with getBinaryStream */
+   protected Object getBinaryObject(ResultSet rs, String column) throws SQLException
    {
-      Connection con = null;
-      Statement st = null;
-      ResultSet rs = null;
-      try
-      {
-         con = ds.getConnection();
-
-         List list = new ArrayList();
-
-         st = con.createStatement();
-         rs = st.executeQuery("select * from " + getTableName());
-         while (rs.next())
-         {
-            String timerId = rs.getString(getColumnTimerID());
-            TimedObjectId targetId = TimedObjectId.parse(rs.getString(getColumnTargetID()));
-            
-            // add this handle to the returned list, if a null containerId was used
-            // or the containerId filter matches 
-            if (containerId == null || containerId.equals(targetId.getContainerId()))
-            {
-               Date initialDate = rs.getTimestamp(getColumnInitialDate());
-               long interval = rs.getLong(getColumnTimerInterval());
-               
-               InputStream isPk = rs.getBinaryStream(getColumnInstancePK());
-               Serializable pKey = (Serializable)deserialize(isPk);
-               Serializable info = null;
-               try
-               {
-                  InputStream isInfo = rs.getBinaryStream(getColumnInfo());
-                  info = (Serializable)deserialize(isInfo);
-               }
-               catch (Exception e)
-               {
-                  // may happen if listing all handles (containerId is null)
-                  // with a stored custom info object coming from a scoped
-                  // deployment.
-                  log.warn("Cannot deserialize custom info object", e);
-               }
-               // is this really needed? targetId encapsulates pKey as well!
-               targetId = new TimedObjectId(targetId.getContainerId(), pKey);
-               TimerHandleImpl handle = new TimerHandleImpl(timerId, targetId, initialDate, interval, info);
-               
-               list.add(handle);
-            }
-         }
-         return list;
-      }
-      finally
-      {
-         JDBCUtil.safeClose(rs);
-         JDBCUtil.safeClose(st);
-         JDBCUtil.safeClose(con);
-      }
+      return deserialize(rs.getBinaryStream(column));
    }
 }
-
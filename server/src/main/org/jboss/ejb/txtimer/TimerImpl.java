@@ -25,8 +25,6 @@ package org.jboss.ejb.txtimer;
 
 import java.io.Serializable;
 import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import javax.ejb.EJBException;
 import javax.ejb.NoSuchObjectLocalException;
@@ -41,8 +39,8 @@ import org.jboss.logging.Logger;
 /**
  * An implementation of an EJB Timer.
  * 
- * Internally it uses a java.util.Timer and maintains its state in
- * a Tx manner.
+ * Internally it schedules its timeouts with the TimerScheduler of the
+ * timer service and maintains its state in a Tx manner.
  *
  * @author Thomas.Diesler@jboss.org
  * @author Dimitris.Andreadis@jboss.org
@@ -96,9 +94,13 @@ public class TimerImpl implements javax.ejb.Timer, Synchronization
 
    private long nextExpire;
    private int timerState;
-   private Timer utilTimer;
    private int hashCode;
 
+   // The scheduled timeout, guarded by this
+   private TimerScheduler.Timeout timeout;
+   // The context class loader of the thread that started the timer
+   private ClassLoader contextClassLoader;
+
    /**
     * Schedules the txtimer for execution at the specified time with a specified periode.
     */
@@ -201,7 +203,7 @@ public class TimerImpl implements javax.ejb.Timer, Synchronization
       if (timerState != EXPIRED)
          setTimerState(CANCELED);
       timerService.removeTimer(this);
-      utilTimer.cancel();
+      cancelTimeout();
    }
 
    /**
@@ -211,7 +213,7 @@ public class TimerImpl implements javax.ejb.Timer, Synchronization
    {
       if (timerState != EXPIRED)
          setTimerState(CANCELED);
-      utilTimer.cancel();
+      cancelTimeout();
    }
 
    /**
@@ -222,7 +224,7 @@ public class TimerImpl implements javax.ejb.Timer, Synchronization
       log.debug("stopTimer: " + this);
       if (timerState != EXPIRED)
          setTimerState(CANCELED);
-      utilTimer.cancel();      
+      cancelTimeout();
    }
    
    /**
@@ -360,9 +362,10 @@ public class TimerImpl implements javax.ejb.Timer, Synchronization
 
    private void startInTx()
    {
-      // JBAS-4330, provide a meaningful name to the timer thread, needs jdk5+
-      utilTimer = new Timer("EJB-Timer-" + timerId + timedObjectId);
-      
+      // The timeouts are dispatched by pooled threads, give them
+      // the class loader a thread of its own would have inherited
+      contextClassLoader = SecurityActions.getContextClassLoader();
+
       if (timerService.getTransaction() != null)
       {
          // don't schedule the timeout yet
@@ -385,10 +388,41 @@ public class TimerImpl implements javax.ejb.Timer, Synchronization
 
    private void scheduleTimeout()
    {
-      if (periode > 0)
-         utilTimer.schedule(new TimerTaskImpl(this), new Date(nextExpire), periode);
-      else
-         utilTimer.schedule(new TimerTaskImpl(this), new Date(nextExpire));      
+      scheduleTimeout(nextExpire);
+   }
+
+   /**
+    * Schedule the next timeout unless the timer was canceled or has expired
+    */
+   private synchronized void scheduleTimeout(long expiration)
+   {
+      if (timerState == CANCELED || timerState == EXPIRED)
+         return;
+
+      timeout = timerService.getTimerScheduler().schedule(new TimerTaskImpl(this, expiration), expiration);
+   }
+
+   /**
+    * The first expiration of an interval timer after the given one that is later than now
+    */
+   static long nextExpiration(long expiration, long periode, long now)
+   {
+      long next = expiration + periode;
+      if (next <= now)
+         next += ((now - next) / periode + 1) * periode;
+      return next;
+   }
+
+   /**
+    * Cancel the scheduled timeout
+    */
+   private synchronized void cancelTimeout()
+   {
+      if (timeout != null)
+      {
+         timeout.cancel();
+         timeout = null;
+      }
    }
    
    /**
@@ -519,27 +553,55 @@ public class TimerImpl implements javax.ejb.Timer, Synchronization
    // TimerTask ********************************************************************************************************
 
    /**
-    * The TimerTask's run method is invoked by the java.util.Timer
+    * The TimerTask's run method is invoked by a dispatch thread of the TimerScheduler
     */
-   private class TimerTaskImpl extends TimerTask
+   private class TimerTaskImpl implements Runnable
    {
       private TimerImpl timer;
+      private long expiration;
 
-      public TimerTaskImpl(TimerImpl timer)
+      public TimerTaskImpl(TimerImpl timer, long expiration)
       {
          this.timer = timer;
+         this.expiration = expiration;
       }
 
       /**
        * The action to be performed by this txtimer task.
        */
       public void run()
+      {
+         ClassLoader callerClassLoader = SecurityActions.getContextClassLoader();
+         SecurityActions.setContextClassLoader(contextClassLoader);
+         try
+         {
+            runTimeout();
+         }
+         finally
+         {
+            SecurityActions.setContextClassLoader(callerClassLoader);
+
+            // Interval timers are scheduled again once the timeout completes, so
+            // that the timeouts of a timer never overlap. Expirations that passed
+            // meanwhile are skipped, like the java.util.Timer did, a timer restored
+            // long after its first time does not fire for every missed periode.
+            if (periode > 0)
+            {
+               long next = nextExpiration(expiration, periode, System.currentTimeMillis());
+               if (nextExpire < next)
+                  nextExpire = next;
+               scheduleTimeout(next);
+            }
+         }
+      }
+
+      private void runTimeout()
       {
          log.debug("run: " + timer);
 
          // Set next scheduled execution attempt. This is used only
          // for reporting (getTimeRemaining()/getNextTimeout())
-         // and not from the underlying jdk timer implementation.
+         // and not from the underlying scheduler.
          if (isActive() && periode > 0)
          {
             nextExpire += periode;
@@ -0,0 +1,316 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb.txtimer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.jboss.logging.Logger;
+
+import EDU.oswego.cs.dl.util.concurrent.BoundedBuffer;
+import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
+import EDU.oswego.cs.dl.util.concurrent.ThreadFactory;
+
+/**
+ * Schedules the timeouts of all the txtimers of an EJBTimerService.
+ *
+ * The timeouts are kept in a hashed timing wheel, an array of buckets
+ * each holding the timeouts that expire on the ticks mapping to it.
+ * A single thread advances the wheel every tick and hands the expired
+ * timeouts to a bounded pool of dispatch threads. Scheduling and canceling
+ * a timeout take constant time whatever the number of timers, and the
+ * number of threads no longer grows with the number of timers.
+ *
+ * Timeouts expire on the first tick at or after their expiration time,
+ * so they are late by at most the tick duration.
+ *
+ * @version $Revision$
+ */
+public class TimerScheduler
+{
+   // logging support
+   private static Logger log = Logger.getLogger(TimerScheduler.class);
+
+   // The name of the threads
+   private String name;
+   // The duration of a tick in ms
+   private long tickDuration;
+   // The buckets of the wheel, Set<Timeout>
+   private Set[] wheel;
+   // The mask of the bucket indexes, the wheel size is a power of two
+   private int mask;
+   // The maximum number of dispatch threads
+   private int maxPoolSize;
+   // The maximum number of expired timeouts waiting for a dispatch thread
+   private int maxQueueSize;
+   // The dispatch pool
+   private PooledExecutor dispatcher;
+   // The thread advancing the wheel
+   private Thread ticker;
+   // The time of tick 0
+   private long startTime;
+   // The next tick to be processed, guarded by this
+   private long tick;
+   // The number of scheduled timeouts, guarded by this
+   private int size;
+   // Whether the scheduler is running
+   private volatile boolean running;
+
+   /**
+    * Create a scheduler, the wheel size is rounded up to a power of two
+    *
+    * @param name The name of the threads
+    * @param tickDuration The duration of a tick in ms
+    * @param wheelSize The number of buckets of the wheel
+    * @param maxPoolSize The maximum number of dispatch threads
+    * @param maxQueueSize The maximum number of expired timeouts waiting for a dispatch thread
+    */
+   public TimerScheduler(String name, long tickDuration, int wheelSize, int maxPoolSize, int maxQueueSize)
+   {
+      if (tickDuration <= 0)
+         throw new IllegalArgumentException("tick duration must be positive: " + tickDuration);
+      if (wheelSize <= 0 || wheelSize > (1 << 30))
+         throw new IllegalArgumentException("invalid wheel size: " + wheelSize);
+      if (maxPoolSize <= 0 || maxQueueSize <= 0)
+         throw new IllegalArgumentException("invalid dispatch pool: " + maxPoolSize + "/" + maxQueueSize);
+
+      int buckets = 1;
+      while (buckets < wheelSize)
+         buckets <<= 1;
+
+      this.name = name;
+      this.tickDuration = tickDuration;
+      this.mask = buckets - 1;
+      this.wheel = new Set[buckets];
+      for (int i = 0; i < buckets; ++i)
+         wheel[i] = new HashSet();
+
+      this.maxPoolSize = maxPoolSize;
+      this.maxQueueSize = maxQueueSize;
+   }
+
+   /**
+    * Start advancing the wheel
+    */
+   public synchronized void start()
+   {
+      if (running)
+         return;
+
+      dispatcher = new PooledExecutor(new BoundedBuffer(maxQueueSize), maxPoolSize);
+      dispatcher.setMinimumPoolSize(1);
+      dispatcher.setKeepAliveTime(60000);
+      // Block the wheel when the dispatch threads cannot keep up
+      dispatcher.waitWhenBlocked();
+      dispatcher.setThreadFactory(new ThreadFactory()
+      {
+         private int count = 0;
+
+         public synchronized Thread newThread(Runnable command)
+         {
+            Thread thread = new Thread(command, name + "-Dispatch#" + count++);
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+
+      startTime = System.currentTimeMillis();
+      tick = 0;
+      running = true;
+      ticker = new Thread(new Ticker(), name + "-Wheel");
+      ticker.setDaemon(true);
+      ticker.start();
+   }
+
+   /**
+    * Stop advancing the wheel and discard the scheduled timeouts,
+    * the timeouts being dispatched are allowed to complete
+    */
+   public void stop()
+   {
+      synchronized (this)
+      {
+         if (running == false)
+            return;
+
+         running = false;
+         for (int i = 0; i < wheel.length; ++i)
+         {
+            for (Iterator it = wheel[i].iterator(); it.hasNext();)
+               ((Timeout)it.next()).bucket = null;
+            wheel[i].clear();
+         }
+         size = 0;
+      }
+      ticker.interrupt();
+      dispatcher.shutdownAfterProcessingCurrentlyQueuedTasks();
+   }
+
+   /**
+    * Schedule a task
+    *
+    * @param task The task run by a dispatch thread on expiration
+    * @param expiration The time of the expiration, a time in the past expires on the next tick
+    * @return The timeout to cancel the task with
+    */
+   public synchronized Timeout schedule(Runnable task, long expiration)
+   {
+      if (running == false)
+         throw new IllegalStateException("Timer scheduler is not running: " + name);
+
+      // The first tick at or after the expiration, but not a processed one
+      long expirationTick = (expiration - startTime + tickDuration - 1) / tickDuration;
+      if (expirationTick < tick)
+         expirationTick = tick;
+
+      Timeout timeout = new Timeout(task, expirationTick);
+      timeout.bucket = wheel[(int)(expirationTick & mask)];
+      timeout.bucket.add(timeout);
+      size++;
+      return timeout;
+   }
+
+   /**
+    * Get the number of scheduled timeouts
+    */
+   public synchronized int getSize()
+   {
+      return size;
+   }
+
+   /**
+    * Get the number of dispatch threads
+    */
+   public synchronized int getPoolSize()
+   {
+      return (dispatcher == null) ? 0 : dispatcher.getPoolSize();
+   }
+
+   /**
+    * Remove the expired timeouts of the next tick
+    *
+    * @return The expired timeouts, List<Timeout>
+    */
+   private synchronized ArrayList expire()
+   {
+      ArrayList expired = null;
+      Set bucket = wheel[(int)(tick & mask)];
+      for (Iterator it = bucket.iterator(); it.hasNext();)
+      {
+         Timeout timeout = (Timeout)it.next();
+         if (timeout.tick <= tick)
+         {
+            it.remove();
+            timeout.bucket = null;
+            size--;
+            if (expired == null)
+               expired = new ArrayList();
+            expired.add(timeout);
+         }
+      }
+      tick++;
+      return expired;
+   }
+
+   /**
+    * The time the next tick is due
+    */
+   private synchronized long nextTickTime()
+   {
+      return startTime + tick * tickDuration;
+   }
+
+   /**
+    * A scheduled task
+    */
+   public class Timeout
+   {
+      // The task
+      private Runnable task;
+      // The tick the task expires on
+      private long tick;
+      // The bucket holding the timeout, null once expired or canceled
+      private Set bucket;
+
+      private Timeout(Runnable task, long tick)
+      {
+         this.task = task;
+         this.tick = tick;
+      }
+
+      /**
+       * Cancel the task unless it has expired already
+       *
+       * @return true when the task was canceled
+       */
+      public boolean cancel()
+      {
+         synchronized (TimerScheduler.this)
+         {
+            if (bucket == null)
+               return false;
+
+            bucket.remove(this);
+            bucket = null;
+            size--;
+            return true;
+         }
+      }
+   }
+
+   /**
+    * Advances the wheel and dispatches the expired timeouts
+    */
+   private class Ticker implements Runnable
+   {
+      public void run()
+      {
+         while (running)
+         {
+            try
+            {
+               long wait = nextTickTime() - System.currentTimeMillis();
+               if (wait > 0)
+                  Thread.sleep(wait);
+
+               ArrayList expired = expire();
+               if (expired != null)
+               {
+                  for (int i = 0; i < expired.size(); ++i)
+                     dispatcher.execute(((Timeout)expired.get(i)).task);
+               }
+            }
+            catch (InterruptedException e)
+            {
+               if (running)
+                  log.debug("Ignoring interrupt of " + name);
+            }
+            catch (Throwable t)
+            {
+               log.error("Error dispatching timeouts of " + name, t);
+            }
+         }
+      }
+   }
+}
@@ -65,6 +65,8 @@ public class TimerServiceImpl implements TimerService
    private TimerIdGenerator timerIdGenerator;
    // The retry policy
    private RetryPolicy retryPolicy;
+   // The scheduler of the timeouts
+   private TimerScheduler timerScheduler;
    
    // The timed object id
    private TimedObjectId timedObjectId;
@@ -84,7 +86,7 @@ public class TimerServiceImpl implements TimerService
    public TimerServiceImpl(
          TimedObjectId timedObjectId, TimedObjectInvoker timedObjectInvoker,
          TransactionManager transactionManager, PersistencePolicy persistencePolicy,
-         RetryPolicy retryPolicy, TimerIdGenerator timerIdGenerator)
+         RetryPolicy retryPolicy, TimerIdGenerator timerIdGenerator, TimerScheduler timerScheduler)
    {
       this.timedObjectId = timedObjectId;
       this.timedObjectInvoker = timedObjectInvoker;
@@ -92,6 +94,7 @@ public class TimerServiceImpl implements TimerService
       this.persistencePolicy = persistencePolicy;
       this.timerIdGenerator = timerIdGenerator;
       this.retryPolicy = retryPolicy;      
+      this.timerScheduler = timerScheduler;
    }
 
    // Public --------------------------------------------------------
@@ -304,6 +307,14 @@ public class TimerServiceImpl implements TimerService
       }
    }
 
+   /**
+    * Get the scheduler of the timeouts
+    */
+   TimerScheduler getTimerScheduler()
+   {
+      return timerScheduler;
+   }
+
    /**
     * Add a txtimer to the list of active timers
     */
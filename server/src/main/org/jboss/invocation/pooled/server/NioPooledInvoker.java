@@ -0,0 +1,307 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.invocation.pooled.server;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.jboss.invocation.Invocation;
+import org.jboss.net.sockets.DefaultSocketFactory;
+
+import EDU.oswego.cs.dl.util.concurrent.BoundedBuffer;
+import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
+import EDU.oswego.cs.dl.util.concurrent.ThreadFactory;
+
+/**
+ * A PooledInvoker that multiplexes the client sockets over a few
+ * java.nio selector threads instead of parking a ServerThread on the
+ * socket read of every connected client.
+ *
+ * The wire protocol is unchanged, clients keep using the PooledInvokerProxy.
+ * The selector threads only frame the requests, the invocations are run by
+ * a bounded pool of worker threads. The MaxPoolSize attribute bounds the
+ * number of workers rather than the number of connections, and once
+ * MaxQueueSize invocations wait for a worker the selectors stop reading
+ * until one is taken.
+ *
+ * Custom server socket factories, and therefore SSL, are not supported
+ * as the sockets are created through a ServerSocketChannel.
+ *
+ * @version $Revision$
+ *
+ * @jmx:mbean extends="org.jboss.invocation.pooled.server.PooledInvokerMBean"
+ */
+public class NioPooledInvoker extends PooledInvoker
+   implements NioPooledInvokerMBean
+{
+   protected int numSelectorThreads = 2;
+
+   protected int maxQueueSize = 1000;
+
+   protected int minPoolSize = 10;
+
+   protected ServerSocketChannel serverChannel;
+   protected NioSelectorThread[] selectorThreads;
+   protected PooledExecutor workers;
+   private int nextSelector = 0;
+
+   protected ServerSocket createServerSocket(InetAddress bindAddress) throws Exception
+   {
+      if( serverSocketFactoryName != null
+         || (serverSocketFactory != null && (serverSocketFactory instanceof DefaultSocketFactory) == false) )
+      {
+         throw new IllegalStateException("Custom server socket factories are not supported by "
+            + getClass().getName() + ", use the PooledInvoker");
+      }
+
+      serverChannel = ServerSocketChannel.open();
+      ServerSocket socket = serverChannel.socket();
+      socket.bind(new InetSocketAddress(bindAddress, serverBindPort), backlog);
+      return socket;
+   }
+
+   protected void startAcceptors() throws Exception
+   {
+      final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+      workers = new PooledExecutor(new BoundedBuffer(maxQueueSize), maxPoolSize);
+      workers.setMinimumPoolSize(minPoolSize);
+      workers.setKeepAliveTime(60000);
+      // Reject the requests when the queue is full, the selectors then stop
+      // reading the connection and retry rather than wait for a worker
+      workers.abortWhenBlocked();
+      workers.setThreadFactory(new ThreadFactory()
+      {
+         private int count = 0;
+
+         public synchronized Thread newThread(Runnable command)
+         {
+            Thread thread = new Thread(command, "NioPooledInvokerWorker#"+ count++ +"-"+serverBindPort);
+            thread.setContextClassLoader(loader);
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+
+      selectorThreads = new NioSelectorThread[numSelectorThreads];
+      for (int i = 0; i < numSelectorThreads; i++)
+      {
+         String name = "NioPooledInvokerSelector#"+i+"-"+serverBindPort;
+         selectorThreads[i] = new NioSelectorThread(this, name, timeout);
+         selectorThreads[i].start();
+      }
+
+      super.startAcceptors();
+   }
+
+   protected void stopAcceptors()
+   {
+      for (int i = 0; i < acceptThreads.length; i++)
+      {
+         try
+         {
+            acceptThreads[i].interrupt();
+         }
+         catch (Exception ignored){}
+      }
+      for (int i = 0; i < selectorThreads.length; i++)
+         selectorThreads[i].shutdown();
+      workers.shutdownAfterProcessingCurrentlyQueuedTasks();
+   }
+
+   public void run()
+   {
+      while (running)
+      {
+         try
+         {
+            SocketChannel channel = serverChannel.accept();
+            if( trace )
+               log.trace("Accepted: "+channel.socket());
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(enableTcpNoDelay);
+
+            NioSelectorThread selector;
+            synchronized (this)
+            {
+               selector = selectorThreads[nextSelector++ % selectorThreads.length];
+            }
+            selector.register(new NioServerConnection(channel, selector));
+         }
+         catch (Throwable ex)
+         {
+            if (running)
+               log.error("Failed to accept socket connection", ex);
+         }
+      }
+   }
+
+   /**
+    * Hand an invocation frame to the worker pool, called by the selectors.
+    *
+    * @param connection the connection the frame was received on
+    * @return false if the queue of the workers is full
+    * @throws InterruptedException if interrupted
+    */
+   boolean dispatch(NioServerConnection connection) throws InterruptedException
+   {
+      try
+      {
+         workers.execute(new InvocationTask(connection));
+         return true;
+      }
+      catch (RuntimeException e)
+      {
+         return false;
+      }
+   }
+
+   /**
+    * @jmx:managed-attribute
+    */
+   public int getNumSelectorThreads()
+   {
+      return numSelectorThreads;
+   }
+
+   /**
+    * @jmx:managed-attribute
+    */
+   public void setNumSelectorThreads(int count)
+   {
+      this.numSelectorThreads = count;
+   }
+
+   /**
+    * @jmx:managed-attribute
+    */
+   public int getMaxQueueSize()
+   {
+      return maxQueueSize;
+   }
+
+   /**
+    * @jmx:managed-attribute
+    */
+   public void setMaxQueueSize(int size)
+   {
+      this.maxQueueSize = size;
+   }
+
+   /**
+    * @jmx:managed-attribute
+    */
+   public int getMinPoolSize()
+   {
+      return minPoolSize;
+   }
+
+   /**
+    * @jmx:managed-attribute
+    */
+   public void setMinPoolSize(int size)
+   {
+      this.minPoolSize = size;
+   }
+
+   /**
+    * @jmx:managed-attribute
+    */
+   public int getCurrentConnectionCount()
+   {
+      int count = 0;
+      if (selectorThreads != null)
+      {
+         for (int i = 0; i < selectorThreads.length; i++)
+            count += selectorThreads[i].getConnectionCount();
+      }
+      return count;
+   }
+
+   /**
+    * The number of connected clients.
+    *
+    * @jmx:managed-attribute
+    */
+   public int getCurrentClientPoolSize()
+   {
+      return getCurrentConnectionCount();
+   }
+
+   /**
+    * The number of worker threads.
+    *
+    * @jmx:managed-attribute
+    */
+   public int getCurrentThreadPoolSize()
+   {
+      return workers != null ? workers.getPoolSize() : 0;
+   }
+
+   /**
+    * Decodes the invocation of a connection, invokes it and writes
+    * the response before giving the connection back to its selector.
+    */
+   private class InvocationTask implements Runnable
+   {
+      private final NioServerConnection connection;
+
+      InvocationTask(NioServerConnection connection)
+      {
+         this.connection = connection;
+      }
+
+      public void run()
+      {
+         try
+         {
+            Invocation invocation = connection.readInvocation();
+            if (invocation != null)
+            {
+               Object response = null;
+               try
+               {
+                  // Make absolutely sure thread interrupted is cleared.
+                  Thread.interrupted();
+                  response = invoke(invocation);
+               }
+               catch (Exception ex)
+               {
+                  response = ex;
+               }
+               Thread.interrupted(); // clear interrupted state so we don't fail on socket writes
+               connection.writeResponse(response);
+            }
+            connection.getSelector().resume(connection);
+         }
+         catch (Throwable t)
+         {
+            if( trace )
+               log.trace("invocation failed", t);
+            connection.close();
+         }
+      }
+   }
+}
+// vim:expandtab:tabstop=3:shiftwidth=3
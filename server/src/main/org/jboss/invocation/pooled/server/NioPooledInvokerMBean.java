@@ -0,0 +1,71 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.invocation.pooled.server;
+
+/**
+ * The NioPooledInvoker standard MBean interface.
+ *
+ * @version $Revision$
+ */
+public interface NioPooledInvokerMBean extends PooledInvokerMBean
+{
+   /**
+    * Getter for property numSelectorThreads
+    * @return the number of selector threads multiplexing the client sockets
+    */
+   int getNumSelectorThreads();
+
+   /**
+    * Setter for property numSelectorThreads
+    * @param count New value of property numSelectorThreads.
+    */
+   void setNumSelectorThreads(int count);
+
+   /**
+    * Getter for property maxQueueSize
+    * @return the number of framed invocations that may wait for a worker
+    */
+   int getMaxQueueSize();
+
+   /**
+    * Setter for property maxQueueSize
+    * @param size New value of property maxQueueSize.
+    */
+   void setMaxQueueSize(int size);
+
+   /**
+    * Getter for property minPoolSize
+    * @return the number of worker threads kept alive when idle
+    */
+   int getMinPoolSize();
+
+   /**
+    * Setter for property minPoolSize
+    * @param size New value of property minPoolSize.
+    */
+   void setMinPoolSize(int size);
+
+   /**
+    * @return the number of client connections currently registered
+    */
+   int getCurrentConnectionCount();
+}
@@ -0,0 +1,354 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.invocation.pooled.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Set;
+
+import org.jboss.logging.Logger;
+
+/**
+ * A thread multiplexing the sockets of many clients of the NioPooledInvoker.
+ *
+ * The selector thread reads the bytes sent by the clients, answers the ACK
+ * frames itself and hands invocation frames to the invoker's worker pool.
+ * While a worker owns a connection its read interest is cleared, the worker
+ * gives the connection back through {@link #resume(NioServerConnection)}.
+ * When the worker pool rejects an invocation the connection is not read and
+ * the dispatch is retried after each select, which then waits no longer
+ * than the retry delay, as is an incomplete invocation once the client
+ * stopped sending for the retry delay.
+ * Connections idle for longer than the socket timeout are closed, just as
+ * the ServerThread of the blocking PooledInvoker times out its socket read.
+ *
+ * @version $Revision$
+ */
+class NioSelectorThread extends Thread
+{
+   private static final Logger log = Logger.getLogger(NioSelectorThread.class);
+
+   /** The delay of the retries of the connections waiting for a worker or more bytes */
+   static final long RETRY_DELAY = 10;
+
+   private final NioPooledInvoker invoker;
+   private final Selector selector;
+   private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(8192);
+   /** The connections waiting to be registered or given back by a worker */
+   private final LinkedList pending = new LinkedList();
+   /** The connections waiting for a worker or more bytes, only used by the selector thread */
+   private final Set retries = new LinkedHashSet();
+   private final int timeout;
+   private volatile boolean running = true;
+   private long lastTimeoutCheck = System.currentTimeMillis();
+   private boolean trace;
+
+   NioSelectorThread(NioPooledInvoker invoker, String name, int timeout)
+      throws IOException
+   {
+      super(name);
+      this.invoker = invoker;
+      this.timeout = timeout;
+      this.selector = Selector.open();
+      this.trace = log.isTraceEnabled();
+      setDaemon(true);
+   }
+
+   /**
+    * Register a newly accepted connection.
+    *
+    * @param connection the connection
+    */
+   void register(NioServerConnection connection)
+   {
+      synchronized (pending)
+      {
+         pending.add(connection);
+      }
+      selector.wakeup();
+   }
+
+   /**
+    * Give a connection back after a worker processed an invocation.
+    *
+    * @param connection the connection
+    */
+   void resume(NioServerConnection connection)
+   {
+      connection.setBusy(false);
+      synchronized (pending)
+      {
+         pending.add(connection);
+      }
+      selector.wakeup();
+   }
+
+   int getConnectionCount()
+   {
+      return selector.keys().size();
+   }
+
+   void shutdown()
+   {
+      running = false;
+      selector.wakeup();
+   }
+
+   public void run()
+   {
+      while (running)
+      {
+         try
+         {
+            selector.select(retries.isEmpty() ? 1000 : RETRY_DELAY);
+            processPending();
+
+            Iterator i = selector.selectedKeys().iterator();
+            while (i.hasNext())
+            {
+               SelectionKey key = (SelectionKey) i.next();
+               i.remove();
+               NioServerConnection connection = (NioServerConnection) key.attachment();
+               try
+               {
+                  if (key.isValid() && key.isWritable())
+                     handleWrite(connection);
+                  if (key.isValid() && key.isReadable())
+                     handleRead(connection);
+               }
+               catch (Exception e)
+               {
+                  if (trace)
+                     log.trace("Closing " + connection, e);
+                  connection.close();
+               }
+            }
+
+            processRetries();
+            if (timeout > 0)
+               closeIdleConnections();
+         }
+         catch (Throwable t)
+         {
+            if (running)
+               log.error("Failed to process selected keys", t);
+         }
+      }
+
+      Iterator i = selector.keys().iterator();
+      while (i.hasNext())
+      {
+         SelectionKey key = (SelectionKey) i.next();
+         ((NioServerConnection) key.attachment()).close();
+      }
+      try
+      {
+         selector.close();
+      }
+      catch (IOException ignored)
+      {
+      }
+   }
+
+   private void processPending()
+   {
+      ArrayList connections;
+      synchronized (pending)
+      {
+         if (pending.isEmpty())
+            return;
+         connections = new ArrayList(pending);
+         pending.clear();
+      }
+
+      // Process outside of the lock
+      for (int n = 0; n < connections.size(); ++n)
+      {
+         NioServerConnection connection = (NioServerConnection) connections.get(n);
+         SocketChannel channel = connection.getChannel();
+         try
+         {
+            SelectionKey key = connection.getKey();
+            if (key == null)
+            {
+               key = channel.register(selector, 0, connection);
+               connection.setKey(key);
+               if (connection.writeHeader() == false)
+               {
+                  key.interestOps(SelectionKey.OP_WRITE);
+                  continue;
+               }
+            }
+            if (key.isValid() == false)
+               continue;
+            if (connection.writePending())
+            {
+               key.interestOps(SelectionKey.OP_READ);
+               // The bytes of the next frame may already be here
+               handleFrames(connection, false);
+            }
+            else
+            {
+               key.interestOps(SelectionKey.OP_WRITE);
+            }
+         }
+         catch (Exception e)
+         {
+            if (trace)
+               log.trace("Closing " + connection, e);
+            connection.close();
+         }
+      }
+   }
+
+   private void handleWrite(NioServerConnection connection) throws Exception
+   {
+      if (connection.writePending())
+      {
+         if (connection.isBusy() == false)
+         {
+            connection.getKey().interestOps(SelectionKey.OP_READ);
+            handleFrames(connection, false);
+         }
+         else
+         {
+            connection.getKey().interestOps(0);
+         }
+      }
+   }
+
+   private void handleRead(NioServerConnection connection) throws Exception
+   {
+      readBuffer.clear();
+      if (connection.read(readBuffer) == false)
+      {
+         if (trace)
+            log.trace("Client closed " + connection);
+         connection.close();
+         return;
+      }
+      handleFrames(connection, false);
+   }
+
+   /**
+    * Dispatch the connections the workers rejected, and the incomplete
+    * invocations of the clients that stopped sending for the retry delay.
+    */
+   private void processRetries()
+   {
+      if (retries.isEmpty())
+         return;
+      long now = System.currentTimeMillis();
+      Object[] connections = retries.toArray();
+      retries.clear();
+      for (int n = 0; n < connections.length; ++n)
+      {
+         NioServerConnection connection = (NioServerConnection) connections[n];
+         SelectionKey key = connection.getKey();
+         if (key.isValid() == false || connection.isBusy())
+            continue;
+         try
+         {
+            key.interestOps(SelectionKey.OP_READ);
+            handleFrames(connection, now - connection.getLastActivity() >= RETRY_DELAY);
+         }
+         catch (Exception e)
+         {
+            if (trace)
+               log.trace("Closing " + connection, e);
+            connection.close();
+         }
+      }
+   }
+
+   private void handleFrames(NioServerConnection connection, boolean quiet) throws Exception
+   {
+      SelectionKey key = connection.getKey();
+      while (connection.isBusy() == false)
+      {
+         int frame = connection.nextFrame(quiet);
+         if (frame == NioServerConnection.FRAME_NONE)
+            return;
+         if (frame == NioServerConnection.FRAME_DEFERRED)
+         {
+            // Decoded again once the bytes doubled or the client is quiet
+            retries.add(connection);
+            return;
+         }
+
+         if (frame == NioServerConnection.FRAME_ACK)
+         {
+            if (connection.acknowledge() == false)
+            {
+               key.interestOps(SelectionKey.OP_WRITE);
+               return;
+            }
+         }
+         else
+         {
+            // A worker owns the connection until it resumes it
+            connection.setBusy(true);
+            key.interestOps(0);
+            if (invoker.dispatch(connection) == false)
+            {
+               // The workers are saturated, the socket is not read meanwhile
+               connection.setBusy(false);
+               retries.add(connection);
+               return;
+            }
+         }
+      }
+   }
+
+   private void closeIdleConnections()
+   {
+      long now = System.currentTimeMillis();
+      if (now - lastTimeoutCheck < 1000)
+         return;
+      lastTimeoutCheck = now;
+
+      ArrayList idle = new ArrayList();
+      Iterator i = selector.keys().iterator();
+      while (i.hasNext())
+      {
+         SelectionKey key = (SelectionKey) i.next();
+         NioServerConnection connection = (NioServerConnection) key.attachment();
+         if (connection.isBusy() == false && retries.contains(connection) == false
+            && now - connection.getLastActivity() > timeout)
+            idle.add(connection);
+      }
+      for (int n = 0; n < idle.size(); ++n)
+      {
+         NioServerConnection connection = (NioServerConnection) idle.get(n);
+         if (trace)
+            log.trace("socket timed out " + connection);
+         connection.close();
+      }
+   }
+}
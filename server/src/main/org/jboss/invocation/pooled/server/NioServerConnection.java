@@ -0,0 +1,466 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.invocation.pooled.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+
+import org.jboss.invocation.Invocation;
+import org.jboss.invocation.pooled.interfaces.OptimizedObjectInputStream;
+import org.jboss.invocation.pooled.interfaces.OptimizedObjectOutputStream;
+
+/**
+ * The server side state of one client connection of the NioPooledInvoker.
+ *
+ * The PooledInvokerProxy talks to the server over a single long lived
+ * object stream. Both sides reset the stream after every invocation so
+ * that no handles survive from one request to the next, which is what
+ * allows the bytes of a request to be decoded by a fresh ObjectInputStream
+ * once they have all arrived. Two kinds of frames are sent by the client:
+ *
+ * 1. An ACK, a one byte block data record used to check a pooled socket
+ *    is still alive. It is echoed back by the selector thread.
+ *
+ * 2. An invocation, a PooledMarshalledInvocation followed by a
+ *    Boolean.TRUE marker. It is decoded and invoked by a worker thread.
+ *
+ * A connection is only ever processed by one thread at a time, the client
+ * is synchronous and the selector thread stops reading from the socket
+ * while an invocation is handed off to a worker.
+ *
+ * An invocation found incomplete is decoded again once more bytes have
+ * arrived. From 64KB on it is only decoded again once its bytes have
+ * doubled or the client stopped sending for a moment, so that a large
+ * invocation is not deserialized again on every read.
+ *
+ * @version $Revision$
+ */
+class NioServerConnection
+{
+   /** The header every object stream starts with */
+   private static final byte[] STREAM_HEADER = {
+      (byte) (ObjectStreamConstants.STREAM_MAGIC >>> 8),
+      (byte) ObjectStreamConstants.STREAM_MAGIC,
+      (byte) (ObjectStreamConstants.STREAM_VERSION >>> 8),
+      (byte) ObjectStreamConstants.STREAM_VERSION
+   };
+
+   /** No complete frame has been received */
+   static final int FRAME_NONE = 0;
+   /** A complete ACK frame has been received */
+   static final int FRAME_ACK = 1;
+   /** The start of an invocation frame has been received */
+   static final int FRAME_INVOCATION = 2;
+   /** More bytes of an incomplete invocation have been received */
+   static final int FRAME_DEFERRED = 3;
+
+   /** The incomplete invocations shorter than this are decoded again on every read */
+   private static final int MIN_DEFERRED_LENGTH = 0x10000;
+
+   private final SocketChannel channel;
+   private final NioSelectorThread selector;
+   private SelectionKey key;
+
+   /** The received bytes not yet consumed */
+   private byte[] input = new byte[1024];
+   private int inputLength = 0;
+   private boolean headerRead = false;
+   /** The input length of the last attempt to decode an incomplete invocation */
+   private int incompleteLength = -1;
+   /** The input length from which an incomplete invocation is decoded again */
+   private int readAgainLength = 0;
+
+   /** The server side object stream, only its bytes travel */
+   private final OutputBuffer outputBuffer = new OutputBuffer();
+   private final ObjectOutputStream out;
+   /** The buffers waiting for the socket to become writable */
+   private final LinkedList pendingWrites = new LinkedList();
+
+   /** Whether a worker currently owns the connection */
+   private volatile boolean busy = false;
+   private volatile long lastActivity = System.currentTimeMillis();
+
+   NioServerConnection(SocketChannel channel, NioSelectorThread selector)
+      throws IOException
+   {
+      this.channel = channel;
+      this.selector = selector;
+      // The stream header is sent as soon as the socket is registered
+      out = new OptimizedObjectOutputStream(outputBuffer);
+      out.flush();
+   }
+
+   SocketChannel getChannel()
+   {
+      return channel;
+   }
+
+   NioSelectorThread getSelector()
+   {
+      return selector;
+   }
+
+   SelectionKey getKey()
+   {
+      return key;
+   }
+
+   void setKey(SelectionKey key)
+   {
+      this.key = key;
+   }
+
+   boolean isBusy()
+   {
+      return busy;
+   }
+
+   void setBusy(boolean busy)
+   {
+      this.busy = busy;
+      if (busy == false)
+         lastActivity = System.currentTimeMillis();
+   }
+
+   long getLastActivity()
+   {
+      return lastActivity;
+   }
+
+   /**
+    * Read whatever is available from the socket.
+    *
+    * @param buffer the selector's read buffer
+    * @return false if the client closed the connection
+    * @throws IOException for any error
+    */
+   boolean read(ByteBuffer buffer) throws IOException
+   {
+      int count;
+      while ((count = channel.read(buffer)) > 0)
+      {
+         buffer.flip();
+         append(buffer);
+         buffer.clear();
+      }
+      lastActivity = System.currentTimeMillis();
+      return count >= 0;
+   }
+
+   private void append(ByteBuffer buffer)
+   {
+      int needed = inputLength + buffer.remaining();
+      if (needed > input.length)
+      {
+         byte[] tmp = new byte[Math.max(needed, input.length * 2)];
+         System.arraycopy(input, 0, tmp, 0, inputLength);
+         input = tmp;
+      }
+      int count = buffer.remaining();
+      buffer.get(input, inputLength, count);
+      inputLength += count;
+   }
+
+   private void consume(int count)
+   {
+      inputLength -= count;
+      System.arraycopy(input, count, input, 0, inputLength);
+   }
+
+   /**
+    * Look at the received bytes to see what kind of frame is next.
+    *
+    * @param quiet whether the client stopped sending for a moment
+    * @return one of the FRAME_ constants
+    * @throws IOException if the client did not send an object stream
+    */
+   int nextFrame(boolean quiet) throws IOException
+   {
+      if (headerRead == false)
+      {
+         if (inputLength < STREAM_HEADER.length)
+            return FRAME_NONE;
+         for (int i = 0; i < STREAM_HEADER.length; ++i)
+         {
+            if (input[i] != STREAM_HEADER[i])
+               throw new StreamCorruptedException("Invalid stream header from " + channel.socket());
+         }
+         consume(STREAM_HEADER.length);
+         headerRead = true;
+      }
+
+      // Resets left over from the previous invocation
+      int offset = 0;
+      while (offset < inputLength && input[offset] == ObjectStreamConstants.TC_RESET)
+         ++offset;
+      if (offset == inputLength)
+         return FRAME_NONE;
+
+      if (input[offset] == ObjectStreamConstants.TC_BLOCKDATA)
+      {
+         if (inputLength - offset < 3)
+            return FRAME_NONE;
+         if (input[offset + 1] != 1)
+            throw new StreamCorruptedException("Unexpected block data of length " + input[offset + 1]);
+         return FRAME_ACK;
+      }
+      // Don't try to decode again until enough bytes arrived
+      if (inputLength == incompleteLength)
+         return FRAME_NONE;
+      if (incompleteLength >= 0 && inputLength < readAgainLength && quiet == false)
+         return FRAME_DEFERRED;
+      return FRAME_INVOCATION;
+   }
+
+   /**
+    * Consume an ACK frame and queue the reply.
+    *
+    * @return true when the reply was written completely
+    * @throws IOException for any error
+    */
+   boolean acknowledge() throws IOException
+   {
+      int offset = 0;
+      while (input[offset] == ObjectStreamConstants.TC_RESET)
+         ++offset;
+      byte ack = input[offset + 2];
+      consume(offset + 3);
+
+      out.writeByte(ack);
+      out.flush();
+      return send();
+   }
+
+   /**
+    * Write the stream header of the server side object stream.
+    *
+    * @return true when the header was written completely
+    * @throws IOException for any error
+    */
+   boolean writeHeader() throws IOException
+   {
+      return send();
+   }
+
+   /**
+    * Try to decode an invocation from the received bytes.
+    *
+    * @return the invocation or null if it has not arrived completely
+    * @throws Exception for any error other than missing bytes
+    */
+   Invocation readInvocation() throws Exception
+   {
+      InputBuffer body = new InputBuffer(input, inputLength);
+      Invocation invocation = null;
+      try
+      {
+         ObjectInputStream in = new OptimizedObjectInputStream(body);
+         invocation = (Invocation) in.readObject();
+         in.readObject(); // for stupid ObjectInputStream reset
+      }
+      catch (Exception e)
+      {
+         // Whatever a truncated stream fails with, the rest is still to come
+         if (body.underflow == false)
+            throw e;
+      }
+      if (body.underflow)
+      {
+         incompleteLength = inputLength;
+         if (inputLength >= MIN_DEFERRED_LENGTH)
+            readAgainLength = inputLength * 2;
+         else
+            readAgainLength = 0;
+         return null;
+      }
+      incompleteLength = -1;
+      consume(body.position);
+      return invocation;
+   }
+
+   /**
+    * Write the response of an invocation.
+    *
+    * @param response the response
+    * @return true when the response was written completely
+    * @throws IOException for any error
+    */
+   boolean writeResponse(Object response) throws IOException
+   {
+      out.writeObject(response);
+      out.reset();
+      // to make sure stream gets reset
+      // Stupid ObjectInputStream holds object graph
+      // can only be set by the client/server sending a TC_RESET
+      out.writeObject(Boolean.TRUE);
+      out.flush();
+      out.reset();
+      return send();
+   }
+
+   /**
+    * Write the bytes of the object stream to the socket.
+    *
+    * @return true if everything was written, false if the remainder
+    *    has to wait for the socket to become writable
+    * @throws IOException for any error
+    */
+   private boolean send() throws IOException
+   {
+      ByteBuffer buffer = outputBuffer.drain();
+      synchronized (pendingWrites)
+      {
+         if (pendingWrites.isEmpty())
+         {
+            channel.write(buffer);
+            if (buffer.hasRemaining() == false)
+               return true;
+         }
+         pendingWrites.add(buffer);
+         return false;
+      }
+   }
+
+   /**
+    * Write the pending buffers once the socket became writable.
+    *
+    * @return true if nothing is left to write
+    * @throws IOException for any error
+    */
+   boolean writePending() throws IOException
+   {
+      synchronized (pendingWrites)
+      {
+         while (pendingWrites.isEmpty() == false)
+         {
+            ByteBuffer buffer = (ByteBuffer) pendingWrites.getFirst();
+            channel.write(buffer);
+            if (buffer.hasRemaining())
+               return false;
+            pendingWrites.removeFirst();
+         }
+         return true;
+      }
+   }
+
+   void close()
+   {
+      if (key != null)
+         key.cancel();
+      try
+      {
+         channel.close();
+      }
+      catch (IOException ignored)
+      {
+      }
+   }
+
+   public String toString()
+   {
+      return "NioServerConnection[" + channel.socket() + "]";
+   }
+
+   /**
+    * A ByteArrayOutputStream whose content can be taken as a buffer
+    */
+   private static class OutputBuffer extends ByteArrayOutputStream
+   {
+      ByteBuffer drain()
+      {
+         ByteBuffer buffer = ByteBuffer.wrap(toByteArray());
+         reset();
+         return buffer;
+      }
+   }
+
+   /**
+    * The received bytes preceded by the stream header the ObjectInputStream
+    * expects. It records whether it was read beyond the received bytes, in
+    * which case the invocation being decoded is incomplete.
+    */
+   private static class InputBuffer extends InputStream
+   {
+      private final byte[] buffer;
+      private final int end;
+      /** The position in the buffer */
+      int position;
+      /** The position in the stream header */
+      private int headerPosition;
+      /** Whether a read went beyond the received bytes */
+      boolean underflow;
+
+      InputBuffer(byte[] buffer, int end)
+      {
+         this.buffer = buffer;
+         this.end = end;
+      }
+
+      public int read()
+      {
+         if (headerPosition < STREAM_HEADER.length)
+            return STREAM_HEADER[headerPosition++] & 0xff;
+         if (position >= end)
+         {
+            underflow = true;
+            return -1;
+         }
+         return buffer[position++] & 0xff;
+      }
+
+      public int read(byte[] b, int off, int len)
+      {
+         if (len == 0)
+            return 0;
+         if (headerPosition < STREAM_HEADER.length)
+         {
+            int n = Math.min(len, STREAM_HEADER.length - headerPosition);
+            System.arraycopy(STREAM_HEADER, headerPosition, b, off, n);
+            headerPosition += n;
+            return n;
+         }
+         if (position >= end)
+         {
+            underflow = true;
+            return -1;
+         }
+         int n = Math.min(len, end - position);
+         System.arraycopy(buffer, position, b, off, n);
+         position += n;
+         return n;
+      }
+
+      public int available()
+      {
+         return STREAM_HEADER.length - headerPosition + end - position;
+      }
+   }
+}
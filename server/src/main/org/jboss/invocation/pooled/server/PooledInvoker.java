@@ -220,10 +220,7 @@ public class PooledInvoker extends ServiceMBeanSupport
       threadpool = new LinkedList();
        try
        {
-          if( serverSocketFactory != null )
-            serverSocket = serverSocketFactory.createServerSocket(serverBindPort, backlog, bindAddress);
-          else
-            serverSocket = new ServerSocket(serverBindPort, backlog, bindAddress);
+          serverSocket = createServerSocket(bindAddress);
        }
        catch( java.net.BindException be)
        {
@@ -244,6 +241,31 @@ public class PooledInvoker extends ServiceMBeanSupport
       log.debug("Bound invoker for JMX node");
       ctx.close();
 
+      startAcceptors();
+   }
+
+   /**
+    * Create the server socket the acceptor threads listen on.
+    *
+    * @param bindAddress the address to bind to, null for all interfaces
+    * @return the bound server socket
+    * @throws Exception for any error
+    */
+   protected ServerSocket createServerSocket(InetAddress bindAddress) throws Exception
+   {
+      if( serverSocketFactory != null )
+         return serverSocketFactory.createServerSocket(serverBindPort, backlog, bindAddress);
+      else
+         return new ServerSocket(serverBindPort, backlog, bindAddress);
+   }
+
+   /**
+    * Start the threads that accept client connections.
+    *
+    * @throws Exception for any error
+    */
+   protected void startAcceptors() throws Exception
+   {
       acceptThreads = new Thread[numAcceptThreads];
       for (int i = 0; i < numAcceptThreads; i++)
       {
@@ -253,6 +275,28 @@ public class PooledInvoker extends ServiceMBeanSupport
       }
    }
 
+   /**
+    * Stop the acceptor threads and shutdown the client connections.
+    */
+   protected void stopAcceptors()
+   {
+      maxPoolSize = 0; // so ServerThreads don't reinsert themselves
+      for (int i = 0; i < acceptThreads.length; i++)
+      {
+         try
+         {
+            acceptThreads[i].interrupt();
+         }
+         catch (Exception ignored){}
+      }
+      clientpool.flush();
+      for (int i = 0; i < threadpool.size(); i++)
+      {
+         ServerThread thread = (ServerThread)threadpool.removeFirst();
+         thread.shutdown();
+      }
+   }
+
    public void run()
    {
       while (running)
@@ -327,21 +371,7 @@ public class PooledInvoker extends ServiceMBeanSupport
    public void stopService() throws Exception
    {
       running = false;
-      maxPoolSize = 0; // so ServerThreads don't reinsert themselves
-      for (int i = 0; i < acceptThreads.length; i++)
-      {
-         try
-         {
-            acceptThreads[i].interrupt();
-         }
-         catch (Exception ignored){}
-      }
-      clientpool.flush();
-      for (int i = 0; i < threadpool.size(); i++)
-      {
-         ServerThread thread = (ServerThread)threadpool.removeFirst();
-         thread.shutdown();
-      }
+      stopAcceptors();
 
       try
       {
@@ -0,0 +1,270 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.cluster.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.transaction.Status;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import junit.framework.TestCase;
+
+import org.apache.catalina.Session;
+import org.jboss.test.cluster.web.jvmroute.MockJBossManager;
+import org.jboss.test.cluster.web.jvmroute.MockSession;
+import org.jboss.test.cluster.web.util.MockContainer;
+import org.jboss.web.tomcat.service.session.AsyncSnapshotManager;
+import org.jboss.web.tomcat.service.session.ClusteredSession;
+import org.jboss.web.tomcat.service.session.JBossCacheManager;
+
+/**
+ * Tests of the queueing of the AsyncSnapshotManager and of the batch
+ * replication of JBossCacheManager.storeSessions(), without a cache.
+ *
+ * @version $Revision$
+ */
+public class AsyncSnapshotManagerUnitTestCase extends TestCase
+{
+   /** Long enough that the queue is only drained by stop() */
+   static final int INTERVAL = 60000;
+
+   public AsyncSnapshotManagerUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testRepeatedSnapshotsCoalesce() throws Exception
+   {
+      RecordingManager manager = new RecordingManager(false);
+      AsyncSnapshotManager snapshots = new AsyncSnapshotManager(manager, "/test", INTERVAL, 1, 10, 100);
+      snapshots.start();
+
+      RecordingSession session = createSession("1");
+      for (int i = 0; i < 10; ++i)
+         snapshots.snapshot(session);
+      assertEquals(0, manager.stored.size());
+
+      snapshots.stop();
+      assertEquals(1, manager.batches.size());
+      ClusteredSession[] batch = (ClusteredSession[]) manager.batches.get(0);
+      assertEquals(1, batch.length);
+      assertSame(session, batch[0]);
+      assertEquals(1, manager.stored.size());
+   }
+
+   public void testFullQueueReplicatesOnRequestThread() throws Exception
+   {
+      RecordingManager manager = new RecordingManager(false);
+      AsyncSnapshotManager snapshots = new AsyncSnapshotManager(manager, "/test", INTERVAL, 1, 10, 2);
+      snapshots.start();
+
+      RecordingSession session1 = createSession("1");
+      RecordingSession session2 = createSession("2");
+      RecordingSession session3 = createSession("3");
+      snapshots.snapshot(session1);
+      snapshots.snapshot(session2);
+      assertEquals(0, manager.stored.size());
+
+      // The queue is full, the request replicates its session itself
+      snapshots.snapshot(session3);
+      assertEquals(1, manager.stored.size());
+      assertSame(session3, manager.stored.get(0));
+
+      // A session already queued is not replicated again
+      snapshots.snapshot(session1);
+      assertEquals(1, manager.stored.size());
+
+      snapshots.stop();
+      assertEquals(1, manager.batches.size());
+      ClusteredSession[] batch = (ClusteredSession[]) manager.batches.get(0);
+      assertEquals(2, batch.length);
+      assertSame(session1, batch[0]);
+      assertSame(session2, batch[1]);
+   }
+
+   public void testNotStartedReplicatesOnRequestThread() throws Exception
+   {
+      RecordingManager manager = new RecordingManager(false);
+      AsyncSnapshotManager snapshots = new AsyncSnapshotManager(manager, "/test", INTERVAL, 1, 10, 100);
+
+      RecordingSession session = createSession("1");
+      snapshots.snapshot(session);
+      assertEquals(1, manager.stored.size());
+      assertEquals(0, manager.batches.size());
+   }
+
+   public void testBatchCommitted() throws Exception
+   {
+      RecordingManager manager = new RecordingManager(true);
+      RecordingSession session1 = createSession("1");
+      RecordingSession session2 = createSession("2");
+
+      manager.storeSessions(new ClusteredSession[] { session1, session2 });
+      assertEquals(Status.STATUS_COMMITTED, manager.txManager.status);
+      assertEquals(2, manager.stored.size());
+      assertTrue(session1.committed);
+      assertTrue(session2.committed);
+      assertFalse(session1.rolledBack);
+      assertFalse(session2.rolledBack);
+   }
+
+   public void testRolledBackBatchReplicatedOneByOne() throws Exception
+   {
+      RecordingManager manager = new RecordingManager(true);
+      RecordingSession session1 = createSession("1");
+      RecordingSession session2 = createSession("2");
+      manager.failInTransaction = session2;
+
+      manager.storeSessions(new ClusteredSession[] { session1, session2 });
+      assertEquals(Status.STATUS_ROLLEDBACK, manager.txManager.status);
+
+      // Both sessions are dirty again and stored without the transaction
+      assertTrue(session1.rolledBack);
+      assertTrue(session2.rolledBack);
+      assertFalse(session1.committed);
+      assertFalse(session2.committed);
+      assertEquals(4, manager.stored.size());
+      assertSame(session1, manager.stored.get(2));
+      assertSame(session2, manager.stored.get(3));
+   }
+
+   private RecordingSession createSession(String id)
+   {
+      RecordingSession session = new RecordingSession(new MockJBossManager());
+      session.setId(id);
+      return session;
+   }
+
+   /**
+    * A manager that records the replications instead of using a cache
+    */
+   static class RecordingManager extends JBossCacheManager
+   {
+      List stored = Collections.synchronizedList(new ArrayList());
+      List batches = Collections.synchronizedList(new ArrayList());
+      MockTransactionManager txManager = new MockTransactionManager();
+      ClusteredSession failInTransaction;
+
+      RecordingManager(boolean transactional)
+      {
+         if (transactional)
+            tm = txManager;
+         setContainer(new MockContainer());
+      }
+
+      public boolean storeSession(Session session)
+      {
+         stored.add(session);
+         if (session == failInTransaction && txManager.status == Status.STATUS_ACTIVE)
+            throw new IllegalStateException("Replication failed");
+         return true;
+      }
+
+      public void storeSessions(ClusteredSession[] sessions)
+      {
+         batches.add(sessions);
+         super.storeSessions(sessions);
+      }
+   }
+
+   /**
+    * A session that records the outcome of its batch
+    */
+   static class RecordingSession extends MockSession
+   {
+      private static final long serialVersionUID = 1L;
+
+      volatile boolean committed;
+      volatile boolean rolledBack;
+
+      RecordingSession(MockJBossManager manager)
+      {
+         super(manager);
+      }
+
+      protected void replicationCommitted()
+      {
+         committed = true;
+         super.replicationCommitted();
+      }
+
+      protected void replicationRolledBack()
+      {
+         rolledBack = true;
+         super.replicationRolledBack();
+      }
+   }
+
+   /**
+    * A transaction manager that only tracks the status of one transaction
+    */
+   static class MockTransactionManager implements TransactionManager
+   {
+      volatile int status = Status.STATUS_NO_TRANSACTION;
+
+      public void begin()
+      {
+         status = Status.STATUS_ACTIVE;
+      }
+
+      public void commit()
+      {
+         status = Status.STATUS_COMMITTED;
+      }
+
+      public void rollback()
+      {
+         status = Status.STATUS_ROLLEDBACK;
+      }
+
+      public void setRollbackOnly()
+      {
+         status = Status.STATUS_MARKED_ROLLBACK;
+      }
+
+      public int getStatus()
+      {
+         return status;
+      }
+
+      public Transaction getTransaction()
+      {
+         return null;
+      }
+
+      public void resume(Transaction tx)
+      {
+      }
+
+      public Transaction suspend()
+      {
+         return null;
+      }
+
+      public void setTransactionTimeout(int seconds)
+      {
+      }
+   }
+}
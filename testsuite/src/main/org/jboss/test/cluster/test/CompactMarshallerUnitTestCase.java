@@ -0,0 +1,133 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.cluster.test;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+import org.jboss.ha.framework.server.CompactMarshaller;
+import org.jboss.ha.framework.server.HAPartitionImpl;
+import org.jboss.logging.Logger;
+import org.jgroups.blocks.MethodCall;
+
+/**
+ * Tests of the CompactMarshaller, the sizes of the messages of the
+ * DistributedReplicantManager and of its state are logged at info level
+ * for Java serialization and the compact form.
+ *
+ * @version $Revision$
+ */
+public class CompactMarshallerUnitTestCase extends TestCase
+{
+   private static final Logger log = Logger.getLogger(CompactMarshallerUnitTestCase.class);
+
+   private static final Class[] ADD_TYPES = new Class[] { String.class, String.class, Serializable.class };
+
+   private CompactMarshaller marshaller = new CompactMarshaller();
+
+   public CompactMarshallerUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testMethodCall() throws Exception
+   {
+      MethodCall call = new MethodCall("DistributedReplicantManager._add",
+         new Object[] { "jboss.j2ee:service=EJB,jndiName=Account", "192.168.0.2:1099", new Date(0) },
+         ADD_TYPES);
+      byte[] compact = marshaller.objectToByteBuffer(call);
+      byte[] java = HAPartitionImpl.objectToByteBuffer(call);
+      log.info("_add call: Java serialization " + java.length + " bytes, compact " + compact.length + " bytes");
+      assertTrue(compact.length < java.length);
+
+      MethodCall read = (MethodCall) marshaller.objectFromByteBuffer(compact);
+      assertEquals(call.getName(), read.getName());
+      assertTrue(Arrays.equals(call.getArgs(), read.getArgs()));
+   }
+
+   public void testState() throws Exception
+   {
+      HashMap replicants = new HashMap();
+      for (int i = 0; i < 200; ++i)
+      {
+         HashMap nodes = new HashMap();
+         for (int j = 0; j < 4; ++j)
+            nodes.put("192.168.0." + j + ":1099", new Integer(i * j));
+         replicants.put("jboss.j2ee:service=EJB,jndiName=Bean" + i, nodes);
+      }
+      HashMap state = new HashMap();
+      state.put("DistributedReplicantManager", new Object[] { replicants, new HashMap() });
+
+      byte[] compact = marshaller.objectToByteBuffer(state);
+      byte[] java = HAPartitionImpl.objectToByteBuffer(state);
+      byte[] compressed = CompactMarshaller.compress(compact);
+      log.info("state: Java serialization " + java.length + " bytes, compact " + compact.length
+         + " bytes, compressed " + compressed.length + " bytes");
+      assertTrue(compact.length < java.length);
+
+      HashMap read = (HashMap) HAPartitionImpl.objectFromByteBuffer(compressed);
+      Object[] drm = (Object[]) read.get("DistributedReplicantManager");
+      assertEquals(replicants, drm[0]);
+      assertEquals(new HashMap(), drm[1]);
+   }
+
+   public void testTypes() throws Exception
+   {
+      Object[] values = new Object[] { null, "", "a string", Boolean.TRUE, Boolean.FALSE, new Integer(-1),
+         new Long(Long.MAX_VALUE), new Short((short) 3), new Byte((byte) 4), new Character('c'),
+         new Double(1.5), new Float(2.5f), int.class, String[].class, new Date(1000), new TreeMap() };
+      ArrayList list = new ArrayList(Arrays.asList(values));
+      Vector vector = new Vector(list);
+      Object[] read = (Object[]) marshaller.objectFromByteBuffer(marshaller.objectToByteBuffer(
+         new Object[] { list, vector, new byte[] { 1, 2, 3 }, ADD_TYPES }));
+
+      assertEquals(list, read[0]);
+      assertEquals(Vector.class, read[1].getClass());
+      assertEquals(vector, read[1]);
+      assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, (byte[]) read[2]));
+      assertEquals(Class[].class, read[3].getClass());
+      assertTrue(Arrays.equals(ADD_TYPES, (Class[]) read[3]));
+   }
+
+   public void testLongString() throws Exception
+   {
+      char[] chars = new char[100000];
+      Arrays.fill(chars, '\u20ac');
+      String s = new String(chars);
+      assertEquals(s, marshaller.objectFromByteBuffer(marshaller.objectToByteBuffer(s)));
+   }
+
+   public void testReadsJavaSerialization() throws Exception
+   {
+      HashMap map = new HashMap();
+      map.put("key", "value");
+      assertEquals(map, marshaller.objectFromByteBuffer(HAPartitionImpl.objectToByteBuffer(map)));
+      assertEquals(map, HAPartitionImpl.objectFromByteBuffer(marshaller.objectToByteBuffer(map)));
+   }
+}
@@ -0,0 +1,202 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.cluster.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.jboss.logging.Logger;
+import org.jboss.web.tomcat.service.session.DeltaEncoder;
+
+/**
+ * Replicates a large session attribute, a shopping cart of which a single
+ * line changes per request, whole and in chunks with the DeltaEncoder.
+ * The bytes sent and the time spent serializing and encoding per request
+ * are logged at info level. A map stands for the replicated cache.
+ *
+ * @version $Revision$
+ */
+public class DeltaReplicationStressTestCase extends TestCase
+{
+   private static final Logger log = Logger.getLogger(DeltaReplicationStressTestCase.class);
+
+   /** The requests replicated */
+   static final int REQUESTS = 500;
+
+   /** The lines of the cart */
+   static final int LINES = 2000;
+
+   /** The threshold of the encoder */
+   static final int THRESHOLD = 4096;
+
+   private static final String KEY = "cart";
+
+   public DeltaReplicationStressTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testBytesPerRequest() throws Exception
+   {
+      Cart cart = new Cart(LINES);
+      DeltaEncoder encoder = new DeltaEncoder(THRESHOLD);
+      Map cache = new HashMap();
+
+      long fullBytes = 0;
+      long fullTime = 0;
+      long deltaBytes = 0;
+      long deltaTime = 0;
+      for (int i = 0; i < REQUESTS; ++i)
+      {
+         cart.update(i);
+
+         long start = System.nanoTime();
+         byte[] bytes = serialize(cart);
+         fullTime += System.nanoTime() - start;
+         fullBytes += bytes.length;
+
+         start = System.nanoTime();
+         bytes = serialize(cart);
+         Map newChunks = new HashMap();
+         long[] chunkList = encoder.encode(KEY, bytes, newChunks);
+         Set released = encoder.release();
+         deltaTime += System.nanoTime() - start;
+         assertNotNull(chunkList);
+         deltaBytes += chunkList.length * 8;
+         for (Iterator j = newChunks.values().iterator(); j.hasNext();)
+            deltaBytes += ((byte[]) j.next()).length;
+
+         cache.putAll(newChunks);
+         cache.keySet().removeAll(released);
+         if (i % 50 == 0)
+            assertTrue(Arrays.equals(bytes, DeltaEncoder.decode(chunkList, cache)));
+      }
+
+      log.info("full replication " + (fullBytes / REQUESTS) + " bytes " + (fullTime / REQUESTS / 1000)
+         + " us per request, delta replication " + (deltaBytes / REQUESTS) + " bytes "
+         + (deltaTime / REQUESTS / 1000) + " us per request, " + cache.size() + " chunks in the cache");
+      assertTrue("full=" + fullBytes + " delta=" + deltaBytes, deltaBytes * 5 < fullBytes);
+   }
+
+   public void testInsertShiftsFewChunks() throws Exception
+   {
+      Cart cart = new Cart(LINES);
+      DeltaEncoder encoder = new DeltaEncoder(THRESHOLD);
+      Map chunks = new HashMap();
+      long[] first = encoder.encode(KEY, serialize(cart), chunks);
+
+      cart.lines.add(LINES / 2, new Line(-1));
+      chunks.clear();
+      long[] second = encoder.encode(KEY, serialize(cart), chunks);
+      assertTrue("new chunks " + chunks.size() + " of " + (second.length - 1), chunks.size() <= 3);
+      assertTrue(encoder.release().size() <= 3);
+      assertTrue(first.length > 10);
+   }
+
+   public void testSmallValuesNotChunked() throws Exception
+   {
+      DeltaEncoder encoder = new DeltaEncoder(THRESHOLD);
+      Map chunks = new HashMap();
+      assertNotNull(encoder.encode(KEY, serialize(new Cart(LINES)), chunks));
+      assertNull(encoder.encode(KEY, serialize(new Cart(1)), chunks));
+      assertEquals(chunks.size(), encoder.release().size());
+   }
+
+   public void testFailedReplication() throws Exception
+   {
+      Cart cart = new Cart(LINES);
+      DeltaEncoder encoder = new DeltaEncoder(THRESHOLD);
+      Map chunks = new HashMap();
+      long[] chunkList = encoder.encode(KEY, serialize(cart), chunks);
+      int count = chunks.size();
+
+      encoder.failed();
+      chunks.clear();
+      encoder.encode(KEY, serialize(cart), chunks);
+      assertEquals(count, chunks.size());
+      assertEquals(chunkList.length - 1, count);
+
+      cart.update(0);
+      encoder.encode(KEY, serialize(cart), new HashMap());
+      assertTrue(encoder.release().isEmpty());
+
+      encoder.reset();
+      encoder.loaded(KEY, chunkList);
+      encoder.loadedChunks(chunks.keySet());
+      assertTrue(encoder.release().isEmpty());
+   }
+
+   private static byte[] serialize(Object object) throws Exception
+   {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(baos);
+      oos.writeObject(object);
+      oos.close();
+      return baos.toByteArray();
+   }
+
+   public static class Cart implements Serializable
+   {
+      private static final long serialVersionUID = 1L;
+
+      ArrayList lines = new ArrayList();
+
+      Cart(int size)
+      {
+         for (int i = 0; i < size; ++i)
+            lines.add(new Line(i));
+      }
+
+      void update(int request)
+      {
+         Line line = (Line) lines.get((request * 7919) % lines.size());
+         line.quantity++;
+      }
+   }
+
+   public static class Line implements Serializable
+   {
+      private static final long serialVersionUID = 1L;
+
+      String sku;
+      String description;
+      int quantity;
+      long price;
+
+      Line(int i)
+      {
+         sku = "SKU-" + i;
+         description = "Item number " + i + " of the catalog";
+         quantity = 1;
+         price = i * 100L;
+      }
+   }
+}
@@ -0,0 +1,259 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.cluster.test;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+import org.jboss.ha.framework.server.DistributedStateImpl;
+import org.jboss.logging.Logger;
+import org.jboss.test.cluster.drm.MockHAPartition;
+
+/**
+ * Tests of the state transfer of the DistributedStateImpl, a joining node
+ * receives the small categories in the state and pulls the large ones from
+ * the coordinator. The time the coordinator spends creating the state of
+ * a large category is logged at info level.
+ *
+ * @version $Revision$
+ */
+public class DistributedStateUnitTestCase extends TestCase
+{
+   private static final Logger log = Logger.getLogger(DistributedStateUnitTestCase.class);
+
+   /** The entries of the large category */
+   static final int KEYS = 100000;
+
+   private DistributedStateImpl coordinator;
+
+   public DistributedStateUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   protected void setUp() throws Exception
+   {
+      coordinator = new DistributedStateImpl(new ViewPartition("coordinator"), null);
+      coordinator.declareStatePull();
+      for (int i = 0; i < KEYS; ++i)
+         coordinator._setInternal("large", "key" + i, new Integer(i));
+      coordinator._setInternal("small", "a", "1");
+      coordinator._setInternal("small", "null", null);
+   }
+
+   public void testStateTransfer() throws Exception
+   {
+      PullingPartition partition = new PullingPartition();
+      DistributedStateImpl joiner = new DistributedStateImpl(partition, null);
+      joiner.declareStatePull();
+
+      long start = System.currentTimeMillis();
+      HashMap state = (HashMap) coordinator.getCurrentState();
+      long time = System.currentTimeMillis() - start;
+      log.info("state of " + KEYS + " entries created in " + time + " ms");
+      assertEquals(new Integer(KEYS), state.get("large"));
+
+      joiner.setCurrentState(state);
+      assertEquals("1", joiner.get("small", "a"));
+      assertTrue(joiner.getAllKeys("small").contains("null"));
+      assertNull(joiner.get("small", "null"));
+
+      joiner.start();
+      assertEquals(128, partition.calls);
+      assertEquals(KEYS, joiner.getAllKeys("large").size());
+      for (int i = 0; i < KEYS; i += 97)
+         assertEquals(new Integer(i), joiner.get("large", "key" + i));
+   }
+
+   public void testModifiedWhilePulling() throws Exception
+   {
+      PullingPartition partition = new PullingPartition();
+      final DistributedStateImpl joiner = new DistributedStateImpl(partition, null);
+      joiner.declareStatePull();
+      joiner.setCurrentState(coordinator.getCurrentState());
+
+      // Modifications received after the state but before the entries
+      partition.beforeFirstCall = new Runnable()
+      {
+         public void run()
+         {
+            try
+            {
+               joiner._set("large", (Serializable) "key1", "modified");
+               joiner._remove("large", (Serializable) "key2");
+               joiner._set("large", (Serializable) "new", "value");
+            }
+            catch (Exception e)
+            {
+               throw new RuntimeException(e);
+            }
+         }
+      };
+      joiner.start();
+
+      assertEquals("modified", joiner.get("large", "key1"));
+      assertNull(joiner.get("large", "key2"));
+      assertEquals("value", joiner.get("large", "new"));
+      assertEquals(KEYS, joiner.getAllKeys("large").size());
+
+      // Once pulled the modifications are applied as before
+      joiner._remove("large", (Serializable) "key1");
+      assertNull(joiner.get("large", "key1"));
+   }
+
+   public void testOldState() throws Exception
+   {
+      HashMap cat = new HashMap();
+      cat.put("a", "1");
+      HashMap state = new HashMap();
+      state.put("cat", cat);
+
+      DistributedStateImpl joiner = new DistributedStateImpl(new PullingPartition(), null);
+      joiner.setCurrentState(state);
+      joiner.start();
+      assertEquals("1", joiner.get("cat", "a"));
+   }
+
+   public void testOlderJoiner() throws Exception
+   {
+      // A joiner that did not declare the pull gets all the entries
+      HashMap state = (HashMap) coordinator.getCurrentState();
+      assertEquals(KEYS, ((HashMap) state.get("large")).size());
+   }
+
+   public void testCoordinatorLeftWhilePulling() throws Exception
+   {
+      PullingPartition partition = new PullingPartition();
+      DistributedStateImpl joiner = new DistributedStateImpl(partition, null);
+      joiner.declareStatePull();
+      joiner.setCurrentState(coordinator.getCurrentState());
+
+      // The first request gets no answer, it is sent again to the next coordinator
+      partition.unanswered = 1;
+      joiner.start();
+      assertEquals(KEYS, joiner.getAllKeys("large").size());
+   }
+
+   public void testNoCoordinatorLeft() throws Exception
+   {
+      PullingPartition partition = new PullingPartition();
+      DistributedStateImpl joiner = new DistributedStateImpl(partition, null);
+      joiner.declareStatePull();
+      joiner.setCurrentState(coordinator.getCurrentState());
+
+      // The coordinator left, we are the coordinator now
+      partition.unanswered = Integer.MAX_VALUE;
+      partition.view.remove("coordinator");
+      try
+      {
+         joiner.start();
+         fail("The start succeeded with an incomplete state");
+      }
+      catch (IllegalStateException expected)
+      {
+      }
+      assertEquals(1, partition.calls);
+   }
+
+   public void testEmptyCategoryRemoved() throws Exception
+   {
+      coordinator._removeInternal("small", "a");
+      coordinator._removeInternal("small", "null");
+      assertFalse(coordinator.getAllCategories().contains("small"));
+      assertNull(coordinator.getAllKeys("small"));
+   }
+
+   /**
+    * A partition of the coordinator and the joiner
+    */
+   static class ViewPartition extends MockHAPartition
+   {
+      String nodeName;
+      Vector view = new Vector();
+
+      ViewPartition(String nodeName)
+      {
+         super(null);
+         this.nodeName = nodeName;
+         view.add("coordinator");
+         view.add("joiner");
+      }
+
+      public String getNodeName()
+      {
+         return nodeName;
+      }
+
+      public Vector getCurrentView()
+      {
+         return view;
+      }
+
+      public ArrayList callMethodOnCluster(String serviceName, String methodName, Object[] args, Class[] types,
+         boolean excludeSelf) throws Exception
+      {
+         assertEquals("_declareStatePull", methodName);
+         return new ArrayList();
+      }
+   }
+
+   /**
+    * A partition calling the coordinator's _getEntries
+    */
+   class PullingPartition extends ViewPartition
+   {
+      int calls = 0;
+      int unanswered = 0;
+      Runnable beforeFirstCall = null;
+
+      PullingPartition()
+      {
+         super("joiner");
+      }
+
+      public ArrayList callMethodOnCluster(String serviceName, String methodName, Object[] args, Class[] types,
+         boolean excludeSelf) throws Exception
+      {
+         assertEquals("_declareStatePull", methodName);
+         ArrayList rsp = new ArrayList();
+         rsp.add(coordinator._declareStatePull((String) args[0]));
+         return rsp;
+      }
+
+      public ArrayList callMethodOnCoordinatorNode(String serviceName, String methodName, Object[] args,
+         Class[] types, boolean excludeSelf) throws Exception
+      {
+         assertEquals("_getEntries", methodName);
+         if (calls++ == 0 && beforeFirstCall != null)
+            beforeFirstCall.run();
+         ArrayList rsp = new ArrayList();
+         if (unanswered-- > 0)
+            return rsp;
+         rsp.add(coordinator._getEntries((String) args[0], (Integer) args[1], (Integer) args[2]));
+         return rsp;
+      }
+   }
+}
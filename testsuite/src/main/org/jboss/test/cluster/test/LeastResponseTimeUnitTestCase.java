@@ -0,0 +1,258 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.cluster.test;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import org.jboss.ha.framework.interfaces.AdaptiveLoadBalancePolicy;
+import org.jboss.ha.framework.interfaces.ClusteringTargetsRepository;
+import org.jboss.ha.framework.interfaces.FamilyClusterInfo;
+import org.jboss.ha.framework.interfaces.LeastResponseTime;
+import org.jboss.ha.framework.interfaces.LoadBalancePolicy;
+import org.jboss.ha.framework.interfaces.RoundRobin;
+import org.jboss.logging.Logger;
+
+/**
+ * Tests of the LeastResponseTime policy. A simulation of clients invoking
+ * targets one of which is slow, as if it was collecting its garbage, is run
+ * with RoundRobin and with LeastResponseTime; the share of the invocations
+ * sent to the slow target and the average response time are logged at
+ * info level.
+ *
+ * @version $Revision$
+ */
+public class LeastResponseTimeUnitTestCase extends TestCase
+{
+   private static final Logger log = Logger.getLogger(LeastResponseTimeUnitTestCase.class);
+
+   /** The simulated targets */
+   static final int TARGETS = 4;
+
+   /** The simulated clients */
+   static final int CLIENTS = 8;
+
+   /** The invocations of every client */
+   static final int INVOCATIONS = 200;
+
+   /** The response time of the targets in ms */
+   static final int RESPONSE_TIME = 2;
+
+   /** The response time of the slow target in ms */
+   static final int SLOW_RESPONSE_TIME = 40;
+
+   private static int families = 0;
+
+   public LeastResponseTimeUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testSimulation() throws Exception
+   {
+      Result roundRobin = simulate(new RoundRobin());
+      Result leastResponseTime = simulate(new LeastResponseTime());
+      log.info("slow target invoked by RoundRobin " + roundRobin.slowInvocations + " times, average "
+         + roundRobin.averageResponseTime() + " ms, by LeastResponseTime " + leastResponseTime.slowInvocations
+         + " times, average " + leastResponseTime.averageResponseTime() + " ms");
+
+      assertTrue(leastResponseTime.slowInvocations * 4 < roundRobin.slowInvocations);
+      assertTrue(leastResponseTime.averageResponseTime() < roundRobin.averageResponseTime());
+      // The slow target is still probed
+      assertTrue(leastResponseTime.slowInvocations > 0);
+   }
+
+   public void testAvoidsSlowTarget() throws Exception
+   {
+      LeastResponseTime policy = new LeastResponseTime();
+      FamilyClusterInfo family = newFamily();
+      Object slow = family.getTargets().get(0);
+      policy.invocationStarted(family, slow);
+      policy.invocationCompleted(family, slow, 500);
+      for (int i = 1; i < TARGETS; ++i)
+      {
+         Object target = family.getTargets().get(i);
+         policy.invocationStarted(family, target);
+         policy.invocationCompleted(family, target, 5);
+      }
+
+      for (int i = 0; i < 1000; ++i)
+         assertNotSame(slow, policy.chooseTarget(family));
+   }
+
+   public void testAvoidsBusyTarget() throws Exception
+   {
+      LeastResponseTime policy = new LeastResponseTime();
+      FamilyClusterInfo family = newFamily();
+      Object busy = family.getTargets().get(0);
+      for (int i = 0; i < 10; ++i)
+         policy.invocationStarted(family, busy);
+
+      for (int i = 0; i < 1000; ++i)
+         assertNotSame(busy, policy.chooseTarget(family));
+
+      for (int i = 0; i < 10; ++i)
+         policy.invocationCompleted(family, busy, 0);
+      boolean chosen = false;
+      for (int i = 0; i < 1000 && !chosen; ++i)
+         chosen = policy.chooseTarget(family) == busy;
+      assertTrue(chosen);
+   }
+
+   public void testFailuresAreNoResponseTimes() throws Exception
+   {
+      LeastResponseTime policy = new LeastResponseTime();
+      FamilyClusterInfo family = newFamily();
+      Object slow = family.getTargets().get(0);
+      policy.invocationStarted(family, slow);
+      policy.invocationCompleted(family, slow, 500);
+      for (int i = 1; i < TARGETS; ++i)
+      {
+         Object target = family.getTargets().get(i);
+         policy.invocationStarted(family, target);
+         policy.invocationCompleted(family, target, 5);
+      }
+
+      // Failing fast does not make the slow target look fast
+      for (int i = 0; i < 10; ++i)
+      {
+         long start = AdaptiveLoadBalancePolicy.Invocations.started(policy, family, slow);
+         AdaptiveLoadBalancePolicy.Invocations.completed(policy, family, slow, start, true);
+      }
+      for (int i = 0; i < 1000; ++i)
+         assertNotSame(slow, policy.chooseTarget(family));
+
+      // Nor does it leave invocations in progress
+      Object other = family.getTargets().get(1);
+      for (int i = 0; i < 10; ++i)
+      {
+         long start = AdaptiveLoadBalancePolicy.Invocations.started(policy, family, other);
+         AdaptiveLoadBalancePolicy.Invocations.completed(policy, family, other, start, true);
+      }
+      boolean chosen = false;
+      for (int i = 0; i < 1000 && !chosen; ++i)
+         chosen = policy.chooseTarget(family) == other;
+      assertTrue(chosen);
+   }
+
+   public void testDepartedTargetsAreForgotten() throws Exception
+   {
+      LeastResponseTime policy = new LeastResponseTime();
+      FamilyClusterInfo family = newFamily();
+      ArrayList targets = new ArrayList(family.getTargets());
+      Object slow = targets.get(0);
+      policy.invocationStarted(family, slow);
+      policy.invocationCompleted(family, slow, 500);
+
+      // The slow target leaves the cluster and comes back restarted
+      family.removeDeadTarget(slow);
+      policy.chooseTarget(family);
+      family.updateClusterInfo(targets, family.getCurrentViewId() + 1);
+
+      boolean chosen = false;
+      for (int i = 0; i < 1000 && !chosen; ++i)
+         chosen = policy.chooseTarget(family) == slow;
+      assertTrue(chosen);
+   }
+
+   public void testSingleTarget() throws Exception
+   {
+      ArrayList targets = new ArrayList();
+      targets.add("node");
+      FamilyClusterInfo family = ClusteringTargetsRepository.initTarget("LeastResponseTimeSingle", targets, 0);
+      assertEquals("node", new LeastResponseTime().chooseTarget(family));
+      family.removeDeadTarget("node");
+      assertNull(new LeastResponseTime().chooseTarget(family));
+   }
+
+   private Result simulate(final LoadBalancePolicy policy) throws Exception
+   {
+      final FamilyClusterInfo family = newFamily();
+      final Object slow = family.getTargets().get(0);
+      final Result result = new Result();
+      Thread[] clients = new Thread[CLIENTS];
+      for (int i = 0; i < CLIENTS; ++i)
+      {
+         clients[i] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  for (int j = 0; j < INVOCATIONS; ++j)
+                  {
+                     Object target = policy.chooseTarget(family);
+                     long start = System.currentTimeMillis();
+                     if (policy instanceof AdaptiveLoadBalancePolicy)
+                        ((AdaptiveLoadBalancePolicy) policy).invocationStarted(family, target);
+                     Thread.sleep(target == slow ? SLOW_RESPONSE_TIME : RESPONSE_TIME);
+                     long responseTime = System.currentTimeMillis() - start;
+                     if (policy instanceof AdaptiveLoadBalancePolicy)
+                        ((AdaptiveLoadBalancePolicy) policy).invocationCompleted(family, target, responseTime);
+                     result.add(target == slow, responseTime);
+                  }
+               }
+               catch (Throwable t)
+               {
+                  result.failure = t;
+               }
+            }
+         };
+         clients[i].start();
+      }
+      for (int i = 0; i < CLIENTS; ++i)
+         clients[i].join();
+      if (result.failure != null)
+         throw new Exception("Simulation failed", result.failure);
+      return result;
+   }
+
+   private static synchronized FamilyClusterInfo newFamily()
+   {
+      ArrayList targets = new ArrayList();
+      for (int i = 0; i < TARGETS; ++i)
+         targets.add("node" + i);
+      return ClusteringTargetsRepository.initTarget("LeastResponseTime" + families++, targets, 0);
+   }
+
+   static class Result
+   {
+      int invocations;
+      int slowInvocations;
+      long totalResponseTime;
+      Throwable failure;
+
+      synchronized void add(boolean slow, long responseTime)
+      {
+         invocations++;
+         if (slow)
+            slowInvocations++;
+         totalResponseTime += responseTime;
+      }
+
+      synchronized long averageResponseTime()
+      {
+         return totalResponseTime / invocations;
+      }
+   }
+}
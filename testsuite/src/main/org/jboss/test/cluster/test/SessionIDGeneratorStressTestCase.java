@@ -0,0 +1,127 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.cluster.test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.jboss.logging.Logger;
+import org.jboss.web.tomcat.service.session.SessionIDGenerator;
+
+/**
+ * Creates session ids from as many threads as there are processors, with
+ * the threads sharing a lock around the generator as it used to and with
+ * the threads generating concurrently. The session ids per second are
+ * logged at info level. Also checks the ids are unique and well formed.
+ *
+ * @version $Revision$
+ */
+public class SessionIDGeneratorStressTestCase extends TestCase
+{
+   private static final Logger log = Logger.getLogger(SessionIDGeneratorStressTestCase.class);
+
+   /** The session ids created by every thread */
+   static final int IDS = 50000;
+
+   /** The length of a session id, 16 bytes in base 64 */
+   static final int ID_LENGTH = 24;
+
+   public SessionIDGeneratorStressTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testThroughput() throws Exception
+   {
+      int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+      SessionIDGenerator generator = SessionIDGenerator.getInstance();
+      // Warm up
+      run(generator, threads, true, null);
+      run(generator, threads, false, null);
+
+      long serial = run(generator, threads, true, null);
+      long concurrent = run(generator, threads, false, null);
+      log.info(threads + " threads, shared lock " + (threads * IDS * 1000L / serial) + " ids/s, concurrent "
+         + (threads * IDS * 1000L / concurrent) + " ids/s");
+   }
+
+   public void testUnique() throws Exception
+   {
+      int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+      Set ids = Collections.synchronizedSet(new HashSet());
+      run(new SessionIDGenerator(), threads, false, ids);
+      assertEquals(threads * IDS, ids.size());
+   }
+
+   private long run(final SessionIDGenerator generator, int count, final boolean lock, final Set ids)
+      throws Exception
+   {
+      final Object shared = new Object();
+      final Throwable[] failure = new Throwable[1];
+      Thread[] threads = new Thread[count];
+      for (int i = 0; i < count; ++i)
+      {
+         threads[i] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  for (int j = 0; j < IDS; ++j)
+                  {
+                     String id;
+                     if (lock)
+                     {
+                        synchronized (shared)
+                        {
+                           id = generator.getSessionId();
+                        }
+                     }
+                     else
+                        id = generator.getSessionId();
+                     if (id.length() != ID_LENGTH)
+                        throw new IllegalStateException("Malformed id " + id);
+                     if (ids != null)
+                        ids.add(id);
+                  }
+               }
+               catch (Throwable t)
+               {
+                  failure[0] = t;
+               }
+            }
+         };
+      }
+
+      long start = System.currentTimeMillis();
+      for (int i = 0; i < count; ++i)
+         threads[i].start();
+      for (int i = 0; i < count; ++i)
+         threads[i].join();
+      if (failure[0] != null)
+         throw new Exception("Generator failed", failure[0]);
+      return Math.max(1, System.currentTimeMillis() - start);
+   }
+}
@@ -0,0 +1,98 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.cmp2.optimisticlock.test;
+
+import java.sql.Statement;
+
+import javax.ejb.EJBException;
+
+import junit.framework.TestCase;
+
+import org.jboss.ejb.plugins.cmp.jdbc.JDBCStoreEntityCommand;
+
+/**
+ * The checks of the update counts returned for a batch of CMP updates.
+ *
+ * @version $Revision$
+ */
+public class BatchUpdateCountUnitTestCase extends TestCase
+{
+   static final Object[] IDS = { "a", "b", "c" };
+
+   public BatchUpdateCountUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testOneRowEach() throws Exception
+   {
+      check(new int[] { 1, 1, 1 }, new boolean[] { true, false, true });
+   }
+
+   public void testSuccessNoInfo() throws Exception
+   {
+      int none = Statement.SUCCESS_NO_INFO;
+      check(new int[] { none, none, none }, new boolean[] { false, false, false });
+   }
+
+   public void testSuccessNoInfoWithOptimisticLock() throws Exception
+   {
+      assertFails(new int[] { 1, Statement.SUCCESS_NO_INFO, 1 }, new boolean[] { false, true, false });
+   }
+
+   public void testOptimisticLockMismatch() throws Exception
+   {
+      assertFails(new int[] { 1, 1, 0 }, new boolean[] { true, true, true });
+   }
+
+   public void testMoreRowsThanExpected() throws Exception
+   {
+      assertFails(new int[] { 1, 2, 1 }, new boolean[] { false, false, false });
+   }
+
+   public void testExecuteFailed() throws Exception
+   {
+      assertFails(new int[] { 1, Statement.EXECUTE_FAILED, 1 }, new boolean[] { false, false, false });
+   }
+
+   public void testMissingCounts() throws Exception
+   {
+      assertFails(new int[] { 1, 1 }, new boolean[] { false, false, false });
+   }
+
+   private void check(int[] rowsAffected, boolean[] locked)
+   {
+      JDBCStoreEntityCommand.checkBatchUpdateCounts("Entity", rowsAffected, locked, IDS);
+   }
+
+   private void assertFails(int[] rowsAffected, boolean[] locked)
+   {
+      try
+      {
+         check(rowsAffected, locked);
+         fail("Expected the batch to fail");
+      }
+      catch (EJBException expected)
+      {
+      }
+   }
+}
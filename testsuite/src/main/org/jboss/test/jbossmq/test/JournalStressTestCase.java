@@ -0,0 +1,299 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.jbossmq.test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import org.jboss.logging.Logger;
+import org.jboss.mq.pm.journal.Journal;
+
+/**
+ * Tests the recovery of the JBossMQ journal and compares the throughput of
+ * durable sends through the journal with the jdbc2 statements on an in
+ * process HSQLDB. The results are logged at info level.
+ *
+ * @version $Revision$
+ */
+public class JournalStressTestCase extends TestCase
+{
+   Logger log = Logger.getLogger(getClass());
+
+   /** The message size */
+   static final int MESSAGE_SIZE = 1024;
+
+   /** The messages sent by each thread */
+   static final int MESSAGES = 1000;
+
+   File directory;
+
+   public JournalStressTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testRecovery() throws Exception
+   {
+      Journal journal = new Journal(directory, 4096);
+      journal.open(null);
+      Journal.Location last = null;
+      for (int i = 0; i < 100; ++i)
+         last = journal.append((byte) 1, record(i, 100));
+      journal.sync(last);
+      assertTrue(journal.getSegmentCount() > 1);
+      assertEquals(new String(record(99, 100)), new String(journal.read(last)));
+      journal.close();
+
+      final ArrayList recovered = new ArrayList();
+      journal = new Journal(directory, 4096);
+      journal.open(new Journal.RecordHandler()
+      {
+         public void handleRecord(byte type, byte[] data, Journal.Location location)
+         {
+            assertEquals(1, type);
+            recovered.add(new String(data));
+         }
+      });
+      try
+      {
+         assertEquals(100, recovered.size());
+         for (int i = 0; i < 100; ++i)
+            assertEquals(new String(record(i, 100)), recovered.get(i));
+      }
+      finally
+      {
+         journal.close();
+      }
+   }
+
+   public void testIncompleteRecord() throws Exception
+   {
+      Journal journal = new Journal(directory, 64 * 1024);
+      journal.open(null);
+      for (int i = 0; i < 10; ++i)
+         journal.sync(journal.append((byte) 1, record(i, 100)));
+      journal.close();
+
+      // Damage the last record as if the machine crashed writing it
+      File[] files = directory.listFiles();
+      for (int i = 0; i < files.length; ++i)
+      {
+         if (files[i].getName().endsWith(".jmq"))
+         {
+            RandomAccessFile raf = new RandomAccessFile(files[i], "rw");
+            try
+            {
+               raf.seek(16 + 9 * (8 + 1 + 100) + 8 + 1 + 50);
+               raf.write(0xff);
+            }
+            finally
+            {
+               raf.close();
+            }
+         }
+      }
+
+      final int[] count = new int[1];
+      Journal.RecordHandler counter = new Journal.RecordHandler()
+      {
+         public void handleRecord(byte type, byte[] data, Journal.Location location)
+         {
+            ++count[0];
+         }
+      };
+      journal = new Journal(directory, 64 * 1024);
+      journal.open(counter);
+      assertEquals(9, count[0]);
+      journal.sync(journal.append((byte) 1, record(10, 100)));
+      journal.close();
+
+      count[0] = 0;
+      journal = new Journal(directory, 64 * 1024);
+      journal.open(counter);
+      journal.close();
+      assertEquals(10, count[0]);
+   }
+
+   public void testJournalThroughput() throws Exception
+   {
+      int[] threads = { 1, 4, 16 };
+      for (int i = 0; i < threads.length; ++i)
+      {
+         final Journal journal = new Journal(new File(directory, "threads" + threads[i]), 16 * 1024 * 1024);
+         journal.open(null);
+         try
+         {
+            long elapsed = run(threads[i], new Worker()
+            {
+               public void send(int thread, int message) throws Exception
+               {
+                  journal.sync(journal.append((byte) 1, record(message, MESSAGE_SIZE)));
+               }
+            });
+            log.info("journal threads=" + threads[i] + " " + rate(threads[i], elapsed) + " msgs/s forces=" + journal.getForceCount());
+            assertTrue(journal.getForceCount() <= threads[i] * MESSAGES);
+         }
+         finally
+         {
+            journal.close();
+         }
+      }
+   }
+
+   public void testJdbcThroughput() throws Exception
+   {
+      Class.forName("org.hsqldb.jdbcDriver");
+      final String url = "jdbc:hsqldb:file:" + new File(directory, "jbossmq").getAbsolutePath();
+      Connection c = DriverManager.getConnection(url, "sa", "");
+      try
+      {
+         Statement s = c.createStatement();
+         s.execute("SET WRITE_DELAY FALSE");
+         s.execute("CREATE TABLE JMS_MESSAGES ( MESSAGEID INTEGER NOT NULL, DESTINATION VARCHAR(32) NOT NULL, "
+               + "TXID INTEGER, TXOP CHAR(1), MESSAGEBLOB VARBINARY, PRIMARY KEY (MESSAGEID, DESTINATION) )");
+         s.close();
+
+         int[] threads = { 1, 4, 16 };
+         for (int i = 0; i < threads.length; ++i)
+         {
+            final Connection[] connections = new Connection[threads[i]];
+            for (int j = 0; j < connections.length; ++j)
+            {
+               connections[j] = DriverManager.getConnection(url, "sa", "");
+               connections[j].setAutoCommit(false);
+            }
+            final int offset = i * 1000000;
+            try
+            {
+               long elapsed = run(threads[i], new Worker()
+               {
+                  public void send(int thread, int message) throws Exception
+                  {
+                     Connection connection = connections[thread];
+                     PreparedStatement stmt = connection.prepareStatement("INSERT INTO JMS_MESSAGES (MESSAGEID, DESTINATION, MESSAGEBLOB, TXID, TXOP) VALUES(?,?,?,?,?)");
+                     stmt.setInt(1, offset + thread * MESSAGES + message);
+                     stmt.setString(2, "QUEUE.testQueue");
+                     stmt.setBytes(3, record(message, MESSAGE_SIZE));
+                     stmt.setNull(4, java.sql.Types.INTEGER);
+                     stmt.setString(5, "A");
+                     stmt.executeUpdate();
+                     stmt.close();
+                     connection.commit();
+                  }
+               });
+               log.info("jdbc threads=" + threads[i] + " " + rate(threads[i], elapsed) + " msgs/s");
+            }
+            finally
+            {
+               for (int j = 0; j < connections.length; ++j)
+                  connections[j].close();
+            }
+         }
+      }
+      finally
+      {
+         Statement s = c.createStatement();
+         s.execute("SHUTDOWN");
+         s.close();
+         c.close();
+      }
+   }
+
+   protected void setUp() throws Exception
+   {
+      directory = new File(System.getProperty("java.io.tmpdir"), "journal-" + getName() + "-" + System.currentTimeMillis());
+   }
+
+   protected void tearDown() throws Exception
+   {
+      delete(directory);
+   }
+
+   private long run(int threads, final Worker worker) throws Exception
+   {
+      final Throwable[] failure = new Throwable[1];
+      Thread[] workers = new Thread[threads];
+      for (int t = 0; t < threads; ++t)
+      {
+         final int thread = t;
+         workers[t] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  for (int i = 0; i < MESSAGES; ++i)
+                     worker.send(thread, i);
+               }
+               catch (Throwable e)
+               {
+                  failure[0] = e;
+               }
+            }
+         };
+      }
+      long start = System.currentTimeMillis();
+      for (int t = 0; t < threads; ++t)
+         workers[t].start();
+      for (int t = 0; t < threads; ++t)
+         workers[t].join();
+      if (failure[0] != null)
+         fail("Worker failed: " + failure[0]);
+      return Math.max(1, System.currentTimeMillis() - start);
+   }
+
+   private static long rate(int threads, long elapsed)
+   {
+      return (long) threads * MESSAGES * 1000 / elapsed;
+   }
+
+   private static byte[] record(int i, int size)
+   {
+      byte[] result = new byte[size];
+      for (int j = 0; j < size; ++j)
+         result[j] = (byte) ('a' + (i + j) % 26);
+      return result;
+   }
+
+   private static void delete(File file)
+   {
+      File[] files = file.listFiles();
+      if (files != null)
+      {
+         for (int i = 0; i < files.length; ++i)
+            delete(files[i]);
+      }
+      file.delete();
+   }
+
+   private interface Worker
+   {
+      void send(int thread, int message) throws Exception;
+   }
+}
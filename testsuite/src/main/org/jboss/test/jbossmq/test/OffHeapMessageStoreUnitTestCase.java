@@ -0,0 +1,149 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.jbossmq.test;
+
+import java.util.ArrayList;
+
+import org.jboss.mq.SpyTextMessage;
+import org.jboss.mq.server.OffHeapMessageStore;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the block allocation of the off heap message store.
+ *
+ * @version $Revision$
+ */
+public class OffHeapMessageStoreUnitTestCase extends TestCase
+{
+   /** Two slabs of eight blocks */
+   static final int BLOCK_SIZE = 256;
+   static final int SLAB_SIZE = 8 * BLOCK_SIZE;
+   static final int MAX_BYTES = 2 * SLAB_SIZE;
+
+   OffHeapMessageStore store;
+
+   public OffHeapMessageStoreUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   protected void setUp() throws Exception
+   {
+      super.setUp();
+      store = new OffHeapMessageStore(MAX_BYTES, SLAB_SIZE, BLOCK_SIZE);
+   }
+
+   public void testRoundTrip() throws Exception
+   {
+      SpyTextMessage message = createMessage(1, 1000);
+      message.setStringProperty("name", "value");
+      OffHeapMessageStore.Handle handle = store.store(message);
+      assertNotNull(handle);
+
+      SpyTextMessage loaded = (SpyTextMessage) store.load(handle);
+      assertEquals(1, loaded.header.messageId);
+      assertEquals(message.getText(), loaded.getText());
+      assertEquals("value", loaded.getStringProperty("name"));
+   }
+
+   public void testAllocateAndFree() throws Exception
+   {
+      assertEquals(0, store.getAllocatedBytes());
+
+      OffHeapMessageStore.Handle handle = store.store(createMessage(1, 1000));
+      assertNotNull(handle);
+      assertEquals(1, store.getMessageCount());
+      assertEquals(SLAB_SIZE, store.getAllocatedBytes());
+      long used = store.getUsedBytes();
+      assertTrue("Used " + used, used > 1000 && used < SLAB_SIZE);
+      assertEquals(0, used % BLOCK_SIZE);
+
+      store.free(handle);
+      assertEquals(0, store.getMessageCount());
+      assertEquals(0, store.getUsedBytes());
+      assertEquals(SLAB_SIZE, store.getAllocatedBytes());
+   }
+
+   public void testReuseAfterFree() throws Exception
+   {
+      ArrayList handles = fill();
+      assertEquals(MAX_BYTES, store.getAllocatedBytes());
+
+      // The blocks of the freed message, wherever they are, take a new one
+      OffHeapMessageStore.Handle freed = (OffHeapMessageStore.Handle) handles.remove(0);
+      store.free(freed);
+      OffHeapMessageStore.Handle handle = store.store(createMessage(100, 500));
+      assertNotNull(handle);
+      assertEquals(MAX_BYTES, store.getAllocatedBytes());
+      assertEquals(createMessage(100, 500).getText(), ((SpyTextMessage) store.load(handle)).getText());
+
+      // The others are intact
+      for (int i = 0; i < handles.size(); ++i)
+      {
+         SpyTextMessage loaded = (SpyTextMessage) store.load((OffHeapMessageStore.Handle) handles.get(i));
+         assertEquals(createMessage(loaded.header.messageId, 500).getText(), loaded.getText());
+      }
+   }
+
+   public void testFullStore() throws Exception
+   {
+      ArrayList handles = fill();
+      int count = store.getMessageCount();
+      long used = store.getUsedBytes();
+
+      // The cache falls back to soft references when the store is full
+      assertNull(store.store(createMessage(100, 500)));
+      assertEquals(count, store.getMessageCount());
+      assertEquals(used, store.getUsedBytes());
+      assertEquals(handles.size(), count);
+   }
+
+   /**
+    * Store messages until the store is full
+    */
+   private ArrayList fill() throws Exception
+   {
+      ArrayList handles = new ArrayList();
+      for (int i = 0; i < MAX_BYTES / BLOCK_SIZE; ++i)
+      {
+         OffHeapMessageStore.Handle handle = store.store(createMessage(i, 500));
+         if (handle == null)
+            break;
+         handles.add(handle);
+      }
+      assertTrue("Stored " + handles.size(), handles.size() > 1);
+      assertNull(store.store(createMessage(99, 500)));
+      return handles;
+   }
+
+   private SpyTextMessage createMessage(long id, int length) throws Exception
+   {
+      StringBuffer text = new StringBuffer(length);
+      for (int i = 0; i < length; ++i)
+         text.append((char) ('a' + (id + i) % 26));
+      SpyTextMessage message = new SpyTextMessage();
+      message.header.messageId = id;
+      message.setText(text.toString());
+      return message;
+   }
+}
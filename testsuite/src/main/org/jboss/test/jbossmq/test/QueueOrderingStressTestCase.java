@@ -0,0 +1,273 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.jbossmq.test;
+
+import javax.jms.DeliveryMode;
+import javax.jms.Message;
+import javax.jms.Queue;
+import javax.jms.QueueConnection;
+import javax.jms.QueueConnectionFactory;
+import javax.jms.QueueReceiver;
+import javax.jms.QueueSender;
+import javax.jms.QueueSession;
+import javax.jms.Session;
+
+import org.jboss.test.JBossTestCase;
+
+/**
+ * Checks the dispatch order of a queue, highest priority first and then
+ * in the order sent, including after redelivery and with a selector.
+ * Also measures the throughput of concurrent producers and consumers on
+ * a deep queue, the result is logged at info level.
+ *
+ * @version <tt>$Revision$</tt>
+ */
+public class QueueOrderingStressTestCase extends JBossTestCase
+{
+   static String QUEUE_FACTORY = "ConnectionFactory";
+   static String TEST_QUEUE = "queue/testQueue";
+
+   QueueConnection queueConnection;
+   Queue queue;
+
+   public QueueOrderingStressTestCase(String name) throws Exception
+   {
+      super(name);
+   }
+
+   public void testPriorityOrder() throws Exception
+   {
+      int count = 100;
+      QueueSession session = queueConnection.createQueueSession(true, Session.SESSION_TRANSACTED);
+      send(session, count);
+      session.commit();
+
+      QueueReceiver receiver = session.createReceiver(queue);
+      queueConnection.start();
+      checkOrder(receiver, count);
+
+      // The redelivered messages keep their place
+      session.rollback();
+      checkOrder(receiver, count);
+      session.commit();
+      assertNull(receiver.receiveNoWait());
+   }
+
+   public void testRedeliveredBeforeLaterMessages() throws Exception
+   {
+      QueueSession senderSession = queueConnection.createQueueSession(false, Session.AUTO_ACKNOWLEDGE);
+      QueueSender sender = senderSession.createSender(queue);
+      Message message = senderSession.createMessage();
+      message.setIntProperty("seq", 0);
+      sender.send(message, DeliveryMode.NON_PERSISTENT, 4, 0);
+
+      QueueSession session = queueConnection.createQueueSession(true, Session.SESSION_TRANSACTED);
+      QueueReceiver receiver = session.createReceiver(queue);
+      queueConnection.start();
+      assertEquals(0, receiver.receive(5000).getIntProperty("seq"));
+
+      // A message sent after the first was received
+      message.setIntProperty("seq", 1);
+      sender.send(message, DeliveryMode.NON_PERSISTENT, 4, 0);
+      senderSession.close();
+      receiver.close();
+      session.rollback();
+
+      receiver = session.createReceiver(queue);
+      message = receiver.receive(5000);
+      assertEquals(0, message.getIntProperty("seq"));
+      assertTrue(message.getJMSRedelivered());
+      assertEquals(1, receiver.receive(5000).getIntProperty("seq"));
+      session.commit();
+   }
+
+   public void testSelectorOrder() throws Exception
+   {
+      int count = 100;
+      QueueSession session = queueConnection.createQueueSession(true, Session.SESSION_TRANSACTED);
+      send(session, count);
+      session.commit();
+
+      QueueReceiver receiver = session.createReceiver(queue, "seq >= 50");
+      queueConnection.start();
+      int lastPriority = 9;
+      int lastSeq = -1;
+      for (int i = 50; i < count; ++i)
+      {
+         Message message = receiver.receive(5000);
+         assertNotNull("Missing message " + i, message);
+         int seq = message.getIntProperty("seq");
+         assertTrue("seq " + seq, seq >= 50);
+         lastSeq = checkNext(message, lastPriority, lastSeq);
+         lastPriority = message.getJMSPriority();
+      }
+      assertNull(receiver.receiveNoWait());
+      session.commit();
+      receiver.close();
+
+      receiver = session.createReceiver(queue);
+      checkOrder(receiver, 50);
+      session.commit();
+   }
+
+   public void testDeepQueue() throws Exception
+   {
+      final int depth = getIterationCount();
+      int threads = getThreadCount();
+
+      // Build up the backlog first
+      QueueSession session = queueConnection.createQueueSession(false, Session.AUTO_ACKNOWLEDGE);
+      QueueSender sender = session.createSender(queue);
+      Message message = session.createMessage();
+      for (int i = 0; i < depth; ++i)
+         sender.send(message, DeliveryMode.NON_PERSISTENT, i % 10, 0);
+      session.close();
+      queueConnection.start();
+
+      final int perThread = depth / threads;
+      final int[] received = new int[1];
+      final Throwable[] failure = new Throwable[1];
+      Thread[] workers = new Thread[threads * 2];
+      for (int t = 0; t < threads; ++t)
+      {
+         workers[t * 2] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  QueueSession session = queueConnection.createQueueSession(false, Session.AUTO_ACKNOWLEDGE);
+                  QueueSender sender = session.createSender(queue);
+                  Message message = session.createMessage();
+                  for (int i = 0; i < perThread; ++i)
+                     sender.send(message, DeliveryMode.NON_PERSISTENT, i % 10, 0);
+                  session.close();
+               }
+               catch (Throwable e)
+               {
+                  failure[0] = e;
+               }
+            }
+         };
+         workers[t * 2 + 1] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  QueueSession session = queueConnection.createQueueSession(false, Session.AUTO_ACKNOWLEDGE);
+                  QueueReceiver receiver = session.createReceiver(queue);
+                  int count = 0;
+                  while (count < perThread * 2 && receiver.receive(5000) != null)
+                     ++count;
+                  session.close();
+                  synchronized (received)
+                  {
+                     received[0] += count;
+                  }
+               }
+               catch (Throwable e)
+               {
+                  failure[0] = e;
+               }
+            }
+         };
+      }
+
+      long start = System.currentTimeMillis();
+      for (int t = 0; t < workers.length; ++t)
+         workers[t].start();
+      for (int t = 0; t < workers.length; ++t)
+         workers[t].join();
+      long elapsed = Math.max(1, System.currentTimeMillis() - start);
+      if (failure[0] != null)
+         fail("Worker failed: " + failure[0]);
+      int total = perThread * threads * 3;
+      getLog().info("depth=" + depth + " threads=" + threads + " " + (long) total * 1000 / elapsed + " msgs/s");
+      assertEquals(perThread * threads * 2, received[0]);
+   }
+
+   protected void setUp() throws Exception
+   {
+      super.setUp();
+      QueueConnectionFactory queueFactory = (QueueConnectionFactory) getInitialContext().lookup(QUEUE_FACTORY);
+      queue = (Queue) getInitialContext().lookup(TEST_QUEUE);
+      queueConnection = queueFactory.createQueueConnection();
+      drainQueue();
+   }
+
+   protected void tearDown() throws Exception
+   {
+      if (queueConnection != null)
+      {
+         drainQueue();
+         queueConnection.close();
+      }
+      super.tearDown();
+   }
+
+   private void send(QueueSession session, int count) throws Exception
+   {
+      QueueSender sender = session.createSender(queue);
+      Message message = session.createMessage();
+      for (int i = 0; i < count; ++i)
+      {
+         message.setIntProperty("seq", i);
+         sender.send(message, DeliveryMode.NON_PERSISTENT, (i * 7) % 10, 0);
+      }
+   }
+
+   private void checkOrder(QueueReceiver receiver, int count) throws Exception
+   {
+      int lastPriority = 9;
+      int lastSeq = -1;
+      for (int i = 0; i < count; ++i)
+      {
+         Message message = receiver.receive(5000);
+         assertNotNull("Missing message " + i, message);
+         lastSeq = checkNext(message, lastPriority, lastSeq);
+         lastPriority = message.getJMSPriority();
+      }
+   }
+
+   private int checkNext(Message message, int lastPriority, int lastSeq) throws Exception
+   {
+      int priority = message.getJMSPriority();
+      int seq = message.getIntProperty("seq");
+      assertTrue("Priority " + priority + " after " + lastPriority, priority <= lastPriority);
+      if (priority == lastPriority)
+         assertTrue("seq " + seq + " after " + lastSeq, seq > lastSeq);
+      return seq;
+   }
+
+   private void drainQueue() throws Exception
+   {
+      queueConnection.stop();
+      QueueSession session = queueConnection.createQueueSession(false, Session.AUTO_ACKNOWLEDGE);
+      QueueReceiver receiver = session.createReceiver(queue);
+      queueConnection.start();
+      while (receiver.receive(50) != null)
+         ;
+      session.close();
+      queueConnection.stop();
+   }
+}
@@ -0,0 +1,473 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.jbossmq.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.jms.JMSException;
+
+import junit.framework.TestCase;
+
+import org.jboss.mq.il.uil2.NIOSocketManager;
+import org.jboss.mq.il.uil2.SelectorTask;
+import org.jboss.mq.il.uil2.SocketManager;
+import org.jboss.mq.il.uil2.SocketManagerHandler;
+import org.jboss.mq.il.uil2.msgs.BaseMsg;
+import org.jboss.mq.il.uil2.msgs.CheckIDMsg;
+import org.jboss.mq.il.uil2.msgs.GetIDMsg;
+import org.jboss.mq.il.uil2.msgs.MsgTypes;
+import org.jboss.mq.il.uil2.msgs.PingMsg;
+
+import EDU.oswego.cs.dl.util.concurrent.BoundedBuffer;
+import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
+
+/**
+ * Tests of the UIL2 server sockets multiplexed by a SelectorTask,
+ * with the blocking SocketManager of the UIL2 clients.
+ *
+ * @version $Revision$
+ */
+public class UIL2SelectorUnitTestCase extends TestCase
+{
+   private ServerSocketChannel serverChannel;
+   private SelectorTask selectorTask;
+   private PooledExecutor pool;
+   /** The server side handlers in accept order */
+   private List serverHandlers = Collections.synchronizedList(new ArrayList());
+
+   public UIL2SelectorUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   protected void setUp() throws Exception
+   {
+      serverChannel = ServerSocketChannel.open();
+      serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByName("localhost"), 0));
+      pool = new PooledExecutor(10);
+      pool.waitWhenBlocked();
+      selectorTask = new SelectorTask();
+      selectorTask.start(Thread.currentThread().getThreadGroup(), "UIL2SelectorUnitTestCase");
+   }
+
+   protected void tearDown() throws Exception
+   {
+      selectorTask.stop();
+      serverChannel.close();
+      pool.shutdownAfterProcessingCurrentlyQueuedTasks();
+   }
+
+   public void testRoundTrip() throws Exception
+   {
+      Client client = connect();
+      for (int i = 0; i < 100; ++i)
+      {
+         GetIDMsg msg = new GetIDMsg();
+         client.socketMgr.sendMessage(msg);
+         assertEquals("ID:" + msg.getMsgID(), msg.getID());
+      }
+
+      // A msg larger than the read buffer
+      StringBuffer id = new StringBuffer();
+      for (int i = 0; i < 200000; ++i)
+         id.append((char) ('a' + i % 26));
+      client.socketMgr.sendMessage(new CheckIDMsg(id.toString()));
+      ServerHandler server = (ServerHandler) serverHandlers.get(0);
+      assertEquals(id.toString(), server.ids.get(0));
+      client.socketMgr.sendMessage(new CheckIDMsg("echo" + id));
+      assertEquals("echo" + id, ((GetIDMsg) client.handler.next()).getID());
+
+      // The error of the server is returned
+      try
+      {
+         client.socketMgr.sendMessage(new CheckIDMsg("error"));
+         fail("Expected JMSException");
+      }
+      catch (JMSException expected)
+      {
+      }
+
+      // A server originated msg
+      client.socketMgr.sendOneWay(new PingMsg(1234, true));
+      assertEquals(1234, ((PingMsg) client.handler.next()).getTime());
+      client.close();
+   }
+
+   public void testBurst() throws Exception
+   {
+      Client client = connect();
+      ServerHandler server = (ServerHandler) serverHandlers.get(0);
+      for (int i = 0; i < 2000; ++i)
+         client.socketMgr.sendOneWay(new PingMsg(i, true));
+
+      // The pongs are written by concurrent threads
+      Set times = new HashSet();
+      for (int i = 0; i < 2000; ++i)
+         times.add(new Long(((PingMsg) client.handler.next()).getTime()));
+      assertEquals(2000, times.size());
+
+      // The buffers written are returned to the pool
+      assertTrue(selectorTask.getWriteBufferPool().getSize() > 0);
+      client.close();
+      server.waitForClose();
+   }
+
+   public void testFragmentedMsgs() throws Exception
+   {
+      Socket socket = new Socket(serverChannel.socket().getInetAddress(), serverChannel.socket().getLocalPort());
+      ServerHandler server = accept();
+
+      // Write the stream of the client SocketManager a byte at a time
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      for (int i = 0; i < 20; ++i)
+      {
+         CheckIDMsg msg = new CheckIDMsg("id" + i);
+         msg.getMsgID();
+         msg.write(out);
+         out.reset();
+         out.flush();
+      }
+      byte[] stream = bytes.toByteArray();
+      OutputStream socketOut = socket.getOutputStream();
+      for (int i = 0; i < stream.length; ++i)
+      {
+         socketOut.write(stream[i]);
+         socketOut.flush();
+         if (i % 50 == 0)
+            Thread.sleep(1);
+      }
+
+      // The msgs are handled concurrently
+      server.waitForIds(20);
+      for (int i = 0; i < 20; ++i)
+         assertTrue("id" + i, server.ids.contains("id" + i));
+      socket.close();
+      server.waitForClose();
+   }
+
+   public void testLargeMsgInChunks() throws Exception
+   {
+      Socket socket = new Socket(serverChannel.socket().getInetAddress(), serverChannel.socket().getLocalPort());
+      ServerHandler server = accept();
+
+      // The msg is complete after neither a read nor a doubling of its bytes
+      StringBuffer id = new StringBuffer();
+      for (int i = 0; i < 1000000; ++i)
+         id.append((char) ('a' + i % 26));
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      CheckIDMsg msg = new CheckIDMsg(id.toString());
+      msg.getMsgID();
+      msg.write(out);
+      out.reset();
+      out.flush();
+      byte[] stream = bytes.toByteArray();
+      OutputStream socketOut = socket.getOutputStream();
+      for (int i = 0; i < stream.length; i += 4096)
+      {
+         socketOut.write(stream, i, Math.min(4096, stream.length - i));
+         socketOut.flush();
+         if (i % 65536 == 0)
+            Thread.sleep(1);
+      }
+
+      server.waitForIds(1);
+      assertEquals(id.toString(), server.ids.get(0));
+      socket.close();
+      server.waitForClose();
+   }
+
+   public void testSaturatedExecutor() throws Exception
+   {
+      // One thread and one queued msg
+      pool.shutdownAfterProcessingCurrentlyQueuedTasks();
+      pool = new PooledExecutor(new BoundedBuffer(1), 1);
+      pool.abortWhenBlocked();
+      Client client = connect();
+      Client other = connect();
+      ServerHandler server = (ServerHandler) serverHandlers.get(0);
+      ServerHandler otherServer = (ServerHandler) serverHandlers.get(1);
+
+      server.block(true);
+      for (int i = 0; i < 20; ++i)
+         client.socketMgr.sendOneWay(new CheckIDMsg("id" + i));
+      Thread.sleep(100);
+
+      // The selector thread still handles the other socket
+      other.close();
+      otherServer.waitForClose();
+
+      // The socket is read again once the executor accepts the msg
+      server.block(false);
+      server.waitForIds(20);
+      for (int i = 0; i < 20; ++i)
+         assertEquals("id" + i, server.ids.get(i));
+      client.close();
+      server.waitForClose();
+   }
+
+   public void testConcurrentClients() throws Exception
+   {
+      final Client[] clients = new Client[20];
+      for (int i = 0; i < clients.length; ++i)
+         clients[i] = connect();
+
+      final List errors = Collections.synchronizedList(new ArrayList());
+      Thread[] threads = new Thread[clients.length];
+      for (int i = 0; i < clients.length; ++i)
+      {
+         final Client client = clients[i];
+         threads[i] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  for (int j = 0; j < 200; ++j)
+                  {
+                     GetIDMsg msg = new GetIDMsg();
+                     client.socketMgr.sendMessage(msg);
+                     if (msg.getID().equals("ID:" + msg.getMsgID()) == false)
+                        errors.add(msg.getID());
+                  }
+               }
+               catch (Throwable t)
+               {
+                  errors.add(t);
+               }
+            }
+         };
+         threads[i].start();
+      }
+      for (int i = 0; i < threads.length; ++i)
+         threads[i].join();
+      assertEquals(errors.toString(), 0, errors.size());
+
+      // Each server handler is closed when its client disconnects
+      for (int i = 0; i < clients.length; ++i)
+      {
+         clients[i].close();
+         ((ServerHandler) serverHandlers.get(i)).waitForClose();
+      }
+   }
+
+   public void testServerStop() throws Exception
+   {
+      Client client = connect();
+      ServerHandler server = (ServerHandler) serverHandlers.get(0);
+      server.socketMgr.stop();
+      server.waitForClose();
+      client.handler.waitForClose();
+      try
+      {
+         client.socketMgr.sendMessage(new GetIDMsg());
+         fail("Expected IOException");
+      }
+      catch (IOException expected)
+      {
+      }
+   }
+
+   private Client connect() throws Exception
+   {
+      Socket socket = new Socket(serverChannel.socket().getInetAddress(), serverChannel.socket().getLocalPort());
+      accept();
+      Client client = new Client();
+      client.socketMgr = new SocketManager(socket);
+      client.handler = new ClientHandler();
+      client.socketMgr.setHandler(client.handler);
+      client.socketMgr.start(Thread.currentThread().getThreadGroup());
+      return client;
+   }
+
+   private ServerHandler accept() throws Exception
+   {
+      NIOSocketManager socketMgr = new NIOSocketManager(serverChannel.accept(), selectorTask, pool);
+      ServerHandler handler = new ServerHandler(socketMgr);
+      socketMgr.setHandler(handler);
+      socketMgr.start(null);
+      serverHandlers.add(handler);
+      return handler;
+   }
+
+   static class Client
+   {
+      SocketManager socketMgr;
+      ClientHandler handler;
+
+      void close() throws Exception
+      {
+         socketMgr.stop();
+      }
+   }
+
+   /**
+    * The server side handler, replies to GetIDMsg and CheckIDMsg and pongs
+    * the pings. The id of a CheckIDMsg starting with echo is sent back in
+    * a GetIDMsg.
+    */
+   static class ServerHandler implements SocketManagerHandler
+   {
+      SocketManager socketMgr;
+      List ids = new ArrayList();
+      boolean closed;
+      /** Whether the CheckIDMsgs wait */
+      boolean blocked;
+
+      ServerHandler(SocketManager socketMgr)
+      {
+         this.socketMgr = socketMgr;
+      }
+
+      public void handleMsg(BaseMsg msg) throws Exception
+      {
+         switch (msg.getMsgType())
+         {
+            case MsgTypes.m_getID:
+               ((GetIDMsg) msg).setID("ID:" + msg.getMsgID());
+               socketMgr.sendReply(msg);
+               break;
+            case MsgTypes.m_checkID:
+               String id = ((CheckIDMsg) msg).getID();
+               if (id.equals("error"))
+                  throw new JMSException(id);
+               if (id.startsWith("echo"))
+               {
+                  GetIDMsg echo = new GetIDMsg();
+                  echo.setID(id);
+                  socketMgr.sendOneWay(echo);
+               }
+               synchronized (this)
+               {
+                  while (blocked)
+                     wait();
+                  ids.add(id);
+                  notifyAll();
+               }
+               socketMgr.sendReply(msg);
+               break;
+            case MsgTypes.m_ping:
+               PingMsg pong = new PingMsg(((PingMsg) msg).getTime(), false);
+               pong.getMsgID();
+               socketMgr.sendReply(pong);
+               break;
+            default:
+               throw new IllegalArgumentException("Unexpected msg: " + msg);
+         }
+      }
+
+      public void onStreamNotification(Object stream, int size)
+      {
+      }
+
+      public void asynchFailure(String error, Throwable e)
+      {
+      }
+
+      public synchronized void close()
+      {
+         closed = true;
+         notifyAll();
+      }
+
+      synchronized void block(boolean blocked)
+      {
+         this.blocked = blocked;
+         notifyAll();
+      }
+
+      synchronized void waitForIds(int count) throws InterruptedException
+      {
+         long end = System.currentTimeMillis() + 10000;
+         while (ids.size() < count && System.currentTimeMillis() < end)
+            wait(100);
+         assertEquals(count, ids.size());
+      }
+
+      synchronized void waitForClose() throws InterruptedException
+      {
+         long end = System.currentTimeMillis() + 10000;
+         while (closed == false && System.currentTimeMillis() < end)
+            wait(100);
+         assertTrue("Closed", closed);
+      }
+   }
+
+   /**
+    * The client side handler, records the server originated msgs
+    */
+   static class ClientHandler implements SocketManagerHandler
+   {
+      List msgs = new ArrayList();
+      boolean closed;
+
+      public synchronized void handleMsg(BaseMsg msg) throws Exception
+      {
+         msgs.add(msg);
+         notifyAll();
+      }
+
+      public void onStreamNotification(Object stream, int size)
+      {
+      }
+
+      public void asynchFailure(String error, Throwable e)
+      {
+      }
+
+      public synchronized void close()
+      {
+         closed = true;
+         notifyAll();
+      }
+
+      synchronized BaseMsg next() throws InterruptedException
+      {
+         long end = System.currentTimeMillis() + 10000;
+         while (msgs.isEmpty() && System.currentTimeMillis() < end)
+            wait(100);
+         assertFalse("No msg", msgs.isEmpty());
+         return (BaseMsg) msgs.remove(0);
+      }
+
+      synchronized void waitForClose() throws InterruptedException
+      {
+         long end = System.currentTimeMillis() + 10000;
+         while (closed == false && System.currentTimeMillis() < end)
+            wait(100);
+         assertTrue("Closed", closed);
+      }
+   }
+}
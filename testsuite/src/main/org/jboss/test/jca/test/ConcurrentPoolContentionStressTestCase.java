@@ -0,0 +1,185 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.jca.test;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.resource.ResourceException;
+import javax.resource.spi.ManagedConnectionFactory;
+
+import junit.framework.TestCase;
+
+import org.jboss.logging.Logger;
+import org.jboss.resource.connectionmanager.BaseConnectionManager2;
+import org.jboss.resource.connectionmanager.CachedConnectionManager;
+import org.jboss.resource.connectionmanager.ConnectionListener;
+import org.jboss.resource.connectionmanager.InternalManagedConnectionPool;
+import org.jboss.resource.connectionmanager.JBossManagedConnectionPool;
+import org.jboss.resource.connectionmanager.ManagedConnectionPool;
+import org.jboss.resource.connectionmanager.NoTxConnectionManager;
+import org.jboss.test.jca.adapter.TestManagedConnectionFactory;
+
+/**
+ * Measures the getConnection/returnConnection throughput of the
+ * InternalManagedConnectionPool and the ConcurrentManagedConnectionPool
+ * from 1 to 256 threads sharing a pool of 20 connections. The results
+ * are logged at info level. Every run also checks that no connection is
+ * handed to two threads at the same time.
+ *
+ * @version $Revision$
+ */
+public class ConcurrentPoolContentionStressTestCase extends TestCase
+{
+   Logger log = Logger.getLogger(getClass());
+
+   private static final int MAX_POOL_SIZE = 20;
+
+   CachedConnectionManager ccm = new CachedConnectionManager();
+
+   public ConcurrentPoolContentionStressTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testPoolIsBounded() throws Exception
+   {
+      InternalManagedConnectionPool.PoolParams pp = getPoolParams(true);
+      pp.blockingTimeout = 100;
+      BaseConnectionManager2 cm = getCM(pp);
+      try
+      {
+         ArrayList cls = new ArrayList();
+         for (int i = 0; i < MAX_POOL_SIZE; ++i)
+            cls.add(cm.getManagedConnection(null, null));
+         try
+         {
+            cm.getManagedConnection(null, null);
+            fail("Got a connection more than maxSize!");
+         }
+         catch (ResourceException expected)
+         {
+         }
+         for (int i = 0; i < cls.size(); ++i)
+            cm.returnManagedConnection((ConnectionListener) cls.get(i), false);
+         assertEquals(MAX_POOL_SIZE, cm.getConnectionCount());
+
+         // The connections are reused
+         ConnectionListener cl = cm.getManagedConnection(null, null);
+         assertTrue(cls.contains(cl));
+         cm.returnManagedConnection(cl, true);
+         assertEquals(MAX_POOL_SIZE - 1, cm.getConnectionCount());
+      }
+      finally
+      {
+         shutdown(cm);
+      }
+   }
+
+   public void testContention() throws Exception
+   {
+      int iterations = Integer.getInteger("jbosstest.iterationcount", 20000).intValue();
+      for (int threads = 1; threads <= 256; threads *= 4)
+      {
+         long monitor = run(getPoolParams(false), threads, iterations);
+         long concurrent = run(getPoolParams(true), threads, iterations);
+         log.info("threads=" + threads + " concurrent=" + concurrent + " ops/s, internal=" + monitor + " ops/s");
+      }
+   }
+
+   private long run(InternalManagedConnectionPool.PoolParams pp, int threadCount, final int iterations)
+      throws Exception
+   {
+      final BaseConnectionManager2 cm = getCM(pp);
+      final ConcurrentHashMap checkedOut = new ConcurrentHashMap();
+      final Throwable[] failure = new Throwable[1];
+      try
+      {
+         Thread[] threads = new Thread[threadCount];
+         for (int t = 0; t < threadCount; ++t)
+         {
+            threads[t] = new Thread()
+            {
+               public void run()
+               {
+                  try
+                  {
+                     for (int i = 0; i < iterations; ++i)
+                     {
+                        ConnectionListener cl = cm.getManagedConnection(null, null);
+                        if (checkedOut.putIfAbsent(cl, this) != null)
+                           throw new IllegalStateException("Connection handed out twice " + cl);
+                        checkedOut.remove(cl);
+                        cm.returnManagedConnection(cl, false);
+                     }
+                  }
+                  catch (Throwable e)
+                  {
+                     failure[0] = e;
+                  }
+               }
+            };
+         }
+
+         long start = System.currentTimeMillis();
+         for (int t = 0; t < threadCount; ++t)
+            threads[t].start();
+         for (int t = 0; t < threadCount; ++t)
+            threads[t].join();
+         long elapsed = Math.max(1, System.currentTimeMillis() - start);
+         if (failure[0] != null)
+            fail("Checkout failed: " + failure[0]);
+         assertTrue("Too many connections " + cm.getConnectionCount(), cm.getConnectionCount() <= MAX_POOL_SIZE);
+         return (long) threadCount * iterations * 1000 / elapsed;
+      }
+      finally
+      {
+         shutdown(cm);
+      }
+   }
+
+   private InternalManagedConnectionPool.PoolParams getPoolParams(boolean concurrent)
+   {
+      InternalManagedConnectionPool.PoolParams pp = new InternalManagedConnectionPool.PoolParams();
+      pp.minSize = 0;
+      pp.maxSize = MAX_POOL_SIZE;
+      pp.blockingTimeout = 60000;
+      pp.idleTimeout = 0;
+      pp.useConcurrentPool = concurrent;
+      return pp;
+   }
+
+   private BaseConnectionManager2 getCM(InternalManagedConnectionPool.PoolParams pp) throws Exception
+   {
+      ManagedConnectionFactory mcf = new TestManagedConnectionFactory();
+      ManagedConnectionPool poolingStrategy = new JBossManagedConnectionPool.OnePool(mcf, pp, false, log);
+      BaseConnectionManager2 cm = new NoTxConnectionManager(ccm, poolingStrategy);
+      poolingStrategy.setConnectionListenerFactory(cm);
+      return cm;
+   }
+
+   private void shutdown(BaseConnectionManager2 cm)
+   {
+      JBossManagedConnectionPool.OnePool pool = (JBossManagedConnectionPool.OnePool) cm.getPoolingStrategy();
+      pool.shutdown();
+   }
+}
@@ -0,0 +1,146 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.jca.test;
+
+import junit.framework.TestCase;
+
+import org.jboss.logging.Logger;
+import org.jboss.resource.connectionmanager.BaseConnectionManager2;
+import org.jboss.resource.connectionmanager.CachedConnectionManager;
+import org.jboss.resource.connectionmanager.ConnectionListener;
+import org.jboss.resource.connectionmanager.InternalManagedConnectionPool;
+import org.jboss.resource.connectionmanager.JBossManagedConnectionPool;
+import org.jboss.resource.connectionmanager.NoTxConnectionManager;
+import org.jboss.resource.statistic.pool.LatencyHistogram;
+import org.jboss.test.jca.adapter.TestManagedConnectionFactory;
+
+/**
+ * Tests the LatencyHistogram and its use by the pools.
+ *
+ * @version $Revision$
+ */
+public class LatencyHistogramUnitTestCase extends TestCase
+{
+   Logger log = Logger.getLogger(getClass());
+
+   public LatencyHistogramUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testEmpty() throws Exception
+   {
+      LatencyHistogram histogram = new LatencyHistogram();
+      assertEquals(0, histogram.getCount());
+      assertEquals(0, histogram.getValueAtPercentile(99));
+      assertEquals(0, histogram.getMean());
+   }
+
+   public void testSmallValuesAreExact() throws Exception
+   {
+      LatencyHistogram histogram = new LatencyHistogram();
+      for (int i = 1; i <= 50; ++i)
+         histogram.record(i);
+      assertEquals(50, histogram.getCount());
+      assertEquals(25, histogram.getValueAtPercentile(50));
+      assertEquals(50, histogram.getValueAtPercentile(100));
+      assertEquals(50, histogram.getMax());
+   }
+
+   public void testPercentileError() throws Exception
+   {
+      LatencyHistogram histogram = new LatencyHistogram();
+      for (int i = 1; i <= 1000000; ++i)
+         histogram.record(i);
+      long[] expected = { 500000, 900000, 990000, 999000 };
+      double[] percentiles = { 50, 90, 99, 99.9 };
+      for (int i = 0; i < percentiles.length; ++i)
+      {
+         long value = histogram.getValueAtPercentile(percentiles[i]);
+         assertTrue(percentiles[i] + "th percentile " + value, value >= expected[i]);
+         assertTrue(percentiles[i] + "th percentile " + value, value <= expected[i] + expected[i] / 32);
+      }
+      assertEquals(1000000, histogram.getMax());
+   }
+
+   public void testHugeValues() throws Exception
+   {
+      LatencyHistogram histogram = new LatencyHistogram();
+      histogram.record(Long.MAX_VALUE);
+      histogram.record(-1);
+      assertEquals(2, histogram.getCount());
+      assertEquals(0, histogram.getValueAtPercentile(50));
+      assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+   }
+
+   public void testAddAndReset() throws Exception
+   {
+      LatencyHistogram one = new LatencyHistogram();
+      LatencyHistogram two = new LatencyHistogram();
+      one.record(10);
+      two.record(20);
+      two.record(30);
+      one.add(two);
+      assertEquals(3, one.getCount());
+      assertEquals(20, one.getMean());
+      assertEquals(30, one.getMax());
+      one.reset();
+      assertEquals(0, one.getCount());
+      assertEquals(0, one.getMax());
+   }
+
+   public void testPoolRecordsLatencies() throws Exception
+   {
+      checkPoolRecordsLatencies(false);
+      checkPoolRecordsLatencies(true);
+   }
+
+   private void checkPoolRecordsLatencies(boolean concurrent) throws Exception
+   {
+      InternalManagedConnectionPool.PoolParams pp = new InternalManagedConnectionPool.PoolParams();
+      pp.maxSize = 5;
+      pp.useConcurrentPool = concurrent;
+      JBossManagedConnectionPool.OnePool pool = new JBossManagedConnectionPool.OnePool(new TestManagedConnectionFactory(), pp, false, log);
+      BaseConnectionManager2 cm = new NoTxConnectionManager(new CachedConnectionManager(), pool);
+      pool.setConnectionListenerFactory(cm);
+      try
+      {
+         for (int i = 0; i < 10; ++i)
+         {
+            ConnectionListener cl = cm.getManagedConnection(null, null);
+            Thread.sleep(2);
+            cm.returnManagedConnection(cl, false);
+         }
+         assertEquals(10, pool.getWaitTimeHistogram().getCount());
+         assertEquals(10, pool.getHoldTimeHistogram().getCount());
+         assertTrue(pool.getHoldTimeHistogram().getValueAtPercentile(50) >= 2000);
+         assertEquals(1, pool.getCreationTimeHistogram().getCount());
+
+         pool.resetHistograms();
+         assertEquals(0, pool.getWaitTimeHistogram().getCount());
+      }
+      finally
+      {
+         pool.shutdown();
+      }
+   }
+}
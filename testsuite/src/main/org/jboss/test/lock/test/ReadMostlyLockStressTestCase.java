@@ -0,0 +1,293 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.lock.test;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Method;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import javax.transaction.xa.XAResource;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.TestCase;
+
+import org.jboss.ejb.BeanLock;
+import org.jboss.ejb.BeanLockManager;
+import org.jboss.ejb.EntityContainer;
+import org.jboss.ejb.ReadMostlyBeanLock;
+import org.jboss.ejb.plugins.lock.QueuedPessimisticEJBLock;
+import org.jboss.ejb.plugins.lock.ReadMostlyEJBLock;
+import org.jboss.ejb.plugins.lock.SimpleReadWriteEJBLock;
+import org.jboss.invocation.Invocation;
+import org.jboss.logging.Logger;
+import org.jboss.metadata.ApplicationMetaData;
+import org.jboss.metadata.EntityMetaData;
+import org.w3c.dom.Element;
+
+/**
+ * Compares the entity lock plugins under a read-mostly load on a single
+ * bean, driving them the way the EntityLockInterceptor does. The getter is
+ * read-only and called without a transaction, one call in a hundred is a
+ * setter in a transaction of its own. The results are logged at info level.
+ *
+ * @version $Revision$
+ */
+public class ReadMostlyLockStressTestCase extends TestCase
+{
+   Logger log = Logger.getLogger(getClass());
+
+   /** The invocations made by each thread */
+   static final int INVOCATIONS = 100000;
+
+   /** One invocation in this many is a write */
+   static final int WRITE_RATIO = 100;
+
+   static final String JBOSS_XML = "<entity><ejb-name>ReadMostly</ejb-name><method-attributes><method>"
+      + "<method-name>get*</method-name><read-only>true</read-only></method></method-attributes></entity>";
+
+   static Method getter;
+   static Method setter;
+
+   /** The bean state, only writers change it */
+   int value;
+
+   public ReadMostlyLockStressTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testQueuedPessimisticEJBLock() throws Exception
+   {
+      runLock(QueuedPessimisticEJBLock.class, false);
+   }
+
+   public void testSimpleReadWriteEJBLock() throws Exception
+   {
+      runLock(SimpleReadWriteEJBLock.class, true);
+   }
+
+   public void testReadMostlyEJBLock() throws Exception
+   {
+      runLock(ReadMostlyEJBLock.class, false);
+   }
+
+   public void testTransactionalReadersAreScheduled() throws Exception
+   {
+      BeanLockManager manager = createLockManager(ReadMostlyEJBLock.class);
+      ReadMostlyBeanLock lock = (ReadMostlyBeanLock) manager.getLock("bean");
+      try
+      {
+         Invocation mi = new Invocation();
+         mi.setId("bean");
+         mi.setMethod(getter);
+         assertTrue(lock.scheduleUnsynchronized(mi));
+
+         // A read-only call in a transaction must own the bean
+         mi.setTransaction(new BenchTransaction());
+         assertFalse(lock.scheduleUnsynchronized(mi));
+      }
+      finally
+      {
+         manager.removeLockRef("bean");
+      }
+   }
+
+   protected void setUp() throws Exception
+   {
+      getter = Bean.class.getMethod("getValue", new Class[0]);
+      setter = Bean.class.getMethod("setValue", new Class[] { Integer.TYPE });
+   }
+
+   private void runLock(Class lockClass, boolean releaseAtCommit) throws Exception
+   {
+      int[] threads = { 1, 4, 16 };
+      for (int i = 0; i < threads.length; ++i)
+      {
+         BeanLockManager manager = createLockManager(lockClass);
+         value = 0;
+         long elapsed = run(threads[i], manager, releaseAtCommit);
+         long rate = (long) threads[i] * INVOCATIONS * 1000 / elapsed;
+         log.info(shortName(lockClass) + " threads=" + threads[i] + " " + rate + " invocations/s");
+         assertEquals(threads[i] * (INVOCATIONS / WRITE_RATIO), value);
+      }
+   }
+
+   private long run(int threads, final BeanLockManager manager, final boolean releaseAtCommit) throws Exception
+   {
+      final Throwable[] failure = new Throwable[1];
+      Thread[] workers = new Thread[threads];
+      for (int t = 0; t < threads; ++t)
+      {
+         workers[t] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  for (int i = 0; i < INVOCATIONS; ++i)
+                  {
+                     if (i % WRITE_RATIO == 0)
+                        invoke(manager, setter, new BenchTransaction(), releaseAtCommit);
+                     else
+                        invoke(manager, getter, null, releaseAtCommit);
+                  }
+               }
+               catch (Throwable e)
+               {
+                  failure[0] = e;
+               }
+            }
+         };
+      }
+      long start = System.currentTimeMillis();
+      for (int t = 0; t < threads; ++t)
+         workers[t].start();
+      for (int t = 0; t < threads; ++t)
+         workers[t].join();
+      if (failure[0] != null)
+         fail("Worker failed: " + failure[0]);
+      return Math.max(1, System.currentTimeMillis() - start);
+   }
+
+   /**
+    * Mimic the EntityLockInterceptor and the commit of the transaction
+    */
+   private void invoke(BeanLockManager manager, Method method, Transaction tx, boolean releaseAtCommit)
+      throws Exception
+   {
+      Invocation mi = new Invocation();
+      mi.setId("bean");
+      mi.setMethod(method);
+      mi.setTransaction(tx);
+
+      BeanLock lock = manager.getLock("bean");
+      try
+      {
+         if (lock instanceof ReadMostlyBeanLock && ((ReadMostlyBeanLock) lock).scheduleUnsynchronized(mi))
+         {
+            businessMethod(method);
+            return;
+         }
+
+         lock.schedule(mi);
+         try
+         {
+            businessMethod(method);
+         }
+         finally
+         {
+            lock.sync();
+            lock.endInvocation(mi);
+            lock.releaseSync();
+         }
+
+         if (tx != null && releaseAtCommit)
+         {
+            lock.sync();
+            lock.endTransaction(tx);
+            lock.releaseSync();
+         }
+      }
+      finally
+      {
+         manager.removeLockRef("bean");
+      }
+   }
+
+   private void businessMethod(Method method)
+   {
+      if (method == setter)
+      {
+         // Not atomic, a lost update means writers were not serialized
+         int current = value;
+         Thread.yield();
+         value = current + 1;
+      }
+   }
+
+   private static BeanLockManager createLockManager(Class lockClass) throws Exception
+   {
+      Element element = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+         .parse(new ByteArrayInputStream(JBOSS_XML.getBytes())).getDocumentElement();
+      EntityMetaData metaData = new EntityMetaData(new ApplicationMetaData());
+      metaData.importJbossXml(element);
+
+      EntityContainer container = new EntityContainer();
+      container.setBeanMetaData(metaData);
+      BeanLockManager manager = new BeanLockManager(container);
+      manager.setLockCLass(lockClass);
+      container.setLockManager(manager);
+      return manager;
+   }
+
+   private static String shortName(Class clazz)
+   {
+      String name = clazz.getName();
+      return name.substring(name.lastIndexOf('.') + 1);
+   }
+
+   public interface Bean
+   {
+      int getValue();
+
+      void setValue(int value);
+   }
+
+   /**
+    * A transaction that is always active
+    */
+   private static class BenchTransaction implements Transaction
+   {
+      public void commit()
+      {
+      }
+
+      public boolean delistResource(XAResource xaRes, int flag)
+      {
+         return false;
+      }
+
+      public boolean enlistResource(XAResource xaRes)
+      {
+         return false;
+      }
+
+      public int getStatus()
+      {
+         return Status.STATUS_ACTIVE;
+      }
+
+      public void registerSynchronization(Synchronization sync)
+      {
+      }
+
+      public void rollback()
+      {
+      }
+
+      public void setRollbackOnly()
+      {
+      }
+   }
+}
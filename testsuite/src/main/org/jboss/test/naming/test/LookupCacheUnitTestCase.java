@@ -0,0 +1,185 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.naming.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Hashtable;
+
+import javax.naming.Context;
+
+import junit.framework.TestCase;
+
+import org.jnp.interfaces.InvalidationSource;
+import org.jnp.interfaces.Naming;
+import org.jnp.interfaces.NamingContext;
+import org.jnp.interfaces.NamingParser;
+import org.jnp.server.NamingServer;
+
+/**
+ * Tests of the client side lookup cache enabled by jnp.lookupCache against
+ * a NamingServer exported over rmi.
+ *
+ * @version $Revision$
+ */
+public class LookupCacheUnitTestCase extends TestCase
+{
+   private NamingServer server;
+   private Naming stub;
+   private NamingParser parser = new NamingParser();
+
+   public LookupCacheUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   protected void setUp() throws Exception
+   {
+      server = new NamingServer();
+      stub = (Naming) UnicastRemoteObject.exportObject(server, 0);
+   }
+
+   protected void tearDown() throws Exception
+   {
+      UnicastRemoteObject.unexportObject(server, true);
+   }
+
+   public void testRebindByOtherClientInvalidates() throws Exception
+   {
+      Context ctx = createContext(60000);
+      ctx.bind("value", "one");
+      assertEquals("one", ctx.lookup("value"));
+      assertEquals("one", ctx.lookup("value"));
+
+      // Another client changes the binding
+      Context other = createContext(-1);
+      other.rebind("value", "two");
+      assertEventually(ctx, "value", "two");
+   }
+
+   public void testOwnRebindIsSeenImmediately() throws Exception
+   {
+      Context ctx = createContext(60000);
+      ctx.bind("own", "one");
+      assertEquals("one", ctx.lookup("own"));
+      ctx.rebind("own", "two");
+      assertEquals("two", ctx.lookup("own"));
+   }
+
+   public void testUnbindOfSubcontextInvalidatesChildren() throws Exception
+   {
+      Context ctx = createContext(60000);
+      Context sub = ctx.createSubcontext("sub");
+      sub.bind("child", "one");
+      assertEquals("one", ctx.lookup("sub/child"));
+
+      Context other = createContext(-1);
+      other.unbind("sub/child");
+      other.bind("sub/child", "two");
+      assertEventually(ctx, "sub/child", "two");
+   }
+
+   public void testLookupReturnsCopies() throws Exception
+   {
+      Context ctx = createContext(60000);
+      ctx.bind("copy", new StringBuffer("value"));
+      Object first = ctx.lookup("copy");
+      Object second = ctx.lookup("copy");
+      assertEquals(first.toString(), second.toString());
+      assertTrue("Each lookup unmarshalls a new copy", first != second);
+   }
+
+   public void testEntriesExpire() throws Exception
+   {
+      Context ctx = createContext(1);
+      ctx.bind("ttl", "one");
+      assertEquals("one", ctx.lookup("ttl"));
+      // The entry expires before the asynchronous notification arrives
+      server.rebind(parser.parse("ttl"), new org.jnp.interfaces.MarshalledValuePair("two"), String.class.getName());
+      Thread.sleep(10);
+      assertEquals("two", ctx.lookup("ttl"));
+   }
+
+   public void testHitsDoNotRenewEntries() throws Exception
+   {
+      // A server that never notifies the cache, only the ttl refreshes it
+      Naming silent = (Naming) Proxy.newProxyInstance(getClass().getClassLoader(),
+         new Class[] { Naming.class, InvalidationSource.class }, new InvocationHandler()
+         {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+               if (method.getDeclaringClass() == InvalidationSource.class)
+                  return null;
+               try
+               {
+                  return method.invoke(stub, args);
+               }
+               catch (InvocationTargetException e)
+               {
+                  throw e.getTargetException();
+               }
+            }
+         });
+      Hashtable env = new Hashtable();
+      env.put(NamingContext.JNP_LOOKUP_CACHE, "true");
+      env.put(NamingContext.JNP_LOOKUP_CACHE_TTL, "200");
+      Context ctx = new NamingContext(env, null, silent);
+      ctx.bind("hot", "one");
+      assertEquals("one", ctx.lookup("hot"));
+      server.rebind(parser.parse("hot"), new org.jnp.interfaces.MarshalledValuePair("two"), String.class.getName());
+
+      // Looked up more often than the ttl, the entry still expires
+      long deadline = System.currentTimeMillis() + 2000;
+      while (System.currentTimeMillis() < deadline)
+      {
+         if ("two".equals(ctx.lookup("hot")))
+            return;
+         Thread.sleep(10);
+      }
+      fail("The cache hits renewed the entry");
+   }
+
+   private Context createContext(long ttl) throws Exception
+   {
+      Hashtable env = new Hashtable();
+      if (ttl > 0)
+      {
+         env.put(NamingContext.JNP_LOOKUP_CACHE, "true");
+         env.put(NamingContext.JNP_LOOKUP_CACHE_TTL, String.valueOf(ttl));
+      }
+      return new NamingContext(env, null, stub);
+   }
+
+   private void assertEventually(Context ctx, String name, Object expected) throws Exception
+   {
+      for (int i = 0; i < 100; ++i)
+      {
+         if (expected.equals(ctx.lookup(name)))
+            return;
+         Thread.sleep(50);
+      }
+      fail(name + " was not invalidated, still " + ctx.lookup(name));
+   }
+}
@@ -0,0 +1,197 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.naming.test;
+
+import javax.naming.Name;
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.NamingException;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+import org.jnp.interfaces.NamingParser;
+import org.jnp.server.NamingServer;
+
+/**
+ * Measures mixed lookup/rebind throughput of the NamingServer from 1 to 64
+ * threads. Each run is repeated against a NamingServer serialized on a single
+ * monitor, which is how the Hashtable based tree behaved, so the numbers can
+ * be compared. The results are logged at info level.
+ *
+ * @version $Revision$
+ */
+public class NamingServerStressTestCase extends TestCase
+{
+   static final Logger log = Logger.getLogger(NamingServerStressTestCase.class);
+
+   /** The number of names bound in each of the subcontexts */
+   private static final int NAMES = 100;
+   /** The number of subcontexts */
+   private static final int CONTEXTS = 8;
+   /** One in WRITE_RATIO operations is a rebind */
+   private static final int WRITE_RATIO = 20;
+
+   private NamingParser parser = new NamingParser();
+
+   public NamingServerStressTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testConcurrentBind() throws Exception
+   {
+      final NamingServer server = new NamingServer();
+      final Name name = parser.parse("unique");
+      final int[] bound = new int[1];
+      Thread[] threads = new Thread[16];
+      for (int i = 0; i < threads.length; ++i)
+      {
+         threads[i] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  server.bind(name, getName(), String.class.getName());
+                  synchronized (bound)
+                  {
+                     ++bound[0];
+                  }
+               }
+               catch (NameAlreadyBoundException expected)
+               {
+               }
+               catch (NamingException e)
+               {
+                  log.error("Unexpected exception", e);
+               }
+            }
+         };
+      }
+      for (int i = 0; i < threads.length; ++i)
+         threads[i].start();
+      for (int i = 0; i < threads.length; ++i)
+         threads[i].join();
+      assertEquals("Exactly one bind wins", 1, bound[0]);
+   }
+
+   public void testMixedLoad() throws Exception
+   {
+      int iterations = Integer.getInteger("jbosstest.iterationcount", 20000).intValue();
+      for (int threads = 1; threads <= 64; threads *= 2)
+      {
+         long concurrent = run(createServer(false), threads, iterations);
+         long monitor = run(createServer(true), threads, iterations);
+         log.info("threads=" + threads + " concurrent=" + concurrent + " ops/s, single monitor=" + monitor + " ops/s");
+      }
+   }
+
+   private NamingServer createServer(boolean singleMonitor) throws Exception
+   {
+      NamingServer server = singleMonitor ? new MonitorNamingServer() : new NamingServer();
+      for (int c = 0; c < CONTEXTS; ++c)
+      {
+         server.createSubcontext(parser.parse("ctx" + c));
+         for (int n = 0; n < NAMES; ++n)
+            server.bind(parser.parse("ctx" + c + "/name" + n), new Integer(n), Integer.class.getName());
+      }
+      return server;
+   }
+
+   private long run(final NamingServer server, int threadCount, final int iterations) throws Exception
+   {
+      final Name[] names = new Name[CONTEXTS * NAMES];
+      for (int c = 0; c < CONTEXTS; ++c)
+      {
+         for (int n = 0; n < NAMES; ++n)
+            names[c * NAMES + n] = parser.parse("ctx" + c + "/name" + n);
+      }
+
+      final Throwable[] failure = new Throwable[1];
+      Thread[] threads = new Thread[threadCount];
+      for (int t = 0; t < threadCount; ++t)
+      {
+         final int seed = t;
+         threads[t] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  for (int i = 0; i < iterations; ++i)
+                  {
+                     int index = (seed * 7919 + i * 31) % names.length;
+                     if (i % WRITE_RATIO == 0)
+                        server.rebind(names[index], new Integer(i), Integer.class.getName());
+                     else if (server.lookup(names[index]) == null)
+                        throw new IllegalStateException("Lost binding " + names[index]);
+                  }
+               }
+               catch (Throwable e)
+               {
+                  failure[0] = e;
+               }
+            }
+         };
+      }
+
+      long start = System.currentTimeMillis();
+      for (int t = 0; t < threadCount; ++t)
+         threads[t].start();
+      for (int t = 0; t < threadCount; ++t)
+         threads[t].join();
+      long elapsed = Math.max(1, System.currentTimeMillis() - start);
+      if (failure[0] != null)
+         fail("Operation failed: " + failure[0]);
+      return (long) threadCount * iterations * 1000 / elapsed;
+   }
+
+   /**
+    * A NamingServer where every operation on a context holds one monitor
+    */
+   public static class MonitorNamingServer extends NamingServer
+   {
+      public MonitorNamingServer() throws NamingException
+      {
+      }
+
+      public synchronized void bind(Name name, Object obj, String className) throws NamingException
+      {
+         super.bind(name, obj, className);
+      }
+
+      public synchronized void rebind(Name name, Object obj, String className) throws NamingException
+      {
+         super.rebind(name, obj, className);
+      }
+
+      public synchronized void unbind(Name name) throws NamingException
+      {
+         super.unbind(name);
+      }
+
+      public synchronized Object lookup(Name name) throws NamingException
+      {
+         return super.lookup(name);
+      }
+   }
+}
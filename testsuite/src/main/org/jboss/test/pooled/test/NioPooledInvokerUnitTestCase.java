@@ -0,0 +1,207 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.pooled.test;
+
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+import org.jboss.invocation.Invocation;
+import org.jboss.invocation.pooled.interfaces.PooledInvokerProxy;
+import org.jboss.invocation.pooled.interfaces.ServerAddress;
+import org.jboss.invocation.pooled.server.NioPooledInvoker;
+
+/**
+ * Checks the unchanged PooledInvokerProxy talks to the NioPooledInvoker.
+ *
+ * @version $Revision$
+ */
+public class NioPooledInvokerUnitTestCase extends TestCase
+{
+   static final Logger log = Logger.getLogger(NioPooledInvokerUnitTestCase.class);
+
+   private EchoInvoker invoker;
+
+   public NioPooledInvokerUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   protected void setUp() throws Exception
+   {
+      invoker = new EchoInvoker();
+      invoker.startEcho();
+   }
+
+   protected void tearDown() throws Exception
+   {
+      invoker.stopService();
+   }
+
+   public void testInvocationsReuseConnection() throws Exception
+   {
+      PooledInvokerProxy proxy = createProxy();
+      for (int i = 0; i < 100; ++i)
+      {
+         Object response = proxy.invoke(createInvocation("hello" + i));
+         assertEquals("hello" + i, response);
+      }
+      // One socket, pooled and validated with an ACK for every call
+      assertEquals(1, invoker.getCurrentConnectionCount());
+   }
+
+   public void testLargeInvocation() throws Exception
+   {
+      PooledInvokerProxy proxy = createProxy();
+      StringBuffer buffer = new StringBuffer();
+      for (int i = 0; i < 100000; ++i)
+         buffer.append((char) ('a' + i % 26));
+      String large = buffer.toString();
+      assertEquals(large, proxy.invoke(createInvocation(large)));
+   }
+
+   public void testVeryLargeInvocation() throws Exception
+   {
+      // Completed by bytes that do not double those already decoded
+      PooledInvokerProxy proxy = createProxy();
+      StringBuffer buffer = new StringBuffer();
+      for (int i = 0; i < 1000000; ++i)
+         buffer.append((char) ('a' + i % 26));
+      String large = buffer.toString();
+      assertEquals(large, proxy.invoke(createInvocation(large)));
+      assertEquals("after", proxy.invoke(createInvocation("after")));
+   }
+
+   public void testConcurrentClients() throws Exception
+   {
+      runConcurrentClients(20, 50, "");
+   }
+
+   public void testSaturatedWorkers() throws Exception
+   {
+      // One worker and one queued invocation for ten clients
+      invoker.stopService();
+      invoker = new EchoInvoker();
+      invoker.setMaxPoolSize(1);
+      invoker.setMinPoolSize(1);
+      invoker.setMaxQueueSize(1);
+      invoker.startEcho();
+      runConcurrentClients(10, 5, EchoInvoker.SLOW);
+   }
+
+   private void runConcurrentClients(int clients, final int invocations, final String prefix)
+      throws Exception
+   {
+      final PooledInvokerProxy proxy = createProxy();
+      final Throwable[] failure = new Throwable[1];
+      Thread[] threads = new Thread[clients];
+      for (int t = 0; t < threads.length; ++t)
+      {
+         final int id = t;
+         threads[t] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  for (int i = 0; i < invocations; ++i)
+                  {
+                     String arg = prefix + id + "-" + i;
+                     assertEquals(arg, proxy.invoke(createInvocation(arg)));
+                  }
+               }
+               catch (Throwable e)
+               {
+                  log.error("Invocation failed", e);
+                  failure[0] = e;
+               }
+            }
+         };
+         threads[t].start();
+      }
+      for (int t = 0; t < threads.length; ++t)
+         threads[t].join();
+      if (failure[0] != null)
+         fail("Invocation failed: " + failure[0]);
+   }
+
+   public void testExceptionIsReturned() throws Exception
+   {
+      PooledInvokerProxy proxy = createProxy();
+      try
+      {
+         proxy.invoke(createInvocation(EchoInvoker.FAIL));
+         fail("Expected an exception");
+      }
+      catch (IllegalArgumentException expected)
+      {
+      }
+      // The connection is still usable
+      assertEquals("after", proxy.invoke(createInvocation("after")));
+   }
+
+   private PooledInvokerProxy createProxy()
+   {
+      ServerAddress sa = new ServerAddress("127.0.0.1", invoker.getServerBindPort(), false, 60000, null);
+      return new PooledInvokerProxy(sa, 10, 1);
+   }
+
+   private Invocation createInvocation(String arg) throws Exception
+   {
+      Method m = String.class.getMethod("valueOf", new Class[] { Object.class });
+      Invocation invocation = new Invocation();
+      invocation.setObjectName(new Integer(1));
+      invocation.setMethod(m);
+      invocation.setArguments(new Object[] { arg });
+      return invocation;
+   }
+
+   /**
+    * An NioPooledInvoker that returns the first argument without going
+    * through the MBeanServer.
+    */
+   public static class EchoInvoker extends NioPooledInvoker
+   {
+      static final String FAIL = "fail";
+      static final String SLOW = "slow";
+
+      void startEcho() throws Exception
+      {
+         trace = log.isTraceEnabled();
+         serverSocket = createServerSocket(InetAddress.getByName("127.0.0.1"));
+         serverBindPort = serverSocket.getLocalPort();
+         startAcceptors();
+      }
+
+      public Object invoke(Invocation invocation) throws Exception
+      {
+         Object arg = invocation.getArguments()[0];
+         if (FAIL.equals(arg))
+            throw new IllegalArgumentException(FAIL);
+         if (arg instanceof String && ((String) arg).startsWith(SLOW))
+            Thread.sleep(50);
+         return arg;
+      }
+   }
+}
@@ -0,0 +1,158 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.security.test;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.jboss.security.plugins.ConcurrentTimedCachePolicy;
+import org.jboss.util.TimedCachePolicy;
+
+/**
+ * Tests of the ConcurrentTimedCachePolicy of the authentication caches.
+ *
+ * @version $Revision$
+ */
+public class ConcurrentTimedCachePolicyUnitTestCase extends TestCase
+{
+   public ConcurrentTimedCachePolicyUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testInsertAndRemove() throws Exception
+   {
+      ConcurrentTimedCachePolicy cache = newCache(600, 1, 0);
+      cache.insert("key", "value");
+      cache.insert(null, "anonymous");
+      assertEquals("value", cache.get("key"));
+      assertEquals("anonymous", cache.get(null));
+      assertEquals(2, cache.size());
+
+      try
+      {
+         cache.insert("key", "other");
+         fail("Expected IllegalStateException");
+      }
+      catch(IllegalStateException expected)
+      {
+      }
+
+      List keys = cache.getValidKeys();
+      assertEquals(2, keys.size());
+      assertTrue(keys.contains(null));
+
+      Entry entry = new Entry(600);
+      cache.remove("key");
+      cache.insert("key", entry);
+      cache.remove("key");
+      assertTrue(entry.destroyed);
+      assertNull(cache.get("key"));
+
+      cache.flush();
+      assertEquals(0, cache.size());
+      cache.stop();
+   }
+
+   public void testExpiration() throws Exception
+   {
+      ConcurrentTimedCachePolicy cache = newCache(1, 1, 0);
+      Entry entry = new Entry(1);
+      cache.insert("entry", entry);
+      cache.insert("value", "value");
+      cache.insert("forever", new Entry(-1));
+      Thread.sleep(2500);
+
+      // The expired entries are removed by the resolution timer
+      assertEquals(1, cache.size());
+      assertTrue(entry.destroyed);
+      assertNull(cache.get("value"));
+      assertNotNull(cache.get("forever"));
+      cache.stop();
+   }
+
+   public void testEviction() throws Exception
+   {
+      ConcurrentTimedCachePolicy cache = newCache(600, 60, 100);
+      Entry[] entries = new Entry[150];
+      for(int i = 0; i < entries.length; i ++)
+      {
+         entries[i] = new Entry(600);
+         cache.insert("key" + i, entries[i]);
+      }
+      assertEquals(100, cache.size());
+
+      // The oldest entries are evicted
+      for(int i = 0; i < 50; i ++)
+      {
+         assertTrue(entries[i].destroyed);
+         assertNull(cache.get("key" + i));
+      }
+      for(int i = 50; i < entries.length; i ++)
+      {
+         assertFalse(entries[i].destroyed);
+         assertSame(entries[i], cache.get("key" + i));
+      }
+      cache.stop();
+   }
+
+   private ConcurrentTimedCachePolicy newCache(int lifetime, int resolution, int maxSize)
+   {
+      ConcurrentTimedCachePolicy cache = new ConcurrentTimedCachePolicy(lifetime, resolution, maxSize);
+      cache.create();
+      cache.start();
+      return cache;
+   }
+
+   static class Entry implements TimedCachePolicy.TimedEntry
+   {
+      long expirationTime;
+      boolean destroyed;
+
+      Entry(long lifetime)
+      {
+         expirationTime = lifetime == -1 ? -1 : lifetime * 1000;
+      }
+      public void init(long now)
+      {
+         if( expirationTime != -1 )
+            expirationTime += now;
+      }
+      public boolean isCurrent(long now)
+      {
+         return expirationTime == -1 || expirationTime > now;
+      }
+      public boolean refresh()
+      {
+         return false;
+      }
+      public void destroy()
+      {
+         destroyed = true;
+      }
+      public Object getValue()
+      {
+         return this;
+      }
+   }
+}
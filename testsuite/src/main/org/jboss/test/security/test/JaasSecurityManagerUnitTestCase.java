@@ -23,6 +23,8 @@ package org.jboss.test.security.test;
 
 import java.security.acl.Group;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Vector;
 
 import javax.security.auth.callback.CallbackHandler;
 import javax.security.auth.login.AppConfigurationEntry;
@@ -37,6 +39,7 @@ import org.jboss.logging.Logger;
 import org.jboss.security.SimplePrincipal;
 import org.jboss.security.auth.callback.SecurityAssociationHandler;
 import org.jboss.security.auth.spi.UsernamePasswordLoginModule;
+import org.jboss.security.plugins.ConcurrentTimedCachePolicy;
 import org.jboss.security.plugins.JaasSecurityManager;
 import org.jboss.util.TimedCachePolicy;
 
@@ -62,6 +65,8 @@ public class JaasSecurityManagerUnitTestCase extends TestCase
       TestSuite suite = new TestSuite();
       suite.addTest(new JaasSecurityManagerUnitTestCase("testStringCharArrayCredential"));
       suite.addTest(new JaasSecurityManagerUnitTestCase("testCharArrayStringCredential"));
+      suite.addTest(new JaasSecurityManagerUnitTestCase("testConcurrentLogins"));
+      suite.addTest(new JaasSecurityManagerUnitTestCase("testReentrantLogin"));
       
       return suite;
    }
@@ -121,22 +126,110 @@ public class JaasSecurityManagerUnitTestCase extends TestCase
       assertTrue(sm.isValid(jduke, "theduke"));
    }
 
+   /**
+    * Validate that concurrent authentications of the same principal
+    * do a single login.
+    */
+   public void testConcurrentLogins() throws Exception
+   {
+      final SimplePrincipal jduke = new SimplePrincipal("jduke");
+      CallbackHandler handler = new SecurityAssociationHandler(jduke, "theduke".toCharArray());
+      final JaasSecurityManager sm = new JaasSecurityManager("testConcurrentLogins", handler);
+      ConcurrentTimedCachePolicy cache = new ConcurrentTimedCachePolicy(600, 10, 100);
+      cache.create();
+      cache.start();
+      sm.setCachePolicy(cache);
+
+      SlowLoginModule.loginCount = 0;
+      final List results = new Vector();
+      Thread[] threads = new Thread[50];
+      for(int i = 0; i < threads.length; i ++)
+      {
+         threads[i] = new Thread()
+         {
+            public void run()
+            {
+               results.add(Boolean.valueOf(sm.isValid(jduke, "theduke")));
+            }
+         };
+         threads[i].start();
+      }
+      for(int i = 0; i < threads.length; i ++)
+         threads[i].join();
+
+      assertEquals(threads.length, results.size());
+      assertFalse(results.contains(Boolean.FALSE));
+      assertEquals(1, SlowLoginModule.getLoginCount());
+
+      // Another credential is validated by a login of its own
+      assertFalse(sm.isValid(jduke, "wrong"));
+      assertEquals(2, SlowLoginModule.getLoginCount());
+      assertTrue(sm.isValid(jduke, "theduke".toCharArray()));
+      assertEquals(2, SlowLoginModule.getLoginCount());
+      cache.stop();
+   }
+
+   /**
+    * Validate that a login module authenticating the principal of the login
+    * in progress again does not wait for itself.
+    */
+   public void testReentrantLogin() throws Exception
+   {
+      final SimplePrincipal jduke = new SimplePrincipal("jduke");
+      CallbackHandler handler = new SecurityAssociationHandler(jduke, "theduke".toCharArray());
+      final JaasSecurityManager sm = new JaasSecurityManager("testReentrantLogin", handler);
+      ConcurrentTimedCachePolicy cache = new ConcurrentTimedCachePolicy(600, 10, 100);
+      cache.create();
+      cache.start();
+      sm.setCachePolicy(cache);
+      ReentrantLoginModule.manager = sm;
+
+      final List results = new Vector();
+      Thread thread = new Thread()
+      {
+         public void run()
+         {
+            results.add(Boolean.valueOf(sm.isValid(jduke, "theduke")));
+         }
+      };
+      thread.setDaemon(true);
+      thread.start();
+      thread.join(10000);
+      assertFalse("Reentrant login waits for itself", thread.isAlive());
+      assertEquals(1, results.size());
+      assertEquals(Boolean.TRUE, results.get(0));
+      assertEquals(Boolean.TRUE, ReentrantLoginModule.reentrantResult);
+      cache.stop();
+   }
+
    /**
     * Implementation of JAAS configuration for this testcase
     */
    static class MyConfig extends Configuration
    {
       AppConfigurationEntry[] entry;
+      AppConfigurationEntry[] slowEntry;
+      AppConfigurationEntry[] reentrantEntry;
       MyConfig()
       {
          entry = new AppConfigurationEntry[1];
          HashMap opts = new HashMap();
          entry[0] = new AppConfigurationEntry(CountedLoginModule.class.getName(),
             AppConfigurationEntry.LoginModuleControlFlag.REQUIRED, opts);
+         slowEntry = new AppConfigurationEntry[1];
+         slowEntry[0] = new AppConfigurationEntry(SlowLoginModule.class.getName(),
+            AppConfigurationEntry.LoginModuleControlFlag.REQUIRED, opts);
+         reentrantEntry = new AppConfigurationEntry[1];
+         reentrantEntry[0] = new AppConfigurationEntry(ReentrantLoginModule.class.getName(),
+            AppConfigurationEntry.LoginModuleControlFlag.REQUIRED, opts);
       }
 
       public AppConfigurationEntry[] getAppConfigurationEntry(String appName)
       {
+         if( appName.equals("testConcurrentLogins") )
+            return slowEntry;
+         if( appName.equals("testReentrantLogin") )
+            return reentrantEntry;
          return entry;
       }
       public void refresh()
@@ -175,4 +268,84 @@ public class JaasSecurityManagerUnitTestCase extends TestCase
          return new Group[0];
       }
    }
+
+   /**
+    * UsernamePasswordLoginModule extension counting the logins, which take
+    * some time as a remote password store would.
+    */
+   public static class SlowLoginModule extends UsernamePasswordLoginModule
+   {
+      static int loginCount = 0;
+
+      static synchronized int getLoginCount()
+      {
+         return loginCount;
+      }
+
+      protected boolean validatePassword(String inputPassword, String expectedPassword)
+      {
+         synchronized( SlowLoginModule.class )
+         {
+            loginCount ++;
+         }
+         try
+         {
+            Thread.sleep(200);
+         }
+         catch(InterruptedException e)
+         {
+            return false;
+         }
+         return super.validatePassword(inputPassword, expectedPassword);
+      }
+
+      protected String getUsersPassword() throws LoginException
+      {
+         return "theduke";
+      }
+
+      protected Group[] getRoleSets() throws LoginException
+      {
+         return new Group[0];
+      }
+   }
+
+   /**
+    * UsernamePasswordLoginModule extension that validates the principal
+    * through the security manager again, as a module delegating to the
+    * security domain would.
+    */
+   public static class ReentrantLoginModule extends UsernamePasswordLoginModule
+   {
+      static JaasSecurityManager manager;
+      static Boolean reentrantResult;
+      private static ThreadLocal reentered = new ThreadLocal();
+
+      protected boolean validatePassword(String inputPassword, String expectedPassword)
+      {
+         if( reentered.get() == null )
+         {
+            reentered.set(Boolean.TRUE);
+            try
+            {
+               reentrantResult = Boolean.valueOf(manager.isValid(new SimplePrincipal(getUsername()), inputPassword));
+            }
+            finally
+            {
+               reentered.set(null);
+            }
+         }
+         return super.validatePassword(inputPassword, expectedPassword);
+      }
+
+      protected String getUsersPassword() throws LoginException
+      {
+         return "theduke";
+      }
+
+      protected Group[] getRoleSets() throws LoginException
+      {
+         return new Group[0];
+      }
+   }
 }
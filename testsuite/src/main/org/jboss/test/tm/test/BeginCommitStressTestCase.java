@@ -0,0 +1,122 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.tm.test;
+
+import javax.transaction.Status;
+
+import junit.framework.TestCase;
+
+import org.jboss.logging.Logger;
+import org.jboss.tm.TxManager;
+
+/**
+ * Empty begin/commit pairs against the TxManager singleton in this vm, from
+ * 1 to 64 threads. The results are logged at info level.
+ *
+ * @version $Revision$
+ */
+public class BeginCommitStressTestCase extends TestCase
+{
+   Logger log = Logger.getLogger(getClass());
+
+   /** The begin/commit pairs of each thread */
+   static final int TRANSACTIONS = 50000;
+
+   TxManager tm = TxManager.getInstance();
+
+   public BeginCommitStressTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testBeginCommit() throws Exception
+   {
+      // Warm up
+      run(4, TRANSACTIONS);
+
+      for (int threads = 1; threads <= 64; threads *= 2)
+      {
+         int transactions = TRANSACTIONS * 4 / Math.max(4, threads);
+         long elapsed = run(threads, transactions);
+         long rate = (long) threads * transactions * 1000 / elapsed;
+         log.info("threads=" + threads + " " + rate + " begin/commit/s");
+      }
+      assertEquals(0, tm.getTransactionCount());
+   }
+
+   public void testTimeout() throws Exception
+   {
+      tm.setTransactionTimeout(1);
+      try
+      {
+         tm.begin();
+         try
+         {
+            Thread.sleep(2000);
+            assertEquals(Status.STATUS_MARKED_ROLLBACK, tm.getStatus());
+         }
+         finally
+         {
+            tm.rollback();
+         }
+      }
+      finally
+      {
+         tm.setTransactionTimeout(0);
+      }
+   }
+
+   private long run(int threads, final int transactions) throws Exception
+   {
+      final Throwable[] failure = new Throwable[1];
+      Thread[] workers = new Thread[threads];
+      for (int t = 0; t < threads; ++t)
+      {
+         workers[t] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  for (int i = 0; i < transactions; ++i)
+                  {
+                     tm.begin();
+                     tm.commit();
+                  }
+               }
+               catch (Throwable e)
+               {
+                  failure[0] = e;
+               }
+            }
+         };
+      }
+      long start = System.currentTimeMillis();
+      for (int t = 0; t < threads; ++t)
+         workers[t].start();
+      for (int t = 0; t < threads; ++t)
+         workers[t].join();
+      if (failure[0] != null)
+         fail("Worker failed: " + failure[0]);
+      return Math.max(1, System.currentTimeMillis() - start);
+   }
+}
@@ -0,0 +1,427 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.tm.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import junit.framework.TestCase;
+
+import org.jboss.logging.Logger;
+import org.jboss.tm.LastResource;
+import org.jboss.tm.TxManager;
+import org.jboss.tm.XidFactory;
+import org.jboss.tm.XidImpl;
+import org.jboss.tm.recovery.TransactionLog;
+
+/**
+ * Two phase commit throughput with and without the transaction log, and
+ * recovery of the decisions in the log after a crash. The transactions run
+ * in this vm against the TxManager singleton with two resources each, the
+ * results are logged at info level.
+ *
+ * @version $Revision$
+ */
+public class TransactionLogStressTestCase extends TestCase
+{
+   Logger log = Logger.getLogger(getClass());
+
+   /** The transactions committed by each thread */
+   static final int TRANSACTIONS = 2000;
+
+   TxManager tm = TxManager.getInstance();
+
+   File directory;
+
+   TransactionLog txLog;
+
+   List registered = new ArrayList();
+
+   public TransactionLogStressTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testCommitThroughputWithoutLog() throws Exception
+   {
+      tm.setTransactionLog(null);
+      runCommits("no log");
+   }
+
+   public void testCommitThroughputWithLog() throws Exception
+   {
+      runCommits("log");
+   }
+
+   public void testRecoverCommitDecision() throws Exception
+   {
+      XidFactory xidFactory = new XidFactory();
+      XidImpl xid = xidFactory.newXid();
+      Xid branch1 = xidFactory.newBranch(xid, 1);
+      Xid branch2 = xidFactory.newBranch(xid, 2);
+      txLog.commit(xid, new Xid[] { branch1, branch2 });
+
+      // Crash before the branches were committed
+      restart();
+      assertEquals(1, txLog.getEntries().size());
+
+      BenchResource resource = new BenchResource();
+      resource.prepared.add(branch1);
+      resource.prepared.add(branch2);
+      register(resource);
+      assertEquals(2, resource.committed.size());
+      assertEquals(0, resource.rolledBack.size());
+      assertEquals(0, txLog.getEntries().size());
+
+      // The end is in the log
+      restart();
+      assertEquals(0, txLog.getEntries().size());
+   }
+
+   public void testRecoverCommittedBranches() throws Exception
+   {
+      XidFactory xidFactory = new XidFactory();
+      XidImpl xid = xidFactory.newXid();
+      txLog.commit(xid, new Xid[] { xidFactory.newBranch(xid, 1) });
+
+      // Crash after the commit but before the end
+      restart();
+      register(new BenchResource());
+      assertEquals(1, txLog.getEntries().size());
+      tm.recoverResources();
+      assertEquals(1, txLog.getEntries().size());
+      tm.forgetCommittedBranches();
+      assertEquals(0, txLog.getEntries().size());
+   }
+
+   public void testLateResourceCommits() throws Exception
+   {
+      XidFactory xidFactory = new XidFactory();
+      XidImpl xid = xidFactory.newXid();
+      Xid branch = xidFactory.newBranch(xid, 1);
+      txLog.commit(xid, new Xid[] { branch });
+
+      // Crash before the branch was committed, its resource registers late
+      restart();
+      register(new BenchResource());
+      tm.recoverResources();
+      assertEquals(1, txLog.getEntries().size());
+
+      BenchResource late = new BenchResource();
+      late.prepared.add(branch);
+      register(late);
+      assertEquals(1, late.committed.size());
+      assertEquals(0, late.rolledBack.size());
+      assertEquals(0, txLog.getEntries().size());
+   }
+
+   public void testPresumedAbort() throws Exception
+   {
+      XidImpl xid = new XidFactory().newXid();
+      Xid branch = new XidFactory().newBranch(xid, 1);
+
+      // Crash after prepare, before the decision was logged
+      restart();
+      BenchResource resource = new BenchResource();
+      resource.prepared.add(branch);
+      register(resource);
+      assertEquals(0, resource.committed.size());
+      assertEquals(1, resource.rolledBack.size());
+   }
+
+   public void testRecoverImported() throws Exception
+   {
+      Xid imported = new XidImpl(0x1234, "superior".getBytes(), "branch".getBytes(), 1, 0L);
+      XidFactory xidFactory = new XidFactory();
+      Xid branch = xidFactory.newBranch(xidFactory.newXid(), 1);
+      txLog.prepared(imported, new Xid[] { branch });
+
+      // Crash after prepare, the superior decides
+      restart();
+      BenchResource resource = new BenchResource();
+      resource.prepared.add(branch);
+      register(resource);
+      assertEquals(0, resource.committed.size() + resource.rolledBack.size());
+
+      Xid[] inDoubt = tm.recover(XAResource.TMSTARTRSCAN);
+      assertEquals(1, inDoubt.length);
+      assertTrue(Arrays.equals("superior".getBytes(), inDoubt[0].getGlobalTransactionId()));
+
+      tm.commit(imported, false);
+      assertEquals(1, resource.committed.size());
+      assertEquals(0, tm.recover(XAResource.TMSTARTRSCAN).length);
+   }
+
+   public void testLogFailureAfterLastResource() throws Exception
+   {
+      BenchResource other = new BenchResource();
+      BenchResource last = new LastBenchResource();
+      tm.begin();
+      tm.getTransaction().enlistResource(other);
+      tm.getTransaction().enlistResource(last);
+
+      // The commit decision can not be written once the last resource committed
+      txLog.close();
+      try
+      {
+         tm.commit();
+         fail("Expected a heuristic mixed outcome");
+      }
+      catch (HeuristicMixedException expected)
+      {
+      }
+      assertEquals(1, last.committed.size());
+      assertEquals(1, other.committed.size());
+      assertEquals(0, other.rolledBack.size());
+   }
+
+   public void testLogRewrite() throws Exception
+   {
+      txLog.close();
+      txLog = new TransactionLog(directory, 4096);
+      txLog.open();
+      tm.setTransactionLog(txLog);
+
+      XidFactory xidFactory = new XidFactory();
+      XidImpl inDoubt = xidFactory.newXid();
+      txLog.commit(inDoubt, new Xid[] { xidFactory.newBranch(inDoubt, 1) });
+      for (int i = 0; i < 1000; ++i)
+      {
+         XidImpl xid = xidFactory.newXid();
+         txLog.end(txLog.commit(xid, new Xid[] { xidFactory.newBranch(xid, 1) }));
+      }
+      assertTrue("Log was not rewritten size=" + txLog.getSize(), txLog.getSize() < 8192);
+
+      restart();
+      assertEquals(1, txLog.getEntries().size());
+      assertNotNull(txLog.getEntry(inDoubt));
+   }
+
+   public void testConcurrentLogRewrite() throws Exception
+   {
+      txLog.close();
+      txLog = new TransactionLog(directory, 1024);
+      txLog.open();
+      tm.setTransactionLog(txLog);
+
+      final XidFactory xidFactory = new XidFactory();
+      final Throwable[] failure = new Throwable[1];
+      Thread[] workers = new Thread[8];
+      for (int t = 0; t < workers.length; ++t)
+      {
+         workers[t] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  for (int i = 0; i < 500; ++i)
+                  {
+                     XidImpl xid = xidFactory.newXid();
+                     txLog.end(txLog.commit(xid, new Xid[] { xidFactory.newBranch(xid, 1) }));
+                  }
+               }
+               catch (Throwable e)
+               {
+                  failure[0] = e;
+               }
+            }
+         };
+         workers[t].setDaemon(true);
+         workers[t].start();
+      }
+      for (int t = 0; t < workers.length; ++t)
+      {
+         workers[t].join(60000);
+         assertFalse("Deadlock between the rewrite and the forcing threads", workers[t].isAlive());
+      }
+      if (failure[0] != null)
+         fail("Worker failed: " + failure[0]);
+      assertEquals(0, txLog.getEntries().size());
+   }
+
+   protected void setUp() throws Exception
+   {
+      directory = new File(System.getProperty("java.io.tmpdir"), getName() + System.currentTimeMillis());
+      txLog = new TransactionLog(directory, 10 * 1024 * 1024);
+      txLog.open();
+      tm.setTransactionLog(txLog);
+   }
+
+   protected void tearDown() throws Exception
+   {
+      for (int i = 0; i < registered.size(); ++i)
+         tm.unregisterRecoveryResource((XAResource) registered.get(i));
+      tm.setTransactionLog(null);
+      txLog.close();
+      File[] files = directory.listFiles();
+      for (int i = 0; files != null && i < files.length; ++i)
+         files[i].delete();
+      directory.delete();
+   }
+
+   /**
+    * Simulate a restart, reopen the log
+    */
+   private void restart() throws Exception
+   {
+      txLog.close();
+      txLog = new TransactionLog(directory, 10 * 1024 * 1024);
+      txLog.open();
+      tm.setTransactionLog(txLog);
+   }
+
+   private void register(XAResource resource)
+   {
+      registered.add(resource);
+      tm.registerRecoveryResource(resource);
+   }
+
+   private void runCommits(String name) throws Exception
+   {
+      int[] threads = { 1, 4, 16 };
+      for (int i = 0; i < threads.length; ++i)
+      {
+         long forces = txLog.getForceCount();
+         long elapsed = run(threads[i]);
+         long rate = (long) threads[i] * TRANSACTIONS * 1000 / elapsed;
+         log.info(name + " threads=" + threads[i] + " " + rate + " commits/s forces="
+            + (txLog.getForceCount() - forces));
+      }
+      assertEquals(0, txLog.getEntries().size());
+   }
+
+   private long run(int threads) throws Exception
+   {
+      final Throwable[] failure = new Throwable[1];
+      Thread[] workers = new Thread[threads];
+      for (int t = 0; t < threads; ++t)
+      {
+         workers[t] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  for (int i = 0; i < TRANSACTIONS; ++i)
+                  {
+                     tm.begin();
+                     tm.getTransaction().enlistResource(new BenchResource());
+                     tm.getTransaction().enlistResource(new BenchResource());
+                     tm.commit();
+                  }
+               }
+               catch (Throwable e)
+               {
+                  failure[0] = e;
+               }
+            }
+         };
+      }
+      long start = System.currentTimeMillis();
+      for (int t = 0; t < threads; ++t)
+         workers[t].start();
+      for (int t = 0; t < threads; ++t)
+         workers[t].join();
+      if (failure[0] != null)
+         fail("Worker failed: " + failure[0]);
+      return Math.max(1, System.currentTimeMillis() - start);
+   }
+
+   /**
+    * A resource that prepares ok and remembers the outcomes
+    */
+   private static class BenchResource implements XAResource
+   {
+      List prepared = Collections.synchronizedList(new ArrayList());
+      List committed = Collections.synchronizedList(new ArrayList());
+      List rolledBack = Collections.synchronizedList(new ArrayList());
+
+      public void start(Xid xid, int flags)
+      {
+      }
+
+      public void end(Xid xid, int flags)
+      {
+      }
+
+      public int prepare(Xid xid)
+      {
+         return XA_OK;
+      }
+
+      public void commit(Xid xid, boolean onePhase) throws XAException
+      {
+         committed.add(xid);
+      }
+
+      public void rollback(Xid xid) throws XAException
+      {
+         rolledBack.add(xid);
+      }
+
+      public void forget(Xid xid)
+      {
+      }
+
+      public Xid[] recover(int flag)
+      {
+         synchronized (prepared)
+         {
+            ArrayList result = new ArrayList(prepared);
+            result.removeAll(committed);
+            result.removeAll(rolledBack);
+            return (Xid[]) result.toArray(new Xid[result.size()]);
+         }
+      }
+
+      public boolean isSameRM(XAResource xaRes)
+      {
+         return xaRes == this;
+      }
+
+      public int getTransactionTimeout()
+      {
+         return 0;
+      }
+
+      public boolean setTransactionTimeout(int seconds)
+      {
+         return false;
+      }
+   }
+
+   /**
+    * A resource committed in the last resource gambit
+    */
+   private static class LastBenchResource extends BenchResource implements LastResource
+   {
+   }
+}
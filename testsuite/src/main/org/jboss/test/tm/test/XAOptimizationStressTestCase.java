@@ -0,0 +1,250 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.tm.test;
+
+import javax.transaction.RollbackException;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import junit.framework.TestCase;
+
+import org.jboss.logging.Logger;
+import org.jboss.tm.ResourceStatistics;
+import org.jboss.tm.TxManager;
+
+/**
+ * The two phase commit of a transaction with a message queue and two
+ * databases, the resources taking a few milliseconds to prepare and commit,
+ * with the resources completed serially and in parallel. Also checks the
+ * one phase commit of the last resource when the others are read-only and
+ * the statistics of the resources. The results are logged at info level.
+ *
+ * @version $Revision$
+ */
+public class XAOptimizationStressTestCase extends TestCase
+{
+   Logger log = Logger.getLogger(getClass());
+
+   /** The transactions committed */
+   static final int TRANSACTIONS = 100;
+
+   /** The time a resource takes to prepare or commit */
+   static final long LATENCY = 5;
+
+   TxManager tm = TxManager.getInstance();
+
+   public XAOptimizationStressTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testParallelCompletion() throws Exception
+   {
+      long serial = run();
+      tm.setCompletionThreads(4);
+      long parallel = run();
+      log.info("serial " + (TRANSACTIONS * 1000 / serial) + " commits/s parallel "
+         + (TRANSACTIONS * 1000 / parallel) + " commits/s");
+      assertTrue("serial=" + serial + " parallel=" + parallel, parallel < serial);
+   }
+
+   public void testParallelReadOnly() throws Exception
+   {
+      tm.setCompletionThreads(4);
+      BenchResource queue = new BenchResource(XAResource.XA_RDONLY, 0);
+      BenchResource database = new BenchResource(XAResource.XA_OK, 0);
+      BenchResource database2 = new BenchResource(XAResource.XA_OK, 0);
+      commit(new XAResource[] { queue, database, database2 });
+      assertEquals(1, queue.prepares);
+      assertEquals(0, queue.commits);
+      assertEquals(1, database.twoPhaseCommits);
+      assertEquals(1, database2.twoPhaseCommits);
+   }
+
+   public void testParallelPrepareFailure() throws Exception
+   {
+      tm.setCompletionThreads(4);
+      BenchResource database = new BenchResource(XAResource.XA_OK, 0);
+      BenchResource database2 = new BenchResource(XAException.XA_RBROLLBACK, 0);
+      try
+      {
+         commit(new XAResource[] { database, database2 });
+         fail("Expected rollback");
+      }
+      catch (RollbackException expected)
+      {
+      }
+      assertEquals(0, database.commits);
+      assertEquals(1, database.rollbacks);
+   }
+
+   public void testReadOnlyOnePhase() throws Exception
+   {
+      BenchResource queue = new BenchResource(XAResource.XA_RDONLY, 0);
+      BenchResource database = new BenchResource(XAResource.XA_OK, 0);
+      commit(new XAResource[] { queue, database });
+      assertEquals(1, queue.prepares);
+      assertEquals(0, queue.commits);
+      assertEquals(0, database.prepares);
+      assertEquals(1, database.commits);
+      assertEquals(0, database.twoPhaseCommits);
+   }
+
+   public void testTwoPhase() throws Exception
+   {
+      BenchResource queue = new BenchResource(XAResource.XA_OK, 0);
+      BenchResource database = new BenchResource(XAResource.XA_OK, 0);
+      commit(new XAResource[] { queue, database });
+      assertEquals(1, queue.twoPhaseCommits);
+      assertEquals(1, database.prepares);
+      assertEquals(1, database.twoPhaseCommits);
+   }
+
+   public void testStatistics() throws Exception
+   {
+      ResourceStatistics statistics = tm.getResourceStatistics();
+      statistics.resetStats();
+      commit(new XAResource[] { new BenchResource(XAResource.XA_OK, LATENCY),
+         new BenchResource(XAResource.XA_OK, LATENCY) });
+
+      ResourceStatistics.TimeStatistic prepare = statistics.getPrepareStatistic(BenchResource.class.getName());
+      assertEquals(2, prepare.count);
+      assertTrue("minTime=" + prepare.minTime, prepare.minTime >= LATENCY * 1000);
+      assertEquals(2, statistics.getCommitStatistic(BenchResource.class.getName()).count);
+      log.info(statistics);
+   }
+
+   protected void tearDown() throws Exception
+   {
+      tm.setCompletionThreads(0);
+   }
+
+   private long run() throws Exception
+   {
+      long start = System.currentTimeMillis();
+      for (int i = 0; i < TRANSACTIONS; ++i)
+      {
+         commit(new XAResource[] { new BenchResource(XAResource.XA_OK, LATENCY),
+            new BenchResource(XAResource.XA_OK, LATENCY), new BenchResource(XAResource.XA_OK, LATENCY) });
+      }
+      return Math.max(1, System.currentTimeMillis() - start);
+   }
+
+   private void commit(XAResource[] resources) throws Exception
+   {
+      tm.begin();
+      for (int i = 0; i < resources.length; ++i)
+         tm.getTransaction().enlistResource(resources[i]);
+      tm.commit();
+   }
+
+   /**
+    * A resource with a vote and a latency that counts the calls
+    */
+   private static class BenchResource implements XAResource
+   {
+      /** The vote or the error code thrown at prepare */
+      int vote;
+
+      long latency;
+
+      volatile int prepares;
+      volatile int commits;
+      volatile int twoPhaseCommits;
+      volatile int rollbacks;
+
+      BenchResource(int vote, long latency)
+      {
+         this.vote = vote;
+         this.latency = latency;
+      }
+
+      public void start(Xid xid, int flags)
+      {
+      }
+
+      public void end(Xid xid, int flags)
+      {
+      }
+
+      public int prepare(Xid xid) throws XAException
+      {
+         ++prepares;
+         sleep();
+         if (vote != XA_OK && vote != XA_RDONLY)
+            throw new XAException(vote);
+         return vote;
+      }
+
+      public void commit(Xid xid, boolean onePhase)
+      {
+         ++commits;
+         if (onePhase == false)
+            ++twoPhaseCommits;
+         sleep();
+      }
+
+      public void rollback(Xid xid)
+      {
+         ++rollbacks;
+      }
+
+      public void forget(Xid xid)
+      {
+      }
+
+      public Xid[] recover(int flag)
+      {
+         return new Xid[0];
+      }
+
+      public boolean isSameRM(XAResource xaRes)
+      {
+         return xaRes == this;
+      }
+
+      public int getTransactionTimeout()
+      {
+         return 0;
+      }
+
+      public boolean setTransactionTimeout(int seconds)
+      {
+         return false;
+      }
+
+      private void sleep()
+      {
+         if (latency == 0)
+            return;
+         try
+         {
+            Thread.sleep(latency);
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+}
@@ -0,0 +1,266 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.txtimer.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+
+import junit.framework.TestCase;
+
+import org.jboss.ejb.txtimer.GeneralPurposeDatabasePersistencePlugin;
+import org.jboss.ejb.txtimer.TimedObjectId;
+import org.jboss.ejb.txtimer.TimerHandleImpl;
+
+/**
+ * Tests of the statements of the GeneralPurposeDatabasePersistencePlugin,
+ * run against a recording JDBC driver.
+ *
+ * @version $Revision$
+ */
+public class DatabasePersistencePluginTestCase extends TestCase
+{
+   private static final String CONTAINER = "jboss.j2ee:jndiName=test/txtimer/Timer_1%,service=EJB";
+
+   private RecordingDataSource ds;
+   private TestPlugin plugin;
+
+   public DatabasePersistencePluginTestCase(String name)
+   {
+      super(name);
+   }
+
+   protected void setUp() throws Exception
+   {
+      ds = new RecordingDataSource();
+      plugin = new TestPlugin(ds.getDataSource());
+   }
+
+   public void testTargetIDPattern() throws Exception
+   {
+      ObjectName containerId = new ObjectName(CONTAINER);
+      assertEquals("[target=jboss.j2ee:jndiName=test/txtimer/Timer!_1!%,service=EJB%",
+         plugin.getTargetIDPattern(containerId));
+
+      ds.productName = "Microsoft SQL Server";
+      assertEquals("![target=jboss.j2ee:jndiName=test/txtimer/Timer!_1!%,service=EJB%",
+         plugin.getTargetIDPattern(containerId));
+   }
+
+   public void testSelectTimersOfContainer() throws Exception
+   {
+      ObjectName containerId = new ObjectName(CONTAINER);
+      ds.rows.add(newRow("1", new TimedObjectId(containerId)));
+      // the container name starts with the same prefix
+      ds.rows.add(newRow("2", new TimedObjectId(new ObjectName(CONTAINER + "2"))));
+
+      List handles = plugin.selectTimers(containerId);
+      assertEquals(1, handles.size());
+      assertEquals("1", ((TimerHandleImpl)handles.get(0)).getTimerId());
+
+      String sql = (String)ds.statements.get(0);
+      assertTrue(sql, sql.indexOf(" where TARGETID like ? escape '!'") > 0);
+      assertEquals(1, ds.connections);
+      assertEquals(plugin.getTargetIDPattern(containerId), ds.parameters.get(new Integer(1)));
+
+      handles = plugin.selectTimers(null);
+      assertEquals(2, handles.size());
+      assertEquals("select * from TIMERS", ds.statements.get(1));
+   }
+
+   public void testInsertTimers() throws Exception
+   {
+      plugin.insertTimers(newHandles(250));
+      assertEquals(1, ds.connections);
+      assertEquals(1, ds.statements.size());
+      assertEquals(250, ds.batched);
+      assertEquals(3, ds.batches);
+      assertEquals(0, ds.updates);
+   }
+
+   public void testDeleteTimers() throws Exception
+   {
+      plugin.deleteTimers(newHandles(100));
+      assertEquals(1, ds.connections);
+      assertEquals(100, ds.batched);
+      assertEquals(1, ds.batches);
+      assertTrue(((String)ds.statements.get(0)).startsWith("delete from TIMERS"));
+
+      plugin.deleteTimers(new ArrayList());
+      assertEquals(1, ds.connections);
+   }
+
+   public void testWithoutBatchUpdates() throws Exception
+   {
+      ds.supportsBatchUpdates = false;
+      plugin.insertTimers(newHandles(10));
+      assertEquals(1, ds.connections);
+      assertEquals(0, ds.batches);
+      assertEquals(10, ds.updates);
+   }
+
+   private List newHandles(int count) throws Exception
+   {
+      SimpleDateFormat sdf = new SimpleDateFormat(TimerHandleImpl.DATE_PATTERN);
+      String first = sdf.format(new Date());
+      List handles = new ArrayList();
+      for (int i = 0; i < count; ++i)
+      {
+         TimedObjectId targetId = new TimedObjectId(new ObjectName(CONTAINER), new Integer(i));
+         handles.add(TimerHandleImpl.parse("[id=" + i + ",target=" + targetId + ",first=" + first + ",periode=0]"));
+      }
+      return handles;
+   }
+
+   private Map newRow(String timerId, TimedObjectId targetId)
+   {
+      Map row = new HashMap();
+      row.put("TIMERID", timerId);
+      row.put("TARGETID", targetId.toString());
+      row.put("INITIALDATE", new Timestamp(System.currentTimeMillis()));
+      row.put("TIMERINTERVAL", new Long(0));
+      return row;
+   }
+
+   /**
+    * The plugin using a data source of its own
+    */
+   static class TestPlugin extends GeneralPurposeDatabasePersistencePlugin
+   {
+      TestPlugin(DataSource ds)
+      {
+         this.ds = ds;
+         this.tableName = "TIMERS";
+         this.maxBatchSize = 100;
+      }
+
+      String getTargetIDPattern(ObjectName containerId) throws Exception
+      {
+         Connection con = ds.getConnection();
+         try
+         {
+            return getTargetIDPattern(con, containerId);
+         }
+         finally
+         {
+            con.close();
+         }
+      }
+   }
+
+   /**
+    * A JDBC driver recording the statements executed
+    */
+   static class RecordingDataSource
+   {
+      String productName = "HSQL Database Engine";
+      boolean supportsBatchUpdates = true;
+      List rows = new ArrayList();
+
+      int connections;
+      List statements = new ArrayList();
+      Map parameters = new HashMap();
+      int batched;
+      int batches;
+      int updates;
+
+      DataSource getDataSource()
+      {
+         return (DataSource)newProxy(DataSource.class, null);
+      }
+
+      private Object newProxy(Class type, final Object state)
+      {
+         return Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { type }, new InvocationHandler()
+         {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+               return RecordingDataSource.this.invoke(state, method, args);
+            }
+         });
+      }
+
+      private Object invoke(Object state, Method method, Object[] args)
+      {
+         String name = method.getName();
+         if (name.equals("getConnection"))
+         {
+            connections++;
+            return newProxy(Connection.class, null);
+         }
+         if (name.equals("getMetaData"))
+            return newProxy(DatabaseMetaData.class, null);
+         if (name.equals("getDatabaseProductName"))
+            return productName;
+         if (name.equals("supportsBatchUpdates"))
+            return Boolean.valueOf(supportsBatchUpdates);
+         if (name.equals("prepareStatement"))
+         {
+            statements.add(args[0]);
+            return newProxy(PreparedStatement.class, null);
+         }
+         if (name.startsWith("set") && method.getDeclaringClass() == PreparedStatement.class)
+         {
+            parameters.put(args[0], args[1]);
+            return null;
+         }
+         if (name.equals("addBatch"))
+         {
+            batched++;
+            return null;
+         }
+         if (name.equals("executeBatch"))
+         {
+            batches++;
+            return new int[0];
+         }
+         if (name.equals("executeUpdate"))
+         {
+            updates++;
+            return new Integer(1);
+         }
+         if (name.equals("executeQuery"))
+            return newProxy(ResultSet.class, new int[] { -1 });
+         if (name.equals("next"))
+            return Boolean.valueOf(++((int[])state)[0] < rows.size());
+         if (name.startsWith("get") && method.getDeclaringClass() == ResultSet.class)
+            return ((Map)rows.get(((int[])state)[0])).get(args[0]);
+         if (name.equals("close"))
+            return null;
+         throw new UnsupportedOperationException(name);
+      }
+   }
+}
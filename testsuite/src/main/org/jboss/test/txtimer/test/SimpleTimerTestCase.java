@@ -76,6 +76,22 @@ public class SimpleTimerTestCase extends TimerTestBase
       assertEquals("Expected no txtimer", 0, service.getTimers().size());
    }
 
+   public void testRestoredIntervalSkipsMissedTimeouts() throws Exception
+   {
+      TimedMockObject to = new TimedMockObject();
+      TimerService service = createTimerService(to);
+
+      // A timer restored an hour after its first time, 36000 periodes were missed
+      Timer timer = service.createTimer(new Date(System.currentTimeMillis() - 3600000), 100, null);
+      sleep(1000);
+      int callCount = to.getCallCount();
+      assertTrue("TimedObject not called", 0 < callCount);
+      assertTrue("Missed timeouts were fired: " + callCount, callCount < 20);
+
+      timer.cancel();
+      assertEquals("Expected no txtimer", 0, service.getTimers().size());
+   }
+
    public void testMultipleEventExpire() throws Exception
    {
       TimedMockObject to = new TimedMockObject();
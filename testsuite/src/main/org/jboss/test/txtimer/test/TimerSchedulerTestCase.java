@@ -0,0 +1,185 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.txtimer.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.jboss.ejb.txtimer.TimerScheduler;
+
+/**
+ * Tests of the timer wheel scheduling the txtimers.
+ *
+ * @version $Revision$
+ */
+public class TimerSchedulerTestCase extends TestCase
+{
+   /** The duration of a tick */
+   static final long TICK = 10;
+
+   private TimerScheduler scheduler;
+
+   public TimerSchedulerTestCase(String name)
+   {
+      super(name);
+   }
+
+   protected void setUp() throws Exception
+   {
+      // A small wheel, so that the timeouts go round it
+      scheduler = new TimerScheduler("TimerSchedulerTestCase", TICK, 8, 4, 100);
+      scheduler.start();
+   }
+
+   protected void tearDown() throws Exception
+   {
+      scheduler.stop();
+   }
+
+   public void testExpiration() throws Exception
+   {
+      List fired = Collections.synchronizedList(new ArrayList());
+      long now = System.currentTimeMillis();
+      long[] expirations = new long[] { now + 300, now + 50, now + 200, now + 15 };
+      Task[] tasks = new Task[expirations.length];
+      for (int i = 0; i < expirations.length; ++i)
+      {
+         tasks[i] = new Task(fired);
+         scheduler.schedule(tasks[i], expirations[i]);
+      }
+      assertEquals(expirations.length, scheduler.getSize());
+
+      sleep(500);
+      assertEquals(0, scheduler.getSize());
+      assertEquals(expirations.length, fired.size());
+      for (int i = 0; i < expirations.length; ++i)
+      {
+         long late = tasks[i].time - expirations[i];
+         assertTrue("Expired early: " + late, late >= 0);
+         assertTrue("Expired late: " + late, late < 100);
+      }
+      assertEquals(tasks[3], fired.get(0));
+      assertEquals(tasks[0], fired.get(3));
+   }
+
+   public void testCancel() throws Exception
+   {
+      List fired = Collections.synchronizedList(new ArrayList());
+      long now = System.currentTimeMillis();
+      TimerScheduler.Timeout canceled = scheduler.schedule(new Task(fired), now + 100);
+      Task task = new Task(fired);
+      TimerScheduler.Timeout expired = scheduler.schedule(task, now + 100);
+      assertTrue(canceled.cancel());
+      assertFalse(canceled.cancel());
+      assertEquals(1, scheduler.getSize());
+
+      sleep(300);
+      assertEquals(1, fired.size());
+      assertEquals(task, fired.get(0));
+      assertFalse(expired.cancel());
+   }
+
+   public void testPastExpiration() throws Exception
+   {
+      List fired = Collections.synchronizedList(new ArrayList());
+      scheduler.schedule(new Task(fired), 0);
+      sleep(100);
+      assertEquals(1, fired.size());
+   }
+
+   public void testBoundedDispatchPool() throws Exception
+   {
+      final int[] running = new int[2];
+      Runnable task = new Runnable()
+      {
+         public void run()
+         {
+            synchronized (running)
+            {
+               running[0]++;
+               running[1] = Math.max(running[0], running[1]);
+            }
+            try
+            {
+               Thread.sleep(5);
+            }
+            catch (InterruptedException ignore)
+            {
+            }
+            synchronized (running)
+            {
+               running[0]--;
+            }
+         }
+      };
+      long now = System.currentTimeMillis();
+      for (int i = 0; i < 1000; ++i)
+         scheduler.schedule(task, now + i % 50);
+
+      sleep(3000);
+      assertEquals(0, scheduler.getSize());
+      assertTrue("Dispatch threads: " + running[1], running[1] <= 4);
+      assertTrue(scheduler.getPoolSize() <= 4);
+   }
+
+   public void testStopped() throws Exception
+   {
+      scheduler.stop();
+      try
+      {
+         scheduler.schedule(new Task(new ArrayList()), 0);
+         fail("Expected IllegalStateException");
+      }
+      catch (IllegalStateException expected)
+      {
+      }
+      scheduler.start();
+   }
+
+   private void sleep(long interval) throws InterruptedException
+   {
+      synchronized (this)
+      {
+         wait(interval);
+      }
+   }
+
+   static class Task implements Runnable
+   {
+      List fired;
+      long time;
+
+      Task(List fired)
+      {
+         this.fired = fired;
+      }
+
+      public void run()
+      {
+         time = System.currentTimeMillis();
+         fired.add(this);
+      }
+   }
+}
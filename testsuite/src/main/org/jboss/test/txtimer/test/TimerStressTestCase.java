@@ -0,0 +1,94 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.txtimer.test;
+
+import javax.ejb.TimedObject;
+import javax.ejb.Timer;
+import javax.ejb.TimerService;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Creates and fires 100k single action timers. The time spent creating
+ * the timers, the time until the last one fired and the number of threads
+ * are logged at info level.
+ *
+ * @version $Revision$
+ */
+public class TimerStressTestCase extends TimerTestBase
+{
+   private static final Logger log = Logger.getLogger(TimerStressTestCase.class);
+
+   /** The number of timers */
+   static final int TIMERS = 100000;
+
+   /** The timers expire over this many ms */
+   static final int SPREAD = 2000;
+
+   public TimerStressTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testCreateAndFire() throws Exception
+   {
+      CountingTimedObject to = new CountingTimedObject();
+      TimerService service = createTimerService(to);
+      int threads = Thread.activeCount();
+
+      long start = System.currentTimeMillis();
+      for (int i = 0; i < TIMERS; ++i)
+         service.createTimer(500 + i % SPREAD, null);
+      long created = System.currentTimeMillis();
+      int maxThreads = Thread.activeCount();
+
+      long deadline = created + 500 + SPREAD + 60000;
+      while (to.getCallCount() < TIMERS && System.currentTimeMillis() < deadline)
+      {
+         sleep(100);
+         maxThreads = Math.max(maxThreads, Thread.activeCount());
+      }
+      long fired = System.currentTimeMillis();
+
+      log.info(TIMERS + " timers created in " + (created - start) + " ms, last fired after "
+         + (fired - start) + " ms, threads " + threads + " before, " + maxThreads + " at most");
+      assertEquals(TIMERS, to.getCallCount());
+      assertEquals(0, service.getTimers().size());
+      // The threads do not grow with the timers
+      assertTrue("Threads: " + maxThreads, maxThreads < threads + 100);
+   }
+
+   static class CountingTimedObject implements TimedObject
+   {
+      private int callCount;
+
+      public synchronized int getCallCount()
+      {
+         return callCount;
+      }
+
+      public synchronized void ejbTimeout(Timer timer)
+      {
+         callCount++;
+      }
+   }
+}
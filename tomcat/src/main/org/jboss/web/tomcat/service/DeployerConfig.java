@@ -115,6 +115,12 @@ public class DeployerConfig
     */
    private int maxUnreplicatedInterval;
 
+   /**
+    * Size from which clustered session values are replicated in chunks,
+    * 0 to always replicate the whole values.
+    */
+   private int deltaReplicationThreshold;
+
    /**
     * Get the request attribute name under which the JAAS Subject is store
     */
@@ -303,6 +309,16 @@ public class DeployerConfig
       this.maxUnreplicatedInterval = maxUnreplicatedInterval;
    }
 
+   public int getDeltaReplicationThreshold()
+   {
+      return deltaReplicationThreshold;
+   }
+
+   public void setDeltaReplicationThreshold(int deltaReplicationThreshold)
+   {
+      this.deltaReplicationThreshold = deltaReplicationThreshold;
+   }
+
    public String getSubjectAttributeName()
    {
       return subjectAttributeName;
@@ -120,7 +120,7 @@ public class JBossWeb extends AbstractWebContainer
     * Which snapshot mode should be used in clustered environment?
     * Default: instant
     */
-   private String snapshotMode = "instant"; // instant or interval
+   private String snapshotMode = "instant"; // instant, interval or async
 
    /**
     * Should the clustering code use a local cache for the sessions?
@@ -138,6 +138,11 @@ public class JBossWeb extends AbstractWebContainer
     */
    private int maxUnreplicatedInterval = WebMetaData.DEFAULT_MAX_UNREPLICATED_INTERVAL;
 
+   /**
+    * Size from which clustered session values are replicated in chunks.
+    */
+   private int deltaReplicationThreshold = 0;
+
    /**
     * A flag indicating if the JBoss Loader should be used
     */
@@ -233,7 +238,7 @@ public class JBossWeb extends AbstractWebContainer
    }
 
    /**
-    * Set the snapshot interval in milliseconds for snapshot mode = interval
+    * Set the snapshot interval in milliseconds for snapshot mode = interval or async
     */
    public void setSnapshotInterval(int interval)
    {
@@ -249,7 +254,7 @@ public class JBossWeb extends AbstractWebContainer
    }
 
    /**
-    * Set the snapshot mode. Currently supported: instant or interval
+    * Set the snapshot mode. Currently supported: instant, interval or async
     */
    public void setSnapshotMode(String mode)
    {
@@ -320,6 +325,16 @@ public class JBossWeb extends AbstractWebContainer
       this.maxUnreplicatedInterval = maxUnreplicatedInterval;
    }
 
+   public int getDeltaReplicationThreshold()
+   {
+      return deltaReplicationThreshold;
+   }
+
+   public void setDeltaReplicationThreshold(int deltaReplicationThreshold)
+   {
+      this.deltaReplicationThreshold = deltaReplicationThreshold;
+   }
+
    public boolean getDeleteWorkDirOnContextDestroy()
    {
       return deleteWorkDirOnContextDestroy;
@@ -665,6 +680,7 @@ public class JBossWeb extends AbstractWebContainer
       config.setUseLocalCache(this.useLocalCache);
       config.setUseJK(this.useJK);
       config.setMaxUnreplicatedInterval(this.maxUnreplicatedInterval);
+      config.setDeltaReplicationThreshold(this.deltaReplicationThreshold);
       config.setSubjectAttributeName(this.subjectAttributeName);
       config.setUseJBossWebLoader(this.useJBossWebLoader);
       config.setAllowSelfPrivilegedWebApps(this.allowSelfPrivilegedWebApps);
@@ -162,6 +162,26 @@ public interface JBossWebMBean extends AbstractWebContainerMBean
     */
    public void setMaxUnreplicatedInterval(int maxUnreplicatedInterval);
 
+   /**
+    * Get the size in bytes of the serialized form of a clustered session
+    * value from which the value is replicated in chunks, only the chunks
+    * that changed since the last replication being sent. Not used with
+    * <code>FIELD</code> granularity.
+    * 
+    * @return the size, or <code>0</code> if the whole values are always
+    *         replicated.
+    */
+   public int getDeltaReplicationThreshold();
+
+   /**
+    * Set the size in bytes of the serialized form of a clustered session
+    * value from which the value is replicated in chunks.
+    * 
+    * @param deltaReplicationThreshold the size, or <code>0</code> to always
+    *        replicate the whole values.
+    */
+   public void setDeltaReplicationThreshold(int deltaReplicationThreshold);
+
    /**
     * Get the JBoss UCL use flag
     */
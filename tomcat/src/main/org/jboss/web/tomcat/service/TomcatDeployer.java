@@ -330,6 +330,7 @@ public class TomcatDeployer extends AbstractWebDeployer
                JBossCacheManager jbcm = (JBossCacheManager) manager;
                jbcm.setSnapshotMode(snapshotMode);
                jbcm.setSnapshotInterval(snapshotInterval);
+               jbcm.setDeltaReplicationThreshold(config.getDeltaReplicationThreshold());
             }
             
             // JBAS-5706 -- use the DeployerConfig value as a default for
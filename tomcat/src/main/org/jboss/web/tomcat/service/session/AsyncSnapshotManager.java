@@ -0,0 +1,278 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.web.tomcat.service.session;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot manager that replicates the modified sessions in the
+ * background so that requests do not wait for the replication.
+ * <p/>
+ * A session is queued once however often it is modified before it is
+ * replicated. The queue is drained every interval, the sessions are
+ * replicated in batches, a transaction per batch, by a small pool of
+ * threads. When the pool is busy the draining thread replicates the batch
+ * itself, and when the queue is full the request thread replicates its
+ * session itself, so that a node that cannot keep up slows down instead
+ * of queueing without bound.
+ *
+ * @version $Revision$
+ */
+public class AsyncSnapshotManager extends SnapshotManager implements Runnable
+{
+   /** The default number of threads replicating the sessions */
+   public static final int DEFAULT_THREADS = 2;
+
+   /** The default number of sessions replicated in a transaction */
+   public static final int DEFAULT_BATCH_SIZE = 50;
+
+   /** The default number of queued sessions */
+   public static final int DEFAULT_MAX_PENDING = 1000;
+
+   // the manager replicating the batches
+   private JBossCacheManager cacheManager;
+
+   // the interval in ms
+   protected int interval = 100;
+
+   // the number of threads replicating the sessions
+   protected int threads = DEFAULT_THREADS;
+
+   // the number of sessions replicated in a transaction
+   protected int batchSize = DEFAULT_BATCH_SIZE;
+
+   // the number of queued sessions from which requests replicate
+   // their session themselves
+   protected int maxPending = DEFAULT_MAX_PENDING;
+
+   // the modified sessions
+   protected Set sessions = new LinkedHashSet();
+
+   // the threads replicating the batches
+   protected ThreadPoolExecutor executor = null;
+
+   // the thread draining the queue
+   protected Thread thread = null;
+
+   // Is session processing allowed?
+   protected volatile boolean processingAllowed = false;
+
+   public AsyncSnapshotManager(JBossCacheManager manager, String path, int interval)
+   {
+      this(manager, path, interval, DEFAULT_THREADS, DEFAULT_BATCH_SIZE, DEFAULT_MAX_PENDING);
+   }
+
+   public AsyncSnapshotManager(JBossCacheManager manager, String path, int interval,
+                               int threads, int batchSize, int maxPending)
+   {
+      super(manager, path);
+      this.cacheManager = manager;
+      this.interval = interval;
+      this.threads = threads;
+      this.batchSize = batchSize;
+      this.maxPending = maxPending;
+   }
+
+   /**
+    * Queue the modified session for replication, or replicate it now
+    * if the queue is full
+    */
+   public void snapshot(ClusteredSession session)
+   {
+      if (session == null)
+         return;
+
+      boolean queued = false;
+      synchronized (sessions)
+      {
+         if (processingAllowed && (sessions.size() < maxPending || sessions.contains(session)))
+         {
+            if (sessions.isEmpty())
+               sessions.notify();
+            sessions.add(session);
+            queued = true;
+         }
+      }
+
+      if (!queued)
+      {
+         try
+         {
+            getManager().storeSession(session);
+         }
+         catch (Exception e)
+         {
+            getLog().warn("Failed to replicate session " + session.getIdInternal(), e);
+         }
+      }
+   }
+
+   /**
+    * Hand the queued sessions to the replication threads in batches
+    */
+   protected void processSessions()
+   {
+      ClusteredSession[] toProcess = drain();
+      for (int i = 0; i < toProcess.length; i += batchSize)
+      {
+         // Confirm we haven't been stopped
+         if (!processingAllowed)
+            break;
+
+         final ClusteredSession[] batch = new ClusteredSession[Math.min(batchSize, toProcess.length - i)];
+         System.arraycopy(toProcess, i, batch, 0, batch.length);
+         executor.execute(new Runnable()
+         {
+            public void run()
+            {
+               replicate(batch);
+            }
+         });
+      }
+   }
+
+   /**
+    * Replicate a batch of sessions in a transaction
+    */
+   protected void replicate(ClusteredSession[] batch)
+   {
+      try
+      {
+         cacheManager.storeSessions(batch);
+      }
+      catch (Exception e)
+      {
+         getLog().error("Caught exception replicating " + batch.length + " sessions", e);
+      }
+   }
+
+   /**
+    * Start the snapshot manager
+    */
+   public void start()
+   {
+      if (thread != null)
+      {
+         return;
+      }
+
+      final ClassLoader loader = getManager().getContainer().getLoader().getClassLoader();
+      final String name = "ClusteredSessionReplicator[" + getContextPath() + "]";
+      executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                        new ArrayBlockingQueue(threads),
+                                        new ThreadFactory()
+                                        {
+                                           public Thread newThread(Runnable r)
+                                           {
+                                              Thread t = new Thread(r, name);
+                                              t.setDaemon(true);
+                                              t.setContextClassLoader(loader);
+                                              return t;
+                                           }
+                                        },
+                                        new ThreadPoolExecutor.CallerRunsPolicy());
+
+      processingAllowed = true;
+      thread = new Thread(this, "ClusteredSessionDistributor[" + getContextPath() + "]");
+      thread.setDaemon(true);
+      thread.setContextClassLoader(loader);
+      thread.start();
+   }
+
+   /**
+    * Stop the snapshot manager, the queued sessions are replicated
+    * before it returns
+    */
+   public void stop()
+   {
+      if (thread == null)
+      {
+         return;
+      }
+
+      processingAllowed = false;
+      thread.interrupt();
+      try
+      {
+         thread.join();
+         executor.shutdown();
+         executor.awaitTermination(60, TimeUnit.SECONDS);
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+      thread = null;
+      executor = null;
+
+      ClusteredSession[] remaining = drain();
+      if (remaining.length > 0)
+         replicate(remaining);
+   }
+
+   /**
+    * Thread-loop
+    */
+   public void run()
+   {
+      while (processingAllowed)
+      {
+         try
+         {
+            synchronized (sessions)
+            {
+               while (sessions.isEmpty() && processingAllowed)
+                  sessions.wait();
+            }
+
+            // Let the modifications of the interval coalesce
+            Thread.sleep(interval);
+            processSessions();
+         }
+         catch (InterruptedException ie)
+         {
+            if (processingAllowed)
+               getLog().error("Caught exception processing sessions", ie);
+         }
+         catch (Exception e)
+         {
+            getLog().error("Caught exception processing sessions", e);
+         }
+      }
+   }
+
+   private ClusteredSession[] drain()
+   {
+      synchronized (sessions)
+      {
+         ClusteredSession[] toProcess = new ClusteredSession[sessions.size()];
+         toProcess = (ClusteredSession[]) sessions.toArray(toProcess);
+         sessions.clear();
+         return toProcess;
+      }
+   }
+}
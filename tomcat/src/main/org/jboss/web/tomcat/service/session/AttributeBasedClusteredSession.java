@@ -23,6 +23,7 @@ package org.jboss.web.tomcat.service.session;
 
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
@@ -66,6 +67,8 @@ class AttributeBasedClusteredSession
    // Note that the removed attr is intentionally stored in a map 
    // instead of a Set so it is faster to lookup and remove.
    private transient Map attrRemovedMap_ = new HashMap();
+   // The removed attrs replicated in a transaction that may still roll back
+   private transient Set attrRemovedUncommitted_ = new HashSet();
    private static final int REMOVE = 0;   // Used to track attribute changes
    private static final int MODIFY = 1;
    // TODO why isn't the superclass field sufficient?
@@ -93,6 +96,7 @@ class AttributeBasedClusteredSession
 
       attributes_.clear();
       clearAttrChangedMaps();
+      attrRemovedUncommitted_.clear();
    }
 
    /**
@@ -128,9 +132,17 @@ class AttributeBasedClusteredSession
       
       if (getSessionAttributesDirty())
       {
+         DeltaEncoder encoder = getDeltaEncoder();
+         
          // Go thru the modified attr list first
          int modCount = attrModifiedMap_.size();
-         if (modCount == 1)
+         if (encoder != null)
+         {
+            // Large values only replicate the chunks that changed
+            if (modCount > 0)
+               proxy_.putAttribute(realId, attrModifiedMap_, encoder);
+         }
+         else if (modCount == 1)
          {
             for (Iterator it = attrModifiedMap_.entrySet().iterator(); it.hasNext(); )
             {
@@ -150,10 +162,17 @@ class AttributeBasedClusteredSession
          {         
             for (Iterator it = attrRemovedMap_.keySet().iterator(); it.hasNext(); )
             {
-               proxy_.removeAttribute(realId, (String) it.next());
+               String key = (String) it.next();
+               proxy_.removeAttribute(realId, key);
+               if (encoder != null)
+                  encoder.removed(key);
             }
+            attrRemovedUncommitted_.addAll(attrRemovedMap_.keySet());
          }
          
+         if (encoder != null)
+            proxy_.releaseChunks(realId, encoder);
+         
          clearAttrChangedMaps();
       }
       
@@ -187,7 +206,7 @@ class AttributeBasedClusteredSession
     */
    protected void populateAttributes()
    {
-      Map map = proxy_.getAttributes(realId);
+      Map map = proxy_.getAttributes(realId, getDeltaEncoder());
       
       // Preserve any local attributes that were excluded from replication
       Map excluded = removeExcludedAttributes(attributes_);
@@ -197,6 +216,7 @@ class AttributeBasedClusteredSession
       attributes_ = Collections.synchronizedMap(map);
       attrModifiedMap_.clear();
       attrRemovedMap_.clear();
+      attrRemovedUncommitted_.clear();
    }
 
    protected Object getJBossInternalAttribute(String name)
@@ -270,6 +290,41 @@ class AttributeBasedClusteredSession
       sessionAttributesDirty();
    }
 
+   /**
+    * Override the superclass to replicate every attribute again, the
+    * changes of the rolled back replication are lost. The attributes
+    * removed since the last committed replication are removed again.
+    */
+   protected synchronized void replicationRolledBack()
+   {
+      super.replicationRolledBack();
+      synchronized (attributes_)
+      {
+         for (Iterator it = attributes_.entrySet().iterator(); it.hasNext(); )
+         {
+            Map.Entry entry = (Entry) it.next();
+            if (!replicationExcludes.contains(entry.getKey()))
+               attrModifiedMap_.put(entry.getKey(), entry.getValue());
+         }
+         for (Iterator it = attrRemovedUncommitted_.iterator(); it.hasNext(); )
+         {
+            Object key = it.next();
+            if (!attributes_.containsKey(key))
+               attrRemovedMap_.put(key, null);
+         }
+      }
+      attrRemovedUncommitted_.clear();
+   }
+
+   /**
+    * Override the superclass to forget the removals that are now committed.
+    */
+   protected synchronized void replicationCommitted()
+   {
+      super.replicationCommitted();
+      attrRemovedUncommitted_.clear();
+   }
+
    protected synchronized void clearAttrChangedMaps()
    {
       attrRemovedMap_.clear();
@@ -1445,6 +1445,26 @@ public abstract class ClusteredSession
       sessionMetadataDirty();
    }
 
+   /**
+    * Called when the transaction in which this session was replicated
+    * rolled back. Marks the whole session dirty so that the next
+    * replication sends it again.
+    */
+   protected void replicationRolledBack()
+   {
+      sessionAttributesDirty();
+      sessionMetadataDirty();
+   }
+
+   /**
+    * Called when the transaction in which this session was replicated
+    * committed, or when it was replicated without a transaction of the
+    * caller.
+    */
+   protected void replicationCommitted()
+   {
+   }
+
    public boolean isSessionDirty()
    {
       return sessionAttributesDirty || sessionMetadataDirty;
@@ -0,0 +1,352 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.web.tomcat.service.session;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Splits the serialized form of large session values in chunks so that only
+ * the chunks that changed since the last replication need to be replicated.
+ * <p/>
+ * The chunk boundaries are chosen by the content, with a rolling hash over
+ * the last bytes, so that inserting or removing bytes in the middle of a
+ * value only changes the chunks around the edit and not every chunk after
+ * it. A chunk is identified by a digest of its bytes.
+ * <p/>
+ * The chunks of a session are stored in the cache under their id in a
+ * child node of the session, the value itself is replaced by its chunk list:
+ * a <code>long[]</code> holding the length of the value followed by the ids
+ * of its chunks. Only JDK types are stored so the cache can unmarshal them
+ * whatever class loader it uses.
+ * <p/>
+ * An encoder belongs to a session and remembers which chunks the cache
+ * holds for it. It is not thread safe; the session serializes its use.
+ *
+ * @version $Revision$
+ */
+public class DeltaEncoder
+{
+   /** The smallest chunk, except for the last chunk of a value */
+   static final int MIN_CHUNK = 256;
+
+   /** The largest chunk */
+   static final int MAX_CHUNK = 8192;
+
+   /**
+    * A boundary is where the hash has these bits clear, about every 1KB.
+    * The high bits depend on all the bytes in the window of the hash.
+    */
+   static final int BOUNDARY_MASK = 0xFFC00000;
+
+   /** The random values of the bytes for the rolling hash */
+   private static final int[] GEAR = new int[256];
+
+   static
+   {
+      // A fixed seed, every node must find the same boundaries
+      long seed = 0x5DEECE66DL;
+      for (int i = 0; i < GEAR.length; ++i)
+      {
+         seed = seed * 6364136223846793005L + 1442695040888963407L;
+         GEAR[i] = (int) (seed >>> 32);
+      }
+   }
+
+   /** The size from which a value is replicated in chunks */
+   private final int threshold;
+
+   /** The ids of the chunks in the cache */
+   private final Set replicated = new HashSet();
+
+   /** The chunk lists of the values in the cache, by key */
+   private final Map values = new HashMap();
+
+   /**
+    * Whether a replication failed since the state of the cache was read,
+    * the cache may then hold chunk lists we do not know about
+    */
+   private boolean failed;
+
+   /** The digest of the chunks */
+   private final MessageDigest digest;
+
+   /**
+    * Create a new encoder
+    *
+    * @param threshold the size in bytes from which a value is replicated
+    *        in chunks
+    */
+   public DeltaEncoder(int threshold)
+   {
+      this.threshold = threshold;
+      try
+      {
+         digest = MessageDigest.getInstance("MD5");
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+         throw new IllegalStateException("MD5 is not available: " + e);
+      }
+   }
+
+   /**
+    * Get the size from which a value is replicated in chunks
+    */
+   public int getThreshold()
+   {
+      return threshold;
+   }
+
+   /**
+    * Encode the serialized form of a value.
+    *
+    * @param key the key of the value
+    * @param bytes the serialized form
+    * @param newChunks receives the chunks the cache does not hold yet,
+    *        by chunk key
+    * @return the chunk list to store in place of the value or
+    *         <code>null</code> if the value is too small to be chunked
+    */
+   public long[] encode(Object key, byte[] bytes, Map newChunks)
+   {
+      if (bytes.length < threshold)
+      {
+         values.remove(key);
+         return null;
+      }
+
+      int[] boundaries = split(bytes);
+      long[] chunkList = new long[boundaries.length + 1];
+      chunkList[0] = bytes.length;
+      int start = 0;
+      for (int i = 0; i < boundaries.length; ++i)
+      {
+         int end = boundaries[i];
+         digest.update(bytes, start, end - start);
+         long id = toLong(digest.digest());
+         chunkList[i + 1] = id;
+         Long chunk = new Long(id);
+         if (replicated.add(chunk))
+         {
+            byte[] data = new byte[end - start];
+            System.arraycopy(bytes, start, data, 0, data.length);
+            newChunks.put(getChunkKey(id), data);
+         }
+         start = end;
+      }
+      values.put(key, chunkList);
+      return chunkList;
+   }
+
+   /**
+    * A value was removed or replaced by a value that is not chunked
+    *
+    * @param key the key of the value
+    */
+   public void removed(Object key)
+   {
+      values.remove(key);
+   }
+
+   /**
+    * Get the chunks no longer used by any value, they are forgotten
+    *
+    * @return the keys of the chunks to remove from the cache
+    */
+   public Set release()
+   {
+      if (failed)
+         return new HashSet();
+
+      Set used = new HashSet();
+      for (Iterator i = values.values().iterator(); i.hasNext();)
+      {
+         long[] chunkList = (long[]) i.next();
+         for (int j = 1; j < chunkList.length; ++j)
+            used.add(new Long(chunkList[j]));
+      }
+
+      Set unused = new HashSet();
+      for (Iterator i = replicated.iterator(); i.hasNext();)
+      {
+         Long chunk = (Long) i.next();
+         if (used.contains(chunk) == false)
+         {
+            unused.add(getChunkKey(chunk.longValue()));
+            i.remove();
+         }
+      }
+      return unused;
+   }
+
+   /**
+    * Forget everything, the state of the cache is read again
+    * with {@link #loaded(Object, long[])} and {@link #loadedChunks(Collection)}.
+    */
+   public void reset()
+   {
+      replicated.clear();
+      values.clear();
+      failed = false;
+   }
+
+   /**
+    * A replication failed, the chunks it carried may not be in the cache.
+    * Every chunk is replicated again the next time it is used and no chunk
+    * is released until the state of the cache is read again.
+    */
+   public void failed()
+   {
+      replicated.clear();
+      failed = true;
+   }
+
+   /**
+    * A chunked value was read from the cache
+    *
+    * @param key the key of the value
+    * @param chunkList its chunk list
+    */
+   public void loaded(Object key, long[] chunkList)
+   {
+      values.put(key, chunkList);
+   }
+
+   /**
+    * The chunks in the cache were read
+    *
+    * @param chunkKeys the keys of the chunks
+    */
+   public void loadedChunks(Collection chunkKeys)
+   {
+      for (Iterator i = chunkKeys.iterator(); i.hasNext();)
+      {
+         String chunkKey = (String) i.next();
+         replicated.add(new Long(parseChunkKey(chunkKey)));
+      }
+   }
+
+   /**
+    * Reassemble a value from its chunks
+    *
+    * @param chunkList the chunk list
+    * @param chunks the chunks, by chunk key
+    * @return the serialized form of the value
+    * @throws IOException when a chunk is missing
+    */
+   public static byte[] decode(long[] chunkList, Map chunks) throws IOException
+   {
+      byte[] bytes = new byte[(int) chunkList[0]];
+      int position = 0;
+      for (int i = 1; i < chunkList.length; ++i)
+      {
+         byte[] data = (byte[]) chunks.get(getChunkKey(chunkList[i]));
+         if (data == null || position + data.length > bytes.length)
+            throw new IOException("Missing or corrupt chunk " + getChunkKey(chunkList[i]));
+         System.arraycopy(data, 0, bytes, position, data.length);
+         position += data.length;
+      }
+      if (position != bytes.length)
+         throw new IOException("Expected " + bytes.length + " bytes, got " + position);
+      return bytes;
+   }
+
+   /**
+    * Get the key of a chunk in the cache
+    *
+    * @param id the id of the chunk
+    * @return the key
+    */
+   public static String getChunkKey(long id)
+   {
+      return Long.toHexString(id);
+   }
+
+   /**
+    * Get the id of a chunk from its key
+    *
+    * @param chunkKey the key, an unsigned hex number
+    * @return the id
+    */
+   static long parseChunkKey(String chunkKey)
+   {
+      int split = Math.max(0, chunkKey.length() - 8);
+      long high = split == 0 ? 0 : Long.parseLong(chunkKey.substring(0, split), 16);
+      long low = Long.parseLong(chunkKey.substring(split), 16);
+      return (high << 32) | low;
+   }
+
+   /**
+    * Find the chunk boundaries
+    *
+    * @param bytes the bytes
+    * @return the ends of the chunks
+    */
+   static int[] split(byte[] bytes)
+   {
+      int[] boundaries = new int[bytes.length / MIN_CHUNK + 1];
+      int count = 0;
+      int start = 0;
+      while (start < bytes.length)
+      {
+         int end = Math.min(bytes.length, start + MAX_CHUNK);
+         int position = start + MIN_CHUNK;
+         int hash = 0;
+         if (position < end)
+         {
+            // Prime the hash, it depends on the last 32 bytes only
+            for (int i = position - 32; i < position; ++i)
+               hash = (hash << 1) + GEAR[bytes[i] & 0xFF];
+            while (position < end)
+            {
+               hash = (hash << 1) + GEAR[bytes[position++] & 0xFF];
+               if ((hash & BOUNDARY_MASK) == 0)
+                  break;
+            }
+         }
+         else
+            position = end;
+         boundaries[count++] = position;
+         start = position;
+      }
+
+      int[] result = new int[count];
+      System.arraycopy(boundaries, 0, result, 0, count);
+      return result;
+   }
+
+   private static long toLong(byte[] digest)
+   {
+      long result = 0;
+      for (int i = 0; i < 8; ++i)
+         result = (result << 8) | (digest[i] & 0xFF);
+      return result;
+   }
+}
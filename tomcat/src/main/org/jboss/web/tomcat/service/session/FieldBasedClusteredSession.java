@@ -150,6 +150,15 @@ class FieldBasedClusteredSession
 
    // ------------------------------------------------ JBoss internal abstract method
 
+   /**
+    * Returns <code>null</code>; the fields of the attributes are already
+    * replicated one by one.
+    */
+   public DeltaEncoder getDeltaEncoder()
+   {
+      return null;
+   }
+
    /**
     * Populate the attributes stored in the distributed store to the local 
     * transient map. Add ourself as an Observer to newly found attributes and 
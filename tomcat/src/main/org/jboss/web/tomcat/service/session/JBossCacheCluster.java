@@ -426,6 +426,9 @@ public class JBossCacheCluster
     * The "interval" mode, in association with the "SnapshotInterval"
     * attribute, indicates that Tomcat will only replicate modified
     * sessions every "SnapshotInterval" miliseconds at most.
+    * The "async" mode replicates the sessions modified in the last
+    * "SnapshotInterval" milliseconds in the background, in batches, so that
+    * requests do not wait for the replication.
     * 
     * @see #getSnapshotInterval()
     * 
@@ -441,6 +444,7 @@ public class JBossCacheCluster
     * <ul>
     * <li>instant</li>
     * <li>interval</li> 
+    * <li>async</li>
     * </ul>
     * 
     * @jmx.managed-attribute
@@ -36,6 +36,11 @@ public abstract class JBossCacheClusteredSession extends ClusteredSession
     */
    protected transient JBossCacheService proxy_;
    
+   /**
+    * Our encoder of the values replicated in chunks.
+    */
+   private transient DeltaEncoder deltaEncoder_;
+   
    /**
     * Create a new JBossCacheClusteredSession.
     * 
@@ -93,6 +98,33 @@ public abstract class JBossCacheClusteredSession extends ClusteredSession
    
    protected abstract void populateAttributes();
 
+   /**
+    * Gets the encoder of the values of this session replicated in chunks.
+    * 
+    * @return the encoder, or <code>null</code> if the whole values are
+    *         replicated.
+    */
+   public DeltaEncoder getDeltaEncoder()
+   {
+      if (deltaEncoder_ == null)
+      {
+         int threshold = ((JBossCacheManager) manager).getDeltaReplicationThreshold();
+         if (threshold > 0)
+            deltaEncoder_ = new DeltaEncoder(threshold);
+      }
+      return deltaEncoder_;
+   }
+
+   /**
+    * Override the superclass to also resend the chunks of the values.
+    */
+   protected void replicationRolledBack()
+   {
+      super.replicationRolledBack();
+      if (deltaEncoder_ != null)
+         deltaEncoder_.failed();
+   }
+
    /**
     * Override the superclass to additionally reset this class' fields.
     * <p>
@@ -106,6 +138,7 @@ public abstract class JBossCacheClusteredSession extends ClusteredSession
       super.recycle();
       
       proxy_ = null;
+      deltaEncoder_ = null;
    }
 
    /**
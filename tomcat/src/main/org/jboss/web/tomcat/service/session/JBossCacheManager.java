@@ -133,6 +133,9 @@ public class JBossCacheManager
    
    private int maxUnreplicatedInterval_ = WebMetaData.DEFAULT_MAX_UNREPLICATED_INTERVAL;
 
+   /** The size from which session values are replicated in chunks, 0 for never */
+   private int deltaReplicationThreshold_ = 0;
+
    //  ----------------------------------------------------------  Constructors
 
    public JBossCacheManager()
@@ -220,6 +223,9 @@ public class JBossCacheManager
     * The "interval" mode, in association with the "SnapshotInterval"
     * attribute, indicates that Tomcat will only replicate modified
     * sessions every "SnapshotInterval" miliseconds at most.
+    * The "async" mode replicates the sessions modified in the last
+    * "SnapshotInterval" milliseconds in the background, in batches, so that
+    * requests do not wait for the replication.
     *
     * @see #getSnapshotInterval()
     */
@@ -233,6 +239,7 @@ public class JBossCacheManager
     * <ul>
     * <li>instant</li>
     * <li>interval</li>
+    * <li>async</li>
     * </ul>
     */
    public void setSnapshotMode(String snapshotMode)
@@ -263,6 +270,32 @@ public class JBossCacheManager
       this.snapshotInterval_ = snapshotInterval;
    }
 
+   /**
+    * Gets the size of the serialized form of a session value from which
+    * the value is replicated in chunks, only the chunks that changed since
+    * the last replication being sent. Not used with <code>FIELD</code>
+    * granularity.
+    *
+    * @return the size in bytes, or <code>0</code> if the whole values are
+    *         always replicated.
+    */
+   public int getDeltaReplicationThreshold()
+   {
+      return deltaReplicationThreshold_;
+   }
+
+   /**
+    * Sets the size of the serialized form of a session value from which
+    * the value is replicated in chunks.
+    *
+    * @param deltaReplicationThreshold the size in bytes, or <code>0</code>
+    *                                  to always replicate the whole values.
+    */
+   public void setDeltaReplicationThreshold(int deltaReplicationThreshold)
+   {
+      this.deltaReplicationThreshold_ = deltaReplicationThreshold;
+   }
+
    /**
     * Gets whether the <code>Engine</code> in which we are running
     * uses <code>mod_jk</code>.
@@ -690,6 +723,80 @@ public class JBossCacheManager
       return stored;
    }
 
+   /**
+    * Store the modified sessions, replicating them in a single
+    * transaction. If the transaction does not commit, the sessions are
+    * marked dirty again and stored one by one.
+    *
+    * @param sessions the sessions
+    */
+   public void storeSessions(ClusteredSession[] sessions)
+   {
+      boolean committed = false;
+      if (sessions.length > 1 && tm != null)
+      {
+         try
+         {
+            tm.begin();
+            boolean stored = false;
+            try
+            {
+               for (int i = 0; i < sessions.length; i++)
+                  storeSession(sessions[i]);
+               stored = true;
+            }
+            finally
+            {
+               if (stored && tm.getStatus() == Status.STATUS_ACTIVE)
+               {
+                  tm.commit();
+                  committed = true;
+               }
+               else
+               {
+                  tm.rollback();
+               }
+            }
+         }
+         catch (Exception e)
+         {
+            if (log_.isDebugEnabled())
+               log_.debug("storeSessions(): replication of " + sessions.length +
+                          " sessions rolled back, storing them one by one", e);
+         }
+      }
+
+      if (committed)
+      {
+         for (int i = 0; i < sessions.length; i++)
+         {
+            synchronized (sessions[i])
+            {
+               sessions[i].replicationCommitted();
+            }
+         }
+         return;
+      }
+
+      for (int i = 0; i < sessions.length; i++)
+      {
+         ClusteredSession session = sessions[i];
+         try
+         {
+            synchronized (session)
+            {
+               if (sessions.length > 1)
+                  session.replicationRolledBack();
+            }
+            storeSession(session);
+         }
+         catch (Exception e)
+         {
+            log_.error("Failed to replicate session " + session.getIdInternal(), e);
+         }
+      }
+   }
+
    public void add(Session session)
    {
       if (session == null)
@@ -1106,12 +1213,14 @@ public class JBossCacheManager
       // for a single put
       boolean notSession = (replicationGranularity_ != WebMetaData.REPLICATION_GRANULARITY_SESSION);
       boolean doTx = false;
+      boolean outerTx = false;
       try
       {
          // We need transaction so all the replication are sent in batch.
          // Don't do anything if there is already transaction context
          // associated with this thread.
-         if(notSession && tm.getTransaction() == null)
+         outerTx = tm != null && tm.getTransaction() != null;
+         if(notSession && !outerTx)
             doTx = true;
 
          if(doTx)
@@ -1131,6 +1240,9 @@ public class JBossCacheManager
          if (log_.isDebugEnabled())
             log_.debug("processSessionRepl(): failed with exception", ex);
          
+         // The chunks may not have reached the cache
+         deltaReplicationFailed(session);
+         
          try
          {
             //if(doTx)
@@ -1161,6 +1273,24 @@ public class JBossCacheManager
             SessionReplicationContext.finishCacheActivity();
          }
       }
+      
+      // The outcome of a replication in a transaction of the caller
+      // is only known when the caller ends it
+      if (!outerTx)
+         session.replicationCommitted();
+   }
+
+   /**
+    * Tells the delta encoder of the session that its last replication failed.
+    */
+   private void deltaReplicationFailed(ClusteredSession session)
+   {
+      if (session instanceof JBossCacheClusteredSession)
+      {
+         DeltaEncoder encoder = ((JBossCacheClusteredSession) session).getDeltaEncoder();
+         if (encoder != null)
+            encoder.failed();
+      }
    }
 
    protected void endTransaction(String id)
@@ -1754,9 +1884,13 @@ public class JBossCacheManager
       {
          snapshotManager_ = new IntervalSnapshotManager(this, ctxPath, snapshotInterval_);
       }
+      else if ("async".equals(snapshotMode_))
+      {
+         snapshotManager_ = new AsyncSnapshotManager(this, ctxPath, snapshotInterval_);
+      }
       else
       {
-         log_.error("Snapshot mode must be 'instant' or 'interval' - " +
+         log_.error("Snapshot mode must be 'instant', 'interval' or 'async' - " +
                     "using 'instant'");
          snapshotManager_ = new InstantSnapshotManager(this, ctxPath);
       }
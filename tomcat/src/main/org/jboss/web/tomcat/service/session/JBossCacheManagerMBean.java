@@ -100,16 +100,26 @@ public interface JBossCacheManagerMBean extends JBossManagerMBean
    /**
     * Gets the snapshot mode.
     * 
-    * @return "instant" or "interval"
+    * @return "instant", "interval" or "async"
     */
    String getSnapshotMode();
    
    /**
-    * Gets the number of milliseconds between replications if "interval" mode
-    * is used.
+    * Gets the number of milliseconds between replications if "interval" or
+    * "async" mode is used.
     */
    int getSnapshotInterval();
 
+   /**
+    * Gets the size of the serialized form of a session value from which
+    * the value is replicated in chunks, only the chunks that changed since
+    * the last replication being sent.
+    * 
+    * @return the size in bytes, or <code>0</code> if the whole values are
+    *         always replicated.
+    */
+   int getDeltaReplicationThreshold();
+
    /**
     * Get the maximum interval between requests, in seconds, after which a
     * request will trigger replication of the session's metadata regardless
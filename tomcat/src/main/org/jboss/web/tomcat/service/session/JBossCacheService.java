@@ -70,6 +70,8 @@ public class JBossCacheService
    public static final Fqn BUDDY_BACKUP_FQN = BuddyManager.BUDDY_BACKUP_SUBTREE_FQN;
    public static final String SESSION = "JSESSION";
    public static final String ATTRIBUTE = "ATTRIBUTE";
+   // The chunks of the values replicated in chunks
+   public static final String CHUNKS = "CHUNKS";
    // Needed for cache invalidation
    public static final String VERSION_KEY = "VERSION";
    static final String FQN_DELIMITER = "/";
@@ -94,6 +96,9 @@ public class JBossCacheService
    
    private WeakHashMap typeMap = new WeakHashMap();
    
+   // The key of the session body in the DeltaEncoder of the session
+   private static final Object SESSION_BODY_KEY = new Object();
+   
    /**
     * Creates a JMX proxy PojoCacheMBean for the given object name.
     * 
@@ -263,13 +268,42 @@ public class JBossCacheService
       
       boolean firstLoad = (toLoad.getVersion() == 0);
       
+      // Forget what we knew about the chunks, they may have changed
+      DeltaEncoder encoder = getDeltaEncoder(toLoad);
+      if (encoder != null)
+      {
+         encoder.reset();
+         Set chunkKeys = getChunkKeys(realId);
+         if (chunkKeys != null)
+            encoder.loadedChunks(chunkKeys);
+      }
+      
 //      if (useTreeCacheMarshalling_)
 //      {
 //         toLoad.update((ClusteredSession) sessionData);
 //      }
 //      else
 //      {
-         byte[] sessionBytes = (byte[]) sessionData;
+         byte[] sessionBytes;
+         if (sessionData instanceof long[])
+         {
+            long[] chunkList = (long[]) sessionData;
+            try
+            {
+               sessionBytes = DeltaEncoder.decode(chunkList, getChunks(realId, chunkList));
+            }
+            catch (IOException e)
+            {
+               log_.error("loadSession(): id: " + realId + " exception occurred reading the chunks", e);
+               return null;
+            }
+            if (encoder != null)
+               encoder.loaded(SESSION_BODY_KEY, chunkList);
+         }
+         else
+         {
+            sessionBytes = (byte[]) sessionData;
+         }
          
          // Swap in/out the webapp classloader so we can deserialize
          // attributes whose classes are only available to the webapp
@@ -319,10 +353,33 @@ public class JBossCacheService
 //         if (useTreeCacheMarshalling_)
 //            map.put(realId, session);
 //         else
-            map.put(realId, externalizeSession(session));
+         byte[] sessionBytes = externalizeSession(session);
+         DeltaEncoder encoder = getDeltaEncoder(session);
+         if (encoder != null && sessionBytes != null)
+         {
+            // Only put the chunks the cache does not have yet
+            Map chunks = new HashMap();
+            long[] chunkList = encoder.encode(SESSION_BODY_KEY, sessionBytes, chunks);
+            if (chunkList != null)
+            {
+               putChunks(realId, chunks);
+               map.put(realId, chunkList);
+            }
+            else
+            {
+               map.put(realId, sessionBytes);
+            }
+         }
+         else
+         {
+            map.put(realId, sessionBytes);
+         }
          // Put in (VERSION_KEY, version) after the real put for cache invalidation
          map.put(VERSION_KEY, new Integer(session.getVersion()));
          cacheWrapper_.put(fqn, map);
+         
+         if (encoder != null)
+            releaseChunks(realId, encoder);
       }
       else
       {
@@ -381,9 +438,30 @@ public class JBossCacheService
    }
 
    public Object getAttribute(String realId, String key)
+   {
+      return getAttribute(realId, key, null);
+   }
+
+   private Object getAttribute(String realId, String key, DeltaEncoder encoder)
    {
       Fqn fqn = getAttributeFqn(realId);
-      return getUnMarshalledValue(cacheWrapper_.get(fqn, key));
+      Object value = cacheWrapper_.get(fqn, key);
+      if (value instanceof long[])
+      {
+         long[] chunkList = (long[]) value;
+         if (encoder != null)
+            encoder.loaded(key, chunkList);
+         try
+         {
+            return getUnMarshalledValue(DeltaEncoder.decode(chunkList, getChunks(realId, chunkList)));
+         }
+         catch (IOException e)
+         {
+            log_.error("IOException occurred reading the chunks of attribute " + key, e);
+            return null;
+         }
+      }
+      return getUnMarshalledValue(value);
    }
 
    public void putAttribute(String realId, String key, Object value)
@@ -393,21 +471,70 @@ public class JBossCacheService
    }
 
    public void putAttribute(String realId, Map map)
+   {
+      putAttribute(realId, map, null);
+   }
+
+   /**
+    * Put the attributes, those whose serialized form reaches the
+    * threshold of the encoder are replicated in chunks and only the
+    * chunks the cache does not have yet are put.
+    * 
+    * @param realId the session id with any jvmRoute removed
+    * @param map the attributes
+    * @param encoder the encoder of the session or <code>null</code>
+    *        to replicate the whole values
+    */
+   public void putAttribute(String realId, Map map, DeltaEncoder encoder)
    {
       // Duplicate the map with marshalled values
       Map marshalled = new HashMap(map.size());
+      Map chunks = new HashMap();
       Set entries = map.entrySet();
       for (Iterator it = entries.iterator(); it.hasNext(); )
       {
          Map.Entry entry = (Map.Entry) it.next();
-         marshalled.put(entry.getKey(), getMarshalledValue(entry.getValue()));
+         Object mv = getMarshalledValue(entry.getValue());
+         if (encoder != null && mv != null)
+         {
+            long[] chunkList = encoder.encode(entry.getKey(), ((MarshalledValue) mv).toByteArray(), chunks);
+            if (chunkList != null)
+               mv = chunkList;
+         }
+         marshalled.put(entry.getKey(), mv);
       }
       
+      if (chunks.isEmpty() == false)
+         putChunks(realId, chunks);
+      
       Fqn fqn = getAttributeFqn(realId);
       cacheWrapper_.put(fqn, marshalled);
       
    }
 
+   /**
+    * Remove the chunks no longer used by the values of the session
+    * 
+    * @param realId the session id with any jvmRoute removed
+    * @param encoder the encoder of the session
+    */
+   public void releaseChunks(String realId, DeltaEncoder encoder)
+   {
+      Set unused = encoder.release();
+      if (unused.isEmpty())
+         return;
+      
+      Fqn fqn = getChunkFqn(realId);
+      if (log_.isTraceEnabled())
+      {
+         log_.trace("Remove " + unused.size() + " chunks from distributed store. Fqn: " + fqn);
+      }
+      for (Iterator it = unused.iterator(); it.hasNext(); )
+      {
+         cacheWrapper_.remove(fqn, (String) it.next());
+      }
+   }
+
    public void removeAttributes(String realId)
    {
       Fqn fqn = getAttributeFqn(realId);
@@ -461,6 +588,19 @@ public class JBossCacheService
     * @return the attributes, or any empty Map if none are found.
     */
    public Map getAttributes(String realId)
+   {
+      return getAttributes(realId, null);
+   }
+
+   /**
+    * Return all attributes associated with this session id, telling the
+    * encoder of the session about the attributes replicated in chunks.
+    *
+    * @param realId the session id with any jvmRoute removed
+    * @param encoder the encoder of the session or <code>null</code>
+    * @return the attributes, or any empty Map if none are found.
+    */
+   public Map getAttributes(String realId, DeltaEncoder encoder)
    {
       if (realId == null || realId.length() == 0) return new HashMap();
       
@@ -471,7 +611,7 @@ public class JBossCacheService
          for (Iterator it = set.iterator(); it.hasNext();)
          {
             String key = (String) it.next();
-            Object value = getAttribute(realId, key);
+            Object value = getAttribute(realId, key, encoder);
             map.put(key, value);
          }
       }
@@ -952,6 +1092,56 @@ public class JBossCacheService
       return new Fqn(objs);
    }
 
+   private Fqn getChunkFqn(String id)
+   {
+      // /SESSION/hostName/webAppPath/id/CHUNKS
+      Object[] objs = new Object[]{SESSION, hostName_, webAppPath_, id, CHUNKS};
+      return new Fqn(objs);
+   }
+
+   private DeltaEncoder getDeltaEncoder(ClusteredSession session)
+   {
+      if (session instanceof JBossCacheClusteredSession)
+         return ((JBossCacheClusteredSession) session).getDeltaEncoder();
+      return null;
+   }
+
+   private void putChunks(String realId, Map chunks)
+   {
+      if (log_.isTraceEnabled())
+      {
+         log_.trace("Put " + chunks.size() + " chunks in distributed store. Fqn: " + getChunkFqn(realId));
+      }
+      cacheWrapper_.put(getChunkFqn(realId), chunks);
+   }
+
+   private Map getChunks(String realId, long[] chunkList)
+   {
+      Fqn fqn = getChunkFqn(realId);
+      Map chunks = new HashMap();
+      for (int i = 1; i < chunkList.length; ++i)
+      {
+         String key = DeltaEncoder.getChunkKey(chunkList[i]);
+         if (chunks.containsKey(key) == false)
+            chunks.put(key, cacheWrapper_.get(fqn, key));
+      }
+      return chunks;
+   }
+
+   private Set getChunkKeys(String realId)
+   {
+      Fqn fqn = getChunkFqn(realId);
+      try
+      {
+         return proxy_.getKeys(fqn);
+      }
+      catch (CacheException e)
+      {
+         log_.error("getChunkKeys(): Exception getting keys for session " + realId, e);
+         return null;
+      }
+   }
+
    private Object getMarshalledValue(Object value)
    {
       // JBAS-2920.  For now, continue using MarshalledValue, as 
@@ -1002,6 +1192,15 @@ public class JBossCacheService
          Thread.currentThread().setContextClassLoader(manager_.getWebappClassLoader());
          try
          {
+            if (mv instanceof byte[])
+            {
+               // The serialized form of a value replicated in chunks
+               MarshalledValueInputStream input =
+                  new MarshalledValueInputStream(new ByteArrayInputStream((byte[]) mv));
+               Object value = input.readObject();
+               input.close();
+               return value;
+            }
             return ((MarshalledValue) mv).get();
          }
          catch (IOException e)
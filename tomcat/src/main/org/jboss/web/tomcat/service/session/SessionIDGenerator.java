@@ -33,6 +33,11 @@ import org.jboss.logging.Logger;
 
 /**
  * Unique session id generator
+ * <p/>
+ * Every thread has its own random-number generator and digest so that
+ * threads creating sessions do not wait for each other. The generator of a
+ * thread is seeded from the shared random-number generator the first time
+ * the thread needs a session id.
  *
  * @author Ben Wang
  */
@@ -44,8 +49,16 @@ public class SessionIDGenerator
    protected final static String SESSION_ID_RANDOM_ALGORITHM_ALT = "IBMSecureRandom";
    protected Logger log = Logger.getLogger(SessionIDGenerator.class);
 
-   protected MessageDigest digest = null;
    protected Random random = null;
+
+   /** The random-number generator and digest of the threads */
+   protected ThreadLocal generators = new ThreadLocal()
+   {
+      protected Object initialValue()
+      {
+         return new Generator(newRandom(), getDigest());
+      }
+   };
    protected static final SessionIDGenerator s_ = new SessionIDGenerator();
    
    protected String sessionIdAlphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+-*";
@@ -92,7 +105,7 @@ public class SessionIDGenerator
       return this.sessionIdAlphabet;
    }
    
-   public synchronized String getSessionId()
+   public String getSessionId()
    {
       String id = generateSessionId();
       if (log.isDebugEnabled())
@@ -106,30 +119,46 @@ public class SessionIDGenerator
     *
     * @return generated session-id
     */
-   protected synchronized String generateSessionId()
+   protected String generateSessionId()
    {
-      if (this.digest == null)
-      {
-         this.digest = getDigest();
-      }
-
-      if (this.random == null)
-      {
-         this.random = getRandom();
-      }
+      Generator generator = (Generator) generators.get();
 
       byte[] bytes = new byte[SESSION_ID_BYTES];
 
       // get random bytes
-      this.random.nextBytes(bytes);
+      generator.random.nextBytes(bytes);
 
       // Hash the random bytes
-      bytes = this.digest.digest(bytes);
+      bytes = generator.digest.digest(bytes);
 
       // Render the result as a String of hexadecimal digits
       return encode(bytes);
    }
 
+   /**
+    * Get a new random-number generator for a thread, seeded from the
+    * shared random-number generator
+    *
+    * @return a random-number generator
+    */
+   protected Random newRandom()
+   {
+      byte[] seed = new byte[SESSION_ID_BYTES * 2];
+      synchronized (this)
+      {
+         if (this.random == null)
+         {
+            this.random = getRandom();
+         }
+         this.random.nextBytes(seed);
+      }
+
+      // Supplements the seed getRandom() set
+      SecureRandom random = (SecureRandom) getRandom();
+      random.setSeed(seed);
+      return random;
+   }
+
    /**
     * Encode the bytes into a String with a slightly modified Base64-algorithm
     * This code was written by Kevin Kelley <kelley@ruralnet.net>
@@ -236,6 +265,21 @@ public class SessionIDGenerator
       return digest;
    }
 
+   /**
+    * The random-number generator and digest of a thread
+    */
+   protected static class Generator
+   {
+      final Random random;
+      final MessageDigest digest;
+
+      Generator(Random random, MessageDigest digest)
+      {
+         this.random = random;
+         this.digest = digest;
+      }
+   }
+
    public static void main(String[] args)
    {
       SessionIDGenerator gen = SessionIDGenerator.getInstance();
@@ -152,6 +152,22 @@ public class GlobalId
    {
       return hash;
    }
+
+   /**
+    *  Return the format id of this instance.
+    */
+   public int getFormatId()
+   {
+      return formatId;
+   }
+
+   /**
+    *  Return a copy of the global transaction id of this instance.
+    */
+   public byte[] getGlobalTransactionId()
+   {
+      return (byte[]) globalId.clone();
+   }
    
    public String toString() 
    {
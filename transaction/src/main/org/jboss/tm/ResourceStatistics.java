@@ -0,0 +1,202 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tm;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.transaction.xa.XAResource;
+
+import EDU.oswego.cs.dl.util.concurrent.ConcurrentReaderHashMap;
+
+/**
+ * The prepare and commit times of the resources enlisted in transactions,
+ * by the class of the XAResource.
+ *
+ * @version $Revision$
+ */
+public class ResourceStatistics
+{
+   /** A Map<String, TimeStatistic[]> of the prepare and commit times by class */
+   private final Map stats = new ConcurrentReaderHashMap();
+
+   /** The time of the last reset */
+   private volatile long lastResetTime = System.currentTimeMillis();
+
+   /**
+    * The times of a phase in microseconds
+    */
+   public static class TimeStatistic
+   {
+      public long count;
+      public long minTime = Long.MAX_VALUE;
+      public long maxTime;
+      public long totalTime;
+
+      synchronized void update(long elapsed)
+      {
+         count++;
+         totalTime += elapsed;
+         if (minTime > elapsed)
+            minTime = elapsed;
+         if (maxTime < elapsed)
+            maxTime = elapsed;
+      }
+
+      public synchronized void reset()
+      {
+         count = 0;
+         minTime = Long.MAX_VALUE;
+         maxTime = 0;
+         totalTime = 0;
+      }
+
+      synchronized void appendTo(StringBuffer buffer)
+      {
+         buffer.append("' count='");
+         buffer.append(count);
+         buffer.append("' minTime='");
+         buffer.append(count == 0 ? 0 : minTime);
+         buffer.append("' maxTime='");
+         buffer.append(maxTime);
+         buffer.append("' totalTime='");
+         buffer.append(totalTime);
+         buffer.append("' />\n");
+      }
+   }
+
+   /**
+    * A prepare completed
+    *
+    * @param xaRes the resource
+    * @param nanos the elapsed time in nanoseconds
+    */
+   public void prepared(XAResource xaRes, long nanos)
+   {
+      getStatistics(xaRes)[0].update(nanos / 1000);
+   }
+
+   /**
+    * A commit completed
+    *
+    * @param xaRes the resource
+    * @param nanos the elapsed time in nanoseconds
+    */
+   public void committed(XAResource xaRes, long nanos)
+   {
+      getStatistics(xaRes)[1].update(nanos / 1000);
+   }
+
+   /**
+    * Get the prepare statistics of a class of resources
+    *
+    * @param className the class name of the XAResource
+    * @return the statistics or null when there are none
+    */
+   public TimeStatistic getPrepareStatistic(String className)
+   {
+      TimeStatistic[] result = (TimeStatistic[]) stats.get(className);
+      return result == null ? null : result[0];
+   }
+
+   /**
+    * Get the commit statistics of a class of resources
+    *
+    * @param className the class name of the XAResource
+    * @return the statistics or null when there are none
+    */
+   public TimeStatistic getCommitStatistic(String className)
+   {
+      TimeStatistic[] result = (TimeStatistic[]) stats.get(className);
+      return result == null ? null : result[1];
+   }
+
+   /**
+    * Reset the statistics
+    */
+   public void resetStats()
+   {
+      Iterator iter = stats.values().iterator();
+      while (iter.hasNext())
+      {
+         TimeStatistic[] stat = (TimeStatistic[]) iter.next();
+         stat[0].reset();
+         stat[1].reset();
+      }
+      lastResetTime = System.currentTimeMillis();
+   }
+
+   /**
+    * Generate an XML fragment for the statistics. The format is
+    * <ResourceStatistics lastResetTime="r">
+    *    <resource name="aClass" phase="prepare" count="x" minTime="y" maxTime="z" totalTime="t" />
+    *    <resource name="aClass" phase="commit" count="x" minTime="y" maxTime="z" totalTime="t" />
+    *    ...
+    * </ResourceStatistics>
+    * The times are in microseconds.
+    *
+    * @return an XML representation of the statistics
+    */
+   public String toString()
+   {
+      StringBuffer tmp = new StringBuffer("<ResourceStatistics lastResetTime='");
+      tmp.append(lastResetTime);
+      tmp.append("' >\n");
+
+      Iterator iter = new TreeMap(stats).entrySet().iterator();
+      while (iter.hasNext())
+      {
+         Map.Entry entry = (Map.Entry) iter.next();
+         TimeStatistic[] stat = (TimeStatistic[]) entry.getValue();
+         tmp.append("<resource name='");
+         tmp.append(entry.getKey());
+         tmp.append("' phase='prepare");
+         stat[0].appendTo(tmp);
+         tmp.append("<resource name='");
+         tmp.append(entry.getKey());
+         tmp.append("' phase='commit");
+         stat[1].appendTo(tmp);
+      }
+      tmp.append("</ResourceStatistics>");
+      return tmp.toString();
+   }
+
+   private TimeStatistic[] getStatistics(XAResource xaRes)
+   {
+      String className = xaRes.getClass().getName();
+      TimeStatistic[] result = (TimeStatistic[]) stats.get(className);
+      if (result == null)
+      {
+         synchronized (stats)
+         {
+            result = (TimeStatistic[]) stats.get(className);
+            if (result == null)
+            {
+               result = new TimeStatistic[] { new TimeStatistic(), new TimeStatistic() };
+               stats.put(className, result);
+            }
+         }
+      }
+      return result;
+   }
+}
@@ -0,0 +1,394 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tm;
+
+import java.util.ArrayList;
+
+import org.jboss.logging.Logger;
+import org.jboss.util.timeout.Timeout;
+import org.jboss.util.timeout.TimeoutTarget;
+
+import EDU.oswego.cs.dl.util.concurrent.LinkedQueue;
+import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
+import EDU.oswego.cs.dl.util.concurrent.ThreadFactory;
+
+/**
+ * The transaction timeouts.<p>
+ *
+ * A hierarchical timing wheel: timeouts less than a turn of the first wheel
+ * away are linked in the slot of their tick, further timeouts wait in the
+ * slots of the coarser wheels and move down when their slot comes round.
+ * Creating and cancelling a timeout are constant time.<p>
+ *
+ * The wheel is split in shards with a lock each, a timeout goes to the
+ * shard of its target so that concurrent transactions rarely meet on a
+ * lock. A single daemon thread advances the shards every tick, the expired
+ * targets are run by a small pool so that a target waiting for the lock of
+ * its transaction does not hold up the others.
+ *
+ * @version $Revision$
+ */
+public class TimeoutWheel
+{
+   // Constants -----------------------------------------------------
+
+   /** The length of a tick in milliseconds */
+   static final long TICK = 100;
+
+   /** The bits of the slots of the first wheel */
+   static final int WHEEL0_BITS = 9;
+
+   /** The bits of the slots of the coarser wheels */
+   static final int WHEELN_BITS = 6;
+
+   /** The number of shards, a power of two */
+   static final int SHARDS = 16;
+
+   /** The number of threads running the expired targets */
+   static final int EXPIRY_THREADS = 4;
+
+   // Attributes ----------------------------------------------------
+
+   private static final Logger log = Logger.getLogger(TimeoutWheel.class);
+
+   /** The shards */
+   private final Shard[] shards = new Shard[SHARDS];
+
+   /** The threads running the expired targets */
+   private final PooledExecutor executor;
+
+   // Static --------------------------------------------------------
+
+   /** The singleton */
+   private static TimeoutWheel singleton;
+
+   /**
+    * Get the singleton
+    *
+    * @return the wheel
+    */
+   public static synchronized TimeoutWheel getSingleton()
+   {
+      if (singleton == null)
+         singleton = new TimeoutWheel();
+      return singleton;
+   }
+
+   // Constructors --------------------------------------------------
+
+   /**
+    * Create a new wheel, it is driven by its own daemon thread
+    */
+   public TimeoutWheel()
+   {
+      long now = currentTick();
+      for (int i = 0; i < SHARDS; ++i)
+         shards[i] = new Shard(now);
+
+      executor = new PooledExecutor(new LinkedQueue(), EXPIRY_THREADS);
+      executor.setMinimumPoolSize(EXPIRY_THREADS);
+      executor.setKeepAliveTime(-1);
+      executor.setThreadFactory(new ThreadFactory()
+      {
+         public Thread newThread(Runnable runnable)
+         {
+            Thread thread = new Thread(runnable, "Transaction timeout");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+
+      Thread ticker = new Thread(new Ticker(), "Transaction timeout wheel");
+      ticker.setDaemon(true);
+      ticker.start();
+   }
+
+   // Public --------------------------------------------------------
+
+   /**
+    * Create a timeout
+    *
+    * @param time the absolute time in milliseconds
+    * @param target the target run when the time is reached
+    * @return the timeout
+    */
+   public Timeout createTimeout(long time, TimeoutTarget target)
+   {
+      Shard shard = shards[(System.identityHashCode(target) >>> 4) & (SHARDS - 1)];
+      Entry entry = new Entry(shard, target, (time + TICK - 1) / TICK);
+      synchronized (shard)
+      {
+         shard.insert(entry);
+      }
+      return entry;
+   }
+
+   // Private -------------------------------------------------------
+
+   private static long currentTick()
+   {
+      return System.currentTimeMillis() / TICK;
+   }
+
+   /**
+    * Run the expired targets
+    */
+   private void expire(ArrayList expired)
+   {
+      for (int i = 0; i < expired.size(); ++i)
+      {
+         final Entry entry = (Entry) expired.get(i);
+         try
+         {
+            executor.execute(new Runnable()
+            {
+               public void run()
+               {
+                  try
+                  {
+                     entry.target.timedOut(entry);
+                  }
+                  catch (Throwable t)
+                  {
+                     log.warn("Error in timeout target " + entry.target, t);
+                  }
+               }
+            });
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+            return;
+         }
+      }
+   }
+
+   // Inner classes -------------------------------------------------
+
+   /**
+    * Advances the shards every tick
+    */
+   private class Ticker implements Runnable
+   {
+      public void run()
+      {
+         ArrayList expired = new ArrayList();
+         while (true)
+         {
+            try
+            {
+               Thread.sleep(TICK - System.currentTimeMillis() % TICK);
+            }
+            catch (InterruptedException ignored)
+            {
+            }
+
+            long now = currentTick();
+            for (int i = 0; i < SHARDS; ++i)
+            {
+               Shard shard = shards[i];
+               synchronized (shard)
+               {
+                  shard.advance(now, expired);
+               }
+            }
+            if (expired.isEmpty() == false)
+            {
+               expire(expired);
+               expired.clear();
+            }
+         }
+      }
+   }
+
+   /**
+    * A part of the wheel with its own lock, the methods are called
+    * holding the lock of the shard
+    */
+   private static class Shard
+   {
+      /** The slots of the first wheel */
+      private final Entry[] wheel0 = createSlots(1 << WHEEL0_BITS);
+
+      /** The slots of the second wheel, a slot is a turn of the first wheel */
+      private final Entry[] wheel1 = createSlots(1 << WHEELN_BITS);
+
+      /** The slots of the third wheel, a slot is a turn of the second wheel */
+      private final Entry[] wheel2 = createSlots(1 << WHEELN_BITS);
+
+      /** The last tick processed */
+      private long currentTick;
+
+      Shard(long currentTick)
+      {
+         this.currentTick = currentTick;
+      }
+
+      /**
+       * Link a new entry, the earliest it can expire is the next tick
+       */
+      void insert(Entry entry)
+      {
+         link(entry, currentTick + 1);
+      }
+
+      /**
+       * Link an entry in the slot for its tick
+       *
+       * @param entry the entry
+       * @param from the first tick not processed yet
+       */
+      private void link(Entry entry, long from)
+      {
+         long tick = entry.tick;
+         long delta = tick - from;
+         Entry slot;
+         if (delta < 1)
+            slot = wheel0[(int) (from & ((1 << WHEEL0_BITS) - 1))];
+         else if (delta < (1L << WHEEL0_BITS))
+            slot = wheel0[(int) (tick & ((1 << WHEEL0_BITS) - 1))];
+         else if (delta < (1L << (WHEEL0_BITS + WHEELN_BITS)))
+            slot = wheel1[(int) ((tick >>> WHEEL0_BITS) & ((1 << WHEELN_BITS) - 1))];
+         else if (delta < (1L << (WHEEL0_BITS + 2 * WHEELN_BITS)))
+            slot = wheel2[(int) ((tick >>> (WHEEL0_BITS + WHEELN_BITS)) & ((1 << WHEELN_BITS) - 1))];
+         else
+         {
+            // Further than the wheels go, wait in the last slot of the
+            // current turn and insert again from there
+            long last = (from >>> (WHEEL0_BITS + WHEELN_BITS)) - 1;
+            slot = wheel2[(int) (last & ((1 << WHEELN_BITS) - 1))];
+         }
+         entry.link(slot);
+      }
+
+      /**
+       * Process the ticks up to now
+       */
+      void advance(long now, ArrayList expired)
+      {
+         while (currentTick < now)
+         {
+            long tick = ++currentTick;
+            if ((tick & ((1 << WHEEL0_BITS) - 1)) == 0)
+            {
+               long turn = tick >>> WHEEL0_BITS;
+               if ((turn & ((1 << WHEELN_BITS) - 1)) == 0)
+                  cascade(wheel2[(int) ((turn >>> WHEELN_BITS) & ((1 << WHEELN_BITS) - 1))], tick);
+               cascade(wheel1[(int) (turn & ((1 << WHEELN_BITS) - 1))], tick);
+            }
+
+            Entry slot = wheel0[(int) (tick & ((1 << WHEEL0_BITS) - 1))];
+            while (slot.next != slot)
+            {
+               Entry entry = slot.next;
+               entry.unlink();
+               if (entry.tick <= tick)
+                  expired.add(entry);
+               else
+                  link(entry, tick + 1);
+            }
+         }
+      }
+
+      /**
+       * Move the entries of a slot to the finer wheels
+       */
+      private void cascade(Entry slot, long from)
+      {
+         Entry entries = slot.next;
+         slot.next = slot;
+         slot.previous = slot;
+         while (entries != slot)
+         {
+            Entry entry = entries;
+            entries = entry.next;
+            entry.next = null;
+            entry.previous = null;
+            link(entry, from);
+         }
+      }
+
+      private static Entry[] createSlots(int size)
+      {
+         Entry[] slots = new Entry[size];
+         for (int i = 0; i < size; ++i)
+            slots[i] = new Entry(null, null, 0);
+         return slots;
+      }
+   }
+
+   /**
+    * A timeout, or the head of the list of a slot
+    */
+   private static class Entry implements Timeout
+   {
+      private final Shard shard;
+
+      private final TimeoutTarget target;
+
+      /** The tick at which the timeout expires */
+      private final long tick;
+
+      private Entry next;
+
+      private Entry previous;
+
+      Entry(Shard shard, TimeoutTarget target, long tick)
+      {
+         this.shard = shard;
+         this.target = target;
+         this.tick = tick;
+         if (shard == null)
+         {
+            next = this;
+            previous = this;
+         }
+      }
+
+      public boolean cancel()
+      {
+         synchronized (shard)
+         {
+            if (next == null)
+               return false;
+            unlink();
+            return true;
+         }
+      }
+
+      void link(Entry slot)
+      {
+         previous = slot.previous;
+         next = slot;
+         slot.previous.next = this;
+         slot.previous = this;
+      }
+
+      void unlink()
+      {
+         previous.next = next;
+         next.previous = previous;
+         next = null;
+         previous = null;
+      }
+   }
+}
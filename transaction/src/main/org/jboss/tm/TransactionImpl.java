@@ -45,10 +45,12 @@ import javax.transaction.xa.Xid;
 
 import org.jboss.logging.Logger;
 import org.jboss.tm.integrity.TransactionIntegrity;
+import org.jboss.tm.recovery.TransactionLog;
 import org.jboss.util.timeout.Timeout;
-import org.jboss.util.timeout.TimeoutFactory;
 import org.jboss.util.timeout.TimeoutTarget;
 
+import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
+
 /**
  *  Our <code>Transaction</code> implementation.
  *
@@ -85,6 +87,9 @@ public class TransactionImpl
    private final static int RS_VOTE_OK       = 5; // voted ok
    private final static int RS_FORGOT        = 6; // RM has forgotten     
 
+   /** The attempts to log the commit decision once the last resource committed */
+   private static final int LAST_RESOURCE_LOG_ATTEMPTS = 3;
+
 
    // Attributes ----------------------------------------------------
 
@@ -185,6 +190,12 @@ public class TransactionImpl
     */
    private boolean done = false;
 
+   /** The entry in the transaction log, null when nothing was logged */
+   private TransactionLog.Entry logEntry;
+
+   /** Whether some resource could not complete and is left to recovery */
+   private boolean recoveryNeeded = false;
+
    // Static --------------------------------------------------------
 
    /**
@@ -196,8 +207,11 @@ public class TransactionImpl
 
    static TransactionManagerService txManagerService;
 
-   /** The timeout factory */
-   static TimeoutFactory timeoutFactory = TimeoutFactory.getSingleton();
+   /** The timeout wheel */
+   static TimeoutWheel timeoutWheel = TimeoutWheel.getSingleton();
+
+   /** The prepare and commit times of the resources */
+   static ResourceStatistics statistics = new ResourceStatistics();
    
    /**
     * This static code is only present for testing purposes so a
@@ -220,7 +234,7 @@ public class TransactionImpl
       status = Status.STATUS_ACTIVE;
 
       start = System.currentTimeMillis();
-      this.timeout = timeoutFactory.createTimeout(start+timeout, this);
+      this.timeout = timeoutWheel.createTimeout(start+timeout, this);
       this.timeoutPeriod = timeout;
       if (trace)
          log.trace("Created new instance for tx=" + toString());
@@ -234,7 +248,7 @@ public class TransactionImpl
       status = Status.STATUS_ACTIVE;
 
       start = System.currentTimeMillis();
-      this.timeout = timeoutFactory.createTimeout(start+timeout, this);
+      this.timeout = timeoutWheel.createTimeout(start+timeout, this);
       this.timeoutPeriod = timeout;
       if (trace)
          log.trace("Created new instance for tx=" + toString());
@@ -344,17 +358,16 @@ public class TransactionImpl
                if (trace)
                   log.trace("Two phase commit " + this + ": Many resources.");
 
-               if (!prepareResources())
+               if (!prepareResources(true))
                {
                   boolean commitDecision =
                      status == Status.STATUS_PREPARED &&
                      (heuristicCode == HEUR_NONE ||
                       heuristicCode == XAException.XA_HEURCOM);
 
-                  // TODO: Save decision to stable storage for recovery
-                  //       after system crash.
-
-                  if (commitDecision)
+                  // Save decision to stable storage for recovery
+                  // after system crash.
+                  if (commitDecision && logDecision(TransactionLog.COMMIT))
                      commitResources(false);
                }
                else
@@ -419,6 +432,12 @@ public class TransactionImpl
                // Set status to avoid race with prepareResources().
                status = Status.STATUS_MARKED_ROLLBACK;
                return; // commit() will do rollback.
+            case Status.STATUS_PREPARED:
+               // An imported transaction the superior decided to rollback
+               rollbackResources();
+               completeTransaction();
+               heuristicCode = HEUR_NONE;
+               return;
             default:
                throw new IllegalStateException("Cannot rollback(), " +
                "tx=" + toString() +
@@ -919,15 +938,12 @@ public class TransactionImpl
                   if (trace)
                      log.trace("Prepare tx=" + this + ": Many resources.");
 
-                  if (!prepareResources())
+                  if (!prepareResources(false))
                   {
-                     /*boolean commitDecision =
-                        status == Status.STATUS_PREPARED &&
-                        (heuristicCode == HEUR_NONE ||
-                         heuristicCode == XAException.XA_HEURCOM);*/
-
-                     // TODO: Save decision to stable storage for recovery
-                     //       after system crash.
+                     // Save the prepared branches to stable storage,
+                     // the superior decides after a system crash.
+                     if (status == Status.STATUS_PREPARED)
+                        logDecision(TransactionLog.PREPARED);
                   }
                   else
                   {
@@ -1196,8 +1212,112 @@ public class TransactionImpl
    {
       cancelTimeout();
       doAfterCompletion();
+      endLogEntry();
       instanceDone();
    }
+
+   /**
+    * Log the decision or the prepare of an imported transaction
+    * together with the prepared branches. On failure the transaction
+    * is marked for rollback, unless the last resource already committed.
+    * Then the write is retried and if it still fails the others are
+    * committed without a log record and a heuristic mixed outcome is
+    * reported.
+    *
+    * @param type the record type
+    * @return true when the transaction can go on
+    */
+   private boolean logDecision(byte type)
+   {
+      TransactionLog txLog = TxManager.getInstance().getTransactionLog();
+      if (txLog == null)
+         return true;
+
+      ArrayList branches = new ArrayList(resources.size());
+      for (int i = 0; i < resources.size(); ++i)
+      {
+         Resource resource = (Resource) resources.get(i);
+         // The last resource is already committed
+         if (resource.isPrepared() && resource != lastResource)
+            branches.add(resource.getXid());
+      }
+      if (branches.isEmpty())
+         return true;
+
+      Xid[] prepared = (Xid[]) branches.toArray(new Xid[branches.size()]);
+
+      // Rolling back the others after the last resource committed
+      // would be a mixed outcome
+      boolean lastCommitted = type == TransactionLog.COMMIT && lastResource != null;
+      int attempts = lastCommitted ? LAST_RESOURCE_LOG_ATTEMPTS : 1;
+      Throwable failure = null;
+      for (int i = 0; i < attempts; ++i)
+      {
+         try
+         {
+            if (type == TransactionLog.PREPARED)
+               logEntry = txLog.prepared(getImportedXid(), prepared);
+            else
+               logEntry = txLog.commit(xid, prepared);
+            return true;
+         }
+         catch (Throwable t)
+         {
+            failure = t;
+         }
+      }
+
+      if (lastCommitted)
+      {
+         log.error("Unable to log the commit decision after the last resource committed, " +
+            "committing the others without a log record tx=" + this, failure);
+         gotHeuristic(null, XAException.XA_HEURMIX);
+         return true;
+      }
+
+      log.warn("Unable to log the transaction, rolling back tx=" + this, failure);
+      cause = failure;
+      status = Status.STATUS_MARKED_ROLLBACK;
+      return false;
+   }
+
+   /**
+    * Forget the log entry when all the resources completed,
+    * otherwise leave it to recovery.
+    */
+   private void endLogEntry()
+   {
+      if (logEntry == null)
+         return;
+
+      TransactionLog txLog = TxManager.getInstance().getTransactionLog();
+      if (recoveryNeeded || txLog == null)
+      {
+         log.warn("Leaving the completion of tx=" + this + " to recovery");
+         logEntry.setInactive();
+      }
+      else
+      {
+         try
+         {
+            txLog.end(logEntry);
+         }
+         catch (Throwable t)
+         {
+            log.warn("Unable to log the end of tx=" + this, t);
+         }
+      }
+      logEntry = null;
+      recoveryNeeded = false;
+   }
+
+   /**
+    * The xid the transaction was imported with
+    */
+   private Xid getImportedXid()
+   {
+      return new XidImpl(gid.getFormatId(), gid.getGlobalTransactionId(), new byte[0], gid.hashCode(), 0L);
+   }
    
    /**
     * Interrupt all threads involved with transaction
@@ -1631,21 +1751,21 @@ public class TransactionImpl
     *  <code>Status.STATUS_MARKED_ROLLBACK</code> on return.
     *  This will release the lock while calling out.
     *
+    *  @param onePhaseLast whether the last resource manager is committed
+    *         in one phase, without prepare, when all the others vote
+    *         read-only
     *  @return True iff all resources voted read-only.
     */
-   private boolean prepareResources()
+   private boolean prepareResources(boolean onePhaseLast)
    {
       boolean readOnly = true;
 
       status = Status.STATUS_PREPARING;
 
-      // Prepare te XAResources   
+      // The resource managers to prepare
+      ArrayList toPrepare = new ArrayList(resources.size());
       for (int i = 0; i < resources.size(); ++i)
       {
-         // Abort prepare on state change.
-         if (status != Status.STATUS_PREPARING)
-            return false;
-         
          Resource resource = (Resource) resources.get(i);
 
          if (resource.isResourceManager() == false)
@@ -1654,56 +1774,80 @@ public class TransactionImpl
          // Ignore the last resource it is done later
          if (resource == lastResource)
             continue;
-         
-         try
-         {
-            int vote = resource.prepare();
 
-            if (vote == RS_VOTE_OK)
+         toPrepare.add(resource);
+      }
+
+      PooledExecutor executor = TxManager.getInstance().getCompletionExecutor();
+      if (executor != null && toPrepare.size() > 1)
+      {
+         // Prepare the resource managers in parallel
+         XACall[] calls = runParallel(executor, toPrepare, XACall.PREPARE);
+         for (int i = 0; i < calls.length; ++i)
+         {
+            Resource resource = calls[i].resource;
+            int vote = calls[i].failure == null ? resource.prepared(calls[i].vote) : -1;
+            if (prepareOutcome(resource, vote, calls[i].failure) != RS_VOTE_READONLY)
                readOnly = false;
-            else if (vote != RS_VOTE_READONLY)
-            {
-               // Illegal vote: rollback.
-               if (trace)
-                  log.trace("illegal vote in prepare resources tx=" + this + " resource=" + resource, new Exception());
-               status = Status.STATUS_MARKED_ROLLBACK;
-               return false;
-            }
          }
-         catch (XAException e)
-         {
-            readOnly = false;
+      }
+      else
+      {
+         // When the others are read-only the last one decides alone
+         Resource deferred = null;
+         if (onePhaseLast && lastResource == null && toPrepare.size() > 1)
+            deferred = (Resource) toPrepare.remove(toPrepare.size() - 1);
 
-            logXAException(e);
+         // Prepare te XAResources   
+         for (int i = 0; i < toPrepare.size(); ++i)
+         {
+            // Abort prepare on state change.
+            if (status != Status.STATUS_PREPARING)
+               return false;
 
-            switch (e.errorCode)
+            Resource resource = (Resource) toPrepare.get(i);
+            int vote = -1;
+            Throwable failure = null;
+            try
             {
-            case XAException.XA_HEURCOM:
-               // Heuristic commit is not that bad when preparing.
-               // But it means trouble if we have to rollback.
-               gotHeuristic(resource, e.errorCode);
-               break;
-            case XAException.XA_HEURRB:
-            case XAException.XA_HEURMIX:
-            case XAException.XA_HEURHAZ:
-               gotHeuristic(resource, e.errorCode);
-               if (status == Status.STATUS_PREPARING)
-                  status = Status.STATUS_MARKED_ROLLBACK;
-               break;
-            default:
-               cause = e;
-               if (status == Status.STATUS_PREPARING)
-                  status = Status.STATUS_MARKED_ROLLBACK;
-               break;
+               vote = resource.prepare();
             }
+            catch (Throwable t)
+            {
+               failure = t;
+            }
+            vote = prepareOutcome(resource, vote, failure);
+            if (vote != RS_VOTE_READONLY)
+               readOnly = false;
+            if (vote == -1 && failure == null)
+               return false;
          }
-         catch (Throwable t)
+
+         if (deferred != null && status == Status.STATUS_PREPARING)
          {
-            if (trace)
-               log.trace("unhandled throwable in prepareResources " + this, t);
-            if (status == Status.STATUS_PREPARING)
-               status = Status.STATUS_MARKED_ROLLBACK;
-            cause = t;
+            if (readOnly)
+            {
+               if (trace)
+                  log.trace("One phase commit of the last resource tx=" + this + " resource=" + deferred);
+               commitLastResource(deferred, true);
+               if (status == Status.STATUS_PREPARING)
+                  status = Status.STATUS_PREPARED;
+               return status == Status.STATUS_PREPARED;
+            }
+
+            int vote = -1;
+            Throwable failure = null;
+            try
+            {
+               vote = deferred.prepare();
+            }
+            catch (Throwable t)
+            {
+               failure = t;
+            }
+            vote = prepareOutcome(deferred, vote, failure);
+            if (vote != RS_VOTE_READONLY)
+               readOnly = false;
          }
       }
       
@@ -1713,49 +1857,153 @@ public class TransactionImpl
       
       // Are we doing the last resource gambit?
       if (lastResource != null)
+         commitLastResource(lastResource, false);
+      
+      if (status == Status.STATUS_PREPARING)
+         status = Status.STATUS_PREPARED;
+      else
+         return false;
+
+      return readOnly;
+   }
+
+   /**
+    *  Handle the outcome of the prepare of a resource manager.
+    *
+    *  @param resource the resource
+    *  @param vote the state of the resource after prepare
+    *  @param failure the failure or null
+    *  @return the vote or -1 for a failure or an illegal vote
+    */
+   private int prepareOutcome(Resource resource, int vote, Throwable failure)
+   {
+      if (failure == null)
       {
-         try
-         {
-            lastResource.prepareLastResource();
-            lastResource.commit(false);
-         }
-         catch (XAException e)
+         if (vote == RS_VOTE_OK || vote == RS_VOTE_READONLY)
+            return vote;
+
+         // Illegal vote: rollback.
+         if (trace)
+            log.trace("illegal vote in prepare resources tx=" + this + " resource=" + resource, new Exception());
+         status = Status.STATUS_MARKED_ROLLBACK;
+         return -1;
+      }
+
+      if (failure instanceof XAException)
+      {
+         XAException e = (XAException) failure;
+         logXAException(e);
+
+         switch (e.errorCode)
          {
-            logXAException(e);
-            switch (e.errorCode)
-            {
-            case XAException.XA_HEURRB:
-            case XAException.XA_HEURCOM:
-            case XAException.XA_HEURMIX:
-            case XAException.XA_HEURHAZ:
-               //usually throws an exception, but not for a couple of cases.
-               gotHeuristic(lastResource, e.errorCode);
-               if (status == Status.STATUS_PREPARING)
-                  status = Status.STATUS_MARKED_ROLLBACK;
-               break;
-            default:
-               cause = e;
-               if (status == Status.STATUS_PREPARING)
-                  status = Status.STATUS_MARKED_ROLLBACK;
-               break;
-            }
+         case XAException.XA_HEURCOM:
+            // Heuristic commit is not that bad when preparing.
+            // But it means trouble if we have to rollback.
+            gotHeuristic(resource, e.errorCode);
+            break;
+         case XAException.XA_HEURRB:
+         case XAException.XA_HEURMIX:
+         case XAException.XA_HEURHAZ:
+            gotHeuristic(resource, e.errorCode);
+            if (status == Status.STATUS_PREPARING)
+               status = Status.STATUS_MARKED_ROLLBACK;
+            break;
+         default:
+            cause = e;
+            if (status == Status.STATUS_PREPARING)
+               status = Status.STATUS_MARKED_ROLLBACK;
+            break;
          }
-         catch (Throwable t)
+      }
+      else
+      {
+         if (trace)
+            log.trace("unhandled throwable in prepareResources " + this, failure);
+         if (status == Status.STATUS_PREPARING)
+            status = Status.STATUS_MARKED_ROLLBACK;
+         cause = failure;
+      }
+      return -1;
+   }
+
+   /**
+    *  Commit the last resource at the end of the first phase,
+    *  its outcome is the outcome of the transaction.
+    *  This will release the lock while calling out.
+    */
+   private void commitLastResource(Resource resource, boolean onePhase)
+   {
+      try
+      {
+         resource.prepareLastResource();
+         resource.commit(onePhase);
+      }
+      catch (XAException e)
+      {
+         logXAException(e);
+         switch (e.errorCode)
          {
-            if (trace)
-               log.trace("unhandled throwable in prepareResources " + this, t);
+         case XAException.XA_HEURRB:
+         case XAException.XA_HEURCOM:
+         case XAException.XA_HEURMIX:
+         case XAException.XA_HEURHAZ:
+            //usually throws an exception, but not for a couple of cases.
+            gotHeuristic(resource, e.errorCode);
             if (status == Status.STATUS_PREPARING)
                status = Status.STATUS_MARKED_ROLLBACK;
-            cause = t;
+            break;
+         default:
+            cause = e;
+            if (status == Status.STATUS_PREPARING)
+               status = Status.STATUS_MARKED_ROLLBACK;
+            break;
          }
       }
-      
-      if (status == Status.STATUS_PREPARING)
-         status = Status.STATUS_PREPARED;
-      else
-         return false;
+      catch (Throwable t)
+      {
+         if (trace)
+            log.trace("unhandled throwable in prepareResources " + this, t);
+         if (status == Status.STATUS_PREPARING)
+            status = Status.STATUS_MARKED_ROLLBACK;
+         cause = t;
+      }
+   }
 
-      return readOnly;
+   /**
+    *  Run the prepare or the commit of the resource managers in parallel,
+    *  the first one in this thread.
+    *  This will release the lock while calling out.
+    */
+   private XACall[] runParallel(PooledExecutor executor, ArrayList toComplete, int operation)
+   {
+      XACall[] calls = new XACall[toComplete.size()];
+      for (int i = 0; i < calls.length; ++i)
+         calls[i] = new XACall((Resource) toComplete.get(i), operation);
+
+      unlock();
+      try
+      {
+         for (int i = 1; i < calls.length; ++i)
+         {
+            try
+            {
+               executor.execute(calls[i]);
+            }
+            catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+               calls[i].run();
+            }
+         }
+         calls[0].run();
+         for (int i = 1; i < calls.length; ++i)
+            calls[i].waitDone();
+      }
+      finally
+      {
+         lock();
+      }
+      return calls;
    }
 
    /**
@@ -1766,6 +2014,34 @@ public class TransactionImpl
    {
       status = Status.STATUS_COMMITTING;
 
+      PooledExecutor executor = TxManager.getInstance().getCompletionExecutor();
+      if (onePhase == false && executor != null)
+      {
+         // The resource managers to commit
+         ArrayList toCommit = new ArrayList(resources.size());
+         for (int i = 0; i < resources.size(); ++i)
+         {
+            Resource resource = (Resource) resources.get(i);
+            if (resource.isPrepared() && resource != lastResource)
+               toCommit.add(resource);
+         }
+
+         if (toCommit.size() > 1)
+         {
+            // Commit the resource managers in parallel
+            XACall[] calls = runParallel(executor, toCommit, XACall.COMMIT);
+            for (int i = 0; i < calls.length; ++i)
+            {
+               if (calls[i].failure != null)
+                  commitOutcome(calls[i].resource, onePhase, calls[i].failure);
+            }
+
+            if (status == Status.STATUS_COMMITTING)
+               status = Status.STATUS_COMMITTED;
+            return;
+         }
+      }
+
       for (int i = 0; i < resources.size(); ++i)
       {
 
@@ -1783,37 +2059,9 @@ public class TransactionImpl
          {
             resource.commit(onePhase);
          }
-         catch (XAException e)
-         {
-            logXAException(e);
-            switch (e.errorCode) {
-               case XAException.XA_HEURRB:
-               case XAException.XA_HEURCOM:
-               case XAException.XA_HEURMIX:
-               case XAException.XA_HEURHAZ:
-                  //usually throws an exception, but not for a couple of cases.
-                  gotHeuristic(resource, e.errorCode);
-                  //May not be correct for HEURCOM
-                  //Two phase commit is committed after prepare is logged.
-                  if (onePhase)
-                     status = Status.STATUS_MARKED_ROLLBACK;
-
-                  break;
-               default:
-                  cause = e;
-                  if (onePhase)
-                  {
-                     status = Status.STATUS_MARKED_ROLLBACK;
-                     break;
-                  }
-                  //Not much we can do if there is an RMERR in the
-                  //commit phase of 2pc. I guess we try the other rms.
-            }
-         }
          catch (Throwable t)
          {
-            if (trace)
-               log.trace("unhandled throwable in commitResources " + this, t);
+            commitOutcome(resource, onePhase, t);
          }
       }
 
@@ -1821,6 +2069,49 @@ public class TransactionImpl
          status = Status.STATUS_COMMITTED;
    }
 
+   /**
+    *  Handle the failure of the commit of a resource.
+    */
+   private void commitOutcome(Resource resource, boolean onePhase, Throwable failure)
+   {
+      if (failure instanceof XAException)
+      {
+         XAException e = (XAException) failure;
+         logXAException(e);
+         switch (e.errorCode) {
+            case XAException.XA_HEURRB:
+            case XAException.XA_HEURCOM:
+            case XAException.XA_HEURMIX:
+            case XAException.XA_HEURHAZ:
+               //usually throws an exception, but not for a couple of cases.
+               gotHeuristic(resource, e.errorCode);
+               //May not be correct for HEURCOM
+               //Two phase commit is committed after prepare is logged.
+               if (onePhase)
+                  status = Status.STATUS_MARKED_ROLLBACK;
+
+               break;
+            default:
+               cause = e;
+               if (onePhase)
+               {
+                  status = Status.STATUS_MARKED_ROLLBACK;
+                  break;
+               }
+               //Not much we can do if there is an RMERR in the
+               //commit phase of 2pc. I guess we try the other rms.
+               //Recovery commits it later.
+               recoveryNeeded = true;
+         }
+      }
+      else
+      {
+         if (trace)
+            log.trace("unhandled throwable in commitResources " + this, failure);
+         recoveryNeeded = true;
+      }
+   }
+
    /**
     *  Rollback all enlisted resources.
     *  This will release the lock while calling out.
@@ -1852,6 +2143,7 @@ public class TransactionImpl
                   continue;
                default:
                   cause = e;
+                  recoveryNeeded = true;
                   break;
             }
          }
@@ -1859,6 +2151,7 @@ public class TransactionImpl
          {
             if (trace)
                log.trace("unhandled throwable in rollbackResources " + this, t);
+            recoveryNeeded = true;
          }
       }
 
@@ -2000,6 +2293,14 @@ public class TransactionImpl
       {
          return resourceSameRM == null;
       }
+
+      /**
+       * Is this a resource manager that voted ok at prepare
+       */
+      public boolean isPrepared()
+      {
+         return resourceSameRM == null && resourceState == RS_VOTE_OK;
+      }
       
       /**
        * Is this the resource manager for the passed xa resource
@@ -2209,13 +2510,26 @@ public class TransactionImpl
          unlock();
          try
          {
+            long start = System.nanoTime();
             vote = xaResource.prepare(resourceXid);
+            statistics.prepared(xaResource, System.nanoTime() - start);
          }
          finally
          {
             lock();
          }
 
+         return prepared(vote);
+      }
+
+      /**
+       * The resource voted
+       *
+       * @param vote the vote of the XAResource
+       * @return the state of the resource
+       */
+      public int prepared(int vote)
+      {
          if (vote == XAResource.XA_OK)
             resourceState = RS_VOTE_OK;
          else if (vote == XAResource.XA_RDONLY)
@@ -2250,7 +2564,9 @@ public class TransactionImpl
          unlock();
          try
          {
+            long start = System.nanoTime();
             xaResource.commit(resourceXid, onePhase);
+            statistics.committed(xaResource, System.nanoTime() - start);
          }
          finally
          {
@@ -2282,4 +2598,77 @@ public class TransactionImpl
          }
       }
    }
+
+   /**
+    * The prepare or the commit of a resource run by the completion executor,
+    * the outcome is handled by the thread completing the transaction
+    */
+   private static class XACall implements Runnable
+   {
+      static final int PREPARE = 0;
+      static final int COMMIT = 1;
+
+      final Resource resource;
+
+      final int operation;
+
+      /** The vote of the XAResource */
+      int vote;
+
+      /** The failure or null */
+      Throwable failure;
+
+      private boolean done;
+
+      XACall(Resource resource, int operation)
+      {
+         this.resource = resource;
+         this.operation = operation;
+      }
+
+      public void run()
+      {
+         try
+         {
+            long start = System.nanoTime();
+            if (operation == PREPARE)
+            {
+               vote = resource.xaResource.prepare(resource.resourceXid);
+               statistics.prepared(resource.xaResource, System.nanoTime() - start);
+            }
+            else
+            {
+               resource.xaResource.commit(resource.resourceXid, false);
+               statistics.committed(resource.xaResource, System.nanoTime() - start);
+            }
+         }
+         catch (Throwable t)
+         {
+            failure = t;
+         }
+         synchronized (this)
+         {
+            done = true;
+            notifyAll();
+         }
+      }
+
+      synchronized void waitDone()
+      {
+         boolean interrupted = false;
+         while (done == false)
+         {
+            try
+            {
+               wait();
+            }
+            catch (InterruptedException e)
+            {
+               interrupted = true;
+            }
+         }
+         if (interrupted)
+            Thread.currentThread().interrupt();
+      }
+   }
 }
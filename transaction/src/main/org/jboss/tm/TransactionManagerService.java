@@ -21,6 +21,7 @@
  */
 package org.jboss.tm;
 
+import java.io.File;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Map;
@@ -32,9 +33,12 @@ import javax.naming.Reference;
 import javax.naming.spi.ObjectFactory;
 import javax.transaction.TransactionManager;
 import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
 import org.jboss.logging.Logger;
 import org.jboss.system.ServiceMBeanSupport;
+import org.jboss.system.server.ServerConfigLocator;
 import org.jboss.tm.integrity.TransactionIntegrityFactory;
+import org.jboss.tm.recovery.TransactionLog;
 
 /**
  *  This is a JMX service which manages the TransactionManager.
@@ -74,6 +78,18 @@ public class TransactionManagerService
 
    private final Map xaExceptionFormatters = new HashMap();
 
+   /** The directory of the transaction log, null when there is no log */
+   private String transactionLogDirectory;
+
+   /** The size after which the transaction log is rewritten */
+   private long transactionLogMaxSize = 10 * 1024 * 1024;
+
+   /** The transaction log */
+   private TransactionLog transactionLog;
+
+   /** The threads completing the resources in parallel, zero for serial */
+   private int completionThreads;
+
    // Static --------------------------------------------------------
 
    static TxManager tm;
@@ -95,11 +111,26 @@ public class TransactionManagerService
       // Initialize its globalIdsEnabled flag.
       tm.setGlobalIdsEnabled(globalIdsEnabled);
       tm.setInterruptThreads(interruptThreads);
+      tm.setCompletionThreads(completionThreads);
       if (integrityFactory != null)
          tm.setTransactionIntegrity(integrityFactory.createTransactionIntegrity());
       else
          tm.setTransactionIntegrity(null);
 
+      // Open the log of the two phase commit decisions
+      if (transactionLogDirectory != null)
+      {
+         File directory = new File(transactionLogDirectory);
+         if (directory.isAbsolute() == false)
+            directory = new File(ServerConfigLocator.locate().getServerDataDir(), transactionLogDirectory);
+         transactionLog = new TransactionLog(directory, transactionLogMaxSize);
+         transactionLog.open();
+         tm.setTransactionLog(transactionLog);
+         int inDoubt = transactionLog.getEntries().size();
+         if (inDoubt > 0)
+            log.info("Transaction log " + directory + " has " + inDoubt + " transactions to recover");
+      }
+
       // Bind reference to TM in JNDI
       // Our TM also implement the tx importer and exporter
       // interfaces, so we bind it under those names too.
@@ -125,6 +156,20 @@ public class TransactionManagerService
       {
          log.error("Failed to clear JNDI bindings", e);
       }
+
+      if (transactionLog != null)
+      {
+         tm.setTransactionLog(null);
+         try
+         {
+            transactionLog.close();
+         }
+         catch (Exception e)
+         {
+            log.warn("Error closing the transaction log", e);
+         }
+         transactionLog = null;
+      }
    }
 
    /**
@@ -242,6 +287,144 @@ public class TransactionManagerService
    }
 
 
+   /**
+    * Get the directory of the transaction log
+    *
+    * @return the directory, relative to the server data directory,
+    *         or null when the decisions are not logged
+    * @jmx:managed-attribute
+    */
+   public String getTransactionLogDirectory()
+   {
+      return transactionLogDirectory;
+   }
+
+   /**
+    * Set the directory of the transaction log, the two phase commit
+    * decisions are logged there to recover them after a crash
+    *
+    * @param transactionLogDirectory the directory, relative to the server
+    *        data directory, or null not to log the decisions
+    * @jmx:managed-attribute
+    */
+   public void setTransactionLogDirectory(String transactionLogDirectory)
+   {
+      this.transactionLogDirectory = transactionLogDirectory;
+   }
+
+   /**
+    * Get the size after which the transaction log is rewritten
+    *
+    * @return the size in bytes
+    * @jmx:managed-attribute
+    */
+   public long getTransactionLogMaxSize()
+   {
+      return transactionLogMaxSize;
+   }
+
+   /**
+    * Set the size after which the transaction log is rewritten
+    *
+    * @param transactionLogMaxSize the size in bytes
+    * @jmx:managed-attribute
+    */
+   public void setTransactionLogMaxSize(long transactionLogMaxSize)
+   {
+      this.transactionLogMaxSize = transactionLogMaxSize;
+   }
+
+   /**
+    * Get the number of threads preparing and committing the resources
+    * of a transaction in parallel
+    *
+    * @return the number of threads, zero when the resources are completed serially
+    * @jmx:managed-attribute
+    */
+   public int getCompletionThreads()
+   {
+      return completionThreads;
+   }
+
+   /**
+    * Set the number of threads preparing and committing the resources
+    * of a transaction in parallel
+    *
+    * @param completionThreads the number of threads, zero to complete serially
+    * @jmx:managed-attribute
+    */
+   public void setCompletionThreads(int completionThreads)
+   {
+      this.completionThreads = completionThreads;
+      if (tm != null)
+         tm.setCompletionThreads(completionThreads);
+   }
+
+   /**
+    * Get the prepare and commit times of the resources
+    *
+    * @return an XML fragment with the times in microseconds by class of XAResource
+    * @jmx:managed-attribute
+    */
+   public String getResourceStatistics()
+   {
+      return TransactionImpl.statistics.toString();
+   }
+
+   /**
+    * Reset the prepare and commit times of the resources
+    *
+    * @jmx.managed-operation
+    */
+   public void resetResourceStatistics()
+   {
+      TransactionImpl.statistics.resetStats();
+   }
+
+   /**
+    * Register a resource for recovery
+    *
+    * @param xaRes the resource
+    * @jmx.managed-operation
+    */
+   public void registerRecoveryResource(XAResource xaRes)
+   {
+      tm.registerRecoveryResource(xaRes);
+   }
+
+   /**
+    * Unregister a resource for recovery
+    *
+    * @param xaRes the resource
+    * @jmx.managed-operation
+    */
+   public void unregisterRecoveryResource(XAResource xaRes)
+   {
+      tm.unregisterRecoveryResource(xaRes);
+   }
+
+   /**
+    * Complete the prepared branches of the registered resources
+    *
+    * @jmx.managed-operation
+    */
+   public void recoverResources()
+   {
+      tm.recoverResources();
+   }
+
+   /**
+    * Complete the prepared branches of the registered resources and forget
+    * the branches of committed transactions that no resource reports.
+    * Only invoke this once every resource manager has been registered.
+    *
+    * @jmx.managed-operation
+    */
+   public void forgetCommittedBranches()
+   {
+      tm.forgetCommittedBranches();
+   }
+
    /**
     * mbean get-set pair for field transactionManager
     * Get the value of transactionManager
@@ -22,6 +22,7 @@
 package org.jboss.tm;
 
 import javax.management.ObjectName;
+import javax.transaction.xa.XAResource;
 
 import org.jboss.mx.util.ObjectNameFactory;
 import org.jboss.system.ServiceMBean;
@@ -85,6 +86,76 @@ public interface TransactionManagerServiceMBean extends ServiceMBean, Transactio
     */
    void setXidFactory(ObjectName xidFactory);
 
+   /**
+    * Get the directory of the transaction log
+    * @return the directory or null when the decisions are not logged
+    */
+   String getTransactionLogDirectory();
+
+   /**
+    * Set the directory of the transaction log
+    * @param transactionLogDirectory the directory, relative to the server data directory
+    */
+   void setTransactionLogDirectory(String transactionLogDirectory);
+
+   /**
+    * Get the size after which the transaction log is rewritten
+    * @return the size in bytes
+    */
+   long getTransactionLogMaxSize();
+
+   /**
+    * Set the size after which the transaction log is rewritten
+    * @param transactionLogMaxSize the size in bytes
+    */
+   void setTransactionLogMaxSize(long transactionLogMaxSize);
+
+   /**
+    * Get the number of threads completing the resources of a transaction in parallel
+    * @return the number of threads, zero when the resources are completed serially
+    */
+   int getCompletionThreads();
+
+   /**
+    * Set the number of threads completing the resources of a transaction in parallel
+    * @param completionThreads the number of threads, zero to complete serially
+    */
+   void setCompletionThreads(int completionThreads);
+
+   /**
+    * Get the prepare and commit times of the resources
+    * @return an XML fragment with the times in microseconds by class of XAResource
+    */
+   String getResourceStatistics();
+
+   /**
+    * Reset the prepare and commit times of the resources
+    */
+   void resetResourceStatistics();
+
+   /**
+    * Register a resource for recovery
+    * @param xaRes the resource
+    */
+   void registerRecoveryResource(XAResource xaRes);
+
+   /**
+    * Unregister a resource for recovery
+    * @param xaRes the resource
+    */
+   void unregisterRecoveryResource(XAResource xaRes);
+
+   /**
+    * Complete the prepared branches of the registered resources
+    */
+   void recoverResources();
+
+   /**
+    * Complete the prepared branches of the registered resources and forget
+    * the branches of committed transactions that no resource reports
+    */
+   void forgetCommittedBranches();
+
    /**
     * Get the xa terminator
     * @return the xa terminator
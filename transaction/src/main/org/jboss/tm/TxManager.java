@@ -21,8 +21,10 @@
  */
 package org.jboss.tm;
 
-import java.util.Collections;
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import javax.resource.spi.work.Work;
@@ -38,13 +40,19 @@ import javax.transaction.SystemException;
 import javax.transaction.Transaction;
 import javax.transaction.TransactionManager;
 import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
 import javax.transaction.xa.Xid;
 
 import org.jboss.logging.Logger;
 import org.jboss.tm.integrity.TransactionIntegrity;
+import org.jboss.tm.recovery.TransactionLog;
 import org.jboss.util.UnexpectedThrowable;
 import org.jboss.util.UnreachableStatementException;
 
+import EDU.oswego.cs.dl.util.concurrent.ConcurrentHashMap;
+import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
+import EDU.oswego.cs.dl.util.concurrent.ThreadFactory;
+
 /**
  * Our TransactionManager implementation.
  *
@@ -103,6 +111,24 @@ public class TxManager
    /** The transaction integrity policy */
    private TransactionIntegrity integrity;
 
+   /** The transaction log, null when the decisions are not logged */
+   private volatile TransactionLog transactionLog;
+
+   /** Our xids with a smaller local id were created before the log was opened */
+   private long recoveryBoundary = Long.MAX_VALUE;
+
+   /** The resources registered for recovery */
+   private List recoveryResources = new ArrayList();
+
+   /** Serializes the recovery scans */
+   private final Object recoveryLock = new Object();
+
+   /** The threads completing the resources in parallel, zero for serial */
+   private int completionThreads;
+
+   /** The executor completing the resources in parallel, null for serial */
+   private volatile PooledExecutor completionExecutor;
+
    // Static --------------------------------------------------------
 
    /**
@@ -189,6 +215,186 @@ public class TxManager
       return integrity;
    }
 
+   /**
+    * Set the transaction log. The local ids of new transactions are moved
+    * past the ids a previous run could have written to the log, those are
+    * not kept anywhere else.
+    * 
+    * @param transactionLog the opened log or null to stop logging
+    */
+   public void setTransactionLog(TransactionLog transactionLog)
+   {
+      if (transactionLog != null)
+      {
+         XidFactoryMBean xidFactory = TransactionImpl.xidFactory;
+         synchronized (xidFactory)
+         {
+            long seed = System.currentTimeMillis() * 1000;
+            if (xidFactory.getGlobalIdNumber() < seed)
+               xidFactory.setGlobalIdNumber(seed);
+            recoveryBoundary = xidFactory.getGlobalIdNumber() + 1;
+         }
+      }
+      this.transactionLog = transactionLog;
+   }
+
+   /**
+    * Get the transaction log
+    * 
+    * @return the log or null when the decisions are not logged
+    */
+   public TransactionLog getTransactionLog()
+   {
+      return transactionLog;
+   }
+
+   /**
+    * Set the number of threads preparing and committing the resources
+    * of a transaction in parallel, the thread completing the transaction
+    * calls out itself when they are all busy.
+    * 
+    * @param threads the number of threads, zero to complete serially
+    */
+   public synchronized void setCompletionThreads(int threads)
+   {
+      if (threads == completionThreads)
+         return;
+
+      PooledExecutor old = completionExecutor;
+      if (threads > 0)
+      {
+         PooledExecutor executor = new PooledExecutor(threads);
+         executor.runWhenBlocked();
+         executor.setThreadFactory(new ThreadFactory()
+         {
+            public Thread newThread(Runnable runnable)
+            {
+               Thread thread = new Thread(runnable, "Transaction completion");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+         completionExecutor = executor;
+      }
+      else
+         completionExecutor = null;
+      completionThreads = threads;
+
+      if (old != null)
+         old.shutdownAfterProcessingCurrentlyQueuedTasks();
+   }
+
+   /**
+    * Get the number of threads completing the resources in parallel
+    * 
+    * @return the number of threads, zero when the resources are completed serially
+    */
+   public synchronized int getCompletionThreads()
+   {
+      return completionThreads;
+   }
+
+   /**
+    * Get the prepare and commit times of the resources
+    * 
+    * @return the statistics
+    */
+   public ResourceStatistics getResourceStatistics()
+   {
+      return TransactionImpl.statistics;
+   }
+
+   /**
+    * Register a resource for recovery, the branches it has prepared
+    * are completed now and in every later recovery.
+    * 
+    * @param xaRes the resource
+    */
+   public void registerRecoveryResource(XAResource xaRes)
+   {
+      synchronized (recoveryResources)
+      {
+         recoveryResources.add(xaRes);
+      }
+      synchronized (recoveryLock)
+      {
+         recoverResource(xaRes);
+      }
+   }
+
+   /**
+    * Unregister a resource for recovery
+    * 
+    * @param xaRes the resource
+    */
+   public void unregisterRecoveryResource(XAResource xaRes)
+   {
+      synchronized (recoveryResources)
+      {
+         recoveryResources.remove(xaRes);
+      }
+   }
+
+   /**
+    * Complete the prepared branches of all the registered resources.
+    * Branches of a transaction that rolled back that no resource reports
+    * were completed before the crash. Branches of a transaction that
+    * committed that no resource reports may belong to a resource manager
+    * that is not registered yet, they are kept until one reports them or
+    * {@link #forgetCommittedBranches()} is invoked.
+    */
+   public void recoverResources()
+   {
+      recoverResources(false);
+   }
+
+   /**
+    * Complete the prepared branches of all the registered resources and
+    * forget the branches of committed transactions that no resource reports.
+    * Only invoke this once every resource manager taking part in two phase
+    * commit has been registered.
+    */
+   public void forgetCommittedBranches()
+   {
+      recoverResources(true);
+   }
+
+   private void recoverResources(boolean forgetCommitted)
+   {
+      TransactionLog txLog = transactionLog;
+      if (txLog == null)
+         return;
+
+      XAResource[] xaResources;
+      synchronized (recoveryResources)
+      {
+         xaResources = (XAResource[]) recoveryResources.toArray(new XAResource[recoveryResources.size()]);
+      }
+
+      synchronized (recoveryLock)
+      {
+         boolean complete = xaResources.length > 0;
+         for (int i = 0; i < xaResources.length; ++i)
+            complete &= recoverResource(xaResources[i]);
+         if (complete == false)
+            return;
+
+         for (Iterator i = txLog.getEntries().iterator(); i.hasNext();)
+         {
+            TransactionLog.Entry entry = (TransactionLog.Entry) i.next();
+            if (entry.isActive() || entry.getState() == TransactionLog.PREPARED)
+               continue;
+            if (entry.getState() == TransactionLog.COMMIT && forgetCommitted == false)
+            {
+               entry.clearReported();
+               log.warn("Committed transaction has branches no registered resource reports " + entry);
+            }
+            else if (entry.forgetUnreported())
+               endEntry(txLog, entry);
+         }
+      }
+   }
+
    /**
     *  Begin a new transaction.
     *  The new transaction will be associated with the calling thread.
@@ -680,6 +886,12 @@ public class TxManager
    {
       if (trace)
          log.trace("rolling back xid=" + xid); 
+      if (completeInDoubt(xid, false))
+      {
+         if (trace)
+            log.trace("rolled back in doubt xid=" + xid); 
+         return;
+      }
       try
       {
          TransactionImpl tx = getExternalTransaction(xid);
@@ -697,6 +909,12 @@ public class TxManager
    {
       if (trace)
          log.trace("committing xid=" + xid + " onePhase=" + onePhase); 
+      if (onePhase == false && completeInDoubt(xid, true))
+      {
+         if (trace)
+            log.trace("committed in doubt xid=" + xid); 
+         return;
+      }
       try
       {
          TransactionImpl tx = getExternalTransaction(xid);
@@ -729,8 +947,19 @@ public class TxManager
    
    public Xid[] recover(int flag) throws XAException
    {
-      // TODO recover
-      return new Xid[0];
+      TransactionLog txLog = transactionLog;
+      if (txLog == null || flag == XAResource.TMENDRSCAN)
+         return new Xid[0];
+
+      // The imported transactions we prepared and lost the decision for
+      ArrayList result = new ArrayList();
+      for (Iterator i = txLog.getEntries().iterator(); i.hasNext();)
+      {
+         TransactionLog.Entry entry = (TransactionLog.Entry) i.next();
+         if (entry.isActive() == false && entry.getState() == TransactionLog.PREPARED)
+            result.add(entry.getXid());
+      }
+      return (Xid[]) result.toArray(new Xid[result.size()]);
    }
    
    TransactionImpl importExternalTransaction(Xid xid, long timeOut)
@@ -766,6 +995,46 @@ public class TxManager
       return tx;
    }
 
+   /**
+    * Complete an imported transaction that is in doubt in the log
+    *
+    * @param xid the imported xid
+    * @param commit true to commit, false to rollback
+    * @return false when the transaction is not in doubt
+    * @throws XAException when the branches could not all be completed
+    */
+   boolean completeInDoubt(Xid xid, boolean commit) throws XAException
+   {
+      TransactionLog txLog = transactionLog;
+      if (txLog == null)
+         return false;
+      TransactionLog.Entry entry = txLog.getEntry(xid);
+      if (entry == null || entry.isActive())
+         return false;
+
+      byte decision = commit ? TransactionLog.COMMIT : TransactionLog.ROLLBACK;
+      byte state = entry.getState();
+      if (state == TransactionLog.PREPARED)
+      {
+         try
+         {
+            txLog.decide(entry, commit);
+         }
+         catch (IOException e)
+         {
+            JBossXAException.rethrowAsXAException("Error logging the outcome of xid=" + xid, e);
+         }
+      }
+      else if (state != decision)
+         throw new XAException(XAException.XAER_PROTO);
+
+      recoverResources();
+
+      if (txLog.getEntry(xid) != null)
+         throw new XAException(commit ? XAException.XA_RETRY : XAException.XAER_RMFAIL);
+      return true;
+   }
+
    // Implements TransactionLocalDelegate ----------------------
 
    public void lock(TransactionLocal local, Transaction tx) throws InterruptedException
@@ -826,10 +1095,161 @@ public class TxManager
       ++rollbackCount;
    }
 
+   /**
+    * Get the executor completing the resources in parallel
+    * 
+    * @return the executor or null when the resources are completed serially
+    */
+   PooledExecutor getCompletionExecutor()
+   {
+      return completionExecutor;
+   }
+
    // Protected -----------------------------------------------------
 
    // Private -------------------------------------------------------
 
+   /**
+    * Complete the prepared branches of a resource
+    *
+    * @param xaRes the resource
+    * @return false when the resource could not be scanned
+    */
+   private boolean recoverResource(XAResource xaRes)
+   {
+      TransactionLog txLog = transactionLog;
+      if (txLog == null)
+         return false;
+
+      Xid[] xids;
+      try
+      {
+         xids = xaRes.recover(XAResource.TMSTARTRSCAN | XAResource.TMENDRSCAN);
+      }
+      catch (XAException e)
+      {
+         log.warn("Unable to recover resource " + xaRes + " errorCode=" + e.errorCode, e);
+         return false;
+      }
+      if (xids == null)
+         return true;
+
+      for (int i = 0; i < xids.length; ++i)
+      {
+         Xid xid = xids[i];
+         TransactionLog.Entry entry = txLog.getEntryForBranch(xid);
+         if (entry != null)
+         {
+            if (entry.isActive())
+               continue;
+            entry.reported(xid);
+            switch (entry.getState())
+            {
+               case TransactionLog.COMMIT:
+                  if (completeBranch(xaRes, xid, true) && entry.completed(xid))
+                     endEntry(txLog, entry);
+                  break;
+               case TransactionLog.ROLLBACK:
+                  if (completeBranch(xaRes, xid, false) && entry.completed(xid))
+                     endEntry(txLog, entry);
+                  break;
+               default:
+                  // Prepared for a superior that has not decided
+                  break;
+            }
+         }
+         else if (isPresumedAbort(xid))
+         {
+            log.info("Rolling back prepared branch with no commit decision xid=" + xid);
+            completeBranch(xaRes, xid, false);
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Commit or rollback a recovered branch
+    *
+    * @return true when the branch is complete
+    */
+   private boolean completeBranch(XAResource xaRes, Xid xid, boolean commit)
+   {
+      try
+      {
+         if (commit)
+            xaRes.commit(xid, false);
+         else
+            xaRes.rollback(xid);
+         return true;
+      }
+      catch (XAException e)
+      {
+         switch (e.errorCode)
+         {
+            case XAException.XAER_NOTA:
+               return true;
+            case XAException.XA_HEURRB:
+            case XAException.XA_HEURCOM:
+            case XAException.XA_HEURMIX:
+            case XAException.XA_HEURHAZ:
+               log.warn("Heuristic outcome recovering xid=" + xid + " errorCode=" + e.errorCode);
+               try
+               {
+                  xaRes.forget(xid);
+               }
+               catch (XAException ignored)
+               {
+                  log.debug("Unable to forget xid=" + xid, ignored);
+               }
+               return true;
+            default:
+               log.warn("Unable to " + (commit ? "commit" : "rollback") + " recovered xid=" + xid +
+                  " errorCode=" + e.errorCode, e);
+               return false;
+         }
+      }
+   }
+
+   /**
+    * Whether a branch is one of ours created before the log was opened,
+    * having no decision in the log it never committed
+    */
+   private boolean isPresumedAbort(Xid xid)
+   {
+      if (xid.getFormatId() != XidImpl.JBOSS_FORMAT_ID)
+         return false;
+      XidFactoryMBean xidFactory = TransactionImpl.xidFactory;
+      byte[] base = xidFactory.getBaseGlobalId().getBytes();
+      byte[] gtrid = xid.getGlobalTransactionId();
+      if (gtrid.length <= base.length)
+         return false;
+      for (int i = 0; i < base.length; ++i)
+      {
+         if (gtrid[i] != base[i])
+            return false;
+      }
+      try
+      {
+         return xidFactory.extractLocalIdFrom(gtrid) < recoveryBoundary;
+      }
+      catch (NumberFormatException e)
+      {
+         return false;
+      }
+   }
+
+   private void endEntry(TransactionLog txLog, TransactionLog.Entry entry)
+   {
+      try
+      {
+         txLog.end(entry);
+      }
+      catch (IOException e)
+      {
+         log.warn("Unable to log the end of recovered xid=" + entry.getXid(), e);
+      }
+   }
+
    /**
     *  This keeps track of the thread association with transactions
     *  and timeout values.
@@ -840,15 +1260,16 @@ public class TxManager
    /**
     *  This map contains the active transactions as values.
     *  The keys are the <code>LocalId</code>s of the transactions.
+    *  It is a concurrent map, begin and commit should not meet on a lock.
     */
-   private Map localIdTx = Collections.synchronizedMap(new HashMap());
+   private Map localIdTx = new ConcurrentHashMap();
 
 
    /**
     *  If <code>globalIdsEnabled</code> is true, this map associates
     *  <code>GlobalId</code>s to active transactions. 
     */
-   private Map globalIdTx = Collections.synchronizedMap(new HashMap());
+   private Map globalIdTx = new ConcurrentHashMap();
 
 
    /**
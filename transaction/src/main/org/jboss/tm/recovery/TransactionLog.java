@@ -0,0 +1,782 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tm.recovery;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import javax.transaction.xa.Xid;
+
+import org.jboss.logging.Logger;
+import org.jboss.tm.XidImpl;
+
+/**
+ * A write ahead log of the two phase commit decisions.<p>
+ *
+ * The log is a single append only file. A record is
+ * <code>[int length][int crc32][byte type][xid][int branches][branch xids]</code>
+ * and a record that is incomplete or does not match its checksum ends the
+ * log, it was being written when the system went down.<p>
+ *
+ * Records that must be durable before the caller continues are forced with
+ * group commit: the first thread to ask for a force writes everything
+ * appended so far to the disk, the threads that appended while it was
+ * forcing share the next force. Records that only forget a transaction are
+ * not forced, losing them means the transaction is recovered again, which
+ * is harmless.<p>
+ *
+ * When the file grows over the maximum size the entries still in doubt are
+ * copied to a new file which then replaces the log.
+ *
+ * @version $Revision$
+ */
+public class TransactionLog
+{
+   // Constants -----------------------------------------------------
+
+   /** An imported transaction was prepared */
+   public static final byte PREPARED = 1;
+
+   /** The transaction is committing */
+   public static final byte COMMIT = 2;
+
+   /** The prepared transaction is rolling back */
+   public static final byte ROLLBACK = 3;
+
+   /** The transaction is complete */
+   public static final byte END = 4;
+
+   /** The file name */
+   static final String LOG_FILE = "tx.log";
+
+   /** The name of the file replacing the log */
+   static final String NEW_LOG_FILE = "tx.log.new";
+
+   /** The record header, length and checksum */
+   static final int RECORD_HEADER = 8;
+
+   /** The largest record we accept when reading */
+   static final int MAX_RECORD = 64 * 1024;
+
+   // Attributes ----------------------------------------------------
+
+   private static final Logger log = Logger.getLogger(TransactionLog.class);
+
+   /** The directory */
+   private File directory;
+
+   /** The size of the log after which it is rewritten */
+   private long maxSize;
+
+   /** The log file */
+   private RandomAccessFile file;
+
+   /** The channel of the log file */
+   private FileChannel channel;
+
+   /** The end of the log */
+   private long position;
+
+   /** The entries in doubt by global transaction */
+   private Map entries = new HashMap();
+
+   /** The entries in doubt by branch */
+   private Map branches = new HashMap();
+
+   /** The group commit monitor */
+   private final Object syncLock = new Object();
+
+   /** The position known to be on the disk, guarded by syncLock */
+   private long forced;
+
+   /** The end of the log published to the forcing threads, guarded by syncLock */
+   private long written;
+
+   /** The channel published to the forcing threads, guarded by syncLock */
+   private FileChannel syncChannel;
+
+   /** Whether a thread is forcing, guarded by syncLock */
+   private boolean forcing;
+
+   /** The number of forces, guarded by syncLock */
+   private long forceCount;
+
+   /** The number of records written */
+   private long recordCount;
+
+   // Constructors --------------------------------------------------
+
+   /**
+    * Create a new transaction log
+    *
+    * @param directory the directory of the log
+    * @param maxSize the size after which the log is rewritten
+    */
+   public TransactionLog(File directory, long maxSize)
+   {
+      this.directory = directory;
+      this.maxSize = maxSize;
+   }
+
+   // Public --------------------------------------------------------
+
+   /**
+    * Open the log, reading the entries in doubt
+    *
+    * @throws IOException for any error
+    */
+   public synchronized void open() throws IOException
+   {
+      if (directory.exists() == false && directory.mkdirs() == false)
+         throw new IOException("Unable to create directory " + directory);
+
+      File logFile = new File(directory, LOG_FILE);
+      File newFile = new File(directory, NEW_LOG_FILE);
+      if (logFile.exists())
+         newFile.delete();
+      else if (newFile.exists() && newFile.renameTo(logFile) == false)
+         throw new IOException("Unable to rename " + newFile + " to " + logFile);
+
+      file = new RandomAccessFile(logFile, "rw");
+      channel = file.getChannel();
+      position = replay(logFile);
+      if (position < channel.size())
+      {
+         log.warn("Discarding incomplete records after position " + position + " of " + logFile);
+         channel.truncate(position);
+         channel.force(false);
+      }
+      synchronized (syncLock)
+      {
+         forced = position;
+         written = position;
+         syncChannel = channel;
+      }
+      log.debug("Opened " + logFile + " with " + entries.size() + " transactions in doubt");
+   }
+
+   /**
+    * Close the log
+    *
+    * @throws IOException for any error
+    */
+   public synchronized void close() throws IOException
+   {
+      if (file != null)
+      {
+         channel.force(false);
+         file.close();
+         file = null;
+         channel = null;
+         synchronized (syncLock)
+         {
+            syncChannel = null;
+         }
+      }
+   }
+
+   /**
+    * Log the commit decision of a transaction, the record is on the disk
+    * when this returns
+    *
+    * @param xid the global transaction
+    * @param prepared the prepared branches
+    * @return the entry
+    * @throws IOException for any error
+    */
+   public Entry commit(Xid xid, Xid[] prepared) throws IOException
+   {
+      Entry entry = new Entry(xid, prepared, COMMIT);
+      sync(write(entry, COMMIT));
+      return entry;
+   }
+
+   /**
+    * Log the prepare of an imported transaction, the record is on the
+    * disk when this returns
+    *
+    * @param xid the imported transaction
+    * @param prepared the prepared branches
+    * @return the entry
+    * @throws IOException for any error
+    */
+   public Entry prepared(Xid xid, Xid[] prepared) throws IOException
+   {
+      Entry entry = new Entry(xid, prepared, PREPARED);
+      sync(write(entry, PREPARED));
+      return entry;
+   }
+
+   /**
+    * Log the outcome of an imported transaction that was in doubt,
+    * a commit is on the disk when this returns
+    *
+    * @param entry the entry
+    * @param commit true to commit, false to rollback
+    * @throws IOException for any error
+    */
+   public void decide(Entry entry, boolean commit) throws IOException
+   {
+      long end = write(entry, commit ? COMMIT : ROLLBACK);
+      if (commit)
+         sync(end);
+   }
+
+   /**
+    * Forget an entry, all its branches are complete
+    *
+    * @param entry the entry
+    * @throws IOException for any error
+    */
+   public void end(Entry entry) throws IOException
+   {
+      write(entry, END);
+   }
+
+   /**
+    * Get the entry of a transaction
+    *
+    * @param xid the global transaction
+    * @return the entry or null if it is not in doubt
+    */
+   public synchronized Entry getEntry(Xid xid)
+   {
+      return (Entry) entries.get(new Key(xid, false));
+   }
+
+   /**
+    * Get the entry of a branch
+    *
+    * @param branch the branch
+    * @return the entry or null if the branch is not in doubt
+    */
+   public synchronized Entry getEntryForBranch(Xid branch)
+   {
+      return (Entry) branches.get(new Key(branch, true));
+   }
+
+   /**
+    * Get the entries in doubt
+    *
+    * @return a collection of entries
+    */
+   public synchronized Collection getEntries()
+   {
+      return new ArrayList(entries.values());
+   }
+
+   /**
+    * Get the number of forces
+    *
+    * @return the force count
+    */
+   public long getForceCount()
+   {
+      synchronized (syncLock)
+      {
+         return forceCount;
+      }
+   }
+
+   /**
+    * Get the number of records written
+    *
+    * @return the record count
+    */
+   public synchronized long getRecordCount()
+   {
+      return recordCount;
+   }
+
+   /**
+    * Get the size of the log
+    *
+    * @return the size in bytes
+    */
+   public synchronized long getSize()
+   {
+      return position;
+   }
+
+   // Private -------------------------------------------------------
+
+   /**
+    * Append a record and update the entries. The end of the log is
+    * published under syncLock, the forcing threads never take this monitor
+    * which is held while a rewrite waits for them.
+    *
+    * @return the end of the record
+    */
+   private synchronized long write(Entry entry, byte type) throws IOException
+   {
+      if (file == null)
+         throw new IOException("The transaction log is closed");
+
+      if (position > maxSize)
+         rewrite();
+
+      ByteBuffer record = encode(entry, type);
+      while (record.hasRemaining())
+         position += channel.write(record, position);
+      ++recordCount;
+      apply(entry, type);
+      synchronized (syncLock)
+      {
+         written = position;
+      }
+      return position;
+   }
+
+   /**
+    * Wait until the log is on the disk up to the position
+    */
+   private void sync(long end) throws IOException
+   {
+      long target;
+      FileChannel current;
+      synchronized (syncLock)
+      {
+         while (true)
+         {
+            if (forced >= end)
+               return;
+            if (forcing == false)
+               break;
+            try
+            {
+               syncLock.wait();
+            }
+            catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+               throw new IOException("Interrupted waiting for the transaction log");
+            }
+         }
+         if (syncChannel == null)
+            throw new IOException("The transaction log is closed");
+         forcing = true;
+         // A rewrite waits for the force before it replaces the channel
+         target = written;
+         current = syncChannel;
+      }
+
+      try
+      {
+         current.force(false);
+      }
+      finally
+      {
+         synchronized (syncLock)
+         {
+            forcing = false;
+            ++forceCount;
+            if (target > forced)
+               forced = target;
+            syncLock.notifyAll();
+         }
+      }
+   }
+
+   /**
+    * Copy the entries in doubt to a new file that replaces the log
+    */
+   private void rewrite() throws IOException
+   {
+      File logFile = new File(directory, LOG_FILE);
+      File newFile = new File(directory, NEW_LOG_FILE);
+      RandomAccessFile raf = new RandomAccessFile(newFile, "rw");
+      long newPosition = 0;
+      try
+      {
+         FileChannel newChannel = raf.getChannel();
+         newChannel.truncate(0);
+         for (Iterator i = entries.values().iterator(); i.hasNext();)
+         {
+            Entry entry = (Entry) i.next();
+            ByteBuffer record = encode(entry, entry.state);
+            while (record.hasRemaining())
+               newPosition += newChannel.write(record, newPosition);
+         }
+         newChannel.force(true);
+      }
+      finally
+      {
+         raf.close();
+      }
+
+      // Everything appended so far is in the new file and forced
+      synchronized (syncLock)
+      {
+         while (forcing)
+         {
+            try
+            {
+               syncLock.wait();
+            }
+            catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+               throw new IOException("Interrupted waiting for the transaction log");
+            }
+         }
+         file.close();
+         if (logFile.delete() == false || newFile.renameTo(logFile) == false)
+            throw new IOException("Unable to replace " + logFile + " with " + newFile);
+         file = new RandomAccessFile(logFile, "rw");
+         channel = file.getChannel();
+         position = newPosition;
+         forced = newPosition;
+         written = newPosition;
+         syncChannel = channel;
+      }
+      log.debug("Rewrote " + logFile + " with " + entries.size() + " transactions in doubt");
+   }
+
+   /**
+    * Read the log
+    *
+    * @return the end of the last complete record
+    */
+   private long replay(File logFile) throws IOException
+   {
+      long end = 0;
+      InputStream is = new BufferedInputStream(new FileInputStream(logFile));
+      try
+      {
+         DataInputStream in = new DataInputStream(is);
+         CRC32 crc = new CRC32();
+         while (true)
+         {
+            int length;
+            int checksum;
+            byte[] data;
+            try
+            {
+               length = in.readInt();
+               checksum = in.readInt();
+               if (length <= 0 || length > MAX_RECORD)
+                  break;
+               data = new byte[length];
+               in.readFully(data);
+            }
+            catch (EOFException e)
+            {
+               break;
+            }
+            crc.reset();
+            crc.update(data);
+            if ((int) crc.getValue() != checksum)
+               break;
+
+            DataInputStream record = new DataInputStream(new ByteArrayInputStream(data));
+            byte type = record.readByte();
+            Xid xid = readXid(record);
+            Xid[] prepared = new Xid[record.readInt()];
+            for (int i = 0; i < prepared.length; ++i)
+               prepared[i] = readXid(record);
+            Entry entry = (Entry) entries.get(new Key(xid, false));
+            if (entry == null)
+               entry = new Entry(xid, prepared, type);
+            entry.recovered = true;
+            apply(entry, type);
+            end += RECORD_HEADER + length;
+         }
+      }
+      finally
+      {
+         is.close();
+      }
+      return end;
+   }
+
+   /**
+    * Apply a record to the entries
+    */
+   private void apply(Entry entry, byte type)
+   {
+      if (type == END)
+      {
+         entries.remove(entry.key);
+         for (int i = 0; i < entry.branches.length; ++i)
+            branches.remove(new Key(entry.branches[i], true));
+      }
+      else
+      {
+         entry.state = type;
+         entries.put(entry.key, entry);
+         for (int i = 0; i < entry.branches.length; ++i)
+            branches.put(new Key(entry.branches[i], true), entry);
+      }
+   }
+
+   private static ByteBuffer encode(Entry entry, byte type) throws IOException
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(0);
+      out.writeInt(0);
+      out.writeByte(type);
+      writeXid(out, entry.xid);
+      Xid[] prepared = type == END ? new Xid[0] : entry.branches;
+      out.writeInt(prepared.length);
+      for (int i = 0; i < prepared.length; ++i)
+         writeXid(out, prepared[i]);
+      out.flush();
+
+      byte[] data = bytes.toByteArray();
+      CRC32 crc = new CRC32();
+      crc.update(data, RECORD_HEADER, data.length - RECORD_HEADER);
+      ByteBuffer record = ByteBuffer.wrap(data);
+      record.putInt(0, data.length - RECORD_HEADER);
+      record.putInt(4, (int) crc.getValue());
+      return record;
+   }
+
+   private static void writeXid(DataOutputStream out, Xid xid) throws IOException
+   {
+      out.writeInt(xid.getFormatId());
+      byte[] gtrid = xid.getGlobalTransactionId();
+      out.writeShort(gtrid.length);
+      out.write(gtrid);
+      byte[] bqual = xid.getBranchQualifier();
+      out.writeShort(bqual.length);
+      out.write(bqual);
+   }
+
+   private static Xid readXid(DataInputStream in) throws IOException
+   {
+      int formatId = in.readInt();
+      byte[] gtrid = new byte[in.readShort()];
+      in.readFully(gtrid);
+      byte[] bqual = new byte[in.readShort()];
+      in.readFully(bqual);
+      return new XidImpl(formatId, gtrid, bqual, Arrays.hashCode(gtrid), 0L);
+   }
+
+   // Inner classes -------------------------------------------------
+
+   /**
+    * A transaction in doubt
+    */
+   public static class Entry
+   {
+      /** The global transaction */
+      private Xid xid;
+
+      /** The key of the global transaction */
+      private Key key;
+
+      /** The prepared branches */
+      private Xid[] branches;
+
+      /** The branches not yet completed */
+      private Set pending = new HashSet();
+
+      /** The branches reported by the resources in the current recovery */
+      private Set reported = new HashSet();
+
+      /** The last record type */
+      private byte state;
+
+      /** Whether the entry was read from the log at startup */
+      private boolean recovered;
+
+      /** Whether the transaction is still completing in this vm */
+      private boolean active = true;
+
+      Entry(Xid xid, Xid[] branches, byte state)
+      {
+         this.xid = xid;
+         this.key = new Key(xid, false);
+         this.branches = branches;
+         this.state = state;
+         for (int i = 0; i < branches.length; ++i)
+            pending.add(new Key(branches[i], true));
+      }
+
+      /**
+       * Get the global transaction
+       *
+       * @return the xid
+       */
+      public Xid getXid()
+      {
+         return xid;
+      }
+
+      /**
+       * Get the prepared branches
+       *
+       * @return the branches
+       */
+      public Xid[] getBranches()
+      {
+         return branches;
+      }
+
+      /**
+       * Get the state, PREPARED, COMMIT or ROLLBACK
+       *
+       * @return the state
+       */
+      public synchronized byte getState()
+      {
+         return state;
+      }
+
+      /**
+       * Whether the entry was read from the log at startup
+       *
+       * @return true when recovered
+       */
+      public boolean isRecovered()
+      {
+         return recovered;
+      }
+
+      /**
+       * Whether the transaction is still completing in this vm,
+       * recovery must leave it alone
+       *
+       * @return true when active
+       */
+      public synchronized boolean isActive()
+      {
+         return active && recovered == false;
+      }
+
+      /**
+       * The transaction could not complete its branches,
+       * they are left to recovery
+       */
+      public synchronized void setInactive()
+      {
+         active = false;
+      }
+
+      /**
+       * A branch was completed
+       *
+       * @param branch the branch
+       * @return true when all the branches are completed
+       */
+      public synchronized boolean completed(Xid branch)
+      {
+         pending.remove(new Key(branch, true));
+         return pending.isEmpty();
+      }
+
+      /**
+       * A resource reported the branch as prepared
+       *
+       * @param branch the branch
+       */
+      public synchronized void reported(Xid branch)
+      {
+         reported.add(new Key(branch, true));
+      }
+
+      /**
+       * Forget the branches no resource reported in the recovery,
+       * they were completed before the crash
+       *
+       * @return true when all the branches are completed
+       */
+      public synchronized boolean forgetUnreported()
+      {
+         pending.retainAll(reported);
+         reported.clear();
+         return pending.isEmpty();
+      }
+
+      /**
+       * Start a new recovery without forgetting any branch
+       */
+      public synchronized void clearReported()
+      {
+         reported.clear();
+      }
+
+      public String toString()
+      {
+         return "Entry[xid=" + xid + " state=" + state + " pending=" + pending.size() + "]";
+      }
+   }
+
+   /**
+    * The identity of an xid, whatever its implementation
+    */
+   private static class Key
+   {
+      private int formatId;
+      private byte[] gtrid;
+      private byte[] bqual;
+      private int hash;
+
+      Key(Xid xid, boolean branch)
+      {
+         formatId = xid.getFormatId();
+         gtrid = xid.getGlobalTransactionId();
+         bqual = branch ? xid.getBranchQualifier() : new byte[0];
+         hash = formatId;
+         for (int i = 0; i < gtrid.length; ++i)
+            hash = hash * 31 + gtrid[i];
+         for (int i = 0; i < bqual.length; ++i)
+            hash = hash * 31 + bqual[i];
+      }
+
+      public int hashCode()
+      {
+         return hash;
+      }
+
+      public boolean equals(Object obj)
+      {
+         if (obj instanceof Key == false)
+            return false;
+         Key other = (Key) obj;
+         return formatId == other.formatId
+            && Arrays.equals(gtrid, other.gtrid)
+            && Arrays.equals(bqual, other.bqual);
+      }
+   }
+}